@@ -3,25 +3,128 @@ package com.afklive.optimizer;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 public class FFmpegCommandBuilder {
 
+    public static final String PIPE_INPUT = "pipe:0";
+    public static final String PIPE_OUTPUT = "pipe:1";
+
+    // Resolved once per container, at class initialization in the init phase
+    private static final String FFMPEG = resolveFfmpeg();
+
     public static List<String> buildOptimizeCommand(Path input, Path output, String mode, int height) {
-        String ffmpeg = "ffmpeg";
-        java.io.File lambda = new java.io.File("/opt/bin/ffmpeg");
-        if (lambda.exists()) {
-             ffmpeg = lambda.getAbsolutePath();
-        } else {
-             java.io.File local = new java.io.File("bin/ffmpeg");
-             if (local.exists()) ffmpeg = local.getAbsolutePath();
-        }
+        return buildOptimizeCommand(input.toString(), output.toString(), mode, height);
+    }
 
+    /**
+     * {@code input} may also be a URL or {@link #PIPE_INPUT}, {@code output} may be
+     * {@link #PIPE_OUTPUT}; see {@link #streamingOutput}.
+     */
+    public static List<String> buildOptimizeCommand(String input, String output, String mode, int height) {
         List<String> command = new ArrayList<>();
         // In Lambda, we want max performance, so skip nice.
-        command.add(ffmpeg);
+        command.add(ffmpegBinary());
+        command.add("-i");
+        command.add(input);
+
+        addVideo(command, mode, height);
+        addAudio(command);
+
+        command.add("-movflags");
+        command.add("+faststart");
+
+        command.add("-y");
+        command.add(output);
+        return command;
+    }
+
+    /**
+     * Video of one chunk of a chunked optimize, {@code duration} seconds from {@code start} (null
+     * for the rest). Input seeking is frame accurate when transcoding, so chunks starting on
+     * multiples of the two second GOP join into the keyframe cadence of a single-pass encode.
+     */
+    public static List<String> buildSegmentCommand(Path input, Path output, String mode, int height,
+                                                   double start, Double duration) {
+        return buildSegmentCommand(input.toString(), output.toString(), mode, height, start, duration);
+    }
+
+    public static List<String> buildSegmentCommand(String input, String output, String mode, int height,
+                                                   double start, Double duration) {
+        List<String> command = new ArrayList<>();
+        command.add(ffmpegBinary());
+        command.add("-ss");
+        command.add(seconds(start));
+        command.add("-i");
+        command.add(input);
+        if (duration != null) {
+            command.add("-t");
+            command.add(seconds(duration));
+        }
+        addVideo(command, mode, height);
+        command.add("-an");
+        command.add("-y");
+        command.add(output);
+        return command;
+    }
+
+    /**
+     * The audio of a chunked optimize in one piece. Encoding it per chunk would leave an AAC
+     * priming gap at every join.
+     */
+    public static List<String> buildAudioCommand(Path input, Path output) {
+        return buildAudioCommand(input.toString(), output.toString());
+    }
+
+    public static List<String> buildAudioCommand(String input, String output) {
+        List<String> command = new ArrayList<>();
+        command.add(ffmpegBinary());
         command.add("-i");
-        command.add(input.toString());
+        command.add(input);
+        command.add("-vn");
+        addAudio(command);
+        command.add("-f");
+        command.add("mp4");
+        command.add("-y");
+        command.add(output);
+        return command;
+    }
+
+    public static List<String> buildOptimizeCommand(Path input, Path output) {
+        return buildOptimizeCommand(input, output, "landscape", 1080);
+    }
+
+    /**
+     * Adapts a command writing to {@link #PIPE_OUTPUT} for streaming: the MP4 is fragmented so
+     * it is written front to back without seeking back to the header, and HTTP inputs reconnect
+     * on dropped connections instead of failing the encode.
+     */
+    public static List<String> streamingOutput(List<String> command) {
+        List<String> streaming = new ArrayList<>(command);
+        if (!PIPE_OUTPUT.equals(streaming.getLast())) {
+            throw new IllegalArgumentException("Command does not write to stdout");
+        }
+        int input = streaming.indexOf("-i");
+        if (streaming.get(input + 1).startsWith("http")) {
+            streaming.addAll(input, List.of("-reconnect", "1", "-reconnect_streamed", "1", "-reconnect_delay_max", "5"));
+        }
+        int movflags = streaming.indexOf("-movflags");
+        if (movflags >= 0) {
+            streaming.remove(movflags + 1);
+            streaming.remove(movflags);
+        }
+        if (!streaming.contains("-f")) {
+            streaming.addAll(streaming.size() - 1, List.of("-f", "mp4"));
+        }
+        streaming.addAll(streaming.size() - 1, List.of("-movflags", "+frag_keyframe+empty_moov+default_base_moof"));
+        if (!streaming.contains(PIPE_INPUT)) {
+            // Keep FFmpeg from reading keyboard commands off the pipe
+            streaming.add(1, "-nostdin");
+        }
+        return streaming;
+    }
 
+    private static void addVideo(List<String> command, String mode, int height) {
         // Resolution Logic
         int w, h;
         if ("portrait".equalsIgnoreCase(mode)) {
@@ -79,23 +182,30 @@ public class FFmpegCommandBuilder {
         command.add("60");
         command.add("-sc_threshold");
         command.add("0");
+    }
 
+    private static void addAudio(List<String> command) {
         command.add("-c:a");
         command.add("aac");
         command.add("-b:a");
         command.add("128k");
         command.add("-ar");
         command.add("44100");
+    }
 
-        command.add("-movflags");
-        command.add("+faststart");
+    private static String seconds(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
 
-        command.add("-y");
-        command.add(output.toString());
-        return command;
+    private static String ffmpegBinary() {
+        return FFMPEG;
     }
 
-    public static List<String> buildOptimizeCommand(Path input, Path output) {
-        return buildOptimizeCommand(input, output, "landscape", 1080);
+    private static String resolveFfmpeg() {
+        java.io.File lambda = new java.io.File("/opt/bin/ffmpeg");
+        if (lambda.exists()) return lambda.getAbsolutePath();
+        java.io.File local = new java.io.File("bin/ffmpeg");
+        if (local.exists()) return local.getAbsolutePath();
+        return "ffmpeg";
     }
 }
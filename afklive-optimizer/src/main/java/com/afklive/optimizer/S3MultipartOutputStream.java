@@ -0,0 +1,188 @@
+package com.afklive.optimizer;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Uploads what is written to it as a multipart upload, each part as soon as it is full, with up
+ * to {@code concurrency} parts in flight. Writing blocks while they are, which bounds memory.
+ * Output smaller than one part is stored with a single PUT. {@link #close()} completes the
+ * upload; call {@link #abort()} instead when the output is incomplete.
+ */
+class S3MultipartOutputStream extends OutputStream {
+
+    private static final int RETRIES = 3;
+
+    private final S3Client s3;
+    private final String bucket;
+    private final String key;
+    private final int partSize;
+    private final Semaphore inFlight;
+    private final ExecutorService uploaders = Executors.newVirtualThreadPerTaskExecutor();
+    private final List<Future<CompletedPart>> parts = new ArrayList<>();
+    private byte[] buffer;
+    private int count;
+    private long size;
+    private String uploadId;
+    private boolean closed;
+
+    S3MultipartOutputStream(S3Client s3, String bucket, String key, int partSize, int concurrency) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.partSize = partSize;
+        this.inFlight = new Semaphore(concurrency);
+        this.buffer = new byte[partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) uploadPart();
+        buffer[count++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buffer.length) uploadPart();
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            size += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Bytes written so far. */
+    long size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (uploadId == null) {
+                s3.putObject(PutObjectRequest.builder().bucket(bucket).key(key).build(),
+                        RequestBody.fromBytes(Arrays.copyOf(buffer, count)));
+                return;
+            }
+            if (count > 0) uploadPart();
+            List<CompletedPart> completed = new ArrayList<>();
+            for (Future<CompletedPart> part : parts) completed.add(await(part));
+            s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                    .build());
+        } catch (IOException | RuntimeException e) {
+            abortUpload();
+            throw e;
+        } finally {
+            uploaders.shutdownNow();
+        }
+    }
+
+    /** Discards the upload, nothing is stored. */
+    void abort() {
+        if (closed) return;
+        closed = true;
+        abortUpload();
+        uploaders.shutdownNow();
+    }
+
+    private void uploadPart() throws IOException {
+        if (uploadId == null) {
+            uploadId = s3.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build()).uploadId();
+        }
+        // Fail the writer early instead of after the whole encode
+        for (Future<CompletedPart> part : parts) {
+            if (part.isDone()) await(part);
+        }
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted uploading " + key);
+        }
+        int partNumber = parts.size() + 1;
+        byte[] data = count == buffer.length ? buffer : Arrays.copyOf(buffer, count);
+        parts.add(uploaders.submit(() -> {
+            try {
+                return uploadPart(partNumber, data);
+            } finally {
+                inFlight.release();
+            }
+        }));
+        buffer = new byte[partSize];
+        count = 0;
+    }
+
+    private CompletedPart uploadPart(int partNumber, byte[] data) {
+        UploadPartRequest request = UploadPartRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .build();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                String eTag = s3.uploadPart(request, RequestBody.fromBytes(data)).eTag();
+                return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+            } catch (RuntimeException e) {
+                if (attempt >= RETRIES) throw e;
+            }
+        }
+    }
+
+    private CompletedPart await(Future<CompletedPart> part) throws IOException {
+        try {
+            return part.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to upload a part of " + key, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted uploading " + key);
+        }
+    }
+
+    private void abortUpload() {
+        if (uploadId == null) return;
+        for (Future<CompletedPart> part : parts) part.cancel(true);
+        try {
+            s3.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build());
+        } catch (RuntimeException e) {
+            System.out.println("Failed to abort upload of " + key + ": " + e.getMessage());
+        }
+    }
+}
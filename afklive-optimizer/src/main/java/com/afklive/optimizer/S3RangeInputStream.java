@@ -0,0 +1,117 @@
+package com.afklive.optimizer;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads an object front to back, fetching the parts ahead of the reader with concurrent ranged
+ * GETs so the transfer is not limited to the throughput of one connection. At most
+ * {@code concurrency} parts are held in memory, nothing is written to disk.
+ */
+class S3RangeInputStream extends InputStream {
+
+    private static final int RETRIES = 3;
+
+    private final S3Client s3;
+    private final String bucket;
+    private final String key;
+    private final String eTag;
+    private final long size;
+    private final int partSize;
+    private final ExecutorService fetchers = Executors.newVirtualThreadPerTaskExecutor();
+    private final Deque<Future<byte[]>> ahead = new ArrayDeque<>();
+    private long nextOffset;
+    private byte[] current = new byte[0];
+    private int position;
+
+    S3RangeInputStream(S3Client s3, String bucket, String key, String eTag, long size, int partSize, int concurrency) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.eTag = eTag;
+        this.size = size;
+        this.partSize = partSize;
+        for (int i = 0; i < concurrency; i++) requestNext();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) return -1;
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+        for (Future<byte[]> part : ahead) part.cancel(true);
+        ahead.clear();
+        fetchers.shutdownNow();
+    }
+
+    // Moves on to the next part once the current one is read
+    private boolean fill() throws IOException {
+        while (position == current.length) {
+            Future<byte[]> next = ahead.poll();
+            if (next == null) return false;
+            try {
+                current = next.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to read " + key, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted reading " + key);
+            }
+            position = 0;
+            requestNext();
+        }
+        return true;
+    }
+
+    private void requestNext() {
+        if (nextOffset >= size) return;
+        long start = nextOffset;
+        long end = Math.min(size, start + partSize) - 1;
+        nextOffset = end + 1;
+        ahead.add(fetchers.submit(() -> fetch(start, end)));
+    }
+
+    private byte[] fetch(long start, long end) throws IOException {
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .range("bytes=" + start + "-" + end)
+                // Fails instead of mixing parts of two versions if the object is replaced meanwhile
+                .ifMatch(eTag)
+                .build();
+        for (int attempt = 1; ; attempt++) {
+            try (ResponseInputStream<GetObjectResponse> in = s3.getObject(request)) {
+                byte[] part = in.readAllBytes();
+                if (part.length != end - start + 1) throw new IOException("Short read of " + key + " at " + start);
+                return part;
+            } catch (IOException | RuntimeException e) {
+                if (attempt >= RETRIES) throw e;
+            }
+        }
+    }
+}
@@ -2,32 +2,68 @@ package com.afklive.optimizer;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.crac.Core;
+import org.crac.Resource;
+import software.amazon.awssdk.core.ResponseBytes;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3Configuration;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
-public class VideoOptimizerHandler implements RequestHandler<Map<String, String>, OptimizationResponse> {
+/**
+ * Entry point of the optimizer function. Clients are built and the request path is primed in
+ * the constructor, which Lambda runs in the init phase; with SnapStart the checkpoint hooks also
+ * make one S3 request so the HTTP stack is loaded in the snapshot.
+ */
+public class VideoOptimizerHandler implements RequestHandler<Map<String, String>, OptimizationResponse>, Resource {
+
+    // Completion records of Event invokes, read by the web app
+    public static final String JOB_PREFIX = "offload-jobs/";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // Transfer part size and parts in flight each way, at most 64 MB of buffers in all
+    private static final int PART_SIZE = 8 * 1024 * 1024;
+    private static final int TRANSFER_CONCURRENCY = 4;
+    // Enough of the source to find the order of its top-level MP4 boxes
+    private static final int HEAD_BYTES = 64 * 1024;
+    private static final Duration PRESIGN_DURATION = Duration.ofMinutes(30);
+    private static final String PRIMING_KEY = JOB_PREFIX + "priming";
 
     private final S3Client s3;
+    // Null where sources cannot be read by URL, they are downloaded to /tmp if they cannot be piped
+    private final S3Presigner presigner;
     private final String bucketName;
 
     // Default constructor for AWS Lambda
     public VideoOptimizerHandler() {
+        long start = System.nanoTime();
         String endpoint = System.getenv("DO_SPACES_ENDPOINT");
         String region = System.getenv("DO_SPACES_REGION");
         String key = System.getenv("DO_SPACES_KEY");
@@ -35,7 +71,10 @@ public class VideoOptimizerHandler implements RequestHandler<Map<String, String>
         this.bucketName = System.getenv("DO_SPACES_BUCKET");
 
         if (endpoint != null && region != null && key != null && secret != null) {
+            // HTTP client, region and credentials are given explicitly, the SDK would otherwise
+            // scan the classpath and walk the provider chains
             this.s3 = S3Client.builder()
+                    .httpClient(UrlConnectionHttpClient.create())
                     .endpointOverride(URI.create(endpoint))
                     .region(Region.of(region))
                     .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(key, secret)))
@@ -44,25 +83,135 @@ public class VideoOptimizerHandler implements RequestHandler<Map<String, String>
                             .checksumValidationEnabled(false) // Disable checksum validation for DO Spaces compatibility
                             .build())
                     .build();
+            this.presigner = S3Presigner.builder()
+                    .endpointOverride(URI.create(endpoint))
+                    .region(Region.of(region))
+                    .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(key, secret)))
+                    .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
+                    .build();
         } else {
             // Fallback or initialization for test environment where env vars might be missing
             // This prevents NPE during class instantiation in tests if we use a different constructor
             this.s3 = null;
+            this.presigner = null;
         }
+
+        prime();
+        // The checkpoint context only holds a weak reference, Lambda keeps the handler alive
+        Core.getGlobalContext().register(this);
+        System.out.println("Optimizer initialized in " + (System.nanoTime() - start) / 1_000_000 + " ms");
     }
 
     // Constructor for testing
     public VideoOptimizerHandler(S3Client s3, String bucketName) {
+        this(s3, null, bucketName);
+    }
+
+    public VideoOptimizerHandler(S3Client s3, S3Presigner presigner, String bucketName) {
         this.s3 = s3;
+        this.presigner = presigner;
         this.bucketName = bucketName;
     }
 
+    /**
+     * Runs the parts of a request that need no network: JSON of the response, command building,
+     * and request marshalling and signing through a presign. Their classes are loaded and
+     * initialized here instead of on the first request.
+     */
+    private void prime() {
+        try {
+            MAPPER.readValue(MAPPER.writeValueAsBytes(new OptimizationResponse("success", "priming", "priming", 0L, null)),
+                    OptimizationResponse.class);
+            FFmpegCommandBuilder.streamingOutput(FFmpegCommandBuilder.buildOptimizeCommand(
+                    FFmpegCommandBuilder.PIPE_INPUT, FFmpegCommandBuilder.PIPE_OUTPUT, "landscape", 1080));
+            pipeable(new byte[0]);
+            if (presigner != null) {
+                presigner.presignGetObject(GetObjectPresignRequest.builder()
+                        .signatureDuration(PRESIGN_DURATION)
+                        .getObjectRequest(GetObjectRequest.builder().bucket(bucketName).key(PRIMING_KEY).build())
+                        .build());
+            }
+        } catch (Exception e) {
+            // Only costs speed, the request path loads the same classes
+            System.out.println("Priming failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * With SnapStart the snapshot is taken after init. A request made now loads the HTTP, TLS
+     * and response parsing classes into it. The object does not exist, the 404 is expected.
+     */
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        if (s3 == null) return;
+        try {
+            s3.headObject(HeadObjectRequest.builder().bucket(bucketName).key(PRIMING_KEY).build());
+        } catch (NoSuchKeyException e) {
+            // Expected
+        } catch (Exception e) {
+            System.out.println("Priming request failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Nothing held across the snapshot needs renewing: credentials are static, the connection of
+     * the priming request expires from the keep-alive cache by wall clock, and UUIDs come from
+     * NativePRNG, which mixes in /dev/urandom on every call, so restored copies do not repeat them.
+     */
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        System.out.println("Optimizer restored from snapshot");
+    }
+
     @Override
     public OptimizationResponse handleRequest(Map<String, String> event, Context context) {
         if (s3 == null) {
             return new OptimizationResponse("error", null, null, null, "S3 Client not initialized");
         }
 
+        String jobId = event.get("job_id");
+        if (jobId == null) {
+            return optimize(event, context);
+        }
+
+        // Event invokes are retried, a job that already has a record is not encoded again
+        String recordKey = JOB_PREFIX + jobId + ".json";
+        OptimizationResponse recorded = readRecord(recordKey);
+        if (recorded != null) {
+            context.getLogger().log("Job " + jobId + " already completed: " + recorded.getStatus());
+            return recorded;
+        }
+        OptimizationResponse response = optimize(event, context);
+        try {
+            s3.putObject(PutObjectRequest.builder().bucket(bucketName).key(recordKey).contentType("application/json").build(),
+                    RequestBody.fromBytes(MAPPER.writeValueAsBytes(response)));
+        } catch (Exception e) {
+            // Without a record the caller times the job out, throwing lets the invoke be retried
+            throw new IllegalStateException("Failed to record job " + jobId, e);
+        }
+        return response;
+    }
+
+    private OptimizationResponse readRecord(String recordKey) {
+        try {
+            ResponseBytes<GetObjectResponse> bytes =
+                    s3.getObjectAsBytes(GetObjectRequest.builder().bucket(bucketName).key(recordKey).build());
+            return bytes != null ? MAPPER.readValue(bytes.asByteArray(), OptimizationResponse.class) : null;
+        } catch (NoSuchKeyException e) {
+            return null;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unreadable job record " + recordKey, e);
+        }
+    }
+
+    /**
+     * Encodes with the transfers overlapping the encode instead of around it. A source FFmpeg
+     * can read front to back is piped in through concurrent ranged GETs; one it has to seek in
+     * (an MP4 with its index at the end, or a chunk starting mid-file) is read by URL. The
+     * output is written as fragmented MP4 to stdout and uploaded in parts while it is encoded,
+     * so neither the source nor the output has to fit in /tmp.
+     */
+    private OptimizationResponse optimize(Map<String, String> event, Context context) {
         String sourceKey = event.get("file_name");
         String mode = event.getOrDefault("mode", "landscape");
         String heightStr = event.getOrDefault("height", "1080");
@@ -78,32 +227,62 @@ public class VideoOptimizerHandler implements RequestHandler<Map<String, String>
                 ? event.get("output_key")
                 : UUID.randomUUID().toString() + "_" + targetTitle;
 
+        boolean segment = event.containsKey("start_seconds");
         File localInput = null;
-        File localOutput = null;
+        InputStream stdin = null;
 
         try {
-            localInput = File.createTempFile("source_", ".mp4");
-            localOutput = File.createTempFile("target_", ".mp4");
-
-            if (localInput.exists()) {
+            HeadObjectResponse head = s3.headObject(HeadObjectRequest.builder().bucket(bucketName).key(sourceKey).build());
+            String input;
+            if (!segment && pipeable(readHead(sourceKey, head.contentLength()))) {
+                context.getLogger().log("Streaming: " + sourceKey + " (" + head.contentLength() + " bytes)");
+                stdin = new S3RangeInputStream(s3, bucketName, sourceKey, head.eTag(), head.contentLength(),
+                        PART_SIZE, TRANSFER_CONCURRENCY);
+                input = FFmpegCommandBuilder.PIPE_INPUT;
+            } else if (presigner != null) {
+                context.getLogger().log("Reading by URL: " + sourceKey);
+                input = presigner.presignGetObject(GetObjectPresignRequest.builder()
+                        .signatureDuration(PRESIGN_DURATION)
+                        .getObjectRequest(GetObjectRequest.builder().bucket(bucketName).key(sourceKey).build())
+                        .build()).url().toString();
+            } else {
+                localInput = File.createTempFile("source_", ".mp4");
                 localInput.delete();
+                context.getLogger().log("Downloading: " + sourceKey);
+                s3.getObject(GetObjectRequest.builder().bucket(bucketName).key(sourceKey).build(), localInput.toPath());
+                input = localInput.getPath();
             }
 
-            context.getLogger().log("Downloading: " + sourceKey);
-            s3.getObject(GetObjectRequest.builder().bucket(bucketName).key(sourceKey).build(), localInput.toPath());
-
-            context.getLogger().log("Optimizing " + simpleName + " to " + targetTitle + " (" + mode + ", " + height + "p)");
-
-            List<String> command = FFmpegCommandBuilder.buildOptimizeCommand(localInput.toPath(), localOutput.toPath(), mode, height);
-
-            executeCommand(command, localOutput);
-
-            long fileSize = Files.size(localOutput.toPath());
-            context.getLogger().log("Uploading: " + outputKey + " (" + fileSize + " bytes)");
+            String output = FFmpegCommandBuilder.PIPE_OUTPUT;
+            List<String> command;
+            if (Boolean.parseBoolean(event.get("audio_only"))) {
+                // Audio of a chunked optimize, encoded in one piece
+                context.getLogger().log("Encoding audio of " + simpleName);
+                command = FFmpegCommandBuilder.buildAudioCommand(input, output);
+            } else if (segment) {
+                // One chunk of a chunked optimize, joined by the caller
+                double start = Double.parseDouble(event.get("start_seconds"));
+                Double duration = event.containsKey("duration_seconds") ? Double.parseDouble(event.get("duration_seconds")) : null;
+                context.getLogger().log("Optimizing " + simpleName + " from " + start + "s (" + mode + ", " + height + "p)");
+                command = FFmpegCommandBuilder.buildSegmentCommand(input, output, mode, height, start, duration);
+            } else {
+                context.getLogger().log("Optimizing " + simpleName + " to " + targetTitle + " (" + mode + ", " + height + "p)");
+                command = FFmpegCommandBuilder.buildOptimizeCommand(input, output, mode, height);
+            }
 
-            s3.putObject(PutObjectRequest.builder().bucket(bucketName).key(outputKey).build(),
-                    RequestBody.fromFile(localOutput));
+            S3MultipartOutputStream upload = new S3MultipartOutputStream(s3, bucketName, outputKey, PART_SIZE,
+                    TRANSFER_CONCURRENCY);
+            try {
+                executeCommand(FFmpegCommandBuilder.streamingOutput(command), stdin, upload);
+                upload.close();
+            } catch (Exception e) {
+                // Never store a partial output
+                upload.abort();
+                throw e;
+            }
 
+            long fileSize = upload.size();
+            context.getLogger().log("Uploaded: " + outputKey + " (" + fileSize + " bytes)");
             return new OptimizationResponse("success", sourceKey, outputKey, fileSize, null);
 
         } catch (Exception e) {
@@ -113,25 +292,96 @@ public class VideoOptimizerHandler implements RequestHandler<Map<String, String>
             String safeMessage = e.getMessage() != null ? e.getMessage() : "Unknown error";
             return new OptimizationResponse("error", null, null, null, safeMessage);
         } finally {
+            if (stdin != null) {
+                try {
+                    stdin.close();
+                } catch (IOException ignored) {
+                    // Nothing left to read
+                }
+            }
             if (localInput != null && localInput.exists()) localInput.delete();
-            if (localOutput != null && localOutput.exists()) localOutput.delete();
         }
     }
 
-    // Protected method for mocking process execution in tests
-    protected void executeCommand(List<String> command, File output) throws IOException, InterruptedException {
-        ProcessBuilder pb = new ProcessBuilder(command);
-        pb.redirectErrorStream(true);
-        Process process = pb.start();
+    private byte[] readHead(String key, long size) throws IOException {
+        if (size == 0) return new byte[0];
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .range("bytes=0-" + (Math.min(size, HEAD_BYTES) - 1))
+                .build();
+        try (InputStream in = s3.getObject(request)) {
+            return in.readAllBytes();
+        }
+    }
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                System.out.println(line);
+    /**
+     * Whether FFmpeg can read the source from a pipe, without seeking. An MP4 or MOV only if
+     * its index (moov) comes before the media data; Matroska, WebM and MPEG-TS always.
+     */
+    static boolean pipeable(byte[] head) {
+        if (head.length >= 4 && (head[0] & 0xff) == 0x1a && (head[1] & 0xff) == 0x45
+                && (head[2] & 0xff) == 0xdf && (head[3] & 0xff) == 0xa3) {
+            return true;
+        }
+        if (head.length >= 189 && head[0] == 0x47 && head[188] == 0x47) {
+            return true;
+        }
+        ByteBuffer boxes = ByteBuffer.wrap(head);
+        while (boxes.remaining() >= 8) {
+            int start = boxes.position();
+            long size = Integer.toUnsignedLong(boxes.getInt());
+            String type = new String(head, start + 4, 4, StandardCharsets.ISO_8859_1);
+            if ("moov".equals(type)) return true;
+            if ("mdat".equals(type)) return false;
+            if (size == 1) {
+                if (head.length - start < 16) return false;
+                size = boxes.getLong(start + 8);
             }
+            // A box running to the end of the file, or one past what was read
+            if (size < 8 || size > head.length - start) return false;
+            boxes.position((int) (start + size));
+        }
+        return false;
+    }
+
+    /**
+     * Runs FFmpeg with {@code stdin} (null for none) fed to its stdin and its stdout copied to
+     * {@code stdout}. Protected for mocking process execution in tests.
+     */
+    protected void executeCommand(List<String> command, InputStream stdin, OutputStream stdout)
+            throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).start();
+
+        Thread logger = Thread.ofVirtual().start(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    System.out.println(line);
+                }
+            } catch (IOException ignored) {
+                // Process ended
+            }
+        });
+        if (stdin != null) {
+            Thread.ofVirtual().start(() -> {
+                try (OutputStream in = process.getOutputStream()) {
+                    stdin.transferTo(in);
+                } catch (IOException ignored) {
+                    // FFmpeg stopped reading, its exit code tells why
+                }
+            });
+        }
+
+        try (InputStream out = process.getInputStream()) {
+            out.transferTo(stdout);
+        } catch (IOException e) {
+            process.destroyForcibly();
+            throw e;
         }
 
         int exitCode = process.waitFor();
+        logger.join();
         if (exitCode != 0) {
             throw new RuntimeException("FFmpeg failed with code " + exitCode);
         }
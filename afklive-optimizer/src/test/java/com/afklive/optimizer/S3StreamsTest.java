@@ -0,0 +1,78 @@
+package com.afklive.optimizer;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class S3StreamsTest {
+
+    @Test
+    public void testRangeStreamReassemblesPartsInOrder() throws Exception {
+        S3Client s3 = mock(S3Client.class);
+        byte[] object = new byte[25];
+        for (int i = 0; i < object.length; i++) object[i] = (byte) i;
+        when(s3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            String[] range = invocation.<GetObjectRequest>getArgument(0).range().substring(6).split("-");
+            byte[] part = Arrays.copyOfRange(object, Integer.parseInt(range[0]), Integer.parseInt(range[1]) + 1);
+            return new ResponseInputStream<>(GetObjectResponse.builder().build(),
+                    AbortableInputStream.create(new ByteArrayInputStream(part)));
+        });
+
+        try (S3RangeInputStream in = new S3RangeInputStream(s3, "bucket", "key", "\"etag\"", object.length, 10, 2)) {
+            assertArrayEquals(object, in.readAllBytes());
+        }
+        verify(s3, times(3)).getObject(any(GetObjectRequest.class));
+    }
+
+    @Test
+    public void testMultipartStreamUploadsFullPartsAndCompletes() throws Exception {
+        S3Client s3 = mock(S3Client.class);
+        when(s3.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload").build());
+        when(s3.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenAnswer(invocation -> UploadPartResponse.builder()
+                        .eTag("etag-" + invocation.<UploadPartRequest>getArgument(0).partNumber()).build());
+
+        S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "bucket", "key", 10, 2);
+        out.write(new byte[25]);
+        out.close();
+
+        assertEquals(25, out.size());
+        verify(s3, times(3)).uploadPart(any(UploadPartRequest.class), any(RequestBody.class));
+        verify(s3).completeMultipartUpload(argThat((CompleteMultipartUploadRequest r) ->
+                r.multipartUpload().parts().stream().map(CompletedPart::eTag).toList()
+                        .equals(List.of("etag-1", "etag-2", "etag-3"))));
+        verify(s3, never()).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    }
+
+    @Test
+    public void testSmallOutputIsStoredWithOnePut() throws Exception {
+        S3Client s3 = mock(S3Client.class);
+
+        S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "bucket", "key", 10, 2);
+        out.write(new byte[5]);
+        out.close();
+
+        verify(s3).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+        verify(s3, never()).createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    }
+}
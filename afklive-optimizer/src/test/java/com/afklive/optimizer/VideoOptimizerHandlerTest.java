@@ -7,15 +7,21 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.AbortableInputStream;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -38,9 +44,14 @@ public class VideoOptimizerHandlerTest {
 
     private VideoOptimizerHandler handler;
 
+    // ftyp followed by moov: an MP4 with its index at the start
+    private static final byte[] FASTSTART_HEAD = {
+            0, 0, 0, 16, 'f', 't', 'y', 'p', 'i', 's', 'o', 'm', 0, 0, 2, 0,
+            0, 0, 0, 8, 'm', 'o', 'o', 'v'};
+
     @BeforeEach
     public void setUp() {
-        when(context.getLogger()).thenReturn(logger);
+        lenient().when(context.getLogger()).thenReturn(logger);
 
         // Use spy to override executeCommand
         handler = spy(new VideoOptimizerHandler(s3Client, "test-bucket"));
@@ -56,11 +67,8 @@ public class VideoOptimizerHandlerTest {
         event.put("username", "testuser");
 
         // Mock executeCommand to prevent actual FFmpeg execution and create a dummy output file
-        doAnswer(invocation -> {
-            File output = invocation.getArgument(1);
-            Files.writeString(output.toPath(), "dummy video content");
-            return null;
-        }).when(handler).executeCommand(anyList(), any(File.class));
+        stubSource(FASTSTART_HEAD);
+        stubEncode("dummy video content");
 
         // Act
         OptimizationResponse result = handler.handleRequest(event, context);
@@ -72,9 +80,9 @@ public class VideoOptimizerHandlerTest {
         assertEquals("test-video.mp4", result.getOriginalKey());
 
         // Verify interactions
-        verify(s3Client).getObject(any(GetObjectRequest.class), any(Path.class));
+        verify(s3Client).headObject(any(HeadObjectRequest.class));
         verify(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
-        verify(handler).executeCommand(anyList(), any(File.class));
+        verify(handler).executeCommand(anyList(), any(), any(OutputStream.class));
     }
 
     @Test
@@ -85,11 +93,8 @@ public class VideoOptimizerHandlerTest {
         event.put("output_key", "custom-output-key.mp4");
         event.put("username", "testuser");
 
-        doAnswer(invocation -> {
-            File output = invocation.getArgument(1);
-            Files.writeString(output.toPath(), "dummy content");
-            return null;
-        }).when(handler).executeCommand(anyList(), any(File.class));
+        stubSource(FASTSTART_HEAD);
+        stubEncode("dummy content");
 
         // Act
         OptimizationResponse result = handler.handleRequest(event, context);
@@ -108,8 +113,9 @@ public class VideoOptimizerHandlerTest {
         Map<String, String> event = new HashMap<>();
         event.put("file_name", "fail-video.mp4");
 
+        stubSource(FASTSTART_HEAD);
         // Mock executeCommand to throw exception
-        doThrow(new RuntimeException("FFmpeg failed")).when(handler).executeCommand(anyList(), any(File.class));
+        doThrow(new RuntimeException("FFmpeg failed")).when(handler).executeCommand(anyList(), any(), any(OutputStream.class));
 
         // Act
         OptimizationResponse result = handler.handleRequest(event, context);
@@ -119,8 +125,116 @@ public class VideoOptimizerHandlerTest {
         assertTrue(result.getMessage().contains("FFmpeg failed"));
 
         // Verify interactions
-        verify(s3Client).getObject(any(GetObjectRequest.class), any(Path.class));
+        verify(s3Client).headObject(any(HeadObjectRequest.class));
         // PutObject should NOT be called
         verify(s3Client, never()).putObject(any(PutObjectRequest.class), any(RequestBody.class));
     }
+
+    @Test
+    public void testHandleRequest_Segment() throws Exception {
+        Map<String, String> event = new HashMap<>();
+        event.put("file_name", "long-video.mp4");
+        event.put("output_key", "chunk_1.mp4");
+        event.put("start_seconds", "120.0");
+        event.put("duration_seconds", "120.0");
+
+        stubSource(FASTSTART_HEAD);
+        stubEncode("chunk");
+
+        OptimizationResponse result = handler.handleRequest(event, context);
+
+        assertEquals("success", result.getStatus());
+        assertEquals("chunk_1.mp4", result.getOptimizedKey());
+        verify(handler).executeCommand(argThat((List<String> command) ->
+                command.indexOf("-ss") < command.indexOf("-i")
+                        && command.contains("120.000") && command.contains("-an") && !command.contains("aac")), any(), any(OutputStream.class));
+    }
+
+    @Test
+    public void testHandleRequest_JobWritesCompletionRecord() throws Exception {
+        Map<String, String> event = new HashMap<>();
+        event.put("file_name", "test-video.mp4");
+        event.put("output_key", "out.mp4");
+        event.put("job_id", "job-1");
+        when(s3Client.getObjectAsBytes(any(GetObjectRequest.class))).thenThrow(NoSuchKeyException.builder().build());
+
+        stubSource(FASTSTART_HEAD);
+        stubEncode("video");
+
+        OptimizationResponse result = handler.handleRequest(event, context);
+
+        assertEquals("success", result.getStatus());
+        verify(s3Client).putObject(argThat((PutObjectRequest r) -> r.key().equals("out.mp4")), any(RequestBody.class));
+        verify(s3Client).putObject(argThat((PutObjectRequest r) -> r.key().equals("offload-jobs/job-1.json")), any(RequestBody.class));
+    }
+
+    @Test
+    public void testHandleRequest_CompletedJobIsNotEncodedAgain() throws Exception {
+        Map<String, String> event = new HashMap<>();
+        event.put("file_name", "test-video.mp4");
+        event.put("job_id", "job-1");
+        String record = "{\"status\":\"success\",\"optimized_key\":\"out.mp4\",\"file_size\":5}";
+        when(s3Client.getObjectAsBytes(any(GetObjectRequest.class))).thenReturn(
+                ResponseBytes.fromByteArray(GetObjectResponse.builder().build(), record.getBytes(StandardCharsets.UTF_8)));
+
+        OptimizationResponse result = handler.handleRequest(event, context);
+
+        assertEquals("success", result.getStatus());
+        assertEquals("out.mp4", result.getOptimizedKey());
+        assertEquals(5L, result.getFileSize());
+        verify(handler, never()).executeCommand(anyList(), any(), any(OutputStream.class));
+        verify(s3Client, never()).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    }
+
+    @Test
+    public void testHandleRequest_StreamsFaststartSourceThroughPipe() throws Exception {
+        Map<String, String> event = new HashMap<>();
+        event.put("file_name", "test-video.mp4");
+        event.put("output_key", "out.mp4");
+        stubSource(FASTSTART_HEAD);
+        stubEncode("video");
+
+        handler.handleRequest(event, context);
+
+        verify(handler).executeCommand(argThat((List<String> command) ->
+                        command.containsAll(List.of("pipe:0", "pipe:1", "+frag_keyframe+empty_moov+default_base_moof"))),
+                argThat(stdin -> stdin instanceof S3RangeInputStream), any(OutputStream.class));
+    }
+
+    @Test
+    public void testPipeableNeedsIndexBeforeMediaData() {
+        byte[] indexAtEnd = {0, 0, 0, 16, 'f', 't', 'y', 'p', 'i', 's', 'o', 'm', 0, 0, 2, 0,
+                0, 0, 0, 8, 'f', 'r', 'e', 'e', 0, 0, 0x10, 0, 'm', 'd', 'a', 't'};
+        byte[] matroska = {0x1a, 0x45, (byte) 0xdf, (byte) 0xa3, 0, 0, 0, 0};
+
+        assertTrue(VideoOptimizerHandler.pipeable(FASTSTART_HEAD));
+        assertFalse(VideoOptimizerHandler.pipeable(indexAtEnd));
+        assertTrue(VideoOptimizerHandler.pipeable(matroska));
+    }
+
+    @Test
+    public void testCheckpointPrimingToleratesMissingObject() {
+        when(s3Client.headObject(any(HeadObjectRequest.class))).thenThrow(NoSuchKeyException.builder().build());
+
+        assertDoesNotThrow(() -> handler.beforeCheckpoint(null));
+
+        verify(s3Client).headObject(argThat((HeadObjectRequest request) -> request.key().startsWith("offload-jobs/")));
+    }
+
+    private void stubSource(byte[] head) {
+        when(s3Client.headObject(any(HeadObjectRequest.class)))
+                .thenReturn(HeadObjectResponse.builder().contentLength(1_000_000L).eTag("\"etag\"").build());
+        lenient().when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation ->
+                new ResponseInputStream<>(GetObjectResponse.builder().build(),
+                        AbortableInputStream.create(new ByteArrayInputStream(head))));
+    }
+
+    // Writes the output FFmpeg would produce without running it
+    private void stubEncode(String output) throws Exception {
+        doAnswer(invocation -> {
+            OutputStream stdout = invocation.getArgument(2);
+            stdout.write(output.getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(handler).executeCommand(anyList(), any(), any(OutputStream.class));
+    }
 }
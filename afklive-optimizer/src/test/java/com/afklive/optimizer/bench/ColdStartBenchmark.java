@@ -0,0 +1,177 @@
+package com.afklive.optimizer.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures cold starts of the optimizer function: every run is a fresh JVM executing
+ * {@link ColdStartProbe} on the shaded jar against a local fake of S3, and the medians per
+ * variant are printed. Run with {@code mvn -pl afklive-optimizer -P cold-start-benchmark verify};
+ * {@code -Dbench.runs} sets the runs per variant.
+ * <p>
+ * The variants: "default" is the JVM as Lambda starts it without options, "tiered" adds the
+ * {@code JAVA_TOOL_OPTIONS} recommended for short functions, and "snapstart" also runs the
+ * checkpoint hook before the first request. A real SnapStart restore skips the init phase
+ * entirely, so its init column is the cost paid once per published version, not per cold start.
+ */
+public class ColdStartBenchmark {
+
+    static final String BUCKET = "bench";
+    static final String SOURCE_KEY = "source.mp4";
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final Pattern RESULT = Pattern.compile("(\\w+)=(\\d+)");
+    private static final String ETAG = "\"cold-start-source\"";
+
+    private static final Map<String, List<String>> VARIANTS = new LinkedHashMap<>();
+
+    static {
+        VARIANTS.put("default", List.of());
+        VARIANTS.put("tiered", List.of("-XX:+TieredCompilation", "-XX:TieredStopAtLevel=1"));
+        VARIANTS.put("snapstart", List.of("-XX:+TieredCompilation", "-XX:TieredStopAtLevel=1"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String classpath = System.getProperty("bench.classpath");
+        if (classpath == null) {
+            throw new IllegalStateException("bench.classpath must point at the shaded jar and the test classes");
+        }
+        int runs = Integer.getInteger("bench.runs", 5);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/", new FakeS3(source())::handle);
+        server.start();
+        String endpoint = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        try {
+            System.out.printf("%-10s %8s %8s %8s %8s %12s %13s%n",
+                    "variant", "init ms", "ready ms", "1st ms", "2nd ms", "init classes", "1st classes");
+            for (Map.Entry<String, List<String>> variant : VARIANTS.entrySet()) {
+                List<Map<String, Long>> results = new ArrayList<>();
+                for (int i = 0; i < runs; i++) {
+                    results.add(probe(classpath, endpoint, variant.getKey(), variant.getValue()));
+                }
+                System.out.printf("%-10s %8d %8d %8d %8d %12d %13d%n", variant.getKey(),
+                        median(results, "init"), median(results, "ready"), median(results, "first"),
+                        median(results, "second"), median(results, "initClasses"), median(results, "firstClasses"));
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static Map<String, Long> probe(String classpath, String endpoint, String variant, List<String> jvmOptions)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-classpath");
+        command.add(classpath);
+        command.add(ColdStartProbe.class.getName());
+        command.add("snapstart".equals(variant) ? "primed" : "cold");
+
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        Map<String, String> env = builder.environment();
+        env.put("DO_SPACES_ENDPOINT", endpoint);
+        env.put("DO_SPACES_REGION", "us-east-1");
+        env.put("DO_SPACES_KEY", "bench");
+        env.put("DO_SPACES_SECRET", "bench");
+        env.put("DO_SPACES_BUCKET", BUCKET);
+        env.remove("JAVA_TOOL_OPTIONS");
+
+        Process process = builder.start();
+        List<String> output = new String(process.getInputStream().readAllBytes()).lines().toList();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Probe failed:\n" + String.join("\n", output));
+        }
+        String result = output.stream().filter(line -> line.startsWith("RESULT ")).findFirst()
+                .orElseThrow(() -> new IllegalStateException("Probe printed no result:\n" + String.join("\n", output)));
+
+        Map<String, Long> values = new LinkedHashMap<>();
+        Matcher matcher = RESULT.matcher(result);
+        while (matcher.find()) {
+            values.put(matcher.group(1), Long.parseLong(matcher.group(2)));
+        }
+        return values;
+    }
+
+    private static long median(List<Map<String, Long>> results, String name) {
+        List<Long> values = results.stream().map(result -> result.get(name)).sorted().toList();
+        return values.get(values.size() / 2);
+    }
+
+    // An MP4 with its index first, so the probe takes the streaming path
+    private static byte[] source() {
+        byte[] source = new byte[1024 * 1024];
+        byte[] head = {0, 0, 0, 16, 'f', 't', 'y', 'p', 'i', 's', 'o', 'm', 0, 0, 2, 0, 0, 0, 0, 8, 'm', 'o', 'o', 'v'};
+        System.arraycopy(head, 0, source, 0, head.length);
+        return source;
+    }
+
+    /**
+     * Enough of the path-style S3 API for one optimize: HEAD and ranged GET of the source, PUT of
+     * the output. Everything else is a 404.
+     */
+    private record FakeS3(byte[] source) {
+
+        void handle(HttpExchange exchange) throws IOException {
+            try (exchange; InputStream body = exchange.getRequestBody()) {
+                body.transferTo(OutputStream.nullOutputStream());
+                String path = exchange.getRequestURI().getPath();
+                String method = exchange.getRequestMethod();
+
+                if (path.equals("/" + BUCKET + "/" + SOURCE_KEY) && method.equals("HEAD")) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(source.length));
+                    exchange.getResponseHeaders().set("ETag", ETAG);
+                    exchange.sendResponseHeaders(200, -1);
+                } else if (path.equals("/" + BUCKET + "/" + SOURCE_KEY) && method.equals("GET")) {
+                    sendSource(exchange);
+                } else if (path.startsWith("/" + BUCKET + "/") && method.equals("PUT")) {
+                    exchange.getResponseHeaders().set("ETag", "\"" + Long.toHexString(System.nanoTime()) + "\"");
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    byte[] error = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>NoSuchKey</Code>"
+                            + "<Message>Not found</Message></Error>").getBytes();
+                    exchange.getResponseHeaders().set("Content-Type", "application/xml");
+                    if (method.equals("HEAD")) {
+                        exchange.sendResponseHeaders(404, -1);
+                    } else {
+                        exchange.sendResponseHeaders(404, error.length);
+                        exchange.getResponseBody().write(error);
+                    }
+                }
+            }
+        }
+
+        private void sendSource(HttpExchange exchange) throws IOException {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            int from = 0;
+            int to = source.length - 1;
+            Matcher matcher = range != null ? RANGE.matcher(range) : null;
+            if (matcher != null && matcher.matches()) {
+                from = Integer.parseInt(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) to = Math.min(to, Integer.parseInt(matcher.group(2)));
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + source.length);
+            }
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            exchange.getResponseHeaders().set("Content-Type", "video/mp4");
+            exchange.sendResponseHeaders(range != null ? 206 : 200, to - from + 1);
+            exchange.getResponseBody().write(source, from, to - from + 1);
+        }
+    }
+}
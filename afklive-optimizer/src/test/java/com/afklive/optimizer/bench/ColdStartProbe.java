@@ -0,0 +1,133 @@
+package com.afklive.optimizer.bench;
+
+import com.afklive.optimizer.OptimizationResponse;
+import com.afklive.optimizer.VideoOptimizerHandler;
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One cold start, run in a fresh JVM by {@link ColdStartBenchmark}: constructs the handler the
+ * way Lambda does and times the first two requests against the fake S3 in the environment.
+ * FFmpeg is replaced by a stub that reads its input and writes a small output, so only the Java
+ * side of a request is measured. With {@code primed} the checkpoint hook runs before the first
+ * request, as it would before a SnapStart snapshot.
+ */
+public class ColdStartProbe {
+
+    private static final byte[] OUTPUT = new byte[256 * 1024];
+
+    public static void main(String[] args) {
+        boolean primed = args.length > 0 && "primed".equals(args[0]);
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+
+        long start = System.nanoTime();
+        VideoOptimizerHandler handler = new VideoOptimizerHandler() {
+            @Override
+            protected void executeCommand(List<String> command, InputStream stdin, OutputStream stdout)
+                    throws IOException {
+                if (stdin != null) stdin.transferTo(OutputStream.nullOutputStream());
+                stdout.write(OUTPUT);
+            }
+        };
+        if (primed) {
+            handler.beforeCheckpoint(null);
+        }
+        long initMs = (System.nanoTime() - start) / 1_000_000;
+        long readyMs = ManagementFactory.getRuntimeMXBean().getUptime();
+        int initClasses = classLoading.getLoadedClassCount();
+
+        long firstMs = request(handler, "first");
+        int firstClasses = classLoading.getLoadedClassCount() - initClasses;
+        long secondMs = request(handler, "second");
+
+        System.out.printf("RESULT init=%d ready=%d first=%d second=%d initClasses=%d firstClasses=%d%n",
+                initMs, readyMs, firstMs, secondMs, initClasses, firstClasses);
+    }
+
+    private static long request(VideoOptimizerHandler handler, String name) {
+        long start = System.nanoTime();
+        OptimizationResponse response = handler.handleRequest(
+                Map.of("file_name", ColdStartBenchmark.SOURCE_KEY, "output_key", name + ".mp4"), new ProbeContext());
+        if (!"success".equals(response.getStatus())) {
+            throw new IllegalStateException("Request failed: " + response.getMessage());
+        }
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static class ProbeContext implements Context {
+        private final LambdaLogger logger = new LambdaLogger() {
+            @Override
+            public void log(String message) {
+            }
+
+            @Override
+            public void log(byte[] message) {
+            }
+        };
+
+        @Override
+        public String getAwsRequestId() {
+            return "cold-start-probe";
+        }
+
+        @Override
+        public String getLogGroupName() {
+            return null;
+        }
+
+        @Override
+        public String getLogStreamName() {
+            return null;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "afklive-optimizer";
+        }
+
+        @Override
+        public String getFunctionVersion() {
+            return "$LATEST";
+        }
+
+        @Override
+        public String getInvokedFunctionArn() {
+            return null;
+        }
+
+        @Override
+        public CognitoIdentity getIdentity() {
+            return null;
+        }
+
+        @Override
+        public ClientContext getClientContext() {
+            return null;
+        }
+
+        @Override
+        public int getRemainingTimeInMillis() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int getMemoryLimitInMB() {
+            return 3008;
+        }
+
+        @Override
+        public LambdaLogger getLogger() {
+            return logger;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.afklive.streamer.dto;
+
+import java.time.ZonedDateTime;
+
+/**
+ * A live Pay As You Go job with what the billing tick needs from its user, loaded in one query.
+ * {@code billedUntil} is the last billing time, or the start time if it was never billed.
+ */
+public record BillableJob(
+        Long jobId,
+        String username,
+        ZonedDateTime billedUntil,
+        double unpaidBalance,
+        double creditLimit
+) {
+}
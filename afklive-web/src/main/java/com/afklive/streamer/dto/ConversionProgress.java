@@ -0,0 +1,21 @@
+package com.afklive.streamer.dto;
+
+/**
+ * Progress of a conversion or merge as pushed to the browser. {@code percent} is -1 once the
+ * job failed and 100 once it finished; {@code etaSeconds} is -1 while unknown. A queued job
+ * reports its 1-based {@code queuePosition}, 0 once it runs.
+ */
+public record ConversionProgress(
+        int percent,
+        long etaSeconds,
+        double speed,
+        int queuePosition
+) {
+    public static ConversionProgress of(int percent) {
+        return new ConversionProgress(percent, -1, 0, 0);
+    }
+
+    public boolean finished() {
+        return percent >= 100 || percent < 0;
+    }
+}
@@ -0,0 +1,24 @@
+package com.afklive.streamer.dto;
+
+import java.time.Instant;
+
+/**
+ * Latest encoder progress of a running stream, as reported by FFmpeg's -progress output.
+ * A speed below 1.0 means the encoder cannot keep up with real time.
+ */
+public record StreamMetrics(
+        long frame,
+        double fps,
+        double bitrateKbps,
+        long totalSizeBytes,
+        double outTimeSeconds,
+        long dupFrames,
+        long dropFrames,
+        double speed,
+        boolean ended,
+        Instant updatedAt
+) {
+    public boolean behindRealtime() {
+        return !ended && speed > 0 && speed < 1.0;
+    }
+}
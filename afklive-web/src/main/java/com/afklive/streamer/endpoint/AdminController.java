@@ -1,5 +1,6 @@
 package com.afklive.streamer.endpoint;
 
+import com.afklive.streamer.dto.StreamMetrics;
 import com.afklive.streamer.model.User;
 import com.afklive.streamer.model.StreamJob;
 import com.afklive.streamer.model.SupportTicket;
@@ -14,6 +15,7 @@ import com.afklive.streamer.service.FileStorageService;
 import com.afklive.streamer.service.QuotaTrackingService;
 import com.afklive.streamer.service.PlanService;
 import com.afklive.streamer.service.AppConfigService;
+import com.afklive.streamer.service.StreamAdmissionService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.core.io.Resource;
 import org.springframework.http.ContentDisposition;
@@ -49,6 +51,7 @@ public class AdminController {
     private final PaymentAuditRepository paymentAuditRepository;
     private final PlanService planService;
     private final AppConfigService appConfigService;
+    private final StreamAdmissionService admissionService;
 
     @GetMapping
     public String adminDashboard(
@@ -99,9 +102,11 @@ public class AdminController {
 
         // Global Stream Limit
         model.addAttribute("globalStreamLimit", appConfigService.getGlobalStreamLimit());
+        model.addAttribute("admission", admissionService.getSnapshot());
 
         model.addAttribute("users", usersPage); // Now a Page object
         model.addAttribute("activeStreamList", streamsPage); // Now a Page object
+        model.addAttribute("streamMetrics", streamService.getAllStreamMetrics());
         model.addAttribute("supportTickets", ticketsPage); // Now a Page object
         model.addAttribute("userSearch", userSearch);
         model.addAttribute("activeTab", tab); // Pass tab to frontend
@@ -128,6 +133,12 @@ public class AdminController {
         return "redirect:/admin?tab=overview";
     }
 
+    @GetMapping("/streams/metrics")
+    @ResponseBody
+    public Map<Long, StreamMetrics> streamMetrics() {
+        return streamService.getAllStreamMetrics();
+    }
+
     @PostMapping("/streams/{id}/stop")
     public String forceStopStream(@PathVariable Long id) {
         // Find owner to stop correctly via service
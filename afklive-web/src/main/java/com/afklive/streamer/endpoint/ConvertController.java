@@ -4,6 +4,7 @@ import com.afklive.streamer.dto.ApiResponse;
 import com.afklive.streamer.model.ScheduledVideo;
 import com.afklive.streamer.repository.ScheduledVideoRepository;
 import com.afklive.streamer.service.AiService;
+import com.afklive.streamer.service.FFmpegCommandBuilder;
 import com.afklive.streamer.service.FileStorageService;
 import com.afklive.streamer.service.UserService;
 import com.afklive.streamer.util.AppConstants;
@@ -17,6 +18,7 @@ import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.core.io.Resource;
 import org.springframework.http.MediaType;
 
@@ -27,6 +29,7 @@ import java.time.LocalTime;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -50,7 +53,7 @@ public class ConvertController {
         String username = SecurityUtils.getEmail(principal);
 
         conversionService.convertToShort(null, username, fileName);
-        return ResponseEntity.ok(ApiResponse.success("Conversion started", null));
+        return ResponseEntity.ok(ApiResponse.success("Conversion started", queueStatus(username, fileName)));
     }
 
     @PostMapping("/convert/optimize")
@@ -64,7 +67,22 @@ public class ConvertController {
         String username = SecurityUtils.getEmail(principal);
 
         conversionService.optimizeVideo(null, username, fileName, mode, height);
-        return ResponseEntity.ok(ApiResponse.success("Optimization started", null));
+        return ResponseEntity.ok(ApiResponse.success("Optimization started", queueStatus(username, fileName)));
+    }
+
+    // Several renditions from one decode, e.g. renditions=landscape:1080,portrait:1920
+    @PostMapping("/convert/ladder")
+    public ResponseEntity<?> optimizeLadder(
+            @RequestParam String fileName,
+            @RequestParam(defaultValue = "landscape:720,landscape:1080,portrait:1920") List<String> renditions,
+            java.security.Principal principal
+    ) {
+        if (principal == null) return ResponseEntity.status(401).body(ApiResponse.error("Unauthorized"));
+        String username = SecurityUtils.getEmail(principal);
+
+        conversionService.optimizeLadder(username, fileName,
+                renditions.stream().map(FFmpegCommandBuilder.Rendition::parse).toList());
+        return ResponseEntity.ok(ApiResponse.success("Optimization started", queueStatus(username, fileName)));
     }
 
     @GetMapping("/convert/status")
@@ -74,9 +92,24 @@ public class ConvertController {
 
         Optional<Integer> progress = conversionService.getProgress(username, fileName);
         if (progress.isPresent()) {
+            OptionalInt position = conversionService.getQueuePosition(username, fileName);
+            if (position.isPresent()) {
+                return ResponseEntity.ok(Map.of("progress", progress.get(), "queuePosition", position.getAsInt()));
+            }
             return ResponseEntity.ok(Map.of("progress", progress.get()));
         } else {
             return ResponseEntity.ok(Map.of("progress", -1));
         }
     }
+
+    @GetMapping(value = "/convert/status/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamConversionStatus(@RequestParam String fileName, java.security.Principal principal) {
+        if (principal == null) return ResponseEntity.status(401).build();
+        return ResponseEntity.ok(conversionService.subscribeProgress(SecurityUtils.getEmail(principal), fileName));
+    }
+
+    // Position in the transcode queue, 0 if the work already started
+    private Map<String, Integer> queueStatus(String username, String fileName) {
+        return Map.of("queuePosition", conversionService.getQueuePosition(username, fileName).orElse(0));
+    }
 }
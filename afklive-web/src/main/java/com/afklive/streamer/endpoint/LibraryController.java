@@ -4,6 +4,7 @@ import com.afklive.streamer.dto.ApiResponse;
 import com.afklive.streamer.model.ScheduledVideo;
 import com.afklive.streamer.repository.ScheduledVideoRepository;
 import com.afklive.streamer.service.AiService;
+import com.afklive.streamer.service.ContentBlobService;
 import com.afklive.streamer.service.FileStorageService;
 import com.afklive.streamer.service.UserService;
 import com.afklive.streamer.util.AppConstants;
@@ -43,11 +44,13 @@ public class LibraryController {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(LibraryController.class);
 
     private final FileStorageService storageService;
+    private final ContentBlobService contentBlobService;
     private final ScheduledVideoRepository repository;
     private final UserService userService;
     private final AiService aiService;
     private final com.afklive.streamer.service.ImportService importService;
     private final com.afklive.streamer.service.VideoConversionService conversionService;
+    private final com.afklive.streamer.service.MediaMetadataService mediaMetadataService;
 
     @PostMapping("/import-youtube")
     public ResponseEntity<?> importFromYouTube(@jakarta.validation.Valid @RequestBody com.afklive.streamer.dto.ImportRequest request, java.security.Principal principal) {
@@ -94,6 +97,9 @@ public class LibraryController {
             conversionService.mergeVideosAsync(selectedVideos, username, outputName);
 
             return ResponseEntity.ok(ApiResponse.success("Merge started. Check library shortly.", null));
+        } catch (IllegalStateException e) {
+            // Transcode queue is full
+            return ResponseEntity.badRequest().body(ApiResponse.error(e.getMessage()));
         } catch (Exception e) {
             log.error("Merge init failed", e);
             return ResponseEntity.internalServerError().body(ApiResponse.error("Merge failed: " + e.getMessage()));
@@ -124,18 +130,21 @@ public class LibraryController {
                             long size = entry.getSize() > 0 ? entry.getSize() : file.getSize(); // Fallback to zip size (imperfect)
                             userService.checkStorageQuota(username, size);
 
-                            String s3Key = storageService.uploadFile(zis, entry.getName(), size);
+                            ContentBlobService.StoredBlob blob = contentBlobService.store(zis, entry.getName(), size);
                             userService.updateStorageUsage(username, size);
-                            createLibraryEntry(username, entry.getName(), s3Key, size);
+                            createLibraryEntry(username, entry.getName(), blob, size);
                             successCount++;
                         }
                     }
                 } else {
                     // Regular file
                     userService.checkStorageQuota(username, file.getSize());
-                    String s3Key = storageService.uploadFile(file.getInputStream(), file.getOriginalFilename(), file.getSize());
+                    ContentBlobService.StoredBlob blob;
+                    try (InputStream in = file.getInputStream()) {
+                        blob = contentBlobService.store(in, file.getOriginalFilename(), file.getSize());
+                    }
                     userService.updateStorageUsage(username, file.getSize());
-                    createLibraryEntry(username, file.getOriginalFilename(), s3Key, file.getSize());
+                    createLibraryEntry(username, file.getOriginalFilename(), blob, file.getSize());
                     successCount++;
                 }
             }
@@ -151,11 +160,12 @@ public class LibraryController {
         return n.endsWith(".mp4") || n.endsWith(".mov") || n.endsWith(".mkv") || n.endsWith(".avi");
     }
 
-    private void createLibraryEntry(String username, String filename, String key, long size) {
+    private void createLibraryEntry(String username, String filename, ContentBlobService.StoredBlob blob, long size) {
         ScheduledVideo video = new ScheduledVideo();
         video.setUsername(username);
         video.setTitle(filename);
-        video.setS3Key(key);
+        video.setS3Key(blob.key());
+        video.setContentHash(blob.hash());
         video.setStatus(ScheduledVideo.VideoStatus.LIBRARY);
         video.setPrivacyStatus(AppConstants.PRIVACY_PRIVATE);
         // We need a size field in ScheduledVideo.
@@ -165,6 +175,7 @@ public class LibraryController {
         // I'll add `fileSize` to ScheduledVideo entity.
         video.setFileSize(size);
         repository.save(video);
+        mediaMetadataService.extract(video.getId());
     }
 
     @GetMapping
@@ -230,8 +241,8 @@ public class LibraryController {
         }
 
         try {
-            // Delete from S3/Storage
-            storageService.deleteFile(video.getS3Key());
+            // Delete from S3/Storage once no other entry shares the content
+            contentBlobService.release(video.getS3Key());
 
             // Delete Thumbnail if exists
             if (video.getThumbnailS3Key() != null) {
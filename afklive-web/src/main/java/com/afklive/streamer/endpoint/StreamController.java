@@ -17,6 +17,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
 import java.nio.file.Path;
@@ -45,6 +46,8 @@ public class StreamController {
     private com.afklive.streamer.repository.StreamJobRepository streamJobRepository;
     private FileStorageService storageService;
     @Autowired
+    private ContentBlobService contentBlobService;
+    @Autowired
     private ScheduledVideoRepository scheduledVideoRepository;
     @Autowired
     private UserService userService;
@@ -209,7 +212,7 @@ public class StreamController {
             if (video != null) {
                 // Delete from storage (S3 or Local)
                 if (video.getS3Key() != null) {
-                    storageService.deleteFile(video.getS3Key());
+                    contentBlobService.release(video.getS3Key());
                 }
 
                 // Release quota
@@ -243,8 +246,35 @@ public class StreamController {
     }
 
     @GetMapping("/logs")
-    public ResponseEntity<List<String>> getFfmpegLogs() {
-        return ResponseEntity.ok(streamService.getLogs());
+    public ResponseEntity<?> getFfmpegLogs(@RequestParam(required = false) Long streamId, Principal principal) {
+        if (principal == null) return ResponseEntity.status(401).body(ApiResponse.error("Unauthorized"));
+        String email = SecurityUtils.getEmail(principal);
+        if (streamId == null) {
+            return ResponseEntity.ok(streamService.getUserLogs(email));
+        }
+        return streamService.getJobLogs(streamId, email)
+                .<ResponseEntity<?>>map(ResponseEntity::ok)
+                .orElse(ResponseEntity.status(404).body(ApiResponse.error("No logs for this stream")));
+    }
+
+    @GetMapping(value = "/stream/{id}/logs/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamFfmpegLogs(@PathVariable Long id, Principal principal) {
+        if (principal == null) return ResponseEntity.status(401).build();
+        return ResponseEntity.ok(streamService.streamJobLogs(id, SecurityUtils.getEmail(principal)));
+    }
+
+    @GetMapping("/stream/{id}/metrics")
+    public ResponseEntity<?> getStreamMetrics(@PathVariable Long id, Principal principal) {
+        if (principal == null) return ResponseEntity.status(401).body(ApiResponse.error("Unauthorized"));
+        return streamService.getStreamMetrics(id, SecurityUtils.getEmail(principal))
+                .<ResponseEntity<?>>map(metrics -> ResponseEntity.ok(ApiResponse.success("Metrics", metrics)))
+                .orElse(ResponseEntity.status(404).body(ApiResponse.error("No metrics for this stream yet")));
+    }
+
+    @GetMapping(value = "/stream/{id}/metrics/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamMetrics(@PathVariable Long id, Principal principal) {
+        if (principal == null) return ResponseEntity.status(401).build();
+        return ResponseEntity.ok(streamService.streamMetrics(id, SecurityUtils.getEmail(principal)));
     }
 
     @PostMapping("/stream/schedule")
@@ -3,6 +3,7 @@ package com.afklive.streamer.endpoint;
 import com.afklive.streamer.model.ScheduledVideo;
 import com.afklive.streamer.repository.ScheduledVideoRepository;
 import com.afklive.streamer.service.AudioService;
+import com.afklive.streamer.service.ContentBlobService;
 import com.afklive.streamer.service.FFmpegCommandBuilder;
 import com.afklive.streamer.service.FileStorageService;
 import com.afklive.streamer.service.UserService;
@@ -41,6 +42,7 @@ public class VideoController {
     private final UserService userService;
     private final AudioService audioService;
     private final VideoConversionService videoConversionService;
+    private final ContentBlobService contentBlobService;
 
     @GetMapping("/youtube/categories")
     public ResponseEntity<?> getVideoCategories(Principal principal) {
@@ -76,6 +78,7 @@ public class VideoController {
             log.info("Scheduling video for user: {}", username);
 
             String s3Key;
+            String contentHash = null;
             long finalSize = 0;
 
             if (libraryVideoId != null) {
@@ -90,9 +93,17 @@ public class VideoController {
                 long size = libVideo.getFileSize() != null ? libVideo.getFileSize() : 0;
                 userService.checkStorageQuota(username, size);
 
-                // Copy file in S3 (by download/upload for simplicity as we don't have S3 copy exposed)
-                try (InputStream is = storageService.downloadFile(libVideo.getS3Key())) {
-                    s3Key = storageService.uploadFile(is, libVideo.getTitle(), size);
+                if (contentBlobService.retain(libVideo.getS3Key())) {
+                    // Same content, share the stored object
+                    s3Key = libVideo.getS3Key();
+                    contentHash = libVideo.getContentHash();
+                } else {
+                    // Untracked object, copy it by download/upload as we don't have S3 copy exposed
+                    try (InputStream is = storageService.downloadFile(libVideo.getS3Key())) {
+                        ContentBlobService.StoredBlob blob = contentBlobService.store(is, libVideo.getTitle(), size);
+                        s3Key = blob.key();
+                        contentHash = blob.hash();
+                    }
                 }
                 finalSize = size;
 
@@ -127,7 +138,9 @@ public class VideoController {
 
                         finalSize = Files.size(tempOut);
                         try (InputStream is = Files.newInputStream(tempOut)) {
-                            s3Key = storageService.uploadFile(is, file.getOriginalFilename(), finalSize);
+                            ContentBlobService.StoredBlob blob = contentBlobService.store(is, file.getOriginalFilename(), finalSize);
+                            s3Key = blob.key();
+                            contentHash = blob.hash();
                         }
                     } finally {
                         Files.deleteIfExists(tempVideo);
@@ -135,7 +148,11 @@ public class VideoController {
                         Files.deleteIfExists(tempOut);
                     }
                 } else {
-                    s3Key = storageService.uploadFile(file.getInputStream(), file.getOriginalFilename(), file.getSize());
+                    try (InputStream is = file.getInputStream()) {
+                        ContentBlobService.StoredBlob blob = contentBlobService.store(is, file.getOriginalFilename(), file.getSize());
+                        s3Key = blob.key();
+                        contentHash = blob.hash();
+                    }
                 }
             } else {
                 return ResponseEntity.badRequest().body("File or Library Video required");
@@ -164,6 +181,7 @@ public class VideoController {
             video.setCategoryId(categoryId);
             video.setScheduledTime(scheduledTime);
             video.setS3Key(s3Key);
+            video.setContentHash(contentHash);
             video.setThumbnailS3Key(thumbnailKey);
             if (firstComment != null && !firstComment.trim().isEmpty()) {
                 video.setFirstComment(firstComment);
@@ -0,0 +1,47 @@
+package com.afklive.streamer.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.ZonedDateTime;
+
+/**
+ * A stored object shared by every library entry with the same content. Renditions produced by
+ * an optimization also record the content hash, mode and height they were rendered from.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "content_blobs", indexes = {
+    @Index(name = "idx_blob_hash", columnList = "hash", unique = true),
+    @Index(name = "idx_blob_key", columnList = "storage_key", unique = true),
+    @Index(name = "idx_blob_rendition", columnList = "source_hash, mode, height", unique = true)
+})
+public class ContentBlob {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // SHA-256 of the content, null for renditions stored by Lambda without hashing
+    @Column(length = 64)
+    private String hash;
+
+    @Column(nullable = false)
+    private String storageKey;
+
+    private long size;
+
+    // Library entries using this object, it is deleted when the count drops to zero
+    @Column(updatable = false)
+    private int refCount;
+
+    @Column(length = 64)
+    private String sourceHash;
+    private String mode;
+    private Integer height;
+
+    private ZonedDateTime createdAt;
+}
@@ -0,0 +1,61 @@
+package com.afklive.streamer.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.ZonedDateTime;
+
+/**
+ * An optimization handed to the optimizer function with an Event invoke. The function writes a
+ * completion record named after the job id, which the web tier polls for. A chunked optimization
+ * is one job per chunk plus one for the audio, sharing a group id, and is acted on once every
+ * job of the group has completed.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "offload_jobs", indexes = {
+    @Index(name = "idx_offload_closed", columnList = "closed")
+})
+public class OffloadJob {
+
+    public enum Status {
+        PENDING,
+        SUCCEEDED,
+        FAILED
+    }
+
+    @Id
+    @Column(length = 36)
+    private String id;
+
+    @Column(length = 36)
+    private String groupId;
+    // Null for a whole rendition or the audio of a group
+    private Integer chunkIndex;
+    private boolean audioOnly;
+
+    private Long videoId;
+    private String username;
+    private String fileName;
+    private String mode;
+    private int height;
+    private String targetTitle;
+
+    @Column(nullable = false)
+    private String outputKey;
+    private Long outputSize;
+
+    @Enumerated(EnumType.STRING)
+    @Column(length = 16, nullable = false)
+    private Status status;
+    private String message;
+    // Set once the outcome was acted on, by exactly one poller
+    private boolean closed;
+
+    private ZonedDateTime createdAt;
+    private ZonedDateTime completedAt;
+}
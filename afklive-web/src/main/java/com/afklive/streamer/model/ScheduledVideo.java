@@ -7,7 +7,8 @@ import java.time.ZonedDateTime;
 @Table(name = "scheduled_videos", indexes = {
     @Index(name = "idx_schedvideo_user_status", columnList = "username, status"),
     @Index(name = "idx_schedvideo_status_time", columnList = "status, scheduled_time"),
-    @Index(name = "idx_schedvideo_user_title", columnList = "username, title")
+    @Index(name = "idx_schedvideo_user_title", columnList = "username, title"),
+    @Index(name = "idx_schedvideo_content_hash", columnList = "content_hash")
 })
 public class ScheduledVideo {
     @Id
@@ -37,6 +38,21 @@ public class ScheduledVideo {
 
     private Long fileSize; // in bytes
 
+    @Column(length = 64)
+    private String contentHash; // SHA-256 of the stored content, see ContentBlobService
+
+    // Media metadata probed on upload, see MediaMetadataService. Null until probed.
+    private String videoCodec;
+    private Integer width; // as displayed, after rotation
+    private Integer height;
+    private Double frameRate;
+    private Double durationSeconds;
+    private Long bitrate; // overall, bits per second
+    private String audioCodec;
+    private Integer audioChannels;
+    private String audioLayout;
+    private Double keyframeInterval; // average seconds between keyframes at the start of the video
+
     private Long socialChannelId; // Link to specific channel
 
     @Enumerated(EnumType.STRING)
@@ -178,6 +194,94 @@ public class ScheduledVideo {
         this.fileSize = fileSize;
     }
 
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public String getVideoCodec() {
+        return videoCodec;
+    }
+
+    public void setVideoCodec(String videoCodec) {
+        this.videoCodec = videoCodec;
+    }
+
+    public Integer getWidth() {
+        return width;
+    }
+
+    public void setWidth(Integer width) {
+        this.width = width;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    public void setHeight(Integer height) {
+        this.height = height;
+    }
+
+    public Double getFrameRate() {
+        return frameRate;
+    }
+
+    public void setFrameRate(Double frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    public Double getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public void setDurationSeconds(Double durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
+    public Long getBitrate() {
+        return bitrate;
+    }
+
+    public void setBitrate(Long bitrate) {
+        this.bitrate = bitrate;
+    }
+
+    public String getAudioCodec() {
+        return audioCodec;
+    }
+
+    public void setAudioCodec(String audioCodec) {
+        this.audioCodec = audioCodec;
+    }
+
+    public Integer getAudioChannels() {
+        return audioChannels;
+    }
+
+    public void setAudioChannels(Integer audioChannels) {
+        this.audioChannels = audioChannels;
+    }
+
+    public String getAudioLayout() {
+        return audioLayout;
+    }
+
+    public void setAudioLayout(String audioLayout) {
+        this.audioLayout = audioLayout;
+    }
+
+    public Double getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    public void setKeyframeInterval(Double keyframeInterval) {
+        this.keyframeInterval = keyframeInterval;
+    }
+
     public Long getSocialChannelId() {
         return socialChannelId;
     }
@@ -13,7 +13,10 @@ import lombok.NoArgsConstructor;
     @Index(name = "idx_streamjob_user_live", columnList = "username, is_live"),
     @Index(name = "idx_streamjob_live", columnList = "is_live"),
     @Index(name = "idx_streamjob_user_time", columnList = "username, start_time DESC"),
-    @Index(name = "idx_streamjob_live_reply", columnList = "is_live, auto_reply_enabled")
+    @Index(name = "idx_streamjob_live_reply", columnList = "is_live, auto_reply_enabled"),
+    @Index(name = "idx_streamjob_live_lease", columnList = "is_live, lease_expires_at"),
+    @Index(name = "idx_streamjob_owner_live", columnList = "owner_node, is_live"),
+    @Index(name = "idx_streamjob_launch_group", columnList = "launch_group")
 })
 public class StreamJob {
     @Id
@@ -42,7 +45,11 @@ public class StreamJob {
     private java.time.ZonedDateTime endTime;
     private Double cost;
 
+    // Written only by the billing statements in StreamJobRepository / StreamBillingService, so a
+    // stale copy of the job saved elsewhere cannot roll billing back
+    @Column(updatable = false)
     private java.time.ZonedDateTime lastBillingTime;
+    @Column(updatable = false)
     private double accumulatedCost = 0.0;
 
     private boolean autoReplyEnabled;
@@ -51,6 +58,29 @@ public class StreamJob {
     private String lastPageToken;
     private String liveChatId;
 
+    // Ownership: the node running the encoder holds a lease it renews while the job is live.
+    // A job whose lease has expired is adopted by another node. After the insert these are
+    // written only by the lease statements in StreamJobRepository, so saving a stale copy of the
+    // job cannot undo a renewal, a claim or a stop request.
+    @Column(updatable = false)
+    private String ownerNode;
+    @Column(updatable = false)
+    private java.time.ZonedDateTime leaseExpiresAt;
+    @Column(columnDefinition = "boolean default false", updatable = false)
+    private boolean stopRequested;
+
+    // Destinations fed by the same encoder share a launch group and are adopted together
+    private String launchGroup;
+
+    // Launch parameters, so another node can relaunch the stream
+    private Integer loopCount;
+    private Boolean muteVideoAudio;
+    private String streamMode;
+    private Integer streamQuality;
+    private String watermarkKey;
+    private String overlayTemplate;
+    private Boolean overlayEnabled;
+
     public StreamJob(
             String username,
             String streamKey,
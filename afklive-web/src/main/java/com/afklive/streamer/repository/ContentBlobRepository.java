@@ -0,0 +1,42 @@
+package com.afklive.streamer.repository;
+
+import com.afklive.streamer.model.ContentBlob;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Optional;
+
+@Repository
+public interface ContentBlobRepository extends JpaRepository<ContentBlob, Long> {
+    Optional<ContentBlob> findByHash(String hash);
+    Optional<ContentBlob> findBySourceHashAndModeAndHeight(String sourceHash, String mode, Integer height);
+    boolean existsByStorageKey(String storageKey);
+
+    // Reference counts are only changed by these statements. A zero count means the blob is
+    // being deleted, so it can no longer be retained.
+    @Modifying
+    @Transactional
+    @Query("UPDATE ContentBlob b SET b.refCount = b.refCount + 1 WHERE b.storageKey = :key AND b.refCount > 0")
+    int retain(@Param("key") String storageKey);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE ContentBlob b SET b.refCount = b.refCount - 1 WHERE b.storageKey = :key AND b.refCount > 0")
+    int release(@Param("key") String storageKey);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM ContentBlob b WHERE b.storageKey = :key AND b.refCount = 0")
+    int deleteUnreferenced(@Param("key") String storageKey);
+
+    // Points a zero-count row left behind by an unfinished release at a new upload of the same
+    // content, the caller deletes the old object
+    @Modifying
+    @Transactional
+    @Query("UPDATE ContentBlob b SET b.refCount = 1, b.storageKey = :key WHERE b.hash = :hash AND b.refCount = 0")
+    int takeOver(@Param("hash") String hash, @Param("key") String storageKey);
+}
@@ -0,0 +1,33 @@
+package com.afklive.streamer.repository;
+
+import com.afklive.streamer.model.OffloadJob;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface OffloadJobRepository extends JpaRepository<OffloadJob, String> {
+    List<OffloadJob> findByClosedFalse();
+    boolean existsByVideoIdAndModeAndHeightAndClosedFalse(Long videoId, String mode, int height);
+
+    // Records the outcome of a pending job, returns 0 if it already had one
+    @Modifying
+    @Transactional
+    @Query("UPDATE OffloadJob j SET j.status = :status, j.outputSize = :size, j.message = :message, j.completedAt = :at "
+            + "WHERE j.id = :id AND j.status = com.afklive.streamer.model.OffloadJob.Status.PENDING")
+    int complete(@Param("id") String id, @Param("status") OffloadJob.Status status, @Param("size") Long size,
+                 @Param("message") String message, @Param("at") ZonedDateTime completedAt);
+
+    // Claims the outcome of the jobs, only the caller closing all of them acts on it
+    @Modifying
+    @Transactional
+    @Query("UPDATE OffloadJob j SET j.closed = true WHERE j.id IN :ids AND j.closed = false")
+    int close(@Param("ids") Collection<String> ids);
+}
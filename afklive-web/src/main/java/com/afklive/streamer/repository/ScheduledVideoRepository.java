@@ -18,4 +18,5 @@ public interface ScheduledVideoRepository extends JpaRepository<ScheduledVideo,
     List<ScheduledVideo> findByStatusAndScheduledTimeLessThanEqual(ScheduledVideo.VideoStatus status, ZonedDateTime time);
     Optional<ScheduledVideo> findByUsernameAndTitle(String username, String filename);
     Optional<ScheduledVideo> findFirstByUsernameAndS3Key(String username, String s3Key);
+    Optional<ScheduledVideo> findFirstByContentHashAndVideoCodecIsNotNull(String contentHash);
 }
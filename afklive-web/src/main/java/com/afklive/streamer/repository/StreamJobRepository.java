@@ -1,10 +1,18 @@
 package com.afklive.streamer.repository;
 
+import com.afklive.streamer.dto.BillableJob;
+import com.afklive.streamer.model.PlanType;
 import com.afklive.streamer.model.StreamJob;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.ZonedDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -24,4 +32,79 @@ public interface StreamJobRepository extends JpaRepository<StreamJob, Long> {
 
     // History
     Page<StreamJob> findByUsernameOrderByStartTimeDesc(String username, Pageable pageable);
-}
\ No newline at end of file
+
+    // Leases
+    List<StreamJob> findAllByLaunchGroupAndIsLiveTrue(String launchGroup);
+    List<StreamJob> findAllByOwnerNodeAndIsLiveTrue(String ownerNode);
+    List<StreamJob> findAllByOwnerNodeAndIsLiveTrueAndStopRequestedTrue(String ownerNode);
+    long countByWatermarkKeyAndIsLiveTrue(String watermarkKey);
+
+    // Keyset pagination over live jobs for reconciliation
+    List<StreamJob> findByIsLiveTrueAndIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
+    @Query("SELECT DISTINCT j.launchGroup FROM StreamJob j WHERE j.isLive = true AND j.leaseExpiresAt < :now AND j.launchGroup IS NOT NULL")
+    List<String> findExpiredLaunchGroups(@Param("now") ZonedDateTime now);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE StreamJob j SET j.leaseExpiresAt = :expiresAt WHERE j.ownerNode = :node AND j.isLive = true")
+    int renewLeases(@Param("node") String node, @Param("expiresAt") ZonedDateTime expiresAt);
+
+    // Conditional update: only one node sees a non-zero count for an expired group
+    @Modifying
+    @Transactional
+    @Query("UPDATE StreamJob j SET j.ownerNode = :node, j.leaseExpiresAt = :expiresAt "
+            + "WHERE j.launchGroup = :group AND j.isLive = true AND j.leaseExpiresAt < :now")
+    int claimLaunchGroup(@Param("group") String group, @Param("node") String node,
+                         @Param("expiresAt") ZonedDateTime expiresAt, @Param("now") ZonedDateTime now);
+
+    // Conditional update: extends a group only while this node's lease on it has not lapsed
+    @Modifying
+    @Transactional
+    @Query("UPDATE StreamJob j SET j.leaseExpiresAt = :expiresAt "
+            + "WHERE j.launchGroup = :group AND j.ownerNode = :node AND j.isLive = true AND j.leaseExpiresAt >= :now")
+    int renewLaunchGroup(@Param("group") String group, @Param("node") String node,
+                         @Param("expiresAt") ZonedDateTime expiresAt, @Param("now") ZonedDateTime now);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE StreamJob j SET j.ownerNode = :node, j.leaseExpiresAt = :expiresAt WHERE j.id IN :ids AND j.isLive = true")
+    int assignLeases(@Param("ids") List<Long> ids, @Param("node") String node, @Param("expiresAt") ZonedDateTime expiresAt);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE StreamJob j SET j.leaseExpiresAt = :now WHERE j.launchGroup = :group AND j.ownerNode = :node AND j.isLive = true")
+    int releaseLaunchGroup(@Param("group") String group, @Param("node") String node, @Param("now") ZonedDateTime now);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE StreamJob j SET j.leaseExpiresAt = :now WHERE j.ownerNode = :node AND j.isLive = true")
+    int releaseLeases(@Param("node") String node, @Param("now") ZonedDateTime now);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE StreamJob j SET j.stopRequested = true WHERE j.id = :id AND j.isLive = true")
+    int requestStop(@Param("id") Long id);
+
+    // Relaunches only change the PID, saving loaded entities would write back stale lease columns
+    @Modifying
+    @Transactional
+    @Query("UPDATE StreamJob j SET j.pid = :pid WHERE j.id IN :ids")
+    int updatePid(@Param("ids") Collection<Long> ids, @Param("pid") long pid);
+
+    // Billing: lastBillingTime and accumulatedCost are only written by these statements
+    @Query("SELECT new com.afklive.streamer.dto.BillableJob(j.id, j.username, COALESCE(j.lastBillingTime, j.startTime), "
+            + "u.unpaidBalance, u.creditLimit) FROM StreamJob j, User u "
+            + "WHERE u.username = j.username AND u.planType = :planType AND j.isLive = true AND j.id IN :ids")
+    List<BillableJob> findBillableJobs(@Param("ids") Collection<Long> ids, @Param("planType") PlanType planType);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE StreamJob j SET j.accumulatedCost = j.accumulatedCost + :amount, j.lastBillingTime = :billedUntil WHERE j.id = :id")
+    int addCharge(@Param("id") Long id, @Param("amount") double amount, @Param("billedUntil") ZonedDateTime billedUntil);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE StreamJob j SET j.lastBillingTime = :billedUntil WHERE j.id IN :ids")
+    int resetBillingClock(@Param("ids") Collection<Long> ids, @Param("billedUntil") ZonedDateTime billedUntil);
+}
@@ -0,0 +1,43 @@
+package com.afklive.streamer.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a long optimize into chunks that are encoded in parallel and joined with
+ * {@code -c copy}. Chunks start on multiples of the output GOP duration, so the joined video has
+ * its keyframes exactly where a single-pass encode would put them.
+ */
+public final class ChunkPlanner {
+
+    private ChunkPlanner() {
+    }
+
+    /**
+     * {@code duration} seconds from {@code start}, null for the last chunk which runs to the end.
+     */
+    public record Chunk(int index, double start, Double duration) {
+        /** Seconds of video in this chunk of a video {@code total} seconds long. */
+        public double length(double total) {
+            return duration != null ? duration : Math.max(0, total - start);
+        }
+    }
+
+    /**
+     * Splits {@code durationSeconds} into at most {@code maxChunks} chunks of at least
+     * {@code minChunkSeconds}. Empty when the video is too short to be worth splitting.
+     */
+    public static List<Chunk> plan(double durationSeconds, double gopSeconds, double minChunkSeconds, int maxChunks) {
+        int count = (int) Math.min(maxChunks, Math.floor(durationSeconds / minChunkSeconds));
+        if (count < 2) return List.of();
+
+        long gopsPerChunk = (long) Math.ceil(Math.ceil(durationSeconds / gopSeconds) / count);
+        double length = gopsPerChunk * gopSeconds;
+        List<Chunk> chunks = new ArrayList<>();
+        for (double start = 0; start < durationSeconds; start += length) {
+            boolean last = start + length >= durationSeconds;
+            chunks.add(new Chunk(chunks.size(), start, last ? null : length));
+        }
+        return chunks.size() < 2 ? List.of() : chunks;
+    }
+}
@@ -0,0 +1,203 @@
+package com.afklive.streamer.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pre-renders streams that composite music or a watermark onto a video. The composite is
+ * rendered once in the background at low priority and stored in {@link StreamAssetCache} under
+ * a key derived from all inputs; later starts of the same combination stream it in copy mode
+ * instead of re-encoding in realtime.
+ */
+@Service
+@Slf4j
+public class CompositeRenderService {
+
+    private static final String KEY_PREFIX = "composite/";
+
+    private final StreamAssetCache assetCache;
+    private final boolean enabled;
+    private final long renderTimeoutMinutes;
+    // One render at a time, they compete with live encoders for CPU
+    private final ExecutorService renderer;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Inputs of a composite. {@code audioKey} is the cache key of user music, or the
+     * {@code stock:} name of a stock track found at {@code musicPath}.
+     */
+    public record CompositeInputs(
+            String videoKey,
+            String audioKey,
+            Path musicPath,
+            String musicVolume,
+            Path watermarkPath,
+            String watermarkHash,
+            boolean muteVideoAudio,
+            String streamMode,
+            int maxHeight
+    ) {
+        public String key() {
+            String tuple = String.join("\n", videoKey, String.valueOf(audioKey), String.valueOf(musicVolume),
+                    String.valueOf(watermarkHash), String.valueOf(muteVideoAudio), String.valueOf(streamMode),
+                    String.valueOf(maxHeight));
+            return KEY_PREFIX + sha256(tuple.getBytes(StandardCharsets.UTF_8)) + ".mp4";
+        }
+
+        boolean userAudio() {
+            return audioKey != null && !audioKey.startsWith("stock:");
+        }
+    }
+
+    public CompositeRenderService(
+            StreamAssetCache assetCache,
+            @Value("${app.stream.prerender.enabled:true}") boolean enabled,
+            @Value("${app.stream.prerender.timeout-minutes:240}") long renderTimeoutMinutes) {
+        this(assetCache, enabled, renderTimeoutMinutes, Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "composite-render");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }));
+    }
+
+    CompositeRenderService(StreamAssetCache assetCache, boolean enabled, long renderTimeoutMinutes, ExecutorService renderer) {
+        this.assetCache = assetCache;
+        this.enabled = enabled;
+        this.renderTimeoutMinutes = renderTimeoutMinutes;
+        this.renderer = renderer;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        renderer.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the rendered composite and pins it under {@code inputs.key()} if it is cached,
+     * otherwise queues a render for the next start and returns empty.
+     */
+    public Optional<Path> acquireOrSchedule(CompositeInputs inputs) {
+        if (!enabled) return Optional.empty();
+        String key = inputs.key();
+        Optional<Path> rendered = assetCache.acquireIfCached(key);
+        if (rendered.isPresent()) {
+            log.info("Streaming pre-rendered composite {}", key);
+            return rendered;
+        }
+        if (pending.add(key)) {
+            try {
+                // The stream may delete its watermark before the render runs
+                Path watermark = inputs.watermarkPath() != null ? copyWatermark(inputs.watermarkPath()) : null;
+                renderer.execute(() -> {
+                    try {
+                        render(inputs, key, watermark);
+                    } finally {
+                        pending.remove(key);
+                        deleteQuietly(watermark);
+                    }
+                });
+            } catch (Exception e) {
+                pending.remove(key);
+                log.warn("Failed to queue composite render {}", key, e);
+            }
+        }
+        return Optional.empty();
+    }
+
+    public static String hashFile(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void render(CompositeInputs inputs, String key, Path watermark) {
+        List<String> held = new ArrayList<>();
+        Path part = Path.of(assetCache.pathFor(key) + ".part");
+        long start = System.currentTimeMillis();
+        try {
+            Path video = assetCache.acquire(inputs.videoKey());
+            held.add(inputs.videoKey());
+            Path music = inputs.musicPath();
+            if (inputs.userAudio()) {
+                music = assetCache.acquire(inputs.audioKey());
+                held.add(inputs.audioKey());
+            }
+
+            List<String> command = FFmpegCommandBuilder.buildCompositeRenderCommand(video, music, inputs.musicVolume(),
+                    watermark, inputs.muteVideoAudio(), inputs.streamMode(), inputs.maxHeight(), part);
+            Process process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            if (!process.waitFor(renderTimeoutMinutes, TimeUnit.MINUTES)) {
+                process.destroyForcibly();
+                throw new IOException("Render timed out after " + renderTimeoutMinutes + " minutes");
+            }
+            if (process.exitValue() != 0) {
+                throw new IOException("FFmpeg exited with " + process.exitValue());
+            }
+            assetCache.add(key, part);
+            log.info("Pre-rendered composite {} in {} s", key, (System.currentTimeMillis() - start) / 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Composite render {} failed, streams keep encoding live", key, e);
+        } finally {
+            for (String heldKey : held) assetCache.release(heldKey);
+            deleteQuietly(part);
+        }
+    }
+
+    private static Path copyWatermark(Path watermarkPath) throws IOException {
+        Path copy = Files.createTempFile("composite-wm", ".png");
+        Files.copy(watermarkPath, copy, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) return;
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.debug("Failed to delete {}", path, e);
+        }
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.afklive.streamer.service;
+
+import com.afklive.streamer.model.ContentBlob;
+import com.afklive.streamer.repository.ContentBlobRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.util.HexFormat;
+import java.util.Optional;
+
+/**
+ * Content-addressed storage for library videos. Uploads are hashed while they stream to storage;
+ * when the same content is already stored the new copy is deleted and the existing object gains
+ * a reference instead. Optimized renditions are recorded against the hash of their source so a
+ * repeat optimization of the same content reuses the earlier output.
+ * <p>
+ * Objects stored before blobs were tracked are not in the table; they are never shared and are
+ * deleted directly on release.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ContentBlobService {
+
+    private static final int REGISTER_ATTEMPTS = 5;
+    private static final long REGISTER_BACKOFF_MS = 50;
+
+    private final FileStorageService storageService;
+    private final ContentBlobRepository blobRepository;
+
+    /**
+     * Storage key, content hash and size of a stored object, {@code duplicate} if it was already
+     * stored.
+     */
+    public record StoredBlob(String key, String hash, long size, boolean duplicate) {
+    }
+
+    /**
+     * Uploads {@code in} and returns the key to reference it by. The stream is not closed.
+     */
+    public StoredBlob store(InputStream in, String name, long size) {
+        return register(upload(in, name, size));
+    }
+
+    /**
+     * Uploads a stream of unknown length, such as transcoder output read as it is produced.
+     */
+    public StoredBlob store(InputStream in, String name) {
+        return store(in, name, -1);
+    }
+
+    /**
+     * Uploads the optimized output of content with hash {@code sourceHash}, {@code size} is -1
+     * if unknown.
+     */
+    public StoredBlob storeRendition(InputStream in, String name, long size, String sourceHash, String mode, int height) {
+        ContentBlob blob = upload(in, name, size);
+        blob.setSourceHash(sourceHash);
+        blob.setMode(mode);
+        blob.setHeight(height);
+        return register(blob);
+    }
+
+    /**
+     * Records a rendition that was already uploaded elsewhere without being hashed.
+     */
+    public void recordRendition(String key, long size, String sourceHash, String mode, int height) {
+        ContentBlob blob = newBlob(null, key, size);
+        blob.setSourceHash(sourceHash);
+        blob.setMode(mode);
+        blob.setHeight(height);
+        try {
+            blobRepository.saveAndFlush(blob);
+        } catch (DataIntegrityViolationException e) {
+            // A concurrent optimization recorded the same rendition first, keep ours untracked
+            log.debug("Rendition {} {}p of {} already recorded", mode, height, sourceHash);
+        }
+    }
+
+    /**
+     * Adds a reference to an earlier rendition of {@code sourceHash}, if there is one.
+     */
+    public Optional<ContentBlob> retainRendition(String sourceHash, String mode, int height) {
+        if (sourceHash == null) return Optional.empty();
+        return blobRepository.findBySourceHashAndModeAndHeight(sourceHash, mode, height)
+                .filter(blob -> blobRepository.retain(blob.getStorageKey()) > 0);
+    }
+
+    /**
+     * Adds a reference to a stored object. Returns false for objects that are not tracked, which
+     * have to be copied instead.
+     */
+    public boolean retain(String key) {
+        return key != null && blobRepository.retain(key) > 0;
+    }
+
+    /**
+     * Drops a reference and deletes the object once nothing references it.
+     */
+    public void release(String key) {
+        if (key == null) return;
+        if (blobRepository.release(key) == 0) {
+            if (!blobRepository.existsByStorageKey(key)) storageService.deleteFile(key);
+            return;
+        }
+        // Only the caller whose delete matches the zero count removes the object
+        if (blobRepository.deleteUnreferenced(key) > 0) {
+            storageService.deleteFile(key);
+        }
+    }
+
+    private StoredBlob register(ContentBlob blob) {
+        for (int attempt = 1; attempt <= REGISTER_ATTEMPTS; attempt++) {
+            Optional<ContentBlob> existing = blobRepository.findByHash(blob.getHash());
+            if (existing.isPresent()) {
+                String existingKey = existing.get().getStorageKey();
+                if (blobRepository.retain(existingKey) > 0) {
+                    deleteQuietly(blob.getStorageKey());
+                    return new StoredBlob(existingKey, blob.getHash(), blob.getSize(), true);
+                }
+                // A zero count means the last release is deleting the old object. If the row is
+                // still there after a back-off that release did not finish, so reuse the row.
+                if (attempt > 1 && blobRepository.takeOver(blob.getHash(), blob.getStorageKey()) > 0) {
+                    log.warn("Took over unreferenced blob {} left at {}", blob.getHash(), existingKey);
+                    deleteQuietly(existingKey);
+                    return new StoredBlob(blob.getStorageKey(), blob.getHash(), blob.getSize(), false);
+                }
+                backOff(attempt);
+                continue;
+            }
+            try {
+                blobRepository.saveAndFlush(blob);
+                return new StoredBlob(blob.getStorageKey(), blob.getHash(), blob.getSize(), false);
+            } catch (DataIntegrityViolationException e) {
+                // The same content (or rendition) was registered concurrently
+                blob.setId(null);
+                if (blob.getSourceHash() != null && blobRepository.findByHash(blob.getHash()).isEmpty()) {
+                    // Same rendition with different bytes, keep ours as plain content
+                    blob.setSourceHash(null);
+                    blob.setMode(null);
+                    blob.setHeight(null);
+                }
+            }
+        }
+        deleteQuietly(blob.getStorageKey());
+        throw new IllegalStateException("Could not register content " + blob.getHash() + " after "
+                + REGISTER_ATTEMPTS + " attempts");
+    }
+
+    private static void backOff(int attempt) {
+        try {
+            Thread.sleep(REGISTER_BACKOFF_MS * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while registering content", e);
+        }
+    }
+
+    // Hashes and counts the bytes while they stream to storage
+    private ContentBlob upload(InputStream in, String name, long size) {
+        MessageDigest digest = sha256();
+        CountingInputStream counting = new CountingInputStream(new DigestInputStream(in, digest));
+        String key = size >= 0
+                ? storageService.uploadFile(counting, name, size)
+                : storageService.uploadStream(counting, name);
+        return newBlob(HexFormat.of().formatHex(digest.digest()), key, counting.count);
+    }
+
+    private void deleteQuietly(String key) {
+        try {
+            storageService.deleteFile(key);
+        } catch (Exception e) {
+            log.warn("Failed to delete duplicate upload {}", key, e);
+        }
+    }
+
+    private static ContentBlob newBlob(String hash, String key, long size) {
+        ContentBlob blob = new ContentBlob();
+        blob.setHash(hash);
+        blob.setStorageKey(key);
+        blob.setSize(size);
+        blob.setRefCount(1);
+        blob.setCreatedAt(ZonedDateTime.now());
+        return blob;
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
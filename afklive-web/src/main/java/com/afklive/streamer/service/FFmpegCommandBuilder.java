@@ -3,9 +3,48 @@ package com.afklive.streamer.service;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 public class FFmpegCommandBuilder {
 
+    /** Input read from stdin. */
+    public static final String PIPE_INPUT = "pipe:0";
+    /** Output written to stdout, see {@link #streamingOutput}. */
+    public static final String PIPE_OUTPUT = "pipe:1";
+
+    // Optimized videos have a keyframe every two seconds, like a live encode
+    public static final int OPTIMIZE_FRAME_RATE = 30;
+    public static final int OPTIMIZE_GOP_FRAMES = 60;
+    public static final double OPTIMIZE_GOP_SECONDS = (double) OPTIMIZE_GOP_FRAMES / OPTIMIZE_FRAME_RATE;
+
+    // Longest wait for a single read from a probed URL
+    private static final long PROBE_RW_TIMEOUT_MICROS = 15_000_000;
+
+    /**
+     * One output of an optimize: landscape or portrait, {@code height} pixels tall.
+     */
+    public record Rendition(String mode, int height) {
+        public Rendition {
+            if (!"landscape".equals(mode) && !"portrait".equals(mode)) {
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+            }
+            if (height < 144 || height > 2160) {
+                throw new IllegalArgumentException("Unsupported height: " + height);
+            }
+        }
+
+        /** Parses "mode:height", e.g. "portrait:1920". */
+        public static Rendition parse(String value) {
+            String[] parts = value.trim().split(":");
+            if (parts.length != 2) throw new IllegalArgumentException("Expected mode:height, got " + value);
+            try {
+                return new Rendition(parts[0].toLowerCase(Locale.ROOT), Integer.parseInt(parts[1]));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected mode:height, got " + value);
+            }
+        }
+    }
+
     private int loopCount = 1;
     private String streamMode = "original";
     private String watermarkPath;
@@ -99,14 +138,138 @@ public class FFmpegCommandBuilder {
     }
 
     public static List<String> buildOptimizeCommand(Path input, Path output, String mode, int height) {
+        return buildOptimizeCommand(input.toString(), output.toString(), mode, height);
+    }
+
+    /**
+     * {@code input} may also be a URL or {@link #PIPE_INPUT}, {@code output} may be
+     * {@link #PIPE_OUTPUT}; see {@link #streamingOutput}.
+     */
+    public static List<String> buildOptimizeCommand(String input, String output, String mode, int height) {
         List<String> command = new ArrayList<>();
         command.add("nice");
         command.add("-n");
         command.add("15");
         command.add("ffmpeg");
         command.add("-i");
-        command.add(input.toString());
+        command.add(input);
+
+        addOptimizeVideo(command, mode, height);
+        addOptimizeAudio(command);
+
+        command.add("-movflags");
+        command.add("+faststart");
+
+        command.add("-y");
+        command.add(output);
+        return command;
+    }
+
+    /**
+     * Video of one chunk of an optimize, {@code duration} seconds from {@code start} (null for the
+     * rest). Input seeking is frame accurate when transcoding and every chunk starts with a
+     * keyframe, so with starts on multiples of {@link #OPTIMIZE_GOP_SECONDS} the joined chunks keep
+     * the keyframe cadence of a single-pass encode. Audio is left to {@link #buildOptimizeAudioCommand}:
+     * AAC encoded per chunk would get a priming gap at every join.
+     */
+    public static List<String> buildOptimizeChunkCommand(String input, String output, String mode, int height,
+                                                         double start, Double duration) {
+        List<String> command = new ArrayList<>(List.of("nice", "-n", "15", "ffmpeg"));
+        command.add("-ss");
+        command.add(seconds(start));
+        command.add("-i");
+        command.add(input);
+        if (duration != null) {
+            command.add("-t");
+            command.add(seconds(duration));
+        }
+        addOptimizeVideo(command, mode, height);
+        command.add("-an");
+        command.add("-y");
+        command.add(output);
+        return command;
+    }
+
+    /**
+     * Optimizes to several renditions at once, {@code outputs} in the order of
+     * {@code renditions}. The input is read and decoded once and the decoded frames are split
+     * between the scalers of the renditions, so each extra rendition costs its scaling and
+     * encoding only. {@code threadsPerOutput} limits the encoder threads of each output, 0 for
+     * no limit.
+     */
+    public static List<String> buildOptimizeLadderCommand(String input, List<Rendition> renditions, List<String> outputs,
+                                                          int threadsPerOutput) {
+        if (renditions.isEmpty() || renditions.size() != outputs.size()) {
+            throw new IllegalArgumentException("Need one output per rendition");
+        }
+        List<String> command = new ArrayList<>(List.of("nice", "-n", "15", "ffmpeg", "-i", input));
+
+        StringBuilder graph = new StringBuilder("[0:v]split=").append(renditions.size());
+        for (int i = 0; i < renditions.size(); i++) graph.append("[in").append(i).append(']');
+        for (int i = 0; i < renditions.size(); i++) {
+            Rendition rendition = renditions.get(i);
+            graph.append(";[in").append(i).append(']')
+                    .append(optimizeFilter(rendition.mode(), rendition.height(), String.valueOf(i)))
+                    .append("[v").append(i).append(']');
+        }
+        command.add("-filter_complex");
+        command.add(graph.toString());
+
+        for (int i = 0; i < renditions.size(); i++) {
+            command.addAll(List.of("-map", "[v" + i + "]", "-map", "0:a?"));
+            addOptimizeEncoding(command, renditions.get(i).height());
+            addOptimizeAudio(command);
+            if (threadsPerOutput > 0) {
+                command.add("-threads");
+                command.add(String.valueOf(threadsPerOutput));
+            }
+            command.add("-movflags");
+            command.add("+faststart");
+            command.add("-y");
+            command.add(outputs.get(i));
+        }
+        return command;
+    }
+
+    /**
+     * The audio of an optimize in one piece, to be joined with the chunks of
+     * {@link #buildOptimizeChunkCommand}.
+     */
+    public static List<String> buildOptimizeAudioCommand(String input, String output) {
+        List<String> command = new ArrayList<>(List.of("nice", "-n", "15", "ffmpeg", "-i", input, "-vn"));
+        addOptimizeAudio(command);
+        command.add("-f");
+        command.add("mp4");
+        command.add("-y");
+        command.add(output);
+        return command;
+    }
+
+    /**
+     * Joins the video chunks listed in {@code listFile} and the audio of
+     * {@link #buildOptimizeAudioCommand} (null for none) without re-encoding.
+     */
+    public static List<String> buildChunkJoinCommand(Path listFile, String audio, String output) {
+        List<String> command = buildConcatCopyCommand(listFile, output);
+        int copy = command.indexOf("-map");
+        if (audio != null) {
+            command.addAll(copy, List.of("-i", audio));
+            copy += 2;
+        }
+        // Replace the mapping of the concat input
+        command.subList(copy, copy + 4).clear();
+        command.addAll(copy, audio != null ? List.of("-map", "0:v", "-map", "1:a") : List.of("-map", "0:v"));
+        return command;
+    }
+
+    private static void addOptimizeVideo(List<String> command, String mode, int height) {
+        command.add("-vf");
+        command.add(optimizeFilter(mode, height, ""));
+        addOptimizeEncoding(command, height);
+    }
 
+    // Labels inside the filter get the suffix, so several can share one filter graph
+    private static String optimizeFilter(String mode, int height, String labelSuffix) {
         // Resolution Logic
         int w, h;
         if ("portrait".equalsIgnoreCase(mode)) {
@@ -115,21 +278,19 @@ public class FFmpegCommandBuilder {
             if (w % 2 != 0) w++;
 
             // Blur background effect for portrait
-            String filter = String.format("split[original][copy];[copy]scale=-1:%d,crop=w=%d:h=%d,gblur=sigma=20[blurred];[original]scale=%d:-1[scaled];[blurred][scaled]overlay=(W-w)/2:(H-h)/2", h, w, h, w);
-            command.add("-vf");
-            command.add(filter);
-
+            return String.format("split[original%4$s][copy%4$s];[copy%4$s]scale=-1:%1$d,crop=w=%2$d:h=%3$d,gblur=sigma=20[blurred%4$s];[original%4$s]scale=%2$d:-1[scaled%4$s];[blurred%4$s][scaled%4$s]overlay=(W-w)/2:(H-h)/2",
+                    h, w, h, labelSuffix);
         } else {
             // Landscape (Default)
             h = height;
             w = (int) Math.round(h * (16.0 / 9.0));
             if (w % 2 != 0) w++;
 
-            String filter = String.format("scale=%d:%d:force_original_aspect_ratio=decrease,pad=%d:%d:(ow-iw)/2:(oh-ih)/2", w, h, w, h);
-            command.add("-vf");
-            command.add(filter);
+            return String.format("scale=%d:%d:force_original_aspect_ratio=decrease,pad=%d:%d:(ow-iw)/2:(oh-ih)/2", w, h, w, h);
         }
+    }
 
+    private static void addOptimizeEncoding(List<String> command, int height) {
         command.add("-c:v");
         command.add("libx264");
         command.add("-preset");
@@ -157,27 +318,26 @@ public class FFmpegCommandBuilder {
         command.add("-pix_fmt");
         command.add("yuv420p");
         command.add("-r");
-        command.add("30");
+        command.add(String.valueOf(OPTIMIZE_FRAME_RATE));
         command.add("-g");
-        command.add("60");
+        command.add(String.valueOf(OPTIMIZE_GOP_FRAMES));
         command.add("-keyint_min");
-        command.add("60");
+        command.add(String.valueOf(OPTIMIZE_GOP_FRAMES));
         command.add("-sc_threshold");
         command.add("0");
+    }
 
+    private static void addOptimizeAudio(List<String> command) {
         command.add("-c:a");
         command.add("aac");
         command.add("-b:a");
         command.add("128k");
         command.add("-ar");
         command.add("44100");
+    }
 
-        command.add("-movflags");
-        command.add("+faststart");
-
-        command.add("-y");
-        command.add(output.toString());
-        return command;
+    private static String seconds(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
     }
 
     // Keep old signature for backward compatibility if needed, though we should update callers
@@ -265,6 +425,44 @@ public class FFmpegCommandBuilder {
             int maxHeight,
             boolean isOptimized,
             Path textOverlayPath
+    ) {
+        return buildStreamCommand(videoPath, streamKeys, musicPath, musicVolume, loopCount, watermarkPath, muteVideoAudio, streamMode, maxHeight, isOptimized, textOverlayPath, 0);
+    }
+
+    public static List<String> buildStreamCommand(
+            Path videoPath,
+            List<String> streamKeys,
+            Path musicPath,
+            String musicVolume,
+            int loopCount,
+            Path watermarkPath,
+            boolean muteVideoAudio,
+            String streamMode,
+            int maxHeight,
+            boolean isOptimized,
+            Path textOverlayPath,
+            double startOffsetSeconds
+    ) {
+        return buildStreamCommand(videoPath.toString(), streamKeys, musicPath, musicVolume, loopCount, watermarkPath, muteVideoAudio, streamMode, maxHeight, isOptimized, textOverlayPath, startOffsetSeconds);
+    }
+
+    /**
+     * Core stream command. {@code videoInput} is a local path or an http(s) URL for a progressive
+     * start, in which case FFmpeg is told to reconnect on dropped connections.
+     */
+    public static List<String> buildStreamCommand(
+            String videoInput,
+            List<String> streamKeys,
+            Path musicPath,
+            String musicVolume,
+            int loopCount,
+            Path watermarkPath,
+            boolean muteVideoAudio,
+            String streamMode,
+            int maxHeight,
+            boolean isOptimized,
+            Path textOverlayPath,
+            double startOffsetSeconds
     ) {
         String ffmpeg = "ffmpeg";
         java.io.File local = new java.io.File("bin/ffmpeg");
@@ -274,19 +472,44 @@ public class FFmpegCommandBuilder {
         command.add(ffmpeg);
 
         // Global settings
+        // Machine-readable progress on stdout instead of the human stats line
+        command.add("-progress");
+        command.add("pipe:1");
+        command.add("-nostats");
         command.add("-re");
         command.add("-stream_loop");
         command.add(String.valueOf(loopCount));
         command.add("-fflags");
         command.add("+genpts");
 
+        // Resume point after a reconnect (input seek, lands on the nearest keyframe)
+        if (startOffsetSeconds > 0) {
+            command.add("-ss");
+            command.add(String.format(java.util.Locale.ROOT, "%.3f", startOffsetSeconds));
+        }
+
         // Input 0: Video
+        if (videoInput.startsWith("http://") || videoInput.startsWith("https://")) {
+            command.add("-reconnect");
+            command.add("1");
+            command.add("-reconnect_streamed");
+            command.add("1");
+            command.add("-reconnect_delay_max");
+            command.add("5");
+        }
         command.add("-i");
-        command.add(videoPath.toString());
+        command.add(videoInput);
+
+        boolean fanOut = streamKeys.size() > 1;
 
         if (isOptimized) {
             // STREAM COPY MODE (Low CPU)
             // Assumes video is already h264/aac and scaled/padded correctly
+            if (fanOut) {
+                // The tee muxer only forwards explicitly mapped streams
+                command.add("-map"); command.add("0:v");
+                command.add("-map"); command.add("0:a?");
+            }
             command.add("-c:v");
             command.add("copy");
 
@@ -300,147 +523,329 @@ public class FFmpegCommandBuilder {
 
         } else {
             // RE-ENCODE MODE (High CPU)
+            addCompositeEncoding(command, musicPath, musicVolume, watermarkPath, muteVideoAudio, streamMode, maxHeight,
+                    textOverlayPath, "ultrafast");
+        }
 
-            // Input 1: Audio (Music or Silence)
-            boolean hasMusic = musicPath != null;
-            if (hasMusic) {
-                command.add("-stream_loop");
-                command.add("-1");
-                command.add("-i");
-                command.add(musicPath.toString());
-            } else if (muteVideoAudio) {
-                command.add("-f");
-                command.add("lavfi");
-                command.add("-i");
-                command.add("anullsrc=channel_layout=stereo:sample_rate=44100");
-            }
+        command.add("-shortest");
 
-            // Input 2: Watermark
-            boolean hasWatermark = watermarkPath != null;
-            int wmIdx = (hasMusic || muteVideoAudio) ? 2 : 1;
-            if (hasWatermark) {
-                command.add("-i");
-                command.add(watermarkPath.toString());
-            }
+        // --- Output ---
+        if (fanOut) {
+            // Single encode fanned out to every destination. onfail=ignore keeps the
+            // remaining outputs running when one ingest endpoint drops.
+            command.add("-flags");
+            command.add("+global_header");
+            command.add("-f");
+            command.add("tee");
+            command.add(buildTeeOutputs(streamKeys));
+        } else {
+            command.add("-f");
+            command.add("flv");
+            command.add(resolveIngestUrl(streamKeys.get(0)));
+        }
 
-            // --- Filters ---
-            List<String> filterChains = new ArrayList<>();
-            String vLabel = "0:v";
-            String aLabel = "0:a";
-
-            // Dynamic Resolution Logic
-            String scaleFilter;
-            int safeMaxHeight = (maxHeight > 0) ? maxHeight : 1080;
-
-            if ("force_portrait".equals(streamMode)) {
-                int h = safeMaxHeight;
-                int w = (int) Math.round(h * (9.0 / 16.0));
-                if (w % 2 != 0) w++;
-                if (h % 2 != 0) h++;
-                scaleFilter = String.format("scale=%d:%d:force_original_aspect_ratio=decrease,pad=%d:%d:(ow-iw)/2:(oh-ih)/2,setsar=1", w, h, w, h);
-            } else {
-                scaleFilter = String.format("scale=-2:min(ih\\,%d),pad=ceil(iw/2)*2:ceil(ih/2)*2", safeMaxHeight);
-            }
+        return command;
+    }
 
-            filterChains.add("[0:v]" + scaleFilter + "[scaled]");
-            vLabel = "[scaled]";
+    /**
+     * Renders one pass of the video with music and watermark composited, at low CPU priority.
+     * The output is streamed later in copy mode, so it uses the same keyframe interval as a
+     * live encode.
+     */
+    public static List<String> buildCompositeRenderCommand(
+            Path videoPath,
+            Path musicPath,
+            String musicVolume,
+            Path watermarkPath,
+            boolean muteVideoAudio,
+            String streamMode,
+            int maxHeight,
+            Path output
+    ) {
+        String ffmpeg = "ffmpeg";
+        java.io.File local = new java.io.File("bin/ffmpeg");
+        if (local.exists()) ffmpeg = local.getAbsolutePath();
 
-            if (hasWatermark) {
-                filterChains.add(String.format("[%d:v]scale=iw*0.15:-1[wm]", wmIdx));
-                filterChains.add(String.format("[%s][wm]overlay=main_w-overlay_w-20:20[vwm]", vLabel));
-                vLabel = "[vwm]";
-            }
+        List<String> command = new ArrayList<>();
+        command.add("nice");
+        command.add("-n");
+        command.add("15");
+        command.add(ffmpeg);
+        command.add("-nostats");
+        command.add("-i");
+        command.add(videoPath.toString());
+        // Rendered once and replayed for days, so spend more CPU on quality than a live encode can
+        addCompositeEncoding(command, musicPath, musicVolume, watermarkPath, muteVideoAudio, streamMode, maxHeight,
+                null, "veryfast");
+        command.add("-shortest");
+        command.add("-movflags");
+        command.add("+faststart");
+        command.add("-f");
+        command.add("mp4");
+        command.add("-y");
+        command.add(output.toString());
+        return command;
+    }
 
-            // Text Overlay (Subscribers)
-            if (textOverlayPath != null) {
-                String safePath = textOverlayPath.toString().replace("\\", "/").replace(":", "\\:");
-                // Use a different output label
-                String nextLabel = "[vtext]";
-                // Draw text: White text with box, bottom left
-                String drawText = String.format("drawtext=textfile='%s':reload=1:fontcolor=white:fontsize=24:box=1:boxcolor=black@0.6:boxborderw=5:x=20:y=h-th-20", safePath);
+    /**
+     * Extra inputs, filter graph and encoder settings that composite music, watermark and text
+     * overlay onto input 0. Shared by live re-encoding and offline pre-rendering.
+     */
+    private static void addCompositeEncoding(
+            List<String> command,
+            Path musicPath,
+            String musicVolume,
+            Path watermarkPath,
+            boolean muteVideoAudio,
+            String streamMode,
+            int maxHeight,
+            Path textOverlayPath,
+            String preset
+    ) {
+        // Input 1: Audio (Music or Silence)
+        boolean hasMusic = musicPath != null;
+        if (hasMusic) {
+            command.add("-stream_loop");
+            command.add("-1");
+            command.add("-i");
+            command.add(musicPath.toString());
+        } else if (muteVideoAudio) {
+            command.add("-f");
+            command.add("lavfi");
+            command.add("-i");
+            command.add("anullsrc=channel_layout=stereo:sample_rate=44100");
+        }
 
-                filterChains.add(String.format("[%s]%s%s", vLabel.replace("[", "").replace("]", ""), drawText, nextLabel));
-                vLabel = nextLabel;
-            }
+        // Input 2: Watermark
+        boolean hasWatermark = watermarkPath != null;
+        int wmIdx = (hasMusic || muteVideoAudio) ? 2 : 1;
+        if (hasWatermark) {
+            command.add("-i");
+            command.add(watermarkPath.toString());
+        }
 
-            // Audio Logic
-            if (hasMusic) {
-                if (muteVideoAudio) {
-                    filterChains.add(String.format("[1:a]volume=%s,aresample=44100[aout]", musicVolume));
-                } else {
-                    filterChains.add("[0:a]aresample=44100,asetpts=PTS-STARTPTS[a0]");
-                    filterChains.add(String.format("[1:a]volume=%s,aresample=44100,asetpts=PTS-STARTPTS[a1]", musicVolume));
-                    filterChains.add("[a0][a1]amix=inputs=2:duration=first:dropout_transition=2[aout]");
-                }
-                aLabel = "[aout]";
-            } else if (muteVideoAudio) {
-                aLabel = "1:a";
-            }
+        // --- Filters ---
+        List<String> filterChains = new ArrayList<>();
+        String vLabel = "0:v";
+        String aLabel = "0:a";
 
-            command.add("-filter_complex");
-            command.add(String.join(";", filterChains));
+        // Dynamic Resolution Logic
+        String scaleFilter;
+        int safeMaxHeight = (maxHeight > 0) ? maxHeight : 1080;
 
-            // --- Encoding ---
-            command.add("-map"); command.add(vLabel);
-            command.add("-c:v"); command.add("libx264");
-            command.add("-preset"); command.add("ultrafast");
+        if ("force_portrait".equals(streamMode)) {
+            int h = safeMaxHeight;
+            int w = (int) Math.round(h * (9.0 / 16.0));
+            if (w % 2 != 0) w++;
+            if (h % 2 != 0) h++;
+            scaleFilter = String.format("scale=%d:%d:force_original_aspect_ratio=decrease,pad=%d:%d:(ow-iw)/2:(oh-ih)/2,setsar=1", w, h, w, h);
+        } else {
+            scaleFilter = String.format("scale=-2:min(ih\\,%d),pad=ceil(iw/2)*2:ceil(ih/2)*2", safeMaxHeight);
+        }
 
-            // Dynamic Bitrate Logic based on Max Height
-            String bitrate = "4500k";
-            String maxrate = "6000k";
-            String bufsize = "12000k";
+        filterChains.add("[0:v]" + scaleFilter + "[scaled]");
+        vLabel = "[scaled]";
 
-            if (safeMaxHeight >= 2160) {
-                bitrate = "15000k"; maxrate = "20000k"; bufsize = "40000k";
-            } else if (safeMaxHeight >= 1440) {
-                bitrate = "9000k"; maxrate = "12000k"; bufsize = "24000k";
-            }
+        if (hasWatermark) {
+            filterChains.add(String.format("[%d:v]scale=iw*0.15:-1[wm]", wmIdx));
+            filterChains.add(String.format("[%s][wm]overlay=main_w-overlay_w-20:20[vwm]", vLabel));
+            vLabel = "[vwm]";
+        }
+
+        // Text Overlay (Subscribers)
+        if (textOverlayPath != null) {
+            String safePath = textOverlayPath.toString().replace("\\", "/").replace(":", "\\:");
+            // Use a different output label
+            String nextLabel = "[vtext]";
+            // Draw text: White text with box, bottom left
+            String drawText = String.format("drawtext=textfile='%s':reload=1:fontcolor=white:fontsize=24:box=1:boxcolor=black@0.6:boxborderw=5:x=20:y=h-th-20", safePath);
+
+            filterChains.add(String.format("[%s]%s%s", vLabel.replace("[", "").replace("]", ""), drawText, nextLabel));
+            vLabel = nextLabel;
+        }
 
-            command.add("-b:v"); command.add(bitrate);
-            command.add("-maxrate"); command.add(maxrate);
-            command.add("-bufsize"); command.add(bufsize);
-            command.add("-pix_fmt"); command.add("yuv420p");
-            command.add("-g"); command.add("60");
-            command.add("-keyint_min"); command.add("60");
-            command.add("-sc_threshold"); command.add("0");
-
-            // Map audio
-            if (aLabel.equals("0:a")) {
-                 command.add("-map"); command.add("0:a?");
+        // Audio Logic
+        if (hasMusic) {
+            if (muteVideoAudio) {
+                filterChains.add(String.format("[1:a]volume=%s,aresample=44100[aout]", musicVolume));
             } else {
-                 command.add("-map"); command.add(aLabel);
+                filterChains.add("[0:a]aresample=44100,asetpts=PTS-STARTPTS[a0]");
+                filterChains.add(String.format("[1:a]volume=%s,aresample=44100,asetpts=PTS-STARTPTS[a1]", musicVolume));
+                filterChains.add("[a0][a1]amix=inputs=2:duration=first:dropout_transition=2[aout]");
             }
+            aLabel = "[aout]";
+        } else if (muteVideoAudio) {
+            aLabel = "1:a";
+        }
+
+        command.add("-filter_complex");
+        command.add(String.join(";", filterChains));
+
+        // --- Encoding ---
+        command.add("-map"); command.add(vLabel);
+        command.add("-c:v"); command.add("libx264");
+        command.add("-preset"); command.add(preset);
 
-            command.add("-c:a"); command.add("aac");
-            command.add("-b:a"); command.add("128k");
-            command.add("-ar"); command.add("44100");
+        // Dynamic Bitrate Logic based on Max Height
+        String bitrate = "4500k";
+        String maxrate = "6000k";
+        String bufsize = "12000k";
+
+        if (safeMaxHeight >= 2160) {
+            bitrate = "15000k"; maxrate = "20000k"; bufsize = "40000k";
+        } else if (safeMaxHeight >= 1440) {
+            bitrate = "9000k"; maxrate = "12000k"; bufsize = "24000k";
         }
 
-        command.add("-shortest");
+        command.add("-b:v"); command.add(bitrate);
+        command.add("-maxrate"); command.add(maxrate);
+        command.add("-bufsize"); command.add(bufsize);
+        command.add("-pix_fmt"); command.add("yuv420p");
+        command.add("-g"); command.add("60");
+        command.add("-keyint_min"); command.add("60");
+        command.add("-sc_threshold"); command.add("0");
+
+        // Map audio
+        if (aLabel.equals("0:a")) {
+             command.add("-map"); command.add("0:a?");
+        } else {
+             command.add("-map"); command.add(aLabel);
+        }
 
-        // --- Output ---
-        String key = streamKeys.get(0);
-        String url = key.startsWith("rtmp") ? key : "rtmp://a.rtmp.youtube.com:1935/live2/" + key;
+        command.add("-c:a"); command.add("aac");
+        command.add("-b:a"); command.add("128k");
+        command.add("-ar"); command.add("44100");
+    }
 
-        command.add("-f");
-        command.add("flv");
-        command.add(url);
+    public static String resolveIngestUrl(String streamKey) {
+        return streamKey.startsWith("rtmp") ? streamKey : "rtmp://a.rtmp.youtube.com:1935/live2/" + streamKey;
+    }
 
+    static String buildTeeOutputs(List<String> streamKeys) {
+        StringBuilder outputs = new StringBuilder();
+        for (String key : streamKeys) {
+            if (outputs.length() > 0) outputs.append('|');
+            outputs.append("[f=flv:onfail=ignore]").append(escapeTeeTarget(resolveIngestUrl(key)));
+        }
+        return outputs.toString();
+    }
+
+    // Characters with special meaning in the tee target list must be backslash-escaped
+    private static String escapeTeeTarget(String url) {
+        StringBuilder escaped = new StringBuilder(url.length());
+        for (int i = 0; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '|' || c == '[' || c == ']' || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Prints the container duration in seconds, used to turn encoder progress into a percentage.
+     */
+    public static List<String> buildDurationProbeCommand(Path input) {
+        return buildDurationProbeCommand(input.toString());
+    }
+
+    public static List<String> buildDurationProbeCommand(String input) {
+        List<String> command = buildProbeCommand(input);
+        int entries = command.indexOf("-show_entries");
+        command.set(entries + 1, "format=duration");
+        command.remove("-select_streams");
+        command.remove("v:0");
         return command;
     }
 
-    public static List<String> buildProbeCommand(Path input) {
-        String ffprobe = "ffprobe";
-        java.io.File lambda = new java.io.File("/opt/bin/ffprobe");
-        if (lambda.exists()) {
-            ffprobe = lambda.getAbsolutePath();
-        } else {
-            java.io.File local = new java.io.File("bin/ffprobe");
-            if (local.exists()) ffprobe = local.getAbsolutePath();
+    /**
+     * Makes FFmpeg report machine-readable progress on stdout instead of its stats line.
+     */
+    public static List<String> withProgress(List<String> command) {
+        return withProgress(command, "pipe:1");
+    }
+
+    /**
+     * Reports progress to {@code target} instead, {@code "pipe:2"} when stdout carries the output.
+     */
+    public static List<String> withProgress(List<String> command, String target) {
+        List<String> reporting = new ArrayList<>(command);
+        int ffmpeg = 0;
+        while (ffmpeg < reporting.size() && !reporting.get(ffmpeg).endsWith("ffmpeg")) ffmpeg++;
+        if (ffmpeg == reporting.size()) {
+            throw new IllegalArgumentException("Not an FFmpeg command");
         }
+        reporting.addAll(ffmpeg + 1, List.of("-progress", target, "-nostats"));
+        return reporting;
+    }
+
+    /**
+     * Container and stream metadata as JSON. {@code input} may be a presigned URL, ffprobe then
+     * only range-reads the headers it needs instead of the whole file.
+     */
+    public static List<String> buildMetadataProbeCommand(String input) {
+        List<String> command = new ArrayList<>();
+        command.add(ffprobeBinary());
+        command.add("-v");
+        command.add("error");
+        command.add("-show_entries");
+        command.add("format=duration,bit_rate:stream=codec_type,codec_name,width,height,avg_frame_rate,channels,channel_layout"
+                + ":stream_side_data=rotation:stream_tags=rotate");
+        command.add("-of");
+        command.add("json");
+        addProbeInput(command, input);
+        return command;
+    }
 
+    /**
+     * Timestamp and flags of each video packet over the first {@code seconds} of {@code input},
+     * one "pts_time,flags" line per packet. Keyframes have a K flag.
+     */
+    public static List<String> buildKeyframeProbeCommand(String input, int seconds) {
         List<String> command = new ArrayList<>();
-        command.add(ffprobe);
+        command.add(ffprobeBinary());
+        command.add("-v");
+        command.add("error");
+        command.add("-select_streams");
+        command.add("v:0");
+        command.add("-read_intervals");
+        command.add("%+" + seconds);
+        command.add("-show_entries");
+        command.add("packet=pts_time,flags");
+        command.add("-of");
+        command.add("csv=p=0");
+        addProbeInput(command, input);
+        return command;
+    }
+
+    /**
+     * Stream parameters that decide whether clips can be concatenated without re-encoding, as JSON.
+     * See {@link MergePlanner.Format#parse}.
+     */
+    public static List<String> buildFormatProbeCommand(String input) {
+        List<String> command = new ArrayList<>();
+        command.add(ffprobeBinary());
+        command.add("-v");
+        command.add("error");
+        // Adds extradata_hash, which tells clips with different SPS/PPS apart
+        command.add("-show_data_hash");
+        command.add("md5");
+        command.add("-show_entries");
+        command.add("stream=codec_type,codec_name,profile,level,width,height,pix_fmt,r_frame_rate,time_base,extradata_hash,sample_rate,channels");
+        command.add("-of");
+        command.add("json");
+        command.add(input);
+        return command;
+    }
+
+    public static List<String> buildProbeCommand(Path input) {
+        return buildProbeCommand(input.toString());
+    }
+
+    public static List<String> buildProbeCommand(String input) {
+        List<String> command = new ArrayList<>();
+        command.add(ffprobeBinary());
         command.add("-v");
         command.add("error");
         command.add("-select_streams");
@@ -449,11 +854,79 @@ public class FFmpegCommandBuilder {
         command.add("stream=codec_name");
         command.add("-of");
         command.add("default=noprint_wrappers=1:nokey=1");
-        command.add(input.toString());
+        command.add(input);
         return command;
     }
 
+    // A presigned URL is read over HTTP; a stalled connection fails the probe instead of hanging it
+    private static void addProbeInput(List<String> command, String input) {
+        if (input.startsWith("http://") || input.startsWith("https://")) {
+            command.add("-rw_timeout");
+            command.add(String.valueOf(PROBE_RW_TIMEOUT_MICROS));
+        }
+        command.add(input);
+    }
+
+    private static String ffprobeBinary() {
+        java.io.File lambda = new java.io.File("/opt/bin/ffprobe");
+        if (lambda.exists()) return lambda.getAbsolutePath();
+        java.io.File local = new java.io.File("bin/ffprobe");
+        if (local.exists()) return local.getAbsolutePath();
+        return "ffprobe";
+    }
+
+    /**
+     * Runs an offline FFmpeg command at low CPU priority with at most {@code threads} encoder
+     * threads, so it cannot take every core from live streams. The command must end with the
+     * output path.
+     */
+    public static List<String> asBackgroundJob(List<String> command, int threads) {
+        List<String> limited = new ArrayList<>(command);
+        if (!"nice".equals(limited.getFirst())) {
+            limited.addAll(0, List.of("nice", "-n", "15"));
+        }
+        if (threads > 0) {
+            limited.addAll(limited.size() - 1, List.of("-threads", String.valueOf(threads)));
+        }
+        return limited;
+    }
+
+    /**
+     * Adapts a command writing to {@link #PIPE_OUTPUT} for streaming: the MP4 is fragmented so
+     * it can be written without seeking back to the header, and HTTP inputs reconnect on dropped
+     * connections instead of failing the transcode.
+     */
+    public static List<String> streamingOutput(List<String> command) {
+        List<String> streaming = new ArrayList<>(command);
+        if (!PIPE_OUTPUT.equals(streaming.getLast())) {
+            throw new IllegalArgumentException("Command does not write to stdout");
+        }
+        for (int i = streaming.size() - 2; i >= 0; i--) {
+            if ("-i".equals(streaming.get(i)) && streaming.get(i + 1).startsWith("http")) {
+                streaming.addAll(i, List.of("-reconnect", "1", "-reconnect_streamed", "1", "-reconnect_delay_max", "5"));
+            }
+        }
+        int movflags = streaming.indexOf("-movflags");
+        if (movflags >= 0) {
+            streaming.remove(movflags + 1);
+            streaming.remove(movflags);
+        }
+        streaming.addAll(streaming.size() - 1,
+                List.of("-movflags", "+frag_keyframe+empty_moov+default_base_moof", "-f", "mp4"));
+        if (!streaming.contains(PIPE_INPUT)) {
+            // Keep FFmpeg from reading keyboard commands off the pipe
+            int ffmpeg = 0;
+            while (ffmpeg < streaming.size() && !streaming.get(ffmpeg).endsWith("ffmpeg")) ffmpeg++;
+            streaming.add(ffmpeg + 1, "-nostdin");
+        }
+        return streaming;
+    }
+
     public static List<String> buildMergeCommand(List<Path> inputs, Path output) {
+        return buildMergeCommand(inputs.stream().map(Path::toString).toList(), output.toString());
+    }
+
+    public static List<String> buildMergeCommand(List<String> inputs, String output) {
         String ffmpeg = "ffmpeg";
         java.io.File local = new java.io.File("bin/ffmpeg");
         if (local.exists()) ffmpeg = local.getAbsolutePath();
@@ -461,9 +934,9 @@ public class FFmpegCommandBuilder {
         List<String> command = new ArrayList<>();
         command.add(ffmpeg);
 
-        for (Path input : inputs) {
+        for (String input : inputs) {
             command.add("-i");
-            command.add(input.toString());
+            command.add(input);
         }
 
         StringBuilder filterComplex = new StringBuilder();
@@ -490,8 +963,45 @@ public class FFmpegCommandBuilder {
         command.add("192k");
 
         command.add("-y");
-        command.add(output.toString());
+        command.add(output);
+
+        return command;
+    }
+
+    /**
+     * Joins clips listed in a concat demuxer file without re-encoding. All clips must share one
+     * {@link MergePlanner.Format}.
+     */
+    public static List<String> buildConcatCopyCommand(Path listFile, Path output) {
+        return buildConcatCopyCommand(listFile, output.toString());
+    }
 
+    public static List<String> buildConcatCopyCommand(Path listFile, String output) {
+        String ffmpeg = "ffmpeg";
+        java.io.File local = new java.io.File("bin/ffmpeg");
+        if (local.exists()) ffmpeg = local.getAbsolutePath();
+
+        List<String> command = new ArrayList<>();
+        command.add(ffmpeg);
+        command.add("-f");
+        command.add("concat");
+        command.add("-safe");
+        command.add("0");
+        // The list may name presigned URLs as well as local files
+        command.add("-protocol_whitelist");
+        command.add("file,http,https,tcp,tls,crypto");
+        command.add("-i");
+        command.add(listFile.toString());
+        command.add("-map");
+        command.add("0:v");
+        command.add("-map");
+        command.add("0:a?");
+        command.add("-c");
+        command.add("copy");
+        command.add("-movflags");
+        command.add("+faststart");
+        command.add("-y");
+        command.add(output);
         return command;
     }
 }
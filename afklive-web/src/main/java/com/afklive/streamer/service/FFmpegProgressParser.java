@@ -0,0 +1,126 @@
+package com.afklive.streamer.service;
+
+import com.afklive.streamer.dto.StreamMetrics;
+
+import java.time.Instant;
+
+/**
+ * Incremental parser for the key=value blocks FFmpeg writes with {@code -progress}.
+ * Values are parsed straight from the line without substrings or regex, and a
+ * {@link StreamMetrics} snapshot is published once per block (on the {@code progress=} line).
+ * Lines are expected from a single reader thread; {@link #latest()} may be read from any thread.
+ */
+public class FFmpegProgressParser {
+
+    private long frame;
+    private double fps;
+    private double bitrateKbps;
+    private long totalSizeBytes;
+    private long outTimeUs;
+    private long dupFrames;
+    private long dropFrames;
+    private double speed;
+
+    private volatile StreamMetrics latest;
+
+    /**
+     * @return true if the line belongs to a progress block (and should not be treated as a log line)
+     */
+    public boolean accept(String line) {
+        int eq = line.indexOf('=');
+        if (eq <= 0) return false;
+        int from = eq + 1;
+        int to = line.length();
+
+        if (isKey(line, eq, "frame")) {
+            frame = parseLong(line, from, to);
+        } else if (isKey(line, eq, "fps")) {
+            fps = parseDouble(line, from, to);
+        } else if (isKey(line, eq, "bitrate")) {
+            bitrateKbps = parseDouble(line, from, to);
+        } else if (isKey(line, eq, "total_size")) {
+            totalSizeBytes = parseLong(line, from, to);
+        } else if (isKey(line, eq, "out_time_us")) {
+            outTimeUs = Math.max(0, parseLong(line, from, to));
+        } else if (isKey(line, eq, "dup_frames")) {
+            dupFrames = parseLong(line, from, to);
+        } else if (isKey(line, eq, "drop_frames")) {
+            dropFrames = parseLong(line, from, to);
+        } else if (isKey(line, eq, "speed")) {
+            speed = parseDouble(line, from, to);
+        } else if (isKey(line, eq, "progress")) {
+            boolean ended = line.regionMatches(from, "end", 0, 3);
+            latest = new StreamMetrics(frame, fps, bitrateKbps, totalSizeBytes, outTimeUs / 1_000_000.0,
+                    dupFrames, dropFrames, speed, ended, Instant.now());
+        } else if (!isKey(line, eq, "out_time") && !isKey(line, eq, "out_time_ms")
+                && !line.startsWith("stream_")) {
+            return false;
+        }
+        return true;
+    }
+
+    public StreamMetrics latest() {
+        return latest;
+    }
+
+    public double outTimeSeconds() {
+        return outTimeUs / 1_000_000.0;
+    }
+
+    public void reset() {
+        frame = 0;
+        fps = 0;
+        bitrateKbps = 0;
+        totalSizeBytes = 0;
+        outTimeUs = 0;
+        dupFrames = 0;
+        dropFrames = 0;
+        speed = 0;
+        latest = null;
+    }
+
+    private static boolean isKey(String line, int eq, String key) {
+        return eq == key.length() && line.regionMatches(0, key, 0, eq);
+    }
+
+    // Leading integer of the value, 0 for "N/A"
+    static long parseLong(String s, int from, int to) {
+        while (from < to && s.charAt(from) == ' ') from++;
+        boolean negative = from < to && s.charAt(from) == '-';
+        if (negative) from++;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') break;
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    // Leading decimal of the value ignoring units such as "kbits/s" or "x", 0 for "N/A"
+    static double parseDouble(String s, int from, int to) {
+        while (from < to && s.charAt(from) == ' ') from++;
+        long intPart = 0;
+        long fraction = 0;
+        long scale = 1;
+        boolean inFraction = false;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == '.' && !inFraction) {
+                inFraction = true;
+            } else if (c >= '0' && c <= '9') {
+                if (inFraction) {
+                    if (scale < 1_000_000_000L) {
+                        fraction = fraction * 10 + (c - '0');
+                        scale *= 10;
+                    }
+                } else {
+                    intPart = intPart * 10 + (c - '0');
+                }
+            } else {
+                break;
+            }
+        }
+        return intPart + (double) fraction / scale;
+    }
+}
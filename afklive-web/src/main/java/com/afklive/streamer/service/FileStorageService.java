@@ -7,9 +7,17 @@ import java.util.Optional;
 
 public interface FileStorageService {
     String uploadFile(InputStream inputStream, String originalFilename, long contentLength);
+    // For streams of unknown length, e.g. transcoder output; memory use stays bounded
+    String uploadStream(InputStream inputStream, String originalFilename);
     InputStream downloadFile(String key);
     void downloadFileToPath(String key, Path destination);
     Resource loadFileAsResource(String key);
     void deleteFile(String key);
+    boolean exists(String key);
     Optional<String> generatePresignedUrl(String key);
+
+    // URL or local path FFmpeg can read the object from in place, empty if it has to be downloaded
+    default Optional<String> directLocation(String key) {
+        return generatePresignedUrl(key);
+    }
 }
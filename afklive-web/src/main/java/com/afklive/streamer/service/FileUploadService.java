@@ -9,15 +9,17 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class FileUploadService {
 
-    private final FileStorageService storageService;
+    private final ContentBlobService contentBlobService;
     private final ScheduledVideoRepository repository;
     private final UserService userService;
+    private final MediaMetadataService mediaMetadataService;
 
     public String handleFileUpload(MultipartFile file, String username) throws IOException {
         String originalName = file.getOriginalFilename();
@@ -41,18 +43,23 @@ public class FileUploadService {
         long size = file.getSize();
         userService.checkStorageQuota(username, size);
 
-        String s3Key = storageService.uploadFile(file.getInputStream(), fileName, size);
+        ContentBlobService.StoredBlob blob;
+        try (InputStream in = file.getInputStream()) {
+            blob = contentBlobService.store(in, fileName, size);
+        }
         userService.updateStorageUsage(username, size);
 
         // Create DB Entry so it can be converted/listed
         ScheduledVideo video = new ScheduledVideo();
         video.setUsername(username);
         video.setTitle(fileName);
-        video.setS3Key(s3Key);
+        video.setS3Key(blob.key());
+        video.setContentHash(blob.hash());
         video.setStatus(ScheduledVideo.VideoStatus.LIBRARY);
         video.setPrivacyStatus(AppConstants.PRIVACY_PRIVATE);
         video.setFileSize(size);
         repository.save(video);
+        mediaMetadataService.extract(video.getId());
 
         return originalName;
     }
@@ -10,6 +10,7 @@ import org.springframework.stereotype.Service;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -21,9 +22,10 @@ import java.util.concurrent.CompletableFuture;
 @Slf4j
 public class ImportService {
 
-    private final FileStorageService storageService;
+    private final ContentBlobService contentBlobService;
     private final ScheduledVideoRepository repository;
     private final UserService userService;
+    private final MediaMetadataService mediaMetadataService;
 
     @Async
     public CompletableFuture<Boolean> downloadFromYouTube(String url, String username) {
@@ -138,18 +140,23 @@ public class ImportService {
             userService.checkStorageQuota(username, size);
 
             // Upload
-            String s3Key = storageService.uploadFile(Files.newInputStream(downloadedFile.toPath()), originalName, size);
+            ContentBlobService.StoredBlob blob;
+            try (InputStream in = Files.newInputStream(downloadedFile.toPath())) {
+                blob = contentBlobService.store(in, originalName, size);
+            }
             userService.updateStorageUsage(username, size);
 
             // Save to DB
             ScheduledVideo video = new ScheduledVideo();
             video.setUsername(username);
             video.setTitle(originalName);
-            video.setS3Key(s3Key);
+            video.setS3Key(blob.key());
+            video.setContentHash(blob.hash());
             video.setStatus(ScheduledVideo.VideoStatus.LIBRARY);
             video.setPrivacyStatus(AppConstants.PRIVACY_PRIVATE);
             video.setFileSize(size);
             repository.save(video);
+            mediaMetadataService.extract(video.getId());
 
             log.info("Successfully imported video from {}: {}", sourceLabel, originalName);
             return CompletableFuture.completedFuture(true);
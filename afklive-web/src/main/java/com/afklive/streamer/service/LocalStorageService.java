@@ -30,15 +30,25 @@ public class LocalStorageService implements FileStorageService {
     @Override
     public String uploadFile(InputStream inputStream, String originalFilename, long contentLength) {
         String key = UUID.randomUUID().toString() + "_" + originalFilename;
+        Path destinationFile = this.rootLocation.resolve(key).normalize().toAbsolutePath();
         try {
-            Path destinationFile = this.rootLocation.resolve(key).normalize().toAbsolutePath();
             Files.copy(inputStream, destinationFile, StandardCopyOption.REPLACE_EXISTING);
             return key;
         } catch (IOException e) {
+            // Do not leave a partial file behind when the stream fails midway
+            try {
+                Files.deleteIfExists(destinationFile);
+            } catch (IOException ignored) {
+            }
             throw new RuntimeException("Failed to store file", e);
         }
     }
 
+    @Override
+    public String uploadStream(InputStream inputStream, String originalFilename) {
+        return uploadFile(inputStream, originalFilename, -1);
+    }
+
     @Override
     public InputStream downloadFile(String key) {
         try {
@@ -84,9 +94,20 @@ public class LocalStorageService implements FileStorageService {
         }
     }
 
+    @Override
+    public boolean exists(String key) {
+        return Files.exists(rootLocation.resolve(key));
+    }
+
     @Override
     public Optional<String> generatePresignedUrl(String key) {
         // Local storage does not support presigned URLs for external access directly
         return Optional.empty();
     }
+
+    @Override
+    public Optional<String> directLocation(String key) {
+        Path file = rootLocation.resolve(key).normalize().toAbsolutePath();
+        return Files.exists(file) ? Optional.of(file.toString()) : Optional.empty();
+    }
 }
@@ -0,0 +1,103 @@
+package com.afklive.streamer.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fixed-capacity, lock-free log buffer. Writers claim a sequence number and overwrite the
+ * oldest slot; readers copy whatever is still in the window without blocking writers.
+ * Lines are redacted and truncated on the way in, so memory per buffer is bounded by
+ * {@code capacity * maxLineLength}.
+ */
+public class LogRingBuffer {
+
+    private static final Pattern RTMP_URL = Pattern.compile("(rtmps?)://\\S+");
+    // Presigned storage URLs carry their credentials in the query string, the path is kept
+    private static final Pattern HTTP_QUERY = Pattern.compile("(https?://[^\\s'\"?]*)\\?[^\\s'\"]*");
+    private static final int DEFAULT_MAX_LINE_LENGTH = 512;
+
+    private record Entry(long seq, String line) {}
+
+    /** Lines after a cursor plus the cursor to pass to the next call. */
+    public record Tail(List<String> lines, long cursor) {}
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final int maxLineLength;
+    private final AtomicLong nextSeq = new AtomicLong();
+
+    public LogRingBuffer(int capacity) {
+        this(capacity, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    public LogRingBuffer(int capacity, int maxLineLength) {
+        // Power of two so the slot index is a mask of the sequence
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.maxLineLength = maxLineLength;
+    }
+
+    public void add(String line) {
+        if (line == null) return;
+        String safe = redact(line);
+        if (safe.length() > maxLineLength) {
+            safe = safe.substring(0, maxLineLength) + "...";
+        }
+        store(claim(), safe);
+    }
+
+    // A writer claims its sequence number, then stores the line; readers may run in between
+    long claim() {
+        return nextSeq.getAndIncrement();
+    }
+
+    void store(long seq, String line) {
+        slots.set((int) (seq & mask), new Entry(seq, line));
+    }
+
+    /** All lines currently held, oldest first. */
+    public List<String> snapshot() {
+        return tail(-1).lines();
+    }
+
+    /**
+     * Lines written after {@code cursor} (-1 for everything held). Lines overwritten before
+     * they could be read are skipped. Reading stops at a line claimed but not stored yet, which
+     * the next call picks up.
+     */
+    public Tail tail(long cursor) {
+        long end = nextSeq.get();
+        long start = Math.max(cursor + 1, end - slots.length());
+        List<String> lines = new ArrayList<>((int) Math.max(0, end - start));
+        for (long seq = start; seq < end; seq++) {
+            Entry entry = slots.get((int) (seq & mask));
+            if (entry == null || entry.seq() < seq) {
+                // The writer has not stored it yet
+                return new Tail(lines, seq - 1);
+            }
+            // Otherwise the slot holds this line, or a newer one that overwrote it
+            if (entry.seq() == seq) {
+                lines.add(entry.line());
+            }
+        }
+        return new Tail(lines, end - 1);
+    }
+
+    static String redact(String line) {
+        // Cheap pre-check: most FFmpeg output never mentions a URL
+        if (line.contains("rtmp")) {
+            Matcher matcher = RTMP_URL.matcher(line);
+            if (matcher.find()) line = matcher.replaceAll("$1://[REDACTED]");
+        }
+        if (line.contains("http")) {
+            Matcher matcher = HTTP_QUERY.matcher(line);
+            if (matcher.find()) line = matcher.replaceAll("$1?[REDACTED]");
+        }
+        return line;
+    }
+}
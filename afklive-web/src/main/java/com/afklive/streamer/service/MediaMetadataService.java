@@ -0,0 +1,223 @@
+package com.afklive.streamer.service;
+
+import com.afklive.streamer.model.ScheduledVideo;
+import com.afklive.streamer.repository.ScheduledVideoRepository;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records codec, resolution, frame rate, duration, bitrate, audio layout and keyframe interval
+ * of library videos on {@link ScheduledVideo}. Stored objects are probed in place (a presigned
+ * URL on S3, ffprobe then range-reads the container headers) instead of being downloaded, and
+ * videos with the same content reuse metadata probed before.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class MediaMetadataService {
+
+    private static final long PROBE_TIMEOUT_SECONDS = 60;
+    // Keyframe spacing is sampled over the start of the video, enough for a few GOPs
+    private static final int KEYFRAME_SAMPLE_SECONDS = 20;
+    // Longest keyframe interval ingest servers accept for a copied stream
+    private static final double MAX_COPY_KEYFRAME_INTERVAL = 4.0;
+    private static final double MAX_COPY_FRAME_RATE = 60.0;
+
+    private final FileStorageService storageService;
+    private final ScheduledVideoRepository repository;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Async
+    public void extract(Long videoId) {
+        repository.findById(videoId).ifPresent(this::ensureMetadata);
+    }
+
+    /**
+     * Probes the video unless it already has metadata, and saves it.
+     *
+     * @return false if the video could not be probed
+     */
+    public boolean ensureMetadata(ScheduledVideo video) {
+        if (video.getVideoCodec() != null) return true;
+        if (video.getS3Key() == null) return false;
+
+        Optional<ScheduledVideo> sameContent = video.getContentHash() != null
+                ? repository.findFirstByContentHashAndVideoCodecIsNotNull(video.getContentHash())
+                : Optional.empty();
+        try {
+            if (sameContent.isPresent()) {
+                copyMetadata(sameContent.get(), video);
+            } else {
+                Optional<String> input = storageService.directLocation(video.getS3Key());
+                if (input.isEmpty()) {
+                    log.warn("No probe input for video {}", video.getId());
+                    return false;
+                }
+                applyProbe(video, objectMapper.readTree(run(FFmpegCommandBuilder.buildMetadataProbeCommand(input.get()))));
+                if (video.getVideoCodec() == null) {
+                    log.warn("No video stream found in video {}", video.getId());
+                    return false;
+                }
+                String packets = run(FFmpegCommandBuilder.buildKeyframeProbeCommand(input.get(), KEYFRAME_SAMPLE_SECONDS));
+                video.setKeyframeInterval(keyframeInterval(packets.lines().toList()));
+            }
+            repository.save(video);
+            log.info("Video {}: {} {}x{} {} fps, {} s", video.getId(), video.getVideoCodec(), video.getWidth(),
+                    video.getHeight(), video.getFrameRate(), video.getDurationSeconds());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            log.error("Failed to probe video {}", video.getId(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Whether the video can be sent to ingest as is: H.264 no taller than {@code maxHeight},
+     * with keyframes close enough together for the ingest server.
+     */
+    public static boolean canStreamCopy(ScheduledVideo video, int maxHeight) {
+        return "h264".equalsIgnoreCase(video.getVideoCodec())
+                && video.getHeight() != null && video.getHeight() <= maxHeight
+                && video.getKeyframeInterval() != null && video.getKeyframeInterval() <= MAX_COPY_KEYFRAME_INTERVAL
+                && (video.getFrameRate() == null || video.getFrameRate() <= MAX_COPY_FRAME_RATE);
+    }
+
+    private static String run(List<String> command) throws IOException, InterruptedException {
+        return run(command, PROBE_TIMEOUT_SECONDS);
+    }
+
+    static String run(List<String> command, long timeoutSeconds) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        // Output is read alongside, so a probe stalled on its input cannot outlast the timeout
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Thread reader = Thread.ofVirtual().start(() -> {
+            try (InputStream in = process.getInputStream()) {
+                in.transferTo(output);
+            } catch (IOException e) {
+                // The process was killed, or its exit code tells why
+            }
+        });
+        try {
+            if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                throw new IOException("ffprobe timed out after " + timeoutSeconds + " s");
+            }
+            reader.join();
+        } finally {
+            if (process.isAlive()) process.destroyForcibly();
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException("ffprobe exited with " + process.exitValue());
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    static void applyProbe(ScheduledVideo video, JsonNode probe) {
+        JsonNode format = probe.path("format");
+        video.setDurationSeconds(number(format.path("duration")));
+        Double bitrate = number(format.path("bit_rate"));
+        video.setBitrate(bitrate != null ? bitrate.longValue() : null);
+
+        for (JsonNode stream : probe.path("streams")) {
+            String type = stream.path("codec_type").asText();
+            if ("video".equals(type) && video.getVideoCodec() == null) {
+                video.setVideoCodec(stream.path("codec_name").asText(null));
+                int width = stream.path("width").asInt();
+                int height = stream.path("height").asInt();
+                // Phone videos are often stored landscape with a rotation, FFmpeg applies it on decode
+                if (Math.abs(rotation(stream)) % 180 == 90) {
+                    int swap = width;
+                    width = height;
+                    height = swap;
+                }
+                video.setWidth(width > 0 ? width : null);
+                video.setHeight(height > 0 ? height : null);
+                video.setFrameRate(frameRate(stream.path("avg_frame_rate").asText()));
+            } else if ("audio".equals(type) && video.getAudioCodec() == null) {
+                video.setAudioCodec(stream.path("codec_name").asText(null));
+                int channels = stream.path("channels").asInt();
+                video.setAudioChannels(channels > 0 ? channels : null);
+                video.setAudioLayout(stream.path("channel_layout").asText(null));
+            }
+        }
+    }
+
+    /**
+     * Average seconds between the keyframes in ffprobe "pts_time,flags" packet lines, null with
+     * fewer than two keyframes.
+     */
+    static Double keyframeInterval(List<String> packetLines) {
+        List<Double> keyframes = new ArrayList<>();
+        for (String line : packetLines) {
+            String[] fields = line.trim().split(",");
+            if (fields.length < 2 || !fields[1].startsWith("K")) continue;
+            try {
+                keyframes.add(Double.parseDouble(fields[0]));
+            } catch (NumberFormatException e) {
+                // pts_time is N/A for some packets
+            }
+        }
+        if (keyframes.size() < 2) return null;
+        keyframes.sort(null);
+        return (keyframes.getLast() - keyframes.getFirst()) / (keyframes.size() - 1);
+    }
+
+    static Double frameRate(String rational) {
+        String[] parts = rational.split("/");
+        try {
+            double rate = parts.length == 2
+                    ? Double.parseDouble(parts[0]) / Double.parseDouble(parts[1])
+                    : Double.parseDouble(rational);
+            return Double.isFinite(rate) && rate > 0 ? Math.round(rate * 100) / 100.0 : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int rotation(JsonNode stream) {
+        for (JsonNode sideData : stream.path("side_data_list")) {
+            if (sideData.has("rotation")) return sideData.path("rotation").asInt();
+        }
+        return stream.path("tags").path("rotate").asInt();
+    }
+
+    // ffprobe reports numbers as strings
+    private static Double number(JsonNode node) {
+        if (node.isMissingNode() || node.isNull()) return null;
+        try {
+            return Double.parseDouble(node.asText());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void copyMetadata(ScheduledVideo from, ScheduledVideo to) {
+        to.setVideoCodec(from.getVideoCodec());
+        to.setWidth(from.getWidth());
+        to.setHeight(from.getHeight());
+        to.setFrameRate(from.getFrameRate());
+        to.setDurationSeconds(from.getDurationSeconds());
+        to.setBitrate(from.getBitrate());
+        to.setAudioCodec(from.getAudioCodec());
+        to.setAudioChannels(from.getAudioChannels());
+        to.setAudioLayout(from.getAudioLayout());
+        to.setKeyframeInterval(from.getKeyframeInterval());
+    }
+}
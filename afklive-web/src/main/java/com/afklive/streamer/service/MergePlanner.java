@@ -0,0 +1,103 @@
+package com.afklive.streamer.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Decides how clips are merged. Clips with identical stream formats are joined by the concat
+ * demuxer with {@code -c copy}; anything else is re-encoded through the concat filter.
+ * <p>
+ * The joined file keeps the parameter sets (SPS/PPS) of its first clip, so clips are only copied
+ * together when those match byte for byte. Re-encoding just the odd clips does not get there: the
+ * parameter sets of a phone, a hardware encoder or another x264 run cannot be reproduced, so the
+ * whole merge is re-encoded as soon as one clip differs.
+ */
+public final class MergePlanner {
+
+    private MergePlanner() {
+    }
+
+    /**
+     * Everything that has to match for clips to be concatenated without re-encoding. Audio fields
+     * are null for clips without audio. {@code level} is the H.264 level times ten, as ffprobe
+     * reports it, and {@code extradataHash} a hash of the video parameter sets.
+     */
+    public record Format(
+            String videoCodec,
+            String profile,
+            int level,
+            int width,
+            int height,
+            String pixFmt,
+            String frameRate,
+            String timeBase,
+            String extradataHash,
+            String audioCodec,
+            Integer sampleRate,
+            Integer channels
+    ) {
+        /**
+         * Parses the output of {@link FFmpegCommandBuilder#buildFormatProbeCommand}, null without a video stream.
+         */
+        public static Format parse(JsonNode probe) {
+            JsonNode video = null;
+            JsonNode audio = null;
+            for (JsonNode stream : probe.path("streams")) {
+                String type = stream.path("codec_type").asText();
+                if ("video".equals(type) && video == null) video = stream;
+                if ("audio".equals(type) && audio == null) audio = stream;
+            }
+            if (video == null) return null;
+            return new Format(
+                    video.path("codec_name").asText(null),
+                    video.path("profile").asText(null),
+                    video.path("level").asInt(),
+                    video.path("width").asInt(),
+                    video.path("height").asInt(),
+                    video.path("pix_fmt").asText(null),
+                    video.path("r_frame_rate").asText(null),
+                    video.path("time_base").asText(null),
+                    video.path("extradata_hash").asText(null),
+                    audio != null ? audio.path("codec_name").asText(null) : null,
+                    audio != null ? audio.path("sample_rate").asInt() : null,
+                    audio != null ? audio.path("channels").asInt() : null);
+        }
+    }
+
+    /**
+     * Whether clips with the given formats, null for clips that could not be probed, can be joined
+     * without re-encoding.
+     */
+    public static boolean copyable(List<Format> formats) {
+        if (formats.isEmpty() || formats.stream().anyMatch(Objects::isNull)) return false;
+        return formats.stream().distinct().count() == 1;
+    }
+
+    /**
+     * The command merging {@code inputs} into {@code output}: a copy through the concat demuxer,
+     * whose list is written to {@code listFile}, when the clips are {@link #copyable}, otherwise
+     * a full re-encode.
+     */
+    public static List<String> command(List<String> inputs, List<Format> formats, Path listFile, String output)
+            throws IOException {
+        if (!copyable(formats)) return FFmpegCommandBuilder.buildMergeCommand(inputs, output);
+        return FFmpegCommandBuilder.buildConcatCopyCommand(writeConcatList(inputs, listFile), output);
+    }
+
+    /**
+     * Writes the input list of the concat demuxer. Inputs are local paths or URLs.
+     */
+    public static Path writeConcatList(List<String> inputs, Path listFile) throws IOException {
+        StringBuilder list = new StringBuilder();
+        for (String input : inputs) {
+            String entry = input.contains("://") ? input : Path.of(input).toAbsolutePath().toString();
+            list.append("file '").append(entry.replace("'", "'\\''")).append("'\n");
+        }
+        return Files.writeString(listFile, list.toString());
+    }
+}
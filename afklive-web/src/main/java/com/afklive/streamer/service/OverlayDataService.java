@@ -0,0 +1,188 @@
+package com.afklive.streamer.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the subscriber count text of stream overlays up to date. A single poller fetches
+ * every watched channel once per interval, up to 50 channels per channels.list call, and
+ * writes the value to each overlay file of that channel. Files are replaced atomically since
+ * FFmpeg re-reads them on every frame, and left alone when their text has not changed.
+ */
+@Service
+@Slf4j
+public class OverlayDataService {
+
+    // channels.list accepts at most 50 ids per call
+    static final int CHANNELS_PER_CALL = 50;
+    // Users of a batch whose credentials are tried before the batch is skipped for this poll
+    static final int CREDENTIAL_ATTEMPTS = 3;
+
+    private final YouTubeService youTubeService;
+    private final long pollSeconds;
+    private final ScheduledExecutorService poller;
+
+    private final Map<Long, Overlay> overlays = new ConcurrentHashMap<>();
+    // username -> YouTube channel id, resolved once per user while they have overlays
+    private final Map<String, String> channelIds = new ConcurrentHashMap<>();
+    // channel id -> last fetched subscriber count
+    private final Map<String, String> subscriberCounts = new ConcurrentHashMap<>();
+    // overlay file -> text last written to it
+    private final Map<Path, String> written = new ConcurrentHashMap<>();
+
+    record Overlay(String username, Path file, String template) {
+    }
+
+    public OverlayDataService(YouTubeService youTubeService,
+                              @Value("${app.stream.overlay.poll-seconds:30}") long pollSeconds) {
+        this(youTubeService, pollSeconds, Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "overlay-poller");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    OverlayDataService(YouTubeService youTubeService, long pollSeconds, ScheduledExecutorService poller) {
+        this.youTubeService = youTubeService;
+        this.pollSeconds = pollSeconds;
+        this.poller = poller;
+    }
+
+    @PostConstruct
+    public void init() {
+        poller.scheduleWithFixedDelay(this::pollSafely, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        poller.shutdownNow();
+    }
+
+    /**
+     * Starts updating the overlay file of a job. Jobs of one launch group may share a file.
+     */
+    public void register(Long jobId, String username, Path file, String template) {
+        overlays.put(jobId, new Overlay(username, file, template));
+        String channelId = channelIds.get(username);
+        String count = channelId != null ? subscriberCounts.get(channelId) : null;
+        if (count != null) {
+            poller.execute(() -> write(file, render(count, template)));
+        } else {
+            // First overlay of this channel, fetch now instead of showing the placeholder for a full interval
+            poller.execute(this::pollSafely);
+        }
+    }
+
+    public void unregister(Long jobId) {
+        Overlay overlay = overlays.remove(jobId);
+        if (overlay == null) return;
+        boolean fileInUse = overlays.values().stream().anyMatch(o -> o.file().equals(overlay.file()));
+        if (!fileInUse) written.remove(overlay.file());
+    }
+
+    private void pollSafely() {
+        try {
+            poll();
+        } catch (Exception e) {
+            log.error("Overlay poll failed", e);
+        }
+    }
+
+    // Fetches each watched channel once and fans the counts out to the overlay files
+    void poll() {
+        List<Overlay> current = List.copyOf(overlays.values());
+        Set<String> usernames = new HashSet<>();
+        for (Overlay overlay : current) usernames.add(overlay.username());
+        channelIds.keySet().retainAll(usernames);
+
+        // Channel id -> a user whose credential can read it
+        Map<String, String> channels = new LinkedHashMap<>();
+        for (String username : usernames) {
+            String channelId = channelIds.computeIfAbsent(username, this::resolveChannelId);
+            if (channelId != null) channels.putIfAbsent(channelId, username);
+        }
+        subscriberCounts.keySet().retainAll(channels.keySet());
+
+        List<String> ids = new ArrayList<>(channels.keySet());
+        for (int from = 0; from < ids.size(); from += CHANNELS_PER_CALL) {
+            List<String> batch = ids.subList(from, Math.min(from + CHANNELS_PER_CALL, ids.size()));
+            subscriberCounts.putAll(fetchSubscriberCounts(batch, channels));
+        }
+
+        // Overlays that ended during the fetch are skipped
+        for (Overlay overlay : overlays.values()) {
+            String channelId = channelIds.get(overlay.username());
+            String count = channelId != null ? subscriberCounts.get(channelId) : null;
+            if (count != null) write(overlay.file(), render(count, overlay.template()));
+        }
+    }
+
+    // Statistics are public, any connected user of the batch can request them. A revoked or
+    // expired credential fails the whole call, so the next user's is tried.
+    private Map<String, String> fetchSubscriberCounts(List<String> batch, Map<String, String> channels) {
+        List<String> users = batch.stream().map(channels::get).distinct().limit(CREDENTIAL_ATTEMPTS).toList();
+        Exception failure = null;
+        for (String username : users) {
+            try {
+                return youTubeService.getSubscriberCounts(username, batch);
+            } catch (Exception e) {
+                log.debug("Fetching subscriber counts as {} failed: {}", username, e.getMessage());
+                failure = e;
+            }
+        }
+        log.warn("Failed to fetch subscriber counts for {} channels with {} credentials", batch.size(), users.size(), failure);
+        return Map.of();
+    }
+
+    private String resolveChannelId(String username) {
+        try {
+            return youTubeService.getChannelId(username);
+        } catch (Exception e) {
+            // Not cached, so the lookup is retried on the next poll
+            log.warn("Failed to resolve YouTube channel of {}", username, e);
+            return null;
+        }
+    }
+
+    static String render(String count, String template) {
+        if ("GOAL".equalsIgnoreCase(template)) {
+            return "Goal: " + count + "/10K";
+        }
+        return "Subscribers: " + count;
+    }
+
+    private void write(Path file, String content) {
+        if (content.equals(written.get(file))) return;
+        try {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(tmp, content);
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            written.put(file, content);
+        } catch (IOException e) {
+            log.error("Failed to update overlay text {}", file, e);
+        }
+    }
+}
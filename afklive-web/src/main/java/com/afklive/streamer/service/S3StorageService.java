@@ -1,45 +1,86 @@
 package com.afklive.streamer.service;
 
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
 
 @Service
 @ConditionalOnProperty(name = "app.storage.type", havingValue = "s3")
+@Slf4j
 public class S3StorageService implements FileStorageService {
 
+    private static final int PART_RETRIES = 3;
+    // S3 rejects smaller multipart parts, except the last
+    private static final long MIN_UPLOAD_PART_SIZE = 5 * 1024L * 1024L;
+
     private final S3Client s3Client;
     private final S3Presigner s3Presigner;
     private final String bucketName;
+    private final long partSize;
+    private final int uploadPartSize;
+    private final int downloadConcurrency;
 
     public S3StorageService(
             @Value("${app.storage.endpoint}") String endpoint,
             @Value("${app.storage.region}") String region,
             @Value("${app.storage.bucket}") String bucket,
             @Value("${app.storage.access-key}") String accessKey,
-            @Value("${app.storage.secret-key}") String secretKey) {
+            @Value("${app.storage.secret-key}") String secretKey,
+            @Value("${app.storage.download.part-size-mb:16}") int partSizeMb,
+            @Value("${app.storage.download.concurrency:8}") int downloadConcurrency) {
 
         this.bucketName = bucket;
+        this.partSize = partSizeMb * 1024L * 1024L;
+        this.uploadPartSize = (int) Math.max(partSize, MIN_UPLOAD_PART_SIZE);
+        this.downloadConcurrency = Math.max(1, downloadConcurrency);
         this.s3Client = S3Client.builder()
                 .endpointOverride(URI.create(endpoint))
                 .region(Region.of(region))
@@ -55,6 +96,16 @@ public class S3StorageService implements FileStorageService {
                 .build();
     }
 
+    // For tests
+    S3StorageService(S3Client s3Client, S3Presigner s3Presigner, String bucket, long partSize, int downloadConcurrency) {
+        this.s3Client = s3Client;
+        this.s3Presigner = s3Presigner;
+        this.bucketName = bucket;
+        this.partSize = partSize;
+        this.uploadPartSize = (int) partSize;
+        this.downloadConcurrency = Math.max(1, downloadConcurrency);
+    }
+
     public String uploadFile(InputStream inputStream, String originalFilename, long contentLength) {
         String key = UUID.randomUUID().toString() + "_" + originalFilename;
 
@@ -67,6 +118,92 @@ public class S3StorageService implements FileStorageService {
         return key;
     }
 
+    /**
+     * Streams of unknown length are sent as a multipart upload. The next part is read while the
+     * previous one uploads, so at most two parts are held in memory and a slow upload stalls the
+     * producer instead of buffering. Streams shorter than one part are stored with a single PUT.
+     */
+    @Override
+    public String uploadStream(InputStream inputStream, String originalFilename) {
+        String key = UUID.randomUUID().toString() + "_" + originalFilename;
+        byte[] part;
+        try {
+            part = inputStream.readNBytes(uploadPartSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read upload of " + key, e);
+        }
+        if (part.length < uploadPartSize) {
+            s3Client.putObject(PutObjectRequest.builder().bucket(bucketName).key(key).build(), RequestBody.fromBytes(part));
+            return key;
+        }
+
+        String uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build()).uploadId();
+        List<CompletedPart> parts = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        try {
+            // Closing the executor waits for the part in flight, so a failed upload is aborted after it
+            try (ExecutorService uploader = Executors.newVirtualThreadPerTaskExecutor()) {
+                Future<CompletedPart> inFlight = null;
+                for (int number = 1; part.length > 0; number++) {
+                    int partNumber = number;
+                    byte[] body = part;
+                    Future<CompletedPart> upload = uploader.submit(() -> uploadPartWithRetry(key, uploadId, partNumber, body));
+                    if (inFlight != null) parts.add(inFlight.get());
+                    inFlight = upload;
+                    part = inputStream.readNBytes(uploadPartSize);
+                }
+                parts.add(inFlight.get());
+            }
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                    .build());
+            log.info("Uploaded {} in {} parts in {} ms", key, parts.size(), System.currentTimeMillis() - start);
+            return key;
+        } catch (Exception e) {
+            abortUpload(key, uploadId);
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            if (cause instanceof IOException io) throw new UncheckedIOException("Failed to upload " + key, io);
+            throw new IllegalStateException("Failed to upload " + key, cause);
+        }
+    }
+
+    private CompletedPart uploadPartWithRetry(String key, String uploadId, int partNumber, byte[] body) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                UploadPartResponse response = s3Client.uploadPart(UploadPartRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .build(), RequestBody.fromBytes(body));
+                return CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build();
+            } catch (Exception e) {
+                if (attempt >= PART_RETRIES) throw e;
+                log.warn("Part {} of {} failed (attempt {}), retrying: {}", partNumber, key, attempt, e.getMessage());
+                Thread.sleep(200L * attempt);
+            }
+        }
+    }
+
+    private void abortUpload(String key, String uploadId) {
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build());
+        } catch (Exception e) {
+            log.warn("Failed to abort upload of {}", key, e);
+        }
+    }
+
     public InputStream downloadFile(String key) {
         GetObjectRequest getOb = GetObjectRequest.builder()
                 .bucket(bucketName)
@@ -76,13 +213,129 @@ public class S3StorageService implements FileStorageService {
         return s3Client.getObject(getOb);
     }
 
+    /**
+     * Small objects are fetched with a single GET. Larger ones are split into byte ranges that
+     * are fetched concurrently and written at their offset into a preallocated file, so the
+     * transfer is not limited by the throughput of one connection.
+     */
     @Override
     public void downloadFileToPath(String key, Path destination) {
-        GetObjectRequest getOb = GetObjectRequest.builder()
+        HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
                 .bucket(bucketName)
                 .key(key)
-                .build();
-        s3Client.getObject(getOb, software.amazon.awssdk.core.sync.ResponseTransformer.toFile(destination));
+                .build());
+        long size = head.contentLength();
+
+        if (size < partSize * 2 || downloadConcurrency == 1) {
+            GetObjectRequest getOb = GetObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .build();
+            s3Client.getObject(getOb, software.amazon.awssdk.core.sync.ResponseTransformer.toFile(destination));
+            return;
+        }
+
+        Path temp = destination.resolveSibling(destination.getFileName() + ".download");
+        long start = System.currentTimeMillis();
+        try {
+            downloadRanges(key, head.eTag(), size, temp);
+            Files.move(temp, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Downloaded {} ({} MB) in {} ms using {} connections", key, size / (1024 * 1024),
+                    System.currentTimeMillis() - start, downloadConcurrency);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to download " + key, e);
+        } finally {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void downloadRanges(String key, String eTag, long size, Path target) throws IOException {
+        int parts = (int) ((size + partSize - 1) / partSize);
+        AtomicInteger nextPart = new AtomicInteger();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ)) {
+            // Preallocate so every worker can write at its own offset
+            channel.write(ByteBuffer.allocate(1), size - 1);
+
+            // Each worker pulls the next part until all are done or one has failed for good
+            List<Thread> workers = new ArrayList<>();
+            for (int w = 0; w < Math.min(downloadConcurrency, parts); w++) {
+                workers.add(Thread.ofVirtual().start(() -> {
+                    int part;
+                    while (failure.get() == null && (part = nextPart.getAndIncrement()) < parts) {
+                        long from = part * partSize;
+                        long to = Math.min(size, from + partSize) - 1;
+                        try {
+                            downloadRangeWithRetry(key, eTag, from, to, channel);
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }));
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (failure.get() != null) {
+                throw new IOException("Ranged download of " + key + " failed", failure.get());
+            }
+            if (channel.size() != size) {
+                throw new IOException("Size mismatch for " + key + ": expected " + size + " got " + channel.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + key, e);
+        }
+    }
+
+    private void downloadRangeWithRetry(String key, String eTag, long from, long to, FileChannel channel) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                downloadRange(key, eTag, from, to, channel);
+                return;
+            } catch (Exception e) {
+                if (attempt >= PART_RETRIES) throw e;
+                log.warn("Range {}-{} of {} failed (attempt {}), retrying: {}", from, to, key, attempt, e.getMessage());
+                Thread.sleep(200L * attempt);
+            }
+        }
+    }
+
+    private void downloadRange(String key, String eTag, long from, long to, FileChannel channel) throws IOException {
+        GetObjectRequest.Builder request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .range("bytes=" + from + "-" + to);
+        if (eTag != null) {
+            // Fail instead of mixing ranges if the object is replaced mid-download
+            request.ifMatch(eTag);
+        }
+
+        long expected = to - from + 1;
+        long position = from;
+        ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+        try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(request.build())) {
+            byte[] array = buffer.array();
+            int read;
+            while ((read = in.read(array, 0, array.length)) != -1) {
+                if (position - from + read > expected) {
+                    // Range ignored by the server, the body is not the requested slice
+                    throw new IOException("Range " + from + "-" + to + " returned more than " + expected + " bytes");
+                }
+                buffer.clear().limit(read);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        }
+        if (position - from != expected) {
+            throw new IOException("Short read for range " + from + "-" + to + ": got " + (position - from) + " bytes");
+        }
     }
 
     @Override
@@ -99,6 +352,19 @@ public class S3StorageService implements FileStorageService {
         s3Client.deleteObject(deleteOb);
     }
 
+    @Override
+    public boolean exists(String key) {
+        try {
+            s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .build());
+            return true;
+        } catch (NoSuchKeyException e) {
+            return false;
+        }
+    }
+
     @Override
     public Optional<String> generatePresignedUrl(String key) {
         try {
@@ -0,0 +1,159 @@
+package com.afklive.streamer.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Admits streams by the CPU they are expected to use instead of by count. Each stream is costed
+ * in cores from its mode, resolution and filters; a start is accepted while the committed cost
+ * fits the node's capacity and the measured CPU load leaves headroom, waits in a bounded queue
+ * for a while otherwise, and is rejected when no capacity frees up in time.
+ */
+@Service
+@Slf4j
+public class StreamAdmissionService {
+
+    // Approximate cores used by one libx264 ultrafast encode at 30 fps
+    private static final double COPY_COST = 0.1;
+    private static final double ENCODE_720_COST = 1.0;
+    private static final double ENCODE_1080_COST = 2.0;
+    private static final double ENCODE_1440_COST = 3.5;
+    private static final double ENCODE_2160_COST = 6.0;
+    private static final double WATERMARK_COST = 0.2;
+    private static final double MUSIC_MIX_COST = 0.1;
+    private static final double TEXT_OVERLAY_COST = 0.1;
+
+    private final double capacityCores;
+    private final double maxCpuLoad;
+    private final long queueTimeoutMs;
+    private final int maxQueued;
+    private final DoubleSupplier cpuLoad;
+
+    private double committedCores;
+    private int queued;
+
+    public StreamAdmissionService(
+            @Value("${app.stream.admission.capacity-cores:0}") double capacityCores,
+            @Value("${app.stream.admission.max-cpu-load:0.9}") double maxCpuLoad,
+            @Value("${app.stream.admission.queue-timeout-seconds:30}") long queueTimeoutSeconds,
+            @Value("${app.stream.admission.max-queued:20}") int maxQueued) {
+        this(capacityCores > 0 ? capacityCores : defaultCapacity(), maxCpuLoad,
+                TimeUnit.SECONDS.toMillis(queueTimeoutSeconds), maxQueued, StreamAdmissionService::systemCpuLoad);
+    }
+
+    StreamAdmissionService(double capacityCores, double maxCpuLoad, long queueTimeoutMs, int maxQueued, DoubleSupplier cpuLoad) {
+        this.capacityCores = capacityCores;
+        this.maxCpuLoad = maxCpuLoad;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.maxQueued = maxQueued;
+        this.cpuLoad = cpuLoad;
+    }
+
+    /**
+     * Estimated cores for one encoder process. Fan-out destinations share the encode, so the
+     * number of destinations does not change the cost.
+     */
+    public static double estimateCost(StreamLaunchSpec spec) {
+        if (spec.optimized()) {
+            return COPY_COST;
+        }
+        int height = spec.maxHeight() > 0 ? spec.maxHeight() : 1080;
+        double cost;
+        if (height >= 2160) cost = ENCODE_2160_COST;
+        else if (height >= 1440) cost = ENCODE_1440_COST;
+        else if (height >= 1080) cost = ENCODE_1080_COST;
+        else cost = ENCODE_720_COST;
+
+        if (spec.watermarkPath() != null) cost += WATERMARK_COST;
+        if (spec.musicPath() != null) cost += MUSIC_MIX_COST;
+        if (spec.overlayTextPath() != null) cost += TEXT_OVERLAY_COST;
+        return cost;
+    }
+
+    /**
+     * Reserves {@code cost} cores, waiting up to the queue timeout for capacity.
+     *
+     * @throws IllegalStateException if the node has no room for the stream
+     */
+    public synchronized void acquire(double cost) {
+        if (fits(cost)) {
+            committedCores += cost;
+            return;
+        }
+        if (queued >= maxQueued) {
+            throw new IllegalStateException("Streaming servers are at capacity. Please try again in a few minutes.");
+        }
+
+        queued++;
+        try {
+            long deadline = System.currentTimeMillis() + queueTimeoutMs;
+            long remaining;
+            while (!fits(cost) && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                // Re-check at least once a second, CPU load changes without a release()
+                wait(Math.min(remaining, 1000));
+            }
+            if (!fits(cost)) {
+                log.warn("Rejected stream costing {} cores: {} of {} committed", cost, committedCores, capacityCores);
+                throw new IllegalStateException("Streaming servers are at capacity. Please try again in a few minutes.");
+            }
+            committedCores += cost;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for streaming capacity");
+        } finally {
+            queued--;
+        }
+    }
+
+    /**
+     * Reserves {@code cost} cores only if they are available right now.
+     */
+    public synchronized boolean tryAcquire(double cost) {
+        if (!fits(cost)) return false;
+        committedCores += cost;
+        return true;
+    }
+
+    public synchronized void release(double cost) {
+        committedCores = Math.max(0, committedCores - cost);
+        notifyAll();
+    }
+
+    public synchronized Map<String, Object> getSnapshot() {
+        return Map.of(
+                "capacityCores", capacityCores,
+                "committedCores", Math.round(committedCores * 100) / 100.0,
+                "queued", queued,
+                "cpuLoad", Math.round(Math.max(0, cpuLoad.getAsDouble()) * 100) / 100.0
+        );
+    }
+
+    // An empty node always admits one stream, so a single expensive stream is never starved
+    private boolean fits(double cost) {
+        if (committedCores == 0) return true;
+        if (committedCores + cost > capacityCores) return false;
+        double load = cpuLoad.getAsDouble();
+        return load < 0 || load < maxCpuLoad;
+    }
+
+    // Leave one core for the JVM, the web tier and FFmpeg demuxing
+    private static double defaultCapacity() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    // Recent whole-system CPU usage in [0, 1], negative if unavailable
+    static double systemCpuLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean sunOs) {
+            return sunOs.getCpuLoad();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,289 @@
+package com.afklive.streamer.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Node-level cache of stream inputs (videos, audio) downloaded from {@link FileStorageService}.
+ * Files are stored under a hash of the storage key, concurrent requests for the same key share
+ * one download, and the least recently used files are evicted once the byte budget is exceeded.
+ * Files pinned by live streams are never evicted.
+ */
+@Service
+@Slf4j
+public class StreamAssetCache {
+
+    private static final String PART_SUFFIX = ".part";
+
+    private static final class CachedAsset {
+        final Path path;
+        final long size;
+        volatile long lastAccess;
+        int pins;
+
+        CachedAsset(Path path, long size, long lastAccess) {
+            this.path = path;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final FileStorageService storageService;
+    private final Path cacheDir;
+    private final long maxBytes;
+
+    // Cache file name -> asset
+    private final Map<String, CachedAsset> assets = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<CachedAsset>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    // Pins taken on keys that are still being prefetched, applied once the file lands
+    private final Map<String, Integer> pendingPins = new ConcurrentHashMap<>();
+
+    public StreamAssetCache(
+            FileStorageService storageService,
+            @Value("${app.stream.cache.dir:data/stream-cache}") String cacheDir,
+            @Value("${app.stream.cache.max-size-mb:20480}") long maxSizeMb) throws IOException {
+        this.storageService = storageService;
+        this.cacheDir = Paths.get(cacheDir).toAbsolutePath();
+        this.maxBytes = maxSizeMb * 1024 * 1024;
+        Files.createDirectories(this.cacheDir);
+    }
+
+    /**
+     * Picks up files left by a previous run so popular videos stay warm across restarts.
+     */
+    @PostConstruct
+    public void rebuildIndex() throws IOException {
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            files.forEach(file -> {
+                try {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(PART_SUFFIX) || name.endsWith(".download")) {
+                        // Interrupted download (.download is the storage service's ranged temp file)
+                        Files.deleteIfExists(file);
+                        return;
+                    }
+                    long size = Files.size(file);
+                    long lastAccess = Files.getLastModifiedTime(file).toMillis();
+                    assets.put(name, new CachedAsset(file, size, lastAccess));
+                    totalBytes.addAndGet(size);
+                } catch (IOException e) {
+                    log.warn("Skipping unreadable cache file {}", file, e);
+                }
+            });
+        }
+        log.info("Stream asset cache: {} files, {} MB in {}", assets.size(), totalBytes.get() / (1024 * 1024), cacheDir);
+        evictIfNeeded();
+    }
+
+    /**
+     * Returns a local copy of the object, downloading it if needed, and pins it.
+     * Every call must be balanced by {@link #release(String)}.
+     */
+    public Path acquire(String key) throws IOException {
+        String name = fileName(key);
+        while (true) {
+            CachedAsset asset = assets.get(name);
+            if (asset != null && pinIfPresent(name, asset)) {
+                return asset.path;
+            }
+
+            CompletableFuture<CachedAsset> download = new CompletableFuture<>();
+            CompletableFuture<CachedAsset> existing = inFlight.putIfAbsent(name, download);
+            if (existing != null) {
+                // Someone else is fetching this key: wait for it, then pin
+                try {
+                    existing.join();
+                } catch (CompletionException e) {
+                    throw new IOException("Download of " + key + " failed", e.getCause());
+                }
+                continue;
+            }
+
+            try {
+                CachedAsset fetched = download(key, name);
+                synchronized (this) {
+                    Integer pending = pendingPins.remove(name);
+                    fetched.pins += 1 + (pending != null ? pending : 0);
+                    assets.put(name, fetched);
+                }
+                totalBytes.addAndGet(fetched.size);
+                download.complete(fetched);
+                evictIfNeeded();
+                return fetched.path;
+            } catch (RuntimeException | IOException e) {
+                download.completeExceptionally(e);
+                throw e instanceof IOException io ? io : new IOException("Download of " + key + " failed", e);
+            } finally {
+                inFlight.remove(name, download);
+            }
+        }
+    }
+
+    /**
+     * Returns the local copy and pins it if the object is already cached, without downloading.
+     */
+    public Optional<Path> acquireIfCached(String key) {
+        String name = fileName(key);
+        CachedAsset asset = assets.get(name);
+        return (asset != null && pinIfPresent(name, asset)) ? Optional.of(asset.path) : Optional.empty();
+    }
+
+    /**
+     * Fills the cache in the background. The returned future completes with the local path.
+     */
+    public CompletableFuture<Path> prefetch(String key) {
+        CompletableFuture<Path> result = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            try {
+                Path path = acquire(key);
+                release(key);
+                result.complete(path);
+            } catch (Exception e) {
+                log.error("Prefetch of {} failed", key, e);
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Adds a file produced on this node (e.g. a pre-rendered stream) under {@code key}. The file
+     * is moved into the cache and counts against the same budget as downloaded objects.
+     */
+    public Path add(String key, Path file) throws IOException {
+        String name = fileName(key);
+        Path target = cacheDir.resolve(name);
+        Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        CachedAsset added = new CachedAsset(target, Files.size(target), System.currentTimeMillis());
+        CachedAsset replaced;
+        synchronized (this) {
+            Integer pending = pendingPins.remove(name);
+            added.pins = pending != null ? pending : 0;
+            replaced = assets.put(name, added);
+        }
+        totalBytes.addAndGet(added.size - (replaced != null ? replaced.size : 0));
+        evictIfNeeded();
+        return target;
+    }
+
+    /**
+     * Where the object is (or will be) stored locally.
+     */
+    public Path pathFor(String key) {
+        return cacheDir.resolve(fileName(key));
+    }
+
+    /**
+     * Adds a pin, e.g. one per job sharing an asset. Pins on a key that is still being
+     * prefetched are held until it is cached.
+     */
+    public synchronized void pin(String key) {
+        String name = fileName(key);
+        CachedAsset asset = assets.get(name);
+        if (asset != null) {
+            asset.pins++;
+        } else {
+            pendingPins.merge(name, 1, Integer::sum);
+        }
+    }
+
+    public synchronized void release(String key) {
+        String name = fileName(key);
+        CachedAsset asset = assets.get(name);
+        if (asset != null) {
+            if (asset.pins > 0) asset.pins--;
+        } else {
+            pendingPins.computeIfPresent(name, (k, pins) -> pins > 1 ? pins - 1 : null);
+        }
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    private synchronized boolean pinIfPresent(String name, CachedAsset asset) {
+        if (assets.get(name) != asset) return false;
+        if (!Files.exists(asset.path)) {
+            // Deleted behind our back
+            assets.remove(name);
+            totalBytes.addAndGet(-asset.size);
+            return false;
+        }
+        asset.pins++;
+        asset.lastAccess = System.currentTimeMillis();
+        return true;
+    }
+
+    private CachedAsset download(String key, String name) throws IOException {
+        Path target = cacheDir.resolve(name);
+        Path part = cacheDir.resolve(name + PART_SUFFIX);
+        long start = System.currentTimeMillis();
+        try {
+            storageService.downloadFileToPath(key, part);
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+        long size = Files.size(target);
+        log.info("Cached {} ({} MB) in {} ms", key, size / (1024 * 1024), System.currentTimeMillis() - start);
+        return new CachedAsset(target, size, System.currentTimeMillis());
+    }
+
+    // Least recently used, unpinned files go first
+    private synchronized void evictIfNeeded() {
+        while (totalBytes.get() > maxBytes) {
+            Map.Entry<String, CachedAsset> victim = null;
+            for (Map.Entry<String, CachedAsset> entry : assets.entrySet()) {
+                CachedAsset asset = entry.getValue();
+                if (asset.pins == 0 && (victim == null || asset.lastAccess < victim.getValue().lastAccess)) {
+                    victim = entry;
+                }
+            }
+            if (victim == null) {
+                log.warn("Stream asset cache over budget ({} MB) but every file is in use", totalBytes.get() / (1024 * 1024));
+                return;
+            }
+            assets.remove(victim.getKey());
+            totalBytes.addAndGet(-victim.getValue().size);
+            try {
+                Files.deleteIfExists(victim.getValue().path);
+                log.info("Evicted {} from stream asset cache", victim.getKey());
+            } catch (IOException e) {
+                log.warn("Failed to delete evicted cache file {}", victim.getValue().path, e);
+            }
+        }
+    }
+
+    // Storage keys contain user-supplied file names, so the cache file is named by their hash
+    static String fileName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String hash = HexFormat.of().formatHex(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+            int dot = key.lastIndexOf('.');
+            String ext = (dot >= 0 && key.length() - dot <= 6) ? key.substring(dot).toLowerCase() : "";
+            return hash + ext.replaceAll("[^a-z0-9.]", "");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.afklive.streamer.service;
+
+import com.afklive.streamer.dto.BillableJob;
+import com.afklive.streamer.model.PlanType;
+import com.afklive.streamer.repository.StreamJobRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Periodic Pay As You Go billing for live streams. One query loads the billable jobs with
+ * their users' balances, increments are computed in memory and written back as two batched
+ * statements. Each job update only applies if the job was not billed in the meantime, so a
+ * tick racing with the end of a stream never charges the same interval twice.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class StreamBillingService {
+
+    // Pay As You Go price per streaming hour
+    public static final double HOURLY_RATE = 1.25;
+
+    private static final String CHARGE_JOB_SQL =
+            "UPDATE stream_job SET accumulated_cost = accumulated_cost + :amount, last_billing_time = :now "
+            + "WHERE id = :id AND is_live = true AND COALESCE(last_billing_time, start_time) = :billedUntil";
+    private static final String SETTLE_JOB_SQL =
+            "UPDATE stream_job SET accumulated_cost = accumulated_cost + :amount, last_billing_time = :billedUntil WHERE id = :id";
+    private static final String CHARGE_USER_SQL =
+            "UPDATE users SET unpaid_balance = unpaid_balance + :amount WHERE username = :username";
+
+    private final StreamJobRepository streamJobRepo;
+    private final NamedParameterJdbcTemplate jdbc;
+
+    /**
+     * Outcome of a billing tick: how many jobs were charged and which jobs belong to users
+     * who are now over their credit limit.
+     */
+    public record TickResult(int chargedJobs, Set<Long> overCreditLimit) {
+    }
+
+    /** A final charge for a job that has ended, billing it up to {@code billedUntil}. */
+    public record Charge(Long jobId, String username, double amount, ZonedDateTime billedUntil) {
+    }
+
+    /**
+     * Charge for streaming between two instants, rounded to 1/10000.
+     */
+    public static double usageCost(ZonedDateTime from, ZonedDateTime to) {
+        if (from == null || to == null) return 0;
+        long durationSeconds = Duration.between(from, to).getSeconds();
+        if (durationSeconds <= 0) return 0;
+        double hours = durationSeconds / 3600.0;
+        return Math.round(hours * HOURLY_RATE * 10000.0) / 10000.0;
+    }
+
+    /**
+     * Bills the given live jobs up to {@code now}. Jobs of users on a paid plan are ignored.
+     */
+    @Transactional
+    public TickResult bill(Collection<Long> jobIds, ZonedDateTime now) {
+        if (jobIds.isEmpty()) return new TickResult(0, Set.of());
+
+        List<BillableJob> jobs = streamJobRepo.findBillableJobs(jobIds, PlanType.FREE);
+        List<BillableJob> charged = new ArrayList<>();
+        List<SqlParameterSource> jobUpdates = new ArrayList<>();
+        List<Double> amounts = new ArrayList<>();
+        for (BillableJob job : jobs) {
+            double amount = usageCost(job.billedUntil(), now);
+            if (amount <= 0) continue;
+            charged.add(job);
+            amounts.add(amount);
+            jobUpdates.add(new MapSqlParameterSource()
+                    .addValue("id", job.jobId())
+                    .addValue("amount", amount)
+                    .addValue("now", now.toOffsetDateTime())
+                    .addValue("billedUntil", job.billedUntil().toOffsetDateTime()));
+        }
+
+        Map<String, Double> charges = new HashMap<>();
+        int chargedJobs = 0;
+        if (!jobUpdates.isEmpty()) {
+            int[] counts = jdbc.batchUpdate(CHARGE_JOB_SQL, jobUpdates.toArray(SqlParameterSource[]::new));
+            for (int i = 0; i < counts.length; i++) {
+                // Zero rows: the job ended or was billed since it was loaded, its charge is already accounted for
+                if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                    charges.merge(charged.get(i).username(), amounts.get(i), Double::sum);
+                    chargedJobs++;
+                }
+            }
+        }
+
+        if (!charges.isEmpty()) {
+            List<SqlParameterSource> userUpdates = new ArrayList<>();
+            charges.forEach((username, amount) -> userUpdates.add(new MapSqlParameterSource()
+                    .addValue("username", username)
+                    .addValue("amount", amount)));
+            jdbc.batchUpdate(CHARGE_USER_SQL, userUpdates.toArray(SqlParameterSource[]::new));
+        }
+
+        Set<Long> overLimit = new HashSet<>();
+        for (BillableJob job : jobs) {
+            double balance = job.unpaidBalance() + charges.getOrDefault(job.username(), 0.0);
+            if (balance >= job.creditLimit()) overLimit.add(job.jobId());
+        }
+        log.debug("Billing tick: {} of {} live jobs charged, {} over credit limit", chargedJobs, jobIds.size(), overLimit.size());
+        return new TickResult(chargedJobs, overLimit);
+    }
+
+    /**
+     * Applies final charges of ended jobs as batched statements, one balance update per user.
+     */
+    @Transactional
+    public void recordCharges(List<Charge> charges) {
+        if (charges.isEmpty()) return;
+        List<SqlParameterSource> jobUpdates = new ArrayList<>();
+        Map<String, Double> byUser = new HashMap<>();
+        for (Charge charge : charges) {
+            jobUpdates.add(new MapSqlParameterSource()
+                    .addValue("id", charge.jobId())
+                    .addValue("amount", charge.amount())
+                    .addValue("billedUntil", charge.billedUntil().toOffsetDateTime()));
+            byUser.merge(charge.username(), charge.amount(), Double::sum);
+        }
+        jdbc.batchUpdate(SETTLE_JOB_SQL, jobUpdates.toArray(SqlParameterSource[]::new));
+
+        List<SqlParameterSource> userUpdates = new ArrayList<>();
+        byUser.forEach((username, amount) -> userUpdates.add(new MapSqlParameterSource()
+                .addValue("username", username)
+                .addValue("amount", amount)));
+        jdbc.batchUpdate(CHARGE_USER_SQL, userUpdates.toArray(SqlParameterSource[]::new));
+    }
+}
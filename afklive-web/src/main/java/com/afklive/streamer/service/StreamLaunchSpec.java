@@ -0,0 +1,54 @@
+package com.afklive.streamer.service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Everything needed to (re)build the FFmpeg command of a running stream, so the
+ * encoder can be relaunched for a different set of destinations.
+ * <p>
+ * {@code videoUrl} is set for a progressive start: FFmpeg reads the video over HTTP while
+ * the cache is still filling {@code videoPath}.
+ */
+public record StreamLaunchSpec(
+        Path videoPath,
+        String videoUrl,
+        Path musicPath,
+        String musicVolume,
+        int loopCount,
+        Path watermarkPath,
+        boolean muteVideoAudio,
+        String streamMode,
+        int maxHeight,
+        boolean optimized,
+        Path overlayTextPath,
+        double startOffsetSeconds
+) {
+    public List<String> buildCommand(List<String> streamKeys) {
+        String videoInput = videoUrl != null ? videoUrl : videoPath.toString();
+        return FFmpegCommandBuilder.buildStreamCommand(videoInput, streamKeys, musicPath, musicVolume, loopCount,
+                watermarkPath, muteVideoAudio, streamMode, maxHeight, optimized, overlayTextPath, startOffsetSeconds);
+    }
+
+    /**
+     * Same stream, started at the given position of the video with the given number of remaining loops.
+     */
+    public StreamLaunchSpec resumeAt(double offsetSeconds, int remainingLoops) {
+        return new StreamLaunchSpec(videoPath, videoUrl, musicPath, musicVolume, remainingLoops, watermarkPath,
+                muteVideoAudio, streamMode, maxHeight, optimized, overlayTextPath, offsetSeconds);
+    }
+
+    /**
+     * Switches a progressive stream to the local copy once it has been fully cached.
+     */
+    public StreamLaunchSpec preferLocalInput() {
+        if (videoUrl == null || !Files.exists(videoPath)) return this;
+        return new StreamLaunchSpec(videoPath, null, musicPath, musicVolume, loopCount, watermarkPath,
+                muteVideoAudio, streamMode, maxHeight, optimized, overlayTextPath, startOffsetSeconds);
+    }
+
+    public boolean hasInput() {
+        return videoUrl != null || Files.exists(videoPath);
+    }
+}
@@ -0,0 +1,181 @@
+package com.afklive.streamer.service;
+
+import com.afklive.streamer.model.StreamJob;
+import com.afklive.streamer.repository.StreamJobRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Database leases that say which node runs a stream. The owning node renews the lease of its
+ * live jobs on every heartbeat; once a lease expires (node crashed or handed its streams over
+ * on shutdown) any node may claim the job's launch group with a conditional update and
+ * relaunch it.
+ */
+@Service
+@Slf4j
+public class StreamLeaseService {
+
+    private static final ZoneId UTC = ZoneId.of("UTC");
+
+    private final StreamJobRepository streamJobRepo;
+    private final String nodeId;
+    // Prefix shared by generated ids of earlier runs on this host, null if the id is configured
+    private final String hostPrefix;
+    private final Duration leaseDuration;
+    private final Duration heartbeatInterval;
+    private final Duration orphanTimeout;
+    private final boolean handoverOnShutdown;
+
+    public StreamLeaseService(
+            StreamJobRepository streamJobRepo,
+            @Value("${app.node.id:}") String nodeId,
+            @Value("${app.stream.lease.duration-seconds:30}") long leaseSeconds,
+            @Value("${app.stream.lease.heartbeat-seconds:10}") long heartbeatSeconds,
+            @Value("${app.stream.lease.orphan-timeout-minutes:10}") long orphanTimeoutMinutes,
+            @Value("${app.stream.lease.handover-on-shutdown:true}") boolean handoverOnShutdown) {
+        if (heartbeatSeconds * 2 > leaseSeconds) {
+            throw new IllegalArgumentException("Stream lease must last at least two heartbeats");
+        }
+        this.streamJobRepo = streamJobRepo;
+        // Generated ids get a random suffix so a restarted node does not pick up leases it no longer runs
+        boolean generated = nodeId == null || nodeId.isBlank();
+        this.hostPrefix = generated ? hostName() + "-" : null;
+        this.nodeId = generated ? hostPrefix + UUID.randomUUID().toString().substring(0, 8) : nodeId;
+        this.leaseDuration = Duration.ofSeconds(leaseSeconds);
+        this.heartbeatInterval = Duration.ofSeconds(heartbeatSeconds);
+        this.orphanTimeout = Duration.ofMinutes(orphanTimeoutMinutes);
+        this.handoverOnShutdown = handoverOnShutdown;
+        log.info("Stream node id: {}", this.nodeId);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public Duration getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public boolean isHandoverOnShutdown() {
+        return handoverOnShutdown;
+    }
+
+    /**
+     * Marks a new job as owned by this node.
+     */
+    public void assign(StreamJob job, String launchGroup) {
+        job.setOwnerNode(nodeId);
+        job.setLaunchGroup(launchGroup);
+        job.setLeaseExpiresAt(now().plus(leaseDuration));
+    }
+
+    public boolean isLocal(StreamJob job) {
+        // Jobs from before leases existed have no owner and run wherever they were started
+        return job.getOwnerNode() == null || nodeId.equals(job.getOwnerNode());
+    }
+
+    /**
+     * Whether the job was started by this host, in this run or an earlier one, so its PID
+     * refers to a process on this machine.
+     */
+    public boolean isThisHost(StreamJob job) {
+        String owner = job.getOwnerNode();
+        return owner == null || owner.equals(nodeId) || (hostPrefix != null && owner.startsWith(hostPrefix));
+    }
+
+    /**
+     * Takes over jobs of an earlier run of this node whose encoders are still running.
+     */
+    public int takeOver(List<Long> jobIds) {
+        if (jobIds.isEmpty()) return 0;
+        return streamJobRepo.assignLeases(jobIds, nodeId, now().plus(leaseDuration));
+    }
+
+    // Last time the owner renewed the lease, i.e. the job was known to be running
+    public ZonedDateTime lastHeartbeat(StreamJob job) {
+        return job.getLeaseExpiresAt() != null ? job.getLeaseExpiresAt().minus(leaseDuration) : null;
+    }
+
+    public int renew() {
+        return streamJobRepo.renewLeases(nodeId, now().plus(leaseDuration));
+    }
+
+    /**
+     * Live jobs this node still owns according to the database. A local job missing from
+     * this list has been adopted elsewhere and must not keep streaming here.
+     */
+    public List<StreamJob> ownedJobs() {
+        return streamJobRepo.findAllByOwnerNodeAndIsLiveTrue(nodeId);
+    }
+
+    public List<StreamJob> pendingStopRequests() {
+        return streamJobRepo.findAllByOwnerNodeAndIsLiveTrueAndStopRequestedTrue(nodeId);
+    }
+
+    /**
+     * Asks the owning node to stop a job; it acts on the request at its next heartbeat.
+     */
+    public boolean requestRemoteStop(Long jobId) {
+        return streamJobRepo.requestStop(jobId) > 0;
+    }
+
+    public List<String> expiredLaunchGroups() {
+        return streamJobRepo.findExpiredLaunchGroups(now());
+    }
+
+    /**
+     * Claims an expired launch group for this node. Only one node can win the claim.
+     */
+    public boolean claim(String launchGroup) {
+        ZonedDateTime now = now();
+        return streamJobRepo.claimLaunchGroup(launchGroup, nodeId, now.plus(leaseDuration), now) > 0;
+    }
+
+    /**
+     * Renews a claimed group, unless its lease lapsed in the meantime and another node may
+     * have claimed it.
+     */
+    public boolean renewClaim(String launchGroup) {
+        ZonedDateTime now = now();
+        return streamJobRepo.renewLaunchGroup(launchGroup, nodeId, now.plus(leaseDuration), now) > 0;
+    }
+
+    /**
+     * Gives up a claimed group immediately, e.g. when this node has no capacity for it.
+     */
+    public void release(String launchGroup) {
+        streamJobRepo.releaseLaunchGroup(launchGroup, nodeId, now());
+    }
+
+    /**
+     * Expires all leases of this node so other nodes adopt its streams without waiting.
+     */
+    public int releaseAll() {
+        return streamJobRepo.releaseLeases(nodeId, now());
+    }
+
+    // A lease that expired this long ago belongs to a stream nobody could adopt
+    public boolean isOrphaned(StreamJob job) {
+        return job.getLeaseExpiresAt() != null && job.getLeaseExpiresAt().plus(orphanTimeout).isBefore(now());
+    }
+
+    private static ZonedDateTime now() {
+        return ZonedDateTime.now(UTC);
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "node";
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.afklive.streamer.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Deque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether and when a stream whose FFmpeg process died unexpectedly is relaunched.
+ * Delays grow exponentially with equal jitter so a flapping ingest does not get hammered,
+ * and each stream has a restart budget per time window.
+ */
+@Component
+public class StreamRestartPolicy {
+
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final int maxRestarts;
+    private final Duration budgetWindow;
+    private final Duration stableAfter;
+
+    public StreamRestartPolicy(
+            @Value("${app.stream.restart.initial-delay-ms:500}") long initialDelayMs,
+            @Value("${app.stream.restart.max-delay-ms:30000}") long maxDelayMs,
+            @Value("${app.stream.restart.max-restarts:10}") int maxRestarts,
+            @Value("${app.stream.restart.budget-window-minutes:60}") long budgetWindowMinutes,
+            @Value("${app.stream.restart.stable-after-seconds:120}") long stableAfterSeconds) {
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.maxRestarts = maxRestarts;
+        this.budgetWindow = Duration.ofMinutes(budgetWindowMinutes);
+        this.stableAfter = Duration.ofSeconds(stableAfterSeconds);
+    }
+
+    /**
+     * Delay before restart attempt {@code attempt} (1-based): half of the capped exponential
+     * delay is fixed, the other half random.
+     */
+    public long backoffMillis(int attempt) {
+        int shift = Math.min(Math.max(attempt - 1, 0), 20);
+        long capped = Math.min(maxDelayMs, initialDelayMs << shift);
+        long half = capped / 2;
+        return half + ThreadLocalRandom.current().nextLong(capped - half + 1);
+    }
+
+    /**
+     * Records a restart in {@code history} if the budget for the current window allows it.
+     */
+    public boolean tryConsumeRestart(Deque<Instant> history, Instant now) {
+        Instant windowStart = now.minus(budgetWindow);
+        while (!history.isEmpty() && history.peekFirst().isBefore(windowStart)) {
+            history.pollFirst();
+        }
+        if (history.size() >= maxRestarts) {
+            return false;
+        }
+        history.addLast(now);
+        return true;
+    }
+
+    /**
+     * A process that stayed up this long before failing resets the backoff.
+     */
+    public Duration getStableAfter() {
+        return stableAfter;
+    }
+}
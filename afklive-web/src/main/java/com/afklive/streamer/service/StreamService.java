@@ -1,6 +1,7 @@
 package com.afklive.streamer.service;
 
 import com.afklive.streamer.dto.ApiResponse;
+import com.afklive.streamer.dto.StreamMetrics;
 import com.afklive.streamer.dto.StreamResponse;
 import com.afklive.streamer.model.ScheduledVideo;
 import com.afklive.streamer.model.StreamJob;
@@ -9,8 +10,10 @@ import com.afklive.streamer.repository.StreamJobRepository;
 import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -18,8 +21,9 @@ import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
@@ -33,16 +37,43 @@ public class StreamService {
     @Autowired
     private AppConfigService appConfigService;
 
-    private final List<String> logBuffer =
-            Collections.synchronizedList(new ArrayList<>());
-
-    // Store active streams: Job ID -> Process
+    // Node-level messages not tied to a stream
+    private final LogRingBuffer systemLogs = new LogRingBuffer(64);
+    // Job ID -> log of the encoder feeding it, kept for a while after the job ends
+    private final ConcurrentHashMap<Long, LogRingBuffer> jobLogs = new ConcurrentHashMap<>();
+    private static final long JOB_LOG_RETENTION_MINUTES = 15;
+    // Job ID -> storage keys of the cached assets the job keeps pinned
+    private final ConcurrentHashMap<Long, List<String>> jobAssets = new ConcurrentHashMap<>();
+    // Job ID -> share of its encoder's admission cost, in cores
+    private final ConcurrentHashMap<Long, Double> jobCosts = new ConcurrentHashMap<>();
+
+    // Store active streams: Job ID -> Process (destinations of a fan-out share one process)
     private final ConcurrentHashMap<Long, Process> activeStreams = new ConcurrentHashMap<>();
+    // Job ID -> supervisor of the launch group the job belongs to
+    private final ConcurrentHashMap<Long, SupervisedStream> supervisedStreams = new ConcurrentHashMap<>();
+    // Job ID -> encoder left running by an earlier run of this node (no output pipe, exit is watched)
+    private final ConcurrentHashMap<Long, ProcessHandle> survivingProcesses = new ConcurrentHashMap<>();
+    // Lease heartbeat and reconciliation both change job ownership, one at a time
+    private final Object ownershipLock = new Object();
+    // Adoption fetches assets and must not hold up the heartbeat, so it has its own thread
+    private final java.util.concurrent.ExecutorService adoptionExecutor = java.util.concurrent.Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "stream-adoption");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Launch groups claimed or queued for adoption on this node
+    private final java.util.Set<String> adoptingGroups = ConcurrentHashMap.newKeySet();
+    // Billing ticks and finalizeJob charge the same interval, one at a time
+    private final Object billingLock = new Object();
+    private static final int RECONCILE_BATCH_SIZE = 500;
+    private volatile boolean shuttingDown;
+
+    // Encode once and fan out to all destinations instead of one FFmpeg per destination
+    @Value("${app.stream.fan-out:true}")
+    private boolean fanOutEnabled = true;
     @Autowired
     private UserFileService userFileService;
     @Autowired
-    private FileStorageService storageService;
-    @Autowired
     private UserService userService;
     @Autowired
     private AudioService audioService;
@@ -54,10 +85,41 @@ public class StreamService {
     private com.afklive.streamer.repository.StreamDestinationRepository streamDestinationRepo;
     @Autowired
     private PlanService planService;
+    @Autowired
+    private StreamRestartPolicy restartPolicy;
+    @Autowired
+    private StreamAssetCache assetCache;
+    @Autowired
+    private FileStorageService storageService;
+    @Autowired
+    private StreamAdmissionService admissionService;
+    @Autowired
+    private StreamLeaseService leaseService;
+    @Autowired
+    private StreamBillingService billingService;
+    @Autowired
+    private OverlayDataService overlayDataService;
+    @Autowired
+    private CompositeRenderService compositeRenderService;
+
+    // Start streaming from a presigned URL instead of waiting for the download on a cache miss
+    @Value("${app.stream.progressive-start:true}")
+    private boolean progressiveStart = true;
 
     private final java.util.concurrent.ScheduledExecutorService scheduledExecutorService = java.util.concurrent.Executors.newScheduledThreadPool(5);
-    private final ConcurrentHashMap<Long, java.util.concurrent.ScheduledFuture<?>> jobTasks = new ConcurrentHashMap<>();
+    // Metrics and log pushes block on slow clients, so they must not share threads with the lease
+    // heartbeat and billing
+    private final java.util.concurrent.ScheduledExecutorService eventExecutorService = java.util.concurrent.Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "stream-events");
+        thread.setDaemon(true);
+        return thread;
+    });
     private java.util.concurrent.ScheduledFuture<?> billingTask;
+    private java.util.concurrent.ScheduledFuture<?> leaseTask;
+    private java.util.concurrent.ScheduledFuture<?> reconcileTask;
+
+    @Value("${app.stream.reconcile-interval-minutes:5}")
+    private long reconcileIntervalMinutes = 5;
 
     // We need to pass 'username' now
     public ApiResponse<StreamResponse> startStream(
@@ -175,30 +237,215 @@ public class StreamService {
             }
         }
 
-        // 2. Resolve Paths & Download from S3
-        Path userDir = userFileService.getUserUploadDir(username);
-        // We use the key as filename prefix to avoid collisions
-        Path videoPath = userDir.resolve("stream_" + videoKey).toAbsolutePath();
+        // Assets pinned in the cache for the duration of this call
+        List<String> heldAssets = new ArrayList<>();
+        try {
+            // 2. Resolve inputs & build the launch spec
+            Path watermarkPath = null;
+            if (watermarkFile != null && !watermarkFile.isEmpty()) {
+                 // Create temp file for watermark
+                 watermarkPath = Files.createTempFile("watermark_", ".png");
+                 watermarkFile.transferTo(watermarkPath);
+            }
 
-        if (!java.nio.file.Files.exists(videoPath)) {
-            log.info("Downloading video from Storage: {}", videoKey);
+            StreamLaunchSpec spec = resolveLaunchSpec(username, user, videoKey, musicName, musicVolume, loopCount,
+                    watermarkPath, muteVideoAudio, streamMode, streamQuality, overlayEnabled, heldAssets);
+            Path overlayTextPath = spec.overlayTextPath();
+            String watermarkKey = watermarkPath != null ? storeWatermark(watermarkPath) : null;
+
+            // One encoder for all destinations in fan-out mode, otherwise one encoder per destination
+            List<List<String>> launchGroups = (fanOutEnabled && validKeys.size() > 1)
+                    ? List.of(validKeys)
+                    : validKeys.stream().map(List::of).collect(Collectors.toList());
+
+            List<Long> startedJobIds = new ArrayList<>();
+            double encoderCost = StreamAdmissionService.estimateCost(spec);
+
+            // 4. Reserve capacity for every encoder (may wait for other streams to end), so the
+            // call starts all destinations or none of them
+            admissionService.acquire(encoderCost * launchGroups.size());
+            Map<SupervisedStream, Process> started = new java.util.LinkedHashMap<>();
+            SupervisedStream pendingStream = null;
+            Process pending = null;
             try {
-                storageService.downloadFileToPath(videoKey, videoPath);
-            } catch (Exception e) {
-                log.error("Failed to download video from Storage", e);
-                // Fallback: Check if it's a local file (legacy support)
-                videoPath = userDir.resolve(videoKey).toAbsolutePath();
-                if (!java.nio.file.Files.exists(videoPath)) {
-                    throw new IOException("Video not found in Storage or local storage: " + videoKey);
+                for (List<String> groupKeys : launchGroups) {
+                    String launchGroup = java.util.UUID.randomUUID().toString();
+                    SupervisedStream stream = new SupervisedStream(spec, groupKeys);
+                    Process process = launchProcess(stream, spec);
+                    pendingStream = stream;
+                    pending = process;
+
+                    // StreamJob rows are still tracked per destination
+                    for (String key : groupKeys) {
+                        // Resolve Destination Name
+                        String destName = "Unknown Destination";
+                        try {
+                            List<com.afklive.streamer.model.StreamDestination> dests = streamDestinationRepo.findByStreamKeyAndUser(key, user);
+                            if (!dests.isEmpty()) {
+                                destName = dests.get(0).getName();
+                            }
+                        } catch (Exception e) {
+                            log.warn("Failed to resolve destination name for key: {}", key);
+                        }
+
+                        // 5. SAVE STATE TO DATABASE
+                        StreamJob job = new StreamJob(
+                                username,
+                                key,
+                                videoKey,
+                                musicName,
+                                musicVolume,
+                                true,
+                                process.pid(),
+                                title,
+                                description,
+                                privacy,
+                                java.time.ZonedDateTime.now(java.time.ZoneId.of("UTC")),
+                                destName,
+                                autoReplyEnabled
+                        );
+                        job.setLastBillingTime(job.getStartTime());
+                        job.setLoopCount(loopCount);
+                        job.setMuteVideoAudio(muteVideoAudio);
+                        job.setStreamMode(streamMode);
+                        job.setStreamQuality(streamQuality);
+                        job.setWatermarkKey(watermarkKey);
+                        job.setOverlayEnabled(overlayEnabled);
+                        job.setOverlayTemplate(overlayTemplate);
+                        leaseService.assign(job, launchGroup);
+                        job = streamJobRepo.save(job);
+                        startedJobIds.add(job.getId());
+
+                        trackLocalJob(job.getId(), stream, process, heldAssets, encoderCost / groupKeys.size(),
+                                username, overlayTextPath, overlayTemplate);
+                    }
+
+                    // 6. EXIT HANDLER (Auto-Update DB or reconnect)
+                    attachExitHandler(stream, process);
+                    // From here the group's cost is released by finalizeJob of its jobs
+                    started.put(stream, process);
+                    pendingStream = null;
+                    pending = null;
                 }
+            } catch (IOException | RuntimeException e) {
+                abortStart(started, pendingStream, pending, encoderCost * (launchGroups.size() - started.size()));
+                throw e;
             }
+
+            return ApiResponse.success("Stream started", new StreamResponse(
+                    startedJobIds.toString(),
+                    streamKeys.toString(),
+                    "RUNNING",
+                    "Started " + startedJobIds.size() + " destinations on " + launchGroups.size() + " stream processes."
+            ));
+        } finally {
+            for (String key : heldAssets) assetCache.release(key);
         }
-        
+    }
+
+    // Undoes a start that failed part way: stops the groups already running, ends the jobs of the
+    // group being launched and returns the capacity reserved for groups that never started
+    private void abortStart(Map<SupervisedStream, Process> started, SupervisedStream pendingStream, Process pending,
+                            double unstartedCost) {
+        if (pending != null) {
+            pendingStream.requestStop();
+            pending.destroyForcibly();
+            // Its tracked jobs have no exit handler yet, finalizeJob returns their share
+            for (Long jobId : List.copyOf(pendingStream.getJobIds())) {
+                Double cost = jobCosts.get(jobId);
+                if (cost != null) unstartedCost -= cost;
+                try {
+                    finalizeJob(jobId);
+                } catch (RuntimeException e) {
+                    log.error("Failed to end job {} of an aborted start", jobId, e);
+                }
+            }
+        }
+        admissionService.release(unstartedCost);
+        // Their exit handlers end the jobs and return the capacity
+        started.forEach((stream, process) -> {
+            stream.requestStop();
+            process.destroyForcibly();
+        });
+    }
+
+    // Registers a job whose encoder runs on this node
+    private void trackLocalJob(Long jobId, SupervisedStream stream, Process process, List<String> heldAssets, double cost,
+                               String username, Path overlayTextPath, String overlayTemplate) {
+        stream.getJobIds().add(jobId);
+        activeStreams.put(jobId, process);
+        supervisedStreams.put(jobId, stream);
+        jobLogs.put(jobId, stream.getLogs());
+
+        // Keep the inputs in the cache while the job is live
+        for (String assetKey : heldAssets) assetCache.pin(assetKey);
+        jobAssets.put(jobId, List.copyOf(heldAssets));
+        jobCosts.put(jobId, cost);
+
+        if (overlayTextPath != null) {
+            overlayDataService.register(jobId, username, overlayTextPath, overlayTemplate);
+        }
+    }
+
+    // Keeps an uploaded watermark in storage so another node can relaunch the stream with it
+    private String storeWatermark(Path watermarkPath) {
+        try (java.io.InputStream in = Files.newInputStream(watermarkPath)) {
+            return storageService.uploadFile(in, "watermark.png", Files.size(watermarkPath));
+        } catch (Exception e) {
+            log.warn("Failed to store watermark, the stream cannot be adopted with it", e);
+            return null;
+        }
+    }
+
+    /**
+     * Fetches the stream inputs into the node cache and builds the launch spec. Cached assets
+     * are pinned and added to {@code heldAssets}; the caller releases them.
+     */
+    private StreamLaunchSpec resolveLaunchSpec(String username, com.afklive.streamer.model.User user, String videoKey,
+                                               String musicName, String musicVolume, int loopCount, Path watermarkPath,
+                                               boolean muteVideoAudio, String streamMode, int streamQuality,
+                                               boolean overlayEnabled, List<String> heldAssets) throws IOException {
+        // Resolve Paths & fetch from the node cache (downloads from Storage on a miss)
+        Path userDir = userFileService.getUserUploadDir(username);
+        Path videoPath;
+        String videoUrl = null;
+        try {
+            Optional<Path> cached = assetCache.acquireIfCached(videoKey);
+            Optional<String> presignedUrl = (cached.isEmpty() && progressiveStart)
+                    ? storageService.generatePresignedUrl(videoKey)
+                    : Optional.empty();
+            if (cached.isPresent()) {
+                videoPath = cached.get();
+            } else if (presignedUrl.isPresent()) {
+                // Progressive start: FFmpeg reads over HTTP at 1x while the cache fills in the background
+                log.info("Progressive start for {}, prefetching into cache", videoKey);
+                videoUrl = presignedUrl.get();
+                videoPath = assetCache.pathFor(videoKey);
+                assetCache.pin(videoKey);
+                assetCache.prefetch(videoKey);
+            } else {
+                videoPath = assetCache.acquire(videoKey);
+            }
+            heldAssets.add(videoKey);
+        } catch (Exception e) {
+            log.error("Failed to download video from Storage", e);
+            // Fallback: copy downloaded by an older version, or a local file (legacy support)
+            videoPath = userDir.resolve("stream_" + videoKey).toAbsolutePath();
+            if (!java.nio.file.Files.exists(videoPath)) {
+                videoPath = userDir.resolve(videoKey).toAbsolutePath();
+            }
+            if (!java.nio.file.Files.exists(videoPath)) {
+                throw new IOException("Video not found in Storage or local storage: " + videoKey);
+            }
+        }
+    
         log.info("userDir [{}]", userDir);
         log.info("videoPath [{}]", videoPath);
 
         // 3. Build the FFmpeg Command
         Path musicPath = null;
+        // Identifies the music of a pre-rendered composite, null if it has no stable source
+        String musicKey = null;
         if (musicName != null && !musicName.isEmpty()) {
             if (musicName.contains("..") || musicName.contains("/") || musicName.contains("\\")) {
                 throw new IllegalArgumentException("Invalid music filename");
@@ -207,6 +454,7 @@ public class StreamService {
             if (musicName.startsWith("stock:")) {
                 String trackId = musicName.substring(6); // remove "stock:"
                 musicPath = audioService.getAudioPath(trackId);
+                musicKey = musicName;
             } else {
                 // Resolve user audio file from DB/S3
                 String audioKey = musicName;
@@ -215,16 +463,15 @@ public class StreamService {
                     audioKey = audioFileOpt.get().getS3Key();
                 }
 
-                Path localAudioPath = userDir.resolve("audio_" + audioKey).toAbsolutePath();
-                if (!Files.exists(localAudioPath)) {
-                    log.info("Downloading audio from Storage: {}", audioKey);
-                    try {
-                        storageService.downloadFileToPath(audioKey, localAudioPath);
-                    } catch (Exception e) {
-                        log.error("Failed to download audio from Storage", e);
-                        // Fallback: check if it exists with original name
-                        localAudioPath = userDir.resolve(musicName).toAbsolutePath();
-                    }
+                Path localAudioPath;
+                try {
+                    localAudioPath = assetCache.acquire(audioKey);
+                    heldAssets.add(audioKey);
+                    musicKey = audioKey;
+                } catch (Exception e) {
+                    log.error("Failed to download audio from Storage", e);
+                    // Fallback: check if it exists with original name
+                    localAudioPath = userDir.resolve(musicName).toAbsolutePath();
                 }
 
                 if (Files.exists(localAudioPath)) {
@@ -236,13 +483,6 @@ public class StreamService {
             }
         }
 
-        Path watermarkPath = null;
-        if (watermarkFile != null && !watermarkFile.isEmpty()) {
-             // Create temp file for watermark
-             watermarkPath = Files.createTempFile("watermark_", ".png");
-             watermarkFile.transferTo(watermarkPath);
-        }
-
         Path overlayTextPath = null;
         if (overlayEnabled) {
             overlayTextPath = userDir.resolve("subs_" + System.currentTimeMillis() + ".txt");
@@ -255,33 +495,40 @@ public class StreamService {
         int planMax = planService.getPlanConfig(user.getPlanType()).getMaxResolution();
         int maxHeight = (streamQuality > 0 && streamQuality < planMax) ? streamQuality : planMax;
 
+        ScheduledVideo currentVideo = null;
+        try {
+            // Efficient: find by S3 key directly
+            currentVideo = scheduledVideoRepository.findFirstByUsernameAndS3Key(username, videoKey).orElse(null);
+        } catch (Exception e) {
+            log.warn("Failed to load video from DB", e);
+        }
+        // Metadata is recorded on upload, older videos may not have been probed
+        boolean probed = currentVideo != null && currentVideo.getVideoCodec() != null;
+        if (probed && currentVideo.getHeight() != null && !"force_portrait".equals(streamMode)) {
+            // The output is never taller than the source, so neither is the bitrate tier
+            maxHeight = Math.min(maxHeight, currentVideo.getHeight());
+        }
+
         // CHECK FOR OPTIMIZED VERSION
         // Logic: If user wants "original" stream mode, no watermark, no music, AND an optimized version exists,
         // we can use it and potentially copy the stream.
         boolean isOptimized = false;
         if (streamMode.equals("original") && watermarkPath == null && musicPath == null) {
-            // Check if current file is already optimized (DB check)
-            boolean isCurrentOptimized = false;
-            try {
-                // Efficient: find by S3 key directly
-                Optional<ScheduledVideo> currentVideoOpt = scheduledVideoRepository.findFirstByUsernameAndS3Key(username, videoKey);
-
-                if (currentVideoOpt.isPresent()) {
-                    ScheduledVideo v = currentVideoOpt.get();
-                    if (v.getOptimizationStatus() == ScheduledVideo.OptimizationStatus.COMPLETED) {
-                         isCurrentOptimized = true;
+            boolean isCurrentOptimized;
+            if (probed) {
+                // Copy whenever codec, size and keyframe interval suit the ingest
+                isCurrentOptimized = MediaMetadataService.canStreamCopy(currentVideo, maxHeight);
+            } else {
+                isCurrentOptimized = currentVideo != null
+                        && currentVideo.getOptimizationStatus() == ScheduledVideo.OptimizationStatus.COMPLETED;
+
+                // Fallback: Check filename pattern if DB check failed or not found
+                if (!isCurrentOptimized) {
+                    String fName = videoPath.getFileName().toString();
+                    if (fName.contains("_portrait_") || fName.contains("_landscape_") || fName.contains("_optimized")) {
+                        isCurrentOptimized = true;
                     }
                 }
-            } catch (Exception e) {
-                log.warn("Failed to check optimization status from DB", e);
-            }
-
-            // Fallback: Check filename pattern if DB check failed or not found
-            if (!isCurrentOptimized) {
-                String fName = videoPath.getFileName().toString();
-                if (fName.contains("_portrait_") || fName.contains("_landscape_") || fName.contains("_optimized")) {
-                    isCurrentOptimized = true;
-                }
             }
 
             if (isCurrentOptimized) {
@@ -301,98 +548,182 @@ public class StreamService {
             }
         }
 
-        List<Long> startedJobIds = new ArrayList<>();
-        clearLogs();
+        // Looped music or watermark without live text: stream a pre-rendered composite in copy mode
+        boolean composited = musicPath != null || watermarkPath != null;
+        boolean musicResolved = musicPath == null || musicKey != null;
+        if (composited && !isOptimized && overlayTextPath == null && loopCount != 0 && musicResolved
+                && heldAssets.contains(videoKey) && compositeRenderService != null && compositeRenderService.isEnabled()) {
+            CompositeRenderService.CompositeInputs inputs = new CompositeRenderService.CompositeInputs(videoKey, musicKey,
+                    musicPath, musicVolume, watermarkPath,
+                    watermarkPath != null ? CompositeRenderService.hashFile(watermarkPath) : null,
+                    muteVideoAudio, streamMode, maxHeight);
+            Optional<Path> composite = compositeRenderService.acquireOrSchedule(inputs);
+            if (composite.isPresent()) {
+                // The composite replaces the source video and music, no need to keep them cached
+                for (String key : heldAssets) assetCache.release(key);
+                heldAssets.clear();
+                heldAssets.add(inputs.key());
+                return new StreamLaunchSpec(composite.get(), null, null, musicVolume, loopCount, null,
+                        false, streamMode, maxHeight, true, null, 0);
+            }
+        }
 
-        // Loop through keys to start individual processes
-        for (String key : validKeys) {
-            List<String> command = FFmpegCommandBuilder.buildStreamCommand(videoPath, List.of(key), musicPath, musicVolume, loopCount, watermarkPath, muteVideoAudio, streamMode, maxHeight, isOptimized, overlayTextPath);
+        return new StreamLaunchSpec(videoPath, videoUrl, musicPath, musicVolume, loopCount, watermarkPath,
+                muteVideoAudio, streamMode, maxHeight, isOptimized, overlayTextPath, 0);
+    }
+
+    private Process launchProcess(SupervisedStream stream, StreamLaunchSpec spec) throws IOException {
+        List<String> command = spec.buildCommand(stream.getStreamKeys());
 
-            log.info("Starting stream for key [{}]: command [{}]", key, String.join(" ", command));
+        log.info("Starting stream for keys {}: command [{}]", stream.getStreamKeys(), String.join(" ", command));
 
-            // 4. Start the Process
-            ProcessBuilder pb = new ProcessBuilder(command);
-            pb.redirectErrorStream(true);
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
 
-            Process process = pb.start();
+        Process process = pb.start();
+        stream.attach(process);
 
-            Thread.ofVirtual().start(() -> {
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                    String line;
-                    while (process.isAlive() && (line = reader.readLine()) != null) {
-                        addLog("[" + process.pid() + "] " + line);
+        Thread.ofVirtual().start(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while (process.isAlive() && (line = reader.readLine()) != null) {
+                    if (!stream.onLogLine(line)) {
+                        stream.getLogs().add("[" + process.pid() + "] " + line);
                     }
-                } catch (IOException e) {
-                    addLog("Log Capture Error: " + e.getMessage());
-                    log.error("Error", e);
                 }
-            });
+            } catch (IOException e) {
+                stream.getLogs().add("Log Capture Error: " + e.getMessage());
+                log.error("Error", e);
+            }
+        });
+        return process;
+    }
+
+    private void attachExitHandler(SupervisedStream stream, Process process) {
+        process.onExit().thenRun(() -> onProcessExit(stream, process));
+    }
+
+    private void onProcessExit(SupervisedStream stream, Process process) {
+        synchronized (stream) {
+            // Skip destinations that were moved to a replacement process
+            List<Long> jobIds = stream.getJobIds().stream()
+                    .filter(id -> activeStreams.get(id) == process)
+                    .collect(Collectors.toList());
+            if (jobIds.isEmpty()) return;
+
+            int exitCode = process.exitValue();
+            // Exit code 0 means all loops were played; anything else without a stop request is a failure
+            if (stream.isStopRequested() || shuttingDown || exitCode == 0) {
+                log.warn("Stream Process Exited for jobs {} (exit code {})", jobIds, exitCode);
+                jobIds.forEach(this::finalizeJob);
+                return;
+            }
+
+            java.time.Instant now = java.time.Instant.now();
+            int attempt = stream.recordFailure(now, restartPolicy.getStableAfter());
+            if (!restartPolicy.tryConsumeRestart(stream.getRestartHistory(), now)) {
+                log.error("Stream for jobs {} exhausted its restart budget, giving up", jobIds);
+                stream.getLogs().add("Stream failed repeatedly (exit code " + exitCode + "), stopping.");
+                jobIds.forEach(this::finalizeJob);
+                return;
+            }
+
+            long delay = restartPolicy.backoffMillis(attempt);
+            log.warn("Stream for jobs {} exited with code {}, reconnecting in {} ms (attempt {})", jobIds, exitCode, delay, attempt);
+            stream.getLogs().add("Stream interrupted (exit code " + exitCode + "). Reconnecting in " + delay + " ms...");
+            scheduledExecutorService.schedule(() -> restartStream(stream, process), delay, java.util.concurrent.TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Relaunches a failed stream from its last position. The launch spec still points at the
+     * downloaded assets, so nothing is fetched from storage again.
+     */
+    private void restartStream(SupervisedStream stream, Process failed) {
+        synchronized (stream) {
+            List<Long> jobIds = stream.getJobIds().stream()
+                    .filter(id -> activeStreams.get(id) == failed)
+                    .collect(Collectors.toList());
+            if (jobIds.isEmpty()) return;
+
+            if (stream.isStopRequested() || shuttingDown || !stream.getSpec().hasInput()) {
+                jobIds.forEach(this::finalizeJob);
+                return;
+            }
 
-            // Resolve Destination Name
-            String destName = "Unknown Destination";
             try {
-                List<com.afklive.streamer.model.StreamDestination> dests = streamDestinationRepo.findByStreamKeyAndUser(key, user);
-                if (!dests.isEmpty()) {
-                    destName = dests.get(0).getName();
-                }
+                // Progressive streams move to the local copy once it has been cached
+                StreamLaunchSpec resume = stream.resumeSpec().preferLocalInput();
+                Process replacement = launchProcess(stream, resume);
+                log.info("Resumed stream for jobs {} at {}s (pid {})", jobIds, Math.round(resume.startOffsetSeconds()), replacement.pid());
+
+                for (Long jobId : jobIds) activeStreams.put(jobId, replacement);
+                streamJobRepo.updatePid(jobIds, replacement.pid());
+                attachExitHandler(stream, replacement);
             } catch (Exception e) {
-                log.warn("Failed to resolve destination name for key: {}", key);
-            }
-
-            // 5. SAVE STATE TO DATABASE
-            StreamJob job = new StreamJob(
-                    username,
-                    key,
-                    videoKey,
-                    musicName,
-                    musicVolume,
-                    true,
-                    process.pid(),
-                    title,
-                    description,
-                    privacy,
-                    java.time.ZonedDateTime.now(java.time.ZoneId.of("UTC")),
-                    destName,
-                    autoReplyEnabled
-            );
-            job.setLastBillingTime(job.getStartTime());
-            job = streamJobRepo.save(job);
-            final Long jobId = job.getId();
-            startedJobIds.add(jobId);
-
-            activeStreams.put(jobId, process);
-
-            // Start Overlay Updater if enabled
-            if (overlayEnabled && overlayTextPath != null) {
-                final Path textPath = overlayTextPath;
-                java.util.concurrent.ScheduledFuture<?> task = scheduledExecutorService.scheduleAtFixedRate(() -> {
-                    try {
-                        String subs = youTubeService.getSubscriberCount(username);
-                        String content = "Subscribers: " + subs;
-                        if ("GOAL".equalsIgnoreCase(overlayTemplate)) {
-                            content = "Goal: " + subs + "/10K";
-                        }
-                        Files.writeString(textPath, content);
-                    } catch (Exception e) {
-                        log.error("Failed to update overlay text", e);
-                    }
-                }, 0, 30, java.util.concurrent.TimeUnit.SECONDS);
-                jobTasks.put(jobId, task);
+                log.error("Failed to restart stream for jobs {}", jobIds, e);
+                jobIds.forEach(this::finalizeJob);
             }
+        }
+    }
 
-            // 6. EXIT HANDLER (Auto-Update DB)
-            process.onExit().thenRun(() -> {
-                log.warn("Stream Process Exited for job {}", jobId);
-                finalizeJob(jobId);
-            });
+    // Jobs other than jobId that are fed by the same FFmpeg process
+    private List<Long> sharedEncoderJobs(Long jobId, Process process) {
+        List<Long> siblings = new ArrayList<>();
+        activeStreams.forEach((id, p) -> {
+            if (p == process && !id.equals(jobId)) siblings.add(id);
+        });
+        return siblings;
+    }
+
+    /**
+     * Removes one destination from a shared encoder. The tee muxer cannot drop an output at
+     * runtime, so the remaining destinations are moved to a fresh process without it.
+     */
+    private void detachFromSharedEncoder(Long jobId, Process process) throws IOException {
+        SupervisedStream stream = supervisedStreams.get(jobId);
+        if (stream == null) {
+            process.destroyForcibly();
+            return;
+        }
+        synchronized (stream) {
+            stream.requestStop();
+            List<Long> siblings = sharedEncoderJobs(jobId, process);
+            // The replacement encoder costs as much as the shared one, so the share stays reserved
+            Double share = siblings.isEmpty() ? null : jobCosts.remove(jobId);
+            if (share != null) {
+                for (Long sibling : siblings) jobCosts.merge(sibling, share / siblings.size(), Double::sum);
+            }
+            finalizeJob(jobId);
+
+            if (siblings.isEmpty()) {
+                process.destroyForcibly();
+                return;
+            }
+
+            List<StreamJob> siblingJobs = streamJobRepo.findAllById(siblings);
+            List<String> keys = siblingJobs.stream().map(StreamJob::getStreamKey).collect(Collectors.toList());
+
+            // Siblings continue from the current position on their own encoder
+            SupervisedStream remaining = new SupervisedStream(stream.resumeSpec().preferLocalInput(), keys, stream.getLogs());
+            Process replacement = launchProcess(remaining, remaining.getSpec());
+
+            for (StreamJob sibling : siblingJobs) {
+                remaining.getJobIds().add(sibling.getId());
+                activeStreams.put(sibling.getId(), replacement);
+                supervisedStreams.put(sibling.getId(), remaining);
+            }
+            streamJobRepo.updatePid(remaining.getJobIds(), replacement.pid());
+            attachExitHandler(remaining, replacement);
+
+            process.destroyForcibly();
         }
+    }
 
-        return ApiResponse.success("Stream started", new StreamResponse(
-                startedJobIds.toString(),
-                streamKeys.toString(),
-                "RUNNING",
-                "Started " + startedJobIds.size() + " separate stream processes."
-        ));
+    // Marks the job's stream as intentionally stopped so its exit is not treated as a failure
+    private void requestStop(Long jobId) {
+        SupervisedStream stream = supervisedStreams.get(jobId);
+        if (stream != null) stream.requestStop();
     }
 
     public ApiResponse<?> stopAllStreams(String username) {
@@ -404,8 +735,13 @@ public class StreamService {
 
         int stopped = 0;
         for (StreamJob job : jobs) {
-            ProcessHandle.of(job.getPid()).ifPresent(ProcessHandle::destroyForcibly);
-            // finalizeJob is called by process.onExit()
+            if (!leaseService.isLocal(job)) {
+                // The owning node stops it at its next heartbeat
+                leaseService.requestRemoteStop(job.getId());
+                stopped++;
+                continue;
+            }
+            stopLocalJob(job);
             stopped++;
         }
 
@@ -422,51 +758,440 @@ public class StreamService {
             }
 
             if (job.isLive()) {
-                ProcessHandle.of(job.getPid()).ifPresent(ProcessHandle::destroyForcibly);
-                // finalizeJob is called by process.onExit()
+                if (!leaseService.isLocal(job)) {
+                    // The encoder runs on another node, which stops it at its next heartbeat
+                    leaseService.requestRemoteStop(jobId);
+                    return ApiResponse.success("Stream stopping", null);
+                }
+                stopLocalJob(job);
                 return ApiResponse.success("Stream stopped", null);
             }
         }
         return ApiResponse.error("Stream not found or not active");
     }
 
+    private void stopLocalJob(StreamJob job) {
+        Long jobId = job.getId();
+        Process process = activeStreams.get(jobId);
+        if (process != null && !process.isAlive()) {
+            // Waiting for a reconnect, nothing to kill
+            requestStop(jobId);
+            finalizeJob(jobId);
+            return;
+        }
+        if (process != null && !sharedEncoderJobs(jobId, process).isEmpty()) {
+            try {
+                detachFromSharedEncoder(jobId, process);
+            } catch (IOException e) {
+                log.error("Failed to relaunch shared encoder after stopping job {}", jobId, e);
+                process.destroyForcibly();
+            }
+            return;
+        }
+        requestStop(jobId);
+        // A surviving encoder is ended here rather than handed to adoption by its exit watcher
+        survivingProcesses.remove(jobId);
+        ProcessHandle.of(job.getPid()).ifPresent(ProcessHandle::destroyForcibly);
+        if (process == null) {
+            // No exit handler on this node (e.g. started before a restart)
+            finalizeJob(jobId);
+        }
+        // Otherwise finalizeJob is called by process.onExit()
+    }
+
     // Package-private for testing
     void finalizeJob(Long jobId) {
-        Optional<StreamJob> jobOpt = streamJobRepo.findById(jobId);
-        if (jobOpt.isPresent()) {
-            StreamJob job = jobOpt.get();
-            // Use computeIfPresent-like logic or simply check live status.
-            // Since we removed synchronized, we rely on the fact that once setLive(false) is saved, future calls do nothing.
-            // But there is a small race window.
-            if (job.isLive()) {
-                job.setLive(false);
-                job.setEndTime(java.time.ZonedDateTime.now(java.time.ZoneId.of("UTC")));
+        StreamJob job;
+        synchronized (billingLock) {
+            // Re-read under the lock: a billing tick may have moved lastBillingTime
+            Optional<StreamJob> jobOpt = streamJobRepo.findById(jobId);
+            if (jobOpt.isEmpty() || !jobOpt.get().isLive()) return;
+            job = jobOpt.get();
+            job.setLive(false);
+            job.setEndTime(java.time.ZonedDateTime.now(java.time.ZoneId.of("UTC")));
+
+            // Calculate Final Cost Increment for Pay As You Go
+            com.afklive.streamer.model.User user = userService.getOrCreateUser(job.getUsername());
+            double incrementalCost = 0;
+            if (user.getPlanType() == com.afklive.streamer.model.PlanType.FREE) {
+                java.time.ZonedDateTime startCalc = job.getLastBillingTime();
+                if (startCalc == null) startCalc = job.getStartTime();
+
+                incrementalCost = StreamBillingService.usageCost(startCalc, job.getEndTime());
+                job.setAccumulatedCost(job.getAccumulatedCost() + incrementalCost);
+                job.setCost(job.getAccumulatedCost());
+            }
 
-                // Calculate Final Cost Increment for Pay As You Go
-                com.afklive.streamer.model.User user = userService.getOrCreateUser(job.getUsername());
-                if (user.getPlanType() == com.afklive.streamer.model.PlanType.FREE) {
-                    java.time.ZonedDateTime startCalc = job.getLastBillingTime();
-                    if (startCalc == null) startCalc = job.getStartTime();
+            streamJobRepo.save(job);
+            if (incrementalCost > 0) {
+                streamJobRepo.addCharge(jobId, incrementalCost, job.getEndTime());
+                userService.addUnpaidBalance(job.getUsername(), incrementalCost);
+            }
+        }
 
-                    long durationSeconds = java.time.Duration.between(startCalc, job.getEndTime()).getSeconds();
-                    if (durationSeconds > 0) {
-                        double hours = durationSeconds / 3600.0;
-                        double incrementalCost = hours * 1.25;
+        releaseLocalJob(jobId);
 
-                        incrementalCost = Math.round(incrementalCost * 10000.0) / 10000.0;
+        // Last live job using the stored watermark
+        if (job.getWatermarkKey() != null && streamJobRepo.countByWatermarkKeyAndIsLiveTrue(job.getWatermarkKey()) == 0) {
+            try {
+                storageService.deleteFile(job.getWatermarkKey());
+            } catch (Exception e) {
+                log.warn("Failed to delete watermark {}", job.getWatermarkKey(), e);
+            }
+        }
+    }
 
-                        job.setAccumulatedCost(job.getAccumulatedCost() + incrementalCost);
-                        userService.addUnpaidBalance(job.getUsername(), incrementalCost);
+    // Drops the node-local state of a job: maps, cache pins, reserved capacity, overlay updates
+    private void releaseLocalJob(Long jobId) {
+        activeStreams.remove(jobId);
+        survivingProcesses.remove(jobId);
+        supervisedStreams.remove(jobId);
+        List<String> pinnedAssets = jobAssets.remove(jobId);
+        if (pinnedAssets != null) {
+            for (String key : pinnedAssets) assetCache.release(key);
+        }
+        Double cost = jobCosts.remove(jobId);
+        if (cost != null) admissionService.release(cost);
+        if (jobLogs.containsKey(jobId)) {
+            scheduledExecutorService.schedule(() -> jobLogs.remove(jobId), JOB_LOG_RETENTION_MINUTES, java.util.concurrent.TimeUnit.MINUTES);
+        }
+        if (overlayDataService != null) overlayDataService.unregister(jobId);
+    }
+
+    // Called on startup to renew leases, act on remote stop requests and adopt orphaned streams
+    @jakarta.annotation.PostConstruct
+    public void initLeaseTask() {
+        long interval = leaseService.getHeartbeatInterval().toMillis();
+        leaseTask = scheduledExecutorService.scheduleWithFixedDelay(this::leaseHeartbeat, interval, interval, java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+
+    private void leaseHeartbeat() {
+        if (shuttingDown) return;
+        List<String> expired;
+        synchronized (ownershipLock) {
+            expired = heartbeat();
+        }
+        for (String launchGroup : expired) {
+            if (!adoptingGroups.add(launchGroup)) continue;
+            adoptionExecutor.execute(() -> {
+                try {
+                    adoptLaunchGroup(launchGroup);
+                } finally {
+                    adoptingGroups.remove(launchGroup);
+                }
+            });
+        }
+    }
+
+    // Returns the launch groups whose leases have expired
+    private List<String> heartbeat() {
+        try {
+            leaseService.renew();
+            fenceLostJobs();
+
+            for (StreamJob job : leaseService.pendingStopRequests()) {
+                stopLocalJob(job);
+            }
+
+            return leaseService.expiredLaunchGroups();
+        } catch (Exception e) {
+            log.error("Stream lease heartbeat failed", e);
+            return List.of();
+        }
+    }
+
+    // A job adopted by another node (e.g. after a long pause here) must not stream from two nodes
+    private void fenceLostJobs() {
+        if (activeStreams.isEmpty()) return;
+        java.util.Set<Long> owned = leaseService.ownedJobs().stream()
+                .map(StreamJob::getId)
+                .collect(Collectors.toSet());
+        List<Long> candidates = activeStreams.keySet().stream()
+                .filter(id -> !owned.contains(id))
+                .collect(Collectors.toList());
+        if (candidates.isEmpty()) return;
+
+        for (StreamJob job : streamJobRepo.findAllById(candidates)) {
+            SupervisedStream stream = supervisedStreams.get(job.getId());
+            if (job.isLive() && !leaseService.isLocal(job) && stream != null) {
+                log.warn("Lease of job {} was taken over by node {}, stopping local encoder", job.getId(), job.getOwnerNode());
+                handOver(stream);
+            }
+        }
+    }
+
+    // Stops the local encoder but leaves the jobs live for the node that takes them over
+    private void handOver(SupervisedStream stream) {
+        synchronized (stream) {
+            for (Long jobId : stream.getJobIds()) {
+                if (supervisedStreams.get(jobId) == stream) releaseLocalJob(jobId);
+            }
+            // The exit handler finds no local jobs left and does nothing
+            Process process = stream.getProcess();
+            if (process != null) process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Relaunches the destinations of an encoder whose node stopped renewing its lease. The
+     * stream restarts from the beginning of the video since the old node's position is lost.
+     * Runs on the adoption thread: the heartbeat keeps renewing the claimed group while the
+     * assets are fetched, and the claim is checked again before the encoder starts.
+     */
+    // Package-private for testing
+    void adoptLaunchGroup(String launchGroup) {
+        if (shuttingDown) return;
+        List<StreamJob> expired = streamJobRepo.findAllByLaunchGroupAndIsLiveTrue(launchGroup);
+        if (expired.isEmpty()) return;
+        boolean orphaned = leaseService.isOrphaned(expired.get(0));
+        if (!leaseService.claim(launchGroup)) {
+            // Another node won the claim
+            return;
+        }
+
+        List<StreamJob> claimed = streamJobRepo.findAllByLaunchGroupAndIsLiveTrue(launchGroup);
+        if (claimed.isEmpty()) return;
+        // Nobody streamed since the old node's last billing run
+        streamJobRepo.resetBillingClock(claimed.stream().map(StreamJob::getId).collect(Collectors.toList()),
+                java.time.ZonedDateTime.now(java.time.ZoneId.of("UTC")));
+
+        List<StreamJob> jobs = new ArrayList<>();
+        for (StreamJob job : claimed) {
+            if (orphaned || job.isStopRequested() || job.getStreamMode() == null) {
+                finalizeJob(job.getId());
+            } else {
+                jobs.add(job);
+            }
+        }
+        if (jobs.isEmpty()) return;
+
+        StreamJob first = jobs.get(0);
+        List<String> heldAssets = new ArrayList<>();
+        try {
+            com.afklive.streamer.model.User user = userService.getOrCreateUser(first.getUsername());
+            Path watermarkPath = null;
+            if (first.getWatermarkKey() != null) {
+                watermarkPath = Files.createTempFile("watermark_", ".png");
+                storageService.downloadFileToPath(first.getWatermarkKey(), watermarkPath);
+            }
+            StreamLaunchSpec spec = resolveLaunchSpec(first.getUsername(), user, first.getFileName(), first.getMusicName(),
+                    first.getMusicVolume(), first.getLoopCount() != null ? first.getLoopCount() : -1, watermarkPath,
+                    Boolean.TRUE.equals(first.getMuteVideoAudio()), first.getStreamMode(),
+                    first.getStreamQuality() != null ? first.getStreamQuality() : 0,
+                    Boolean.TRUE.equals(first.getOverlayEnabled()), heldAssets);
+
+            double cost = StreamAdmissionService.estimateCost(spec);
+            if (!admissionService.tryAcquire(cost)) {
+                log.info("No capacity to adopt launch group {}, leaving it to other nodes", launchGroup);
+                leaseService.release(launchGroup);
+                return;
+            }
+
+            List<String> keys = jobs.stream().map(StreamJob::getStreamKey).collect(Collectors.toList());
+            SupervisedStream stream = new SupervisedStream(spec, keys);
+            Process process;
+            synchronized (ownershipLock) {
+                // The claim may have lapsed while the assets were fetched, then another node may stream it
+                if (shuttingDown || !leaseService.renewClaim(launchGroup)) {
+                    log.warn("Lost the claim on launch group {} before launching, not adopting it", launchGroup);
+                    admissionService.release(cost);
+                    return;
+                }
+                try {
+                    process = launchProcess(stream, spec);
+                } catch (IOException | RuntimeException e) {
+                    admissionService.release(cost);
+                    throw e;
+                }
+
+                for (StreamJob job : jobs) {
+                    trackLocalJob(job.getId(), stream, process, heldAssets, cost / jobs.size(),
+                            job.getUsername(), spec.overlayTextPath(), job.getOverlayTemplate());
+                }
+            }
+            try {
+                streamJobRepo.updatePid(stream.getJobIds(), process.pid());
+            } catch (Exception e) {
+                // Only reconciliation after a restart needs the PID, the stream itself is running
+                log.warn("Failed to record pid of adopted launch group {}", launchGroup, e);
+            }
+            stream.getLogs().add("Stream resumed on node " + leaseService.getNodeId());
+            log.info("Adopted launch group {} ({} destinations, pid {})", launchGroup, jobs.size(), process.pid());
+            attachExitHandler(stream, process);
+        } catch (Exception e) {
+            if (cannotBeRelaunched(first, e)) {
+                log.error("Failed to adopt launch group {}, ending its jobs", launchGroup, e);
+                for (StreamJob job : jobs) finalizeJob(job.getId());
+            } else {
+                // E.g. a storage hiccup: this or another node tries again once the lease has expired
+                log.warn("Failed to adopt launch group {}, releasing it", launchGroup, e);
+                leaseService.release(launchGroup);
+            }
+        } finally {
+            for (String key : heldAssets) assetCache.release(key);
+        }
+    }
+
+    // No node can relaunch a stream whose parameters are invalid or whose video is gone from storage
+    private boolean cannotBeRelaunched(StreamJob job, Exception failure) {
+        if (failure instanceof IllegalArgumentException) return true;
+        try {
+            return !storageService.exists(job.getFileName());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // Called on startup and then periodically to match live jobs against the processes on this host
+    @jakarta.annotation.PostConstruct
+    public void initReconcileTask() {
+        reconcileTask = scheduledExecutorService.scheduleWithFixedDelay(this::reconcileLiveJobs, 0, reconcileIntervalMinutes, java.util.concurrent.TimeUnit.MINUTES);
+    }
+
+    /**
+     * Reconciles live StreamJob rows started on this host with the processes actually running.
+     * Encoders that outlived a previous run are tracked again; rows whose encoder is gone are
+     * either left to lease adoption (which relaunches them) or ended and billed up to the last
+     * time they were known to run. Rows are read in batches by ID.
+     */
+    void reconcileLiveJobs() {
+        if (shuttingDown) return;
+        synchronized (ownershipLock) {
+            try {
+                Map<Long, ProcessHandle> encoders = runningEncoders();
+                int survivors = 0, resumable = 0, ended = 0;
+                long afterId = 0;
+                while (true) {
+                    List<StreamJob> batch = streamJobRepo.findByIsLiveTrueAndIdGreaterThanOrderByIdAsc(
+                            afterId, org.springframework.data.domain.PageRequest.of(0, RECONCILE_BATCH_SIZE));
+                    if (batch.isEmpty()) break;
+                    afterId = batch.get(batch.size() - 1).getId();
+
+                    List<StreamJob> alive = new ArrayList<>();
+                    List<StreamJob> dead = new ArrayList<>();
+                    java.util.Set<String> relaunchGroups = new java.util.HashSet<>();
+                    for (StreamJob job : batch) {
+                        // Tracked here already, being adopted here, or the PID belongs to another machine
+                        if (activeStreams.containsKey(job.getId()) || survivingProcesses.containsKey(job.getId())
+                                || (job.getLaunchGroup() != null && adoptingGroups.contains(job.getLaunchGroup()))
+                                || !leaseService.isThisHost(job)) {
+                            continue;
+                        }
+                        ProcessHandle encoder = encoders.get(job.getPid());
+                        if (encoder != null && startedBy(encoder, job)) {
+                            alive.add(job);
+                        } else if (job.getLaunchGroup() != null && job.getStreamMode() != null
+                                && !job.isStopRequested() && !leaseService.isOrphaned(job)) {
+                            relaunchGroups.add(job.getLaunchGroup());
+                        } else {
+                            dead.add(job);
+                        }
                     }
-                    job.setCost(job.getAccumulatedCost());
+
+                    leaseService.takeOver(alive.stream().map(StreamJob::getId).collect(Collectors.toList()));
+                    for (StreamJob job : alive) trackSurvivor(job, encoders.get(job.getPid()));
+                    // Expire our own leases right away, an earlier run's leases are already lapsing
+                    for (String launchGroup : relaunchGroups) leaseService.release(launchGroup);
+                    if (!dead.isEmpty()) finalizeDeadJobs(dead);
+
+                    survivors += alive.size();
+                    resumable += relaunchGroups.size();
+                    ended += dead.size();
+                }
+                if (survivors + resumable + ended > 0) {
+                    log.info("Reconciled live jobs: {} running encoders re-attached, {} encoders to relaunch, {} jobs ended",
+                            survivors, resumable, ended);
                 }
+            } catch (Exception e) {
+                log.error("Live job reconciliation failed", e);
+            }
+        }
+    }
+
+    // FFmpeg processes on this host by PID, excluding children of this JVM (those are tracked already)
+    private static Map<Long, ProcessHandle> runningEncoders() {
+        long self = ProcessHandle.current().pid();
+        return ProcessHandle.allProcesses()
+                .filter(p -> p.info().command().map(c -> c.contains("ffmpeg")).orElse(false))
+                .filter(p -> p.parent().map(parent -> parent.pid() != self).orElse(true))
+                .collect(Collectors.toMap(ProcessHandle::pid, p -> p, (a, b) -> a));
+    }
+
+    // Guards against PID reuse: the process must have started around the time of the job
+    private static boolean startedBy(ProcessHandle encoder, StreamJob job) {
+        java.time.Instant started = encoder.info().startInstant().orElse(null);
+        if (started == null || job.getStartTime() == null) return true;
+        return !started.isBefore(job.getStartTime().toInstant().minusSeconds(60));
+    }
+
+    private void trackSurvivor(StreamJob job, ProcessHandle encoder) {
+        Long jobId = job.getId();
+        survivingProcesses.put(jobId, encoder);
+        // The output pipe died with the previous run, so there are no new log lines or metrics
+        jobLogs.computeIfAbsent(jobId, id -> new LogRingBuffer(SupervisedStream.LOG_CAPACITY))
+                .add("Re-attached to running encoder (pid " + encoder.pid() + ") after a restart");
+        encoder.onExit().thenRun(() -> onSurvivorExit(jobId));
+    }
+
+    // A surviving encoder cannot be restarted in place; lease adoption relaunches it under supervision
+    private void onSurvivorExit(Long jobId) {
+        if (survivingProcesses.remove(jobId) == null) return;
+        synchronized (ownershipLock) {
+            Optional<StreamJob> jobOpt = streamJobRepo.findById(jobId);
+            if (jobOpt.isEmpty() || !jobOpt.get().isLive()) return;
+            StreamJob job = jobOpt.get();
+            if (shuttingDown || job.isStopRequested() || job.getLaunchGroup() == null || job.getStreamMode() == null) {
+                finalizeJob(jobId);
+            } else {
+                log.warn("Re-attached encoder of job {} exited, releasing it for relaunch", jobId);
+                leaseService.release(job.getLaunchGroup());
+            }
+        }
+    }
 
-                streamJobRepo.save(job);
+    /**
+     * Ends jobs whose encoder died while nobody was watching. Usage is billed up to the last
+     * time the job was known to run (lease heartbeat or billing run), not up to now.
+     */
+    private void finalizeDeadJobs(List<StreamJob> jobs) {
+        java.util.Set<String> usernames = jobs.stream().map(StreamJob::getUsername).collect(Collectors.toSet());
+        Map<String, com.afklive.streamer.model.User> users = userService.findUsers(usernames);
+        List<StreamBillingService.Charge> charges = new ArrayList<>();
+        java.time.ZonedDateTime now = java.time.ZonedDateTime.now(java.time.ZoneId.of("UTC"));
 
-                // Cleanup tasks
-                activeStreams.remove(jobId);
-                java.util.concurrent.ScheduledFuture<?> task = jobTasks.remove(jobId);
-                if (task != null) task.cancel(true);
+        for (StreamJob job : jobs) {
+            java.time.ZonedDateTime lastBilled = job.getLastBillingTime() != null ? job.getLastBillingTime() : job.getStartTime();
+            java.time.ZonedDateTime lastSeen = lastBilled;
+            java.time.ZonedDateTime heartbeat = leaseService.lastHeartbeat(job);
+            if (heartbeat != null && (lastSeen == null || heartbeat.isAfter(lastSeen))) lastSeen = heartbeat;
+            if (lastSeen == null || lastSeen.isAfter(now)) lastSeen = now;
+
+            job.setLive(false);
+            job.setEndTime(lastSeen);
+            com.afklive.streamer.model.User user = users.get(job.getUsername());
+            if (user != null && user.getPlanType() == com.afklive.streamer.model.PlanType.FREE) {
+                double incrementalCost = StreamBillingService.usageCost(lastBilled, lastSeen);
+                if (incrementalCost > 0) {
+                    job.setAccumulatedCost(job.getAccumulatedCost() + incrementalCost);
+                    charges.add(new StreamBillingService.Charge(job.getId(), job.getUsername(), incrementalCost, lastSeen));
+                }
+                job.setCost(job.getAccumulatedCost());
+            }
+        }
+        synchronized (billingLock) {
+            streamJobRepo.saveAll(jobs);
+            billingService.recordCharges(charges);
+        }
+
+        java.util.Set<String> watermarks = jobs.stream().map(StreamJob::getWatermarkKey)
+                .filter(java.util.Objects::nonNull).collect(Collectors.toSet());
+        for (String key : watermarks) {
+            if (streamJobRepo.countByWatermarkKeyAndIsLiveTrue(key) == 0) {
+                try {
+                    storageService.deleteFile(key);
+                } catch (Exception e) {
+                    log.warn("Failed to delete watermark {}", key, e);
+                }
             }
         }
     }
@@ -478,51 +1203,81 @@ public class StreamService {
     }
 
     private void processPeriodicBilling() {
-        // Find all active streams
-        // Ideally we filter by Pay As You Go users, but for now we iterate active streams and check user plan
-        // Optimization: findAllByIsLiveTrue() then filter in memory or join in DB.
-        // Assuming StreamJobRepository has findAllByIsLiveTrue()
-        List<StreamJob> activeJobs = streamJobRepo.findAllByIsLiveTrue(); // We might need to add this method to repo if not exists, or filter from getAll
-        // Actually we have getActiveStreams(username). We need global active streams.
-        // Let's use the activeStreams map which contains IDs of locally running processes
-
-        activeStreams.forEach((jobId, process) -> {
+        // Jobs running on this node; other nodes bill their own
+        List<Long> localJobIds = new ArrayList<>(activeStreams.keySet());
+        localJobIds.addAll(survivingProcesses.keySet());
+        if (localJobIds.isEmpty()) return;
+
+        StreamBillingService.TickResult result;
+        try {
+            synchronized (billingLock) {
+                result = billingService.bill(localJobIds, java.time.ZonedDateTime.now(java.time.ZoneId.of("UTC")));
+            }
+        } catch (Exception e) {
+            log.error("Error in billing task", e);
+            return;
+        }
+
+        if (result.overCreditLimit().isEmpty()) return;
+        for (StreamJob job : streamJobRepo.findAllById(result.overCreditLimit())) {
+            if (!job.isLive()) continue;
+            log.warn("User {} exceeded credit limit. Stopping stream {}.", job.getUsername(), job.getId());
             try {
-                Optional<StreamJob> jobOpt = streamJobRepo.findById(jobId);
-                if (jobOpt.isPresent()) {
-                    StreamJob job = jobOpt.get();
-                    com.afklive.streamer.model.User user = userService.getOrCreateUser(job.getUsername());
-
-                    if (user.getPlanType() == com.afklive.streamer.model.PlanType.FREE) {
-                        java.time.ZonedDateTime now = java.time.ZonedDateTime.now(java.time.ZoneId.of("UTC"));
-                        java.time.ZonedDateTime lastCalc = job.getLastBillingTime();
-                        if (lastCalc == null) lastCalc = job.getStartTime();
-
-                        long durationSeconds = java.time.Duration.between(lastCalc, now).getSeconds();
-                        if (durationSeconds > 0) {
-                            double hours = durationSeconds / 3600.0;
-                            double incrementalCost = hours * 1.25;
-                            incrementalCost = Math.round(incrementalCost * 10000.0) / 10000.0;
-
-                            job.setAccumulatedCost(job.getAccumulatedCost() + incrementalCost);
-                            job.setLastBillingTime(now);
-
-                            // Atomic update to user balance
-                            userService.addUnpaidBalance(job.getUsername(), incrementalCost);
-                            streamJobRepo.save(job);
-                        }
+                stopStream(job.getId(), job.getUsername());
+            } catch (Exception e) {
+                log.error("Failed to stop stream {} over credit limit", job.getId(), e);
+            }
+        }
+    }
 
-                        // Check Credit Limit
-                        if (!userService.checkCreditLimit(job.getUsername())) {
-                            log.warn("User {} exceeded credit limit. Stopping stream {}.", job.getUsername(), jobId);
-                            stopStream(jobId, job.getUsername());
-                        }
-                    }
+    public Optional<StreamMetrics> getStreamMetrics(Long jobId, String username) {
+        SupervisedStream stream = supervisedStreams.get(jobId);
+        if (stream == null) return Optional.empty();
+        return streamJobRepo.findById(jobId)
+                .filter(job -> job.getUsername().equals(username))
+                .map(job -> stream.getProgress().latest());
+    }
+
+    // Job ID -> latest metrics of every stream running on this node
+    public Map<Long, StreamMetrics> getAllStreamMetrics() {
+        Map<Long, StreamMetrics> metrics = new HashMap<>();
+        supervisedStreams.forEach((jobId, stream) -> {
+            StreamMetrics latest = stream.getProgress().latest();
+            if (latest != null) metrics.put(jobId, latest);
+        });
+        return metrics;
+    }
+
+    /**
+     * Pushes the stream's metrics to the client every two seconds until the stream ends.
+     */
+    public SseEmitter streamMetrics(Long jobId, String username) {
+        StreamJob job = streamJobRepo.findById(jobId)
+                .filter(j -> j.getUsername().equals(username))
+                .orElseThrow(() -> new IllegalArgumentException("Stream not found"));
+
+        SseEmitter emitter = new SseEmitter(0L);
+        java.util.concurrent.ScheduledFuture<?> task = eventExecutorService.scheduleAtFixedRate(() -> {
+            SupervisedStream stream = supervisedStreams.get(job.getId());
+            try {
+                if (stream == null) {
+                    emitter.send(SseEmitter.event().name("end").data("Stream ended"));
+                    emitter.complete();
+                    return;
+                }
+                StreamMetrics latest = stream.getProgress().latest();
+                if (latest != null) {
+                    emitter.send(SseEmitter.event().name("metrics").data(latest));
                 }
             } catch (Exception e) {
-                log.error("Error in billing task for job " + jobId, e);
+                emitter.completeWithError(e);
             }
-        });
+        }, 0, 2, java.util.concurrent.TimeUnit.SECONDS);
+
+        emitter.onCompletion(() -> task.cancel(false));
+        emitter.onTimeout(() -> task.cancel(false));
+        emitter.onError(e -> task.cancel(false));
+        return emitter;
     }
 
     public List<StreamJob> getActiveStreams(String username) {
@@ -533,26 +1288,87 @@ public class StreamService {
     @PreDestroy
     public void onShutdown() {
         log.info("Application shutdown - Terminating {} active streams", activeStreams.size());
-        activeStreams.values().forEach(Process::destroyForcibly);
+        shuttingDown = true;
+        if (leaseTask != null) leaseTask.cancel(false);
+        if (reconcileTask != null) reconcileTask.cancel(false);
+        adoptionExecutor.shutdownNow();
+        eventExecutorService.shutdownNow();
+        if (leaseService.isHandoverOnShutdown()) {
+            // Jobs stay live with expired leases, so other nodes adopt them right away
+            for (SupervisedStream stream : new java.util.HashSet<>(supervisedStreams.values())) {
+                handOver(stream);
+            }
+            // Re-attached encoders are stopped without ending their jobs
+            List<ProcessHandle> survivors = new ArrayList<>(survivingProcesses.values());
+            survivingProcesses.clear();
+            survivors.forEach(ProcessHandle::destroyForcibly);
+            int released = leaseService.releaseAll();
+            log.info("Handed over {} stream jobs to other nodes", released);
+        }
+        activeStreams.values().stream().distinct().forEach(Process::destroyForcibly);
+        survivingProcesses.values().forEach(ProcessHandle::destroyForcibly);
     }
 
     public void addLog(String line) {
-        if (line != null) {
-            // Redact RTMP keys/URLs
-            line = line.replaceAll("rtmp://[^\\s]+", "rtmp://[REDACTED]");
-        }
-
-        if (logBuffer.size() > 50) {
-            logBuffer.removeFirst();
-        }
-        logBuffer.add(line);
+        systemLogs.add(line);
     }
 
     public List<String> getLogs() {
-        return new ArrayList<>(logBuffer);
+        return systemLogs.snapshot();
+    }
+
+    public Optional<List<String>> getJobLogs(Long jobId, String username) {
+        LogRingBuffer logs = jobLogs.get(jobId);
+        if (logs == null) return Optional.empty();
+        return streamJobRepo.findById(jobId)
+                .filter(job -> job.getUsername().equals(username))
+                .map(job -> logs.snapshot());
     }
 
-    public void clearLogs() {
-        logBuffer.clear();
+    // Logs of all the user's running streams, one block per encoder
+    public List<String> getUserLogs(String username) {
+        List<String> lines = new ArrayList<>();
+        streamJobRepo.findAllByUsernameAndIsLiveTrue(username).stream()
+                .map(job -> jobLogs.get(job.getId()))
+                .filter(java.util.Objects::nonNull)
+                .distinct()
+                .forEach(logs -> lines.addAll(logs.snapshot()));
+        return lines;
+    }
+
+    /**
+     * Tails the job's log: sends what is buffered, then new lines once a second until the
+     * job has ended and its log has been drained.
+     */
+    public SseEmitter streamJobLogs(Long jobId, String username) {
+        streamJobRepo.findById(jobId)
+                .filter(j -> j.getUsername().equals(username))
+                .orElseThrow(() -> new IllegalArgumentException("Stream not found"));
+        LogRingBuffer logs = jobLogs.get(jobId);
+        if (logs == null) throw new IllegalArgumentException("No logs for this stream");
+
+        SseEmitter emitter = new SseEmitter(0L);
+        java.util.concurrent.atomic.AtomicLong cursor = new java.util.concurrent.atomic.AtomicLong(-1);
+        java.util.concurrent.ScheduledFuture<?> task = eventExecutorService.scheduleAtFixedRate(() -> {
+            try {
+                boolean ended = !supervisedStreams.containsKey(jobId);
+                LogRingBuffer.Tail tail = logs.tail(cursor.get());
+                cursor.set(tail.cursor());
+                for (String line : tail.lines()) {
+                    emitter.send(SseEmitter.event().name("log").data(line));
+                }
+                if (ended) {
+                    emitter.send(SseEmitter.event().name("end").data("Stream ended"));
+                    emitter.complete();
+                }
+            } catch (Exception e) {
+                emitter.completeWithError(e);
+            }
+        }, 0, 1, java.util.concurrent.TimeUnit.SECONDS);
+
+        emitter.onCompletion(() -> task.cancel(false));
+        emitter.onTimeout(() -> task.cancel(false));
+        emitter.onError(e -> task.cancel(false));
+        return emitter;
     }
-}
\ No newline at end of file
+}
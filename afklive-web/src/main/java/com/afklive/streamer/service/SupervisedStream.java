@@ -0,0 +1,165 @@
+package com.afklive.streamer.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runtime state of one FFmpeg launch group (one or more destinations sharing an encoder).
+ * Tracks encoder progress from the FFmpeg output, both for live metrics and so the stream
+ * can be resumed at the same position after a transient failure.
+ */
+class SupervisedStream {
+
+    static final int LOG_CAPACITY = 256;
+
+    private final StreamLaunchSpec spec;
+    private final List<String> streamKeys;
+    private final List<Long> jobIds = new CopyOnWriteArrayList<>();
+    private final Deque<Instant> restartHistory = new ArrayDeque<>();
+    private final FFmpegProgressParser progress = new FFmpegProgressParser();
+    private final LogRingBuffer logs;
+
+    private volatile Process process;
+    private volatile Instant processStartedAt;
+    private volatile boolean stopRequested;
+    private int consecutiveFailures;
+
+    // Length of the video input, taken from the FFmpeg input banner
+    private volatile double inputDurationSeconds;
+    // Output time of the current process
+    private volatile double processOutTimeSeconds;
+    // Output time of all previous processes of this stream
+    private double playedSeconds;
+
+    SupervisedStream(StreamLaunchSpec spec, List<String> streamKeys) {
+        this(spec, streamKeys, new LogRingBuffer(LOG_CAPACITY));
+    }
+
+    // Continues an existing log, e.g. when destinations move to a new encoder
+    SupervisedStream(StreamLaunchSpec spec, List<String> streamKeys, LogRingBuffer logs) {
+        this.spec = spec;
+        this.streamKeys = List.copyOf(streamKeys);
+        this.logs = logs;
+    }
+
+    StreamLaunchSpec getSpec() {
+        return spec;
+    }
+
+    List<String> getStreamKeys() {
+        return streamKeys;
+    }
+
+    List<Long> getJobIds() {
+        return jobIds;
+    }
+
+    Deque<Instant> getRestartHistory() {
+        return restartHistory;
+    }
+
+    LogRingBuffer getLogs() {
+        return logs;
+    }
+
+    FFmpegProgressParser getProgress() {
+        return progress;
+    }
+
+    Process getProcess() {
+        return process;
+    }
+
+    void attach(Process process) {
+        this.process = process;
+        this.processStartedAt = Instant.now();
+        this.processOutTimeSeconds = 0;
+        progress.reset();
+    }
+
+    boolean isStopRequested() {
+        return stopRequested;
+    }
+
+    void requestStop() {
+        this.stopRequested = true;
+    }
+
+    /**
+     * Consumes one line of FFmpeg output. Progress lines update the output position; otherwise
+     * the first {@code Duration:} seen is the video input (input #0 is always printed first).
+     *
+     * @return true if the line was a progress line rather than a log line
+     */
+    boolean onLogLine(String line) {
+        if (progress.accept(line)) {
+            processOutTimeSeconds = progress.outTimeSeconds();
+            return true;
+        }
+        if (inputDurationSeconds <= 0) {
+            int idx = line.indexOf("Duration: ");
+            if (idx >= 0) {
+                double duration = parseTimestamp(line, idx + 10);
+                if (duration > 0) inputDurationSeconds = duration;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Folds the progress of the exited process into the stream position and returns the
+     * restart attempt number. A process that ran longer than {@code stableAfter} starts a new
+     * backoff sequence.
+     */
+    synchronized int recordFailure(Instant now, Duration stableAfter) {
+        playedSeconds += processOutTimeSeconds;
+        processOutTimeSeconds = 0;
+        Instant startedAt = processStartedAt;
+        if (startedAt != null && Duration.between(startedAt, now).compareTo(stableAfter) >= 0) {
+            consecutiveFailures = 0;
+        }
+        return ++consecutiveFailures;
+    }
+
+    /**
+     * Launch spec that continues where the stream currently is. FFmpeg restarts every loop at
+     * the beginning of the file, so the position is taken modulo the input length and the
+     * loops already played are deducted.
+     */
+    synchronized StreamLaunchSpec resumeSpec() {
+        double duration = inputDurationSeconds;
+        if (duration <= 0) {
+            // Length unknown: restart from the beginning
+            return spec;
+        }
+        double position = spec.startOffsetSeconds() + playedSeconds + processOutTimeSeconds;
+        long loopsPlayed = (long) (position / duration);
+        double offset = position - loopsPlayed * duration;
+        int remainingLoops = spec.loopCount() < 0 ? -1 : (int) Math.max(0, spec.loopCount() - loopsPlayed);
+        return spec.resumeAt(offset, remainingLoops);
+    }
+
+    // Parses HH:MM:SS(.frac) at the given index, -1 if there is none (e.g. "N/A")
+    static double parseTimestamp(String line, int start) {
+        int end = start;
+        while (end < line.length()) {
+            char c = line.charAt(end);
+            if ((c < '0' || c > '9') && c != ':' && c != '.') break;
+            end++;
+        }
+        if (end == start) return -1;
+        String[] parts = line.substring(start, end).split(":");
+        if (parts.length != 3) return -1;
+        try {
+            return Integer.parseInt(parts[0]) * 3600.0
+                    + Integer.parseInt(parts[1]) * 60.0
+                    + Double.parseDouble(parts[2]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.afklive.streamer.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Runs local transcodes (optimize, shorts, merges) on a fixed number of worker threads so they
+ * cannot take the CPU live streams need. Part of the machine is reserved for live streams and
+ * the rest is split into slots of {@code threadsPerJob} encoder threads. Queued work is started
+ * by priority class, round robin between users within a class, and only while the measured CPU
+ * load is below the transcode limit.
+ */
+@Service
+@Slf4j
+public class TranscodeScheduler {
+
+    /** Dispatch order of queued work. Shorts and optimizations of free users are conversions. */
+    public enum Priority {
+        PAID,
+        CONVERSION,
+        MERGE
+    }
+
+    private record Task(String username, String label, Runnable work) {
+    }
+
+    // Re-check the CPU load at least this often while work is held back
+    private static final long LOAD_RECHECK_MS = 2000;
+
+    private final int maxConcurrent;
+    private final int threadsPerJob;
+    private final double maxCpuLoad;
+    private final int maxQueued;
+    private final int maxQueuedPerUser;
+    private final DoubleSupplier cpuLoad;
+
+    // Per class: username -> that user's queued tasks, users in round robin order
+    private final Map<Priority, LinkedHashMap<String, Deque<Task>>> queues = new EnumMap<>(Priority.class);
+    private final List<Thread> workers = new ArrayList<>();
+    private int queued;
+    private int running;
+    private volatile boolean stopped;
+
+    public TranscodeScheduler(
+            @Value("${app.transcode.max-concurrent:0}") int maxConcurrent,
+            @Value("${app.transcode.threads-per-job:2}") int threadsPerJob,
+            @Value("${app.transcode.live-reserved-cores:0}") int liveReservedCores,
+            @Value("${app.transcode.max-cpu-load:0.75}") double maxCpuLoad,
+            @Value("${app.transcode.max-queued:50}") int maxQueued,
+            @Value("${app.transcode.max-queued-per-user:3}") int maxQueuedPerUser) {
+        this(maxConcurrent > 0 ? maxConcurrent : defaultConcurrency(liveReservedCores, threadsPerJob),
+                threadsPerJob, maxCpuLoad, maxQueued, maxQueuedPerUser, StreamAdmissionService::systemCpuLoad);
+    }
+
+    TranscodeScheduler(int maxConcurrent, int threadsPerJob, double maxCpuLoad, int maxQueued, int maxQueuedPerUser,
+                       DoubleSupplier cpuLoad) {
+        this.maxConcurrent = maxConcurrent;
+        this.threadsPerJob = threadsPerJob;
+        this.maxCpuLoad = maxCpuLoad;
+        this.maxQueued = maxQueued;
+        this.maxQueuedPerUser = maxQueuedPerUser;
+        this.cpuLoad = cpuLoad;
+        for (Priority priority : Priority.values()) queues.put(priority, new LinkedHashMap<>());
+    }
+
+    @PostConstruct
+    public void start() {
+        log.info("Transcode scheduler: {} concurrent jobs, {} threads each", maxConcurrent, threadsPerJob);
+        for (int i = 0; i < maxConcurrent; i++) {
+            Thread worker = new Thread(this::workLoop, "transcode-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopped = true;
+        workers.forEach(Thread::interrupt);
+    }
+
+    public int getThreadsPerJob() {
+        return threadsPerJob;
+    }
+
+    /**
+     * Queues work for a user. {@code label} identifies it for {@link #getQueuePosition}.
+     *
+     * @throws IllegalStateException if the queue or the user's share of it is full
+     */
+    public synchronized void submit(String username, Priority priority, String label, Runnable work) {
+        if (queued >= maxQueued) {
+            throw new IllegalStateException("Too many videos are being processed. Please try again in a few minutes.");
+        }
+        long userQueued = queues.values().stream()
+                .map(users -> users.get(username))
+                .filter(tasks -> tasks != null)
+                .mapToLong(Deque::size)
+                .sum();
+        if (userQueued >= maxQueuedPerUser) {
+            throw new IllegalStateException("You already have " + userQueued + " videos waiting to be processed.");
+        }
+        queues.get(priority).computeIfAbsent(username, k -> new ArrayDeque<>()).add(new Task(username, label, work));
+        queued++;
+        notifyAll();
+    }
+
+    /**
+     * 1-based position of the user's queued work in dispatch order, empty once it has started.
+     */
+    public synchronized OptionalInt getQueuePosition(String username, String label) {
+        int position = 0;
+        for (Priority priority : Priority.values()) {
+            // Replay the round robin on copies of the per-user queues
+            LinkedHashMap<String, Deque<Task>> users = new LinkedHashMap<>();
+            queues.get(priority).forEach((user, tasks) -> users.put(user, new ArrayDeque<>(tasks)));
+            Task task;
+            while ((task = pollNext(users)) != null) {
+                position++;
+                if (task.username().equals(username) && task.label().equals(label)) return OptionalInt.of(position);
+            }
+        }
+        return OptionalInt.empty();
+    }
+
+    /**
+     * Lends up to {@code wanted} idle slots to a running job that can split its work, such as a
+     * chunked optimize. Nothing is lent while work is queued or the CPU is above the limit, so
+     * lending never holds back queued jobs. Lent slots count as running until
+     * {@link #returnSlots}.
+     */
+    public synchronized int borrowIdleSlots(int wanted) {
+        if (queued > 0 || wanted <= 0) return 0;
+        double load = cpuLoad.getAsDouble();
+        if (load >= maxCpuLoad) return 0;
+        int lent = Math.min(wanted, Math.max(0, maxConcurrent - running));
+        running += lent;
+        return lent;
+    }
+
+    public synchronized void returnSlots(int count) {
+        if (count <= 0) return;
+        running -= count;
+        notifyAll();
+    }
+
+    public synchronized Map<String, Object> getSnapshot() {
+        return Map.of("maxConcurrent", maxConcurrent, "running", running, "queued", queued);
+    }
+
+    private void workLoop() {
+        while (!stopped) {
+            Task task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                task.work().run();
+            } catch (RuntimeException e) {
+                log.error("Transcode {} of {} failed", task.label(), task.username(), e);
+            } finally {
+                synchronized (this) {
+                    running--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private synchronized Task take() throws InterruptedException {
+        while (true) {
+            // Slots lent by borrowIdleSlots count as running, queued work waits for their return
+            if (queued > 0 && running < maxConcurrent) {
+                // An idle node always runs one job so the queue cannot stall on background load
+                double load = cpuLoad.getAsDouble();
+                if (running == 0 || load < 0 || load < maxCpuLoad) {
+                    Task task = next();
+                    queued--;
+                    running++;
+                    return task;
+                }
+            }
+            wait(LOAD_RECHECK_MS);
+        }
+    }
+
+    private Task next() {
+        for (Priority priority : Priority.values()) {
+            Task task = pollNext(queues.get(priority));
+            if (task != null) return task;
+        }
+        throw new IllegalStateException("Transcode queue count out of sync");
+    }
+
+    // Takes the first user's oldest task and moves that user to the back of the line
+    private static Task pollNext(LinkedHashMap<String, Deque<Task>> users) {
+        Iterator<Map.Entry<String, Deque<Task>>> it = users.entrySet().iterator();
+        if (!it.hasNext()) return null;
+        Map.Entry<String, Deque<Task>> first = it.next();
+        it.remove();
+        Task task = first.getValue().poll();
+        if (!first.getValue().isEmpty()) users.put(first.getKey(), first.getValue());
+        return task;
+    }
+
+    static int defaultConcurrency(int liveReservedCores, int threadsPerJob) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int reserved = liveReservedCores > 0 ? liveReservedCores : cores / 2;
+        return Math.max(1, (cores - reserved) / Math.max(1, threadsPerJob));
+    }
+}
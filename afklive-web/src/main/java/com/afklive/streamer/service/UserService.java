@@ -8,6 +8,9 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import org.springframework.security.crypto.password.PasswordEncoder;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -162,6 +165,15 @@ public class UserService {
         userRepository.addUnpaidBalance(username, amount);
     }
 
+    // Users by username in one query; unknown usernames are absent from the map
+    public Map<String, User> findUsers(Collection<String> usernames) {
+        Map<String, User> users = new HashMap<>();
+        for (User user : userRepository.findAllById(usernames)) {
+            users.put(user.getUsername(), user);
+        }
+        return users;
+    }
+
     @Transactional
     public void clearUnpaidBalance(String username, double amount) {
         // Ensure user exists
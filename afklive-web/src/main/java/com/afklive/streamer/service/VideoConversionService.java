@@ -1,14 +1,23 @@
 package com.afklive.streamer.service;
 
+import com.afklive.streamer.dto.ConversionProgress;
+import com.afklive.streamer.dto.StreamMetrics;
+import com.afklive.streamer.model.ContentBlob;
+import com.afklive.streamer.model.OffloadJob;
+import com.afklive.streamer.model.PlanType;
 import com.afklive.streamer.model.ScheduledVideo;
+import com.afklive.streamer.repository.OffloadJobRepository;
 import com.afklive.streamer.repository.ScheduledVideoRepository;
 import com.afklive.streamer.util.AppConstants;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.core.SdkBytes;
@@ -16,18 +25,32 @@ import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
 import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.lambda.LambdaClient;
+import software.amazon.awssdk.services.lambda.model.InvocationType;
 import software.amazon.awssdk.services.lambda.model.InvokeRequest;
 import software.amazon.awssdk.services.lambda.model.InvokeResponse;
 
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 import com.github.benmanes.caffeine.cache.Cache;
@@ -37,29 +60,67 @@ import com.github.benmanes.caffeine.cache.Caffeine;
 @Slf4j
 public class VideoConversionService {
 
+    // Progress is pushed on every percent, otherwise at most this often to refresh speed and ETA
+    private static final long PROGRESS_PUSH_INTERVAL_MS = 2000;
+    private static final long PROGRESS_STREAM_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(30);
+    // FFmpeg output kept for the log when a transcode fails
+    private static final int FAILURE_LOG_LINES = 30;
+    // Videos are split for parallel encoding into chunks of at least this many seconds
+    private static final double MIN_CHUNK_SECONDS = 60;
+    private static final int MAX_LOCAL_CHUNKS = 8;
+    private static final int MAX_LAMBDA_CHUNKS = 16;
+    // Completion records of offloaded jobs, written by the optimizer function
+    private static final String OFFLOAD_RECORD_PREFIX = "offload-jobs/";
+    private static final long OFFLOAD_POLL_SECONDS = 10;
+    // Three attempts of an Event invoke at the longest function run, and the delays between them
+    private static final Duration OFFLOAD_TIMEOUT = Duration.ofMinutes(50);
+
     private final FileStorageService storageService;
     private final UserService userService;
     private final ScheduledVideoRepository repository;
+    private final TranscodeScheduler transcodeScheduler;
+    private final ContentBlobService contentBlobService;
+    private final MediaMetadataService mediaMetadataService;
+    private final OffloadJobRepository offloadJobRepository;
     private final Cache<String, Integer> conversionProgress = Caffeine.newBuilder()
             .expireAfterWrite(30, TimeUnit.MINUTES)
             .build();
+    // Speed and ETA behind conversionProgress, pushed to subscribers as it changes
+    private final Cache<String, ConversionProgress> progressDetails = Caffeine.newBuilder()
+            .expireAfterWrite(30, TimeUnit.MINUTES)
+            .build();
+    private final Map<String, Set<SseEmitter>> progressSubscribers = new ConcurrentHashMap<>();
     private final Set<String> activeOptimizations = ConcurrentHashMap.newKeySet();
     private final ObjectMapper objectMapper = new ObjectMapper();
 
     private final LambdaClient lambdaClient;
     private final String lambdaFunctionName;
+    // Only when optimizations are offloaded with Event invokes
+    private final ScheduledExecutorService offloadPoller;
+    // Synchronous optimizer invokes wait on Lambda, not on this node's CPU, so they do not take a
+    // transcode slot
+    private final ExecutorService remoteOptimizations = Executors.newVirtualThreadPerTaskExecutor();
 
     public VideoConversionService(
             FileStorageService storageService,
             UserService userService,
             ScheduledVideoRepository repository,
+            TranscodeScheduler transcodeScheduler,
+            ContentBlobService contentBlobService,
+            MediaMetadataService mediaMetadataService,
+            OffloadJobRepository offloadJobRepository,
             @Value("${app.aws.access-key:}") String awsAccessKey,
             @Value("${app.aws.secret-key:}") String awsSecretKey,
             @Value("${app.aws.region:us-east-1}") String awsRegion,
-            @Value("${app.aws.function-name:}") String lambdaFunctionName) {
+            @Value("${app.aws.function-name:}") String lambdaFunctionName,
+            @Value("${app.aws.invocation-mode:sync}") String invocationMode) {
         this.storageService = storageService;
         this.userService = userService;
         this.repository = repository;
+        this.transcodeScheduler = transcodeScheduler;
+        this.contentBlobService = contentBlobService;
+        this.mediaMetadataService = mediaMetadataService;
+        this.offloadJobRepository = offloadJobRepository;
         this.lambdaFunctionName = lambdaFunctionName;
 
         if (awsAccessKey != null && !awsAccessKey.isEmpty() && awsSecretKey != null && !awsSecretKey.isEmpty()) {
@@ -77,22 +138,59 @@ public class VideoConversionService {
         } else {
             this.lambdaClient = null;
         }
+
+        if ("async".equalsIgnoreCase(invocationMode) && lambdaConfigured()) {
+            this.offloadPoller = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "offload-poller");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.offloadPoller = null;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        // Also picks up jobs offloaded before a restart
+        if (offloadPoller != null) {
+            offloadPoller.scheduleWithFixedDelay(this::pollOffloadJobsSafely, OFFLOAD_POLL_SECONDS, OFFLOAD_POLL_SECONDS,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (offloadPoller != null) offloadPoller.shutdownNow();
+        remoteOptimizations.shutdownNow();
+    }
+
+    private boolean lambdaConfigured() {
+        return lambdaClient != null && lambdaFunctionName != null && !lambdaFunctionName.isEmpty();
     }
 
-    @Async
     public void convertVideo(Path userDir, String username, String fileName) {
         // ... kept for legacy, redirects to optimize default
         optimizeVideo(userDir, username, fileName, "landscape", 1080);
     }
 
-    @Async
     public void convertToShort(Path userDir, String username, String fileName) {
         // Reuse new optimize logic with portrait settings
-        optimizeVideo(userDir, username, fileName, "portrait", 1920);
+        queueOptimization(username, fileName, "portrait", 1920);
     }
 
-    @Async
+    /**
+     * Queues an optimization on the transcode scheduler, or hands it to the optimizer function when
+     * one is configured, and returns immediately. If the same content was already optimized with
+     * these settings the earlier output is reused instead.
+     *
+     * @throws IllegalStateException if the transcode queue is full, or a reused copy exceeds the storage quota
+     */
     public void optimizeVideo(Path userDir, String username, String fileName, String mode, int height) {
+        queueOptimization(username, fileName, mode, height);
+    }
+
+    private void queueOptimization(String username, String fileName, String mode, int height) {
         String lockKey = username + ":" + fileName;
         if (!activeOptimizations.add(lockKey)) {
             log.warn("Optimization already in progress for {}: {}", username, fileName);
@@ -108,266 +206,1203 @@ public class VideoConversionService {
             return;
         }
 
-        String targetSuffix = String.format("_%s_%dp", mode, height);
-        // Clean up title if it already has extension
-        String baseTitle = fileName.lastIndexOf('.') > 0 ? fileName.substring(0, fileName.lastIndexOf('.')) : fileName;
-        String targetTitle = baseTitle + targetSuffix + ".mp4";
-
         String progressKey = username + ":" + fileName;
-        conversionProgress.put(progressKey, 0);
+        Optional<ContentBlob> rendition = contentBlobService.retainRendition(scheduledVideo.getContentHash(), mode, height);
+        if (rendition.isPresent()) {
+            try {
+                reuseRendition(scheduledVideo, username, fileName, mode, height, rendition.get());
+                publishProgress(progressKey, ConversionProgress.of(100));
+            } finally {
+                activeOptimizations.remove(lockKey);
+            }
+            return;
+        }
 
-        // Try Lambda Optimization first
-        if (lambdaClient != null && lambdaFunctionName != null && !lambdaFunctionName.isEmpty()) {
+        if (offloadPoller != null) {
+            if (offloadJobRepository.existsByVideoIdAndModeAndHeightAndClosedFalse(scheduledVideo.getId(), mode, height)) {
+                log.warn("Optimization already offloaded for {}: {}", username, fileName);
+                activeOptimizations.remove(lockKey);
+                return;
+            }
+            publishProgress(progressKey, ConversionProgress.of(0));
             try {
-                log.info("Attempting optimization via Lambda for {}: {}", username, fileName);
+                offload(scheduledVideo, username, fileName, mode, height);
+            } catch (RuntimeException e) {
+                activeOptimizations.remove(lockKey);
+                conversionProgress.invalidate(progressKey);
+                progressDetails.invalidate(progressKey);
+                throw e;
+            }
+            return;
+        }
 
-                String finalS3Key = UUID.randomUUID() + "_" + targetTitle;
+        publishProgress(progressKey, ConversionProgress.of(0));
+        if (lambdaConfigured()) {
+            remoteOptimizations.execute(() -> runOptimization(scheduledVideo, username, fileName, mode, height));
+            return;
+        }
+        log.info("Lambda not configured, using local optimization for {}", fileName);
+        try {
+            transcodeScheduler.submit(username, priorityOf(username, TranscodeScheduler.Priority.CONVERSION), progressKey,
+                    () -> runLocalOptimization(scheduledVideo, username, fileName, mode, height));
+        } catch (IllegalStateException e) {
+            activeOptimizations.remove(lockKey);
+            conversionProgress.invalidate(progressKey);
+            progressDetails.invalidate(progressKey);
+            throw e;
+        }
+    }
 
-                Map<String, String> payload = new HashMap<>();
-                payload.put("file_name", scheduledVideo.getS3Key());
-                payload.put("mode", mode);
-                payload.put("height", String.valueOf(height));
-                payload.put("username", username);
-                payload.put("output_key", finalS3Key);
+    // Saves a retained rendition of the same content as the user's copy
+    private void reuseRendition(ScheduledVideo source, String username, String fileName, String mode, int height,
+                                ContentBlob blob) {
+        try {
+            log.info("Reusing {} {}p rendition of {} for {}", mode, height, fileName, username);
+            userService.checkStorageQuota(username, blob.getSize());
+            userService.updateStorageUsage(username, blob.getSize());
+            saveRendition(source, username, targetTitle(fileName, mode, height), blob.getStorageKey(),
+                    blob.getSize(), blob.getHash());
+        } catch (RuntimeException e) {
+            contentBlobService.release(blob.getStorageKey());
+            throw e;
+        }
+    }
 
-                String jsonPayload = objectMapper.writeValueAsString(payload);
+    /**
+     * Queues an optimization to several renditions in one transcode, e.g. a landscape 1080p and a
+     * portrait short, each saved as its own library video. The source is decoded once for all of
+     * them; renditions the same content already has are reused as in {@link #optimizeVideo}. The
+     * ladder always runs locally, handing it to the optimizer function would decode per rendition.
+     *
+     * @throws IllegalStateException if the transcode queue is full, or a reused copy exceeds the storage quota
+     */
+    public void optimizeLadder(String username, String fileName, List<FFmpegCommandBuilder.Rendition> renditions) {
+        String lockKey = username + ":" + fileName;
+        if (!activeOptimizations.add(lockKey)) {
+            log.warn("Optimization already in progress for {}: {}", username, fileName);
+            return;
+        }
 
-                InvokeRequest request = InvokeRequest.builder()
-                        .functionName(lambdaFunctionName)
-                        .payload(SdkBytes.fromUtf8String(jsonPayload))
-                        .build();
+        ScheduledVideo scheduledVideo = repository.findByUsernameAndTitle(username, fileName).orElse(null);
+        if (scheduledVideo == null) {
+            log.error("Video not found for optimization: {}", fileName);
+            activeOptimizations.remove(lockKey);
+            return;
+        }
 
-                InvokeResponse response = lambdaClient.invoke(request);
-                String responseString = response.payload().asUtf8String();
+        String progressKey = username + ":" + fileName;
+        List<FFmpegCommandBuilder.Rendition> remaining = new ArrayList<>();
+        try {
+            for (FFmpegCommandBuilder.Rendition rendition : new LinkedHashSet<>(renditions)) {
+                Optional<ContentBlob> reused = contentBlobService.retainRendition(scheduledVideo.getContentHash(),
+                        rendition.mode(), rendition.height());
+                if (reused.isPresent()) {
+                    reuseRendition(scheduledVideo, username, fileName, rendition.mode(), rendition.height(), reused.get());
+                } else {
+                    remaining.add(rendition);
+                }
+            }
+        } catch (RuntimeException e) {
+            activeOptimizations.remove(lockKey);
+            throw e;
+        }
+        if (remaining.isEmpty()) {
+            publishProgress(progressKey, ConversionProgress.of(100));
+            activeOptimizations.remove(lockKey);
+            return;
+        }
 
-                // Parse response
-                JsonNode responseNode = objectMapper.readTree(responseString);
+        publishProgress(progressKey, ConversionProgress.of(0));
+        try {
+            transcodeScheduler.submit(username, priorityOf(username, TranscodeScheduler.Priority.CONVERSION), progressKey,
+                    () -> runLadder(scheduledVideo, username, fileName, remaining));
+        } catch (IllegalStateException e) {
+            activeOptimizations.remove(lockKey);
+            conversionProgress.invalidate(progressKey);
+            progressDetails.invalidate(progressKey);
+            throw e;
+        }
+    }
 
-                if (responseNode.has("status") && "success".equals(responseNode.get("status").asText())) {
-                    String optimizedKey = responseNode.get("optimizedKey").asText();
-                    long fileSize = responseNode.get("fileSize").asLong();
+    /**
+     * Encodes the renditions in one FFmpeg run to scratch files, then uploads them side by side
+     * so the multipart uploads overlap instead of queueing behind each other.
+     */
+    private void runLadder(ScheduledVideo scheduledVideo, String username, String fileName,
+                           List<FFmpegCommandBuilder.Rendition> renditions) {
+        String lockKey = username + ":" + fileName;
+        String progressKey = username + ":" + fileName;
+        Path tempDir = null;
+        try {
+            tempDir = Files.createTempDirectory("ladder_");
+            Optional<String> direct = storageService.directLocation(scheduledVideo.getS3Key());
+            String source;
+            if (direct.isPresent()) {
+                source = direct.get();
+            } else {
+                Path download = tempDir.resolve("source");
+                storageService.downloadFileToPath(scheduledVideo.getS3Key(), download);
+                source = download.toString();
+            }
 
-                    log.info("Lambda optimization successful. New key: {}", optimizedKey);
+            List<String> outputs = new ArrayList<>();
+            for (int i = 0; i < renditions.size(); i++) outputs.add(tempDir.resolve("rendition_" + i + ".mp4").toString());
+            // The ladder takes one transcode slot, its outputs share the threads of that slot
+            int threads = transcodeScheduler.getThreadsPerJob() > 0
+                    ? Math.max(1, transcodeScheduler.getThreadsPerJob() / renditions.size())
+                    : 0;
+            List<String> command = FFmpegCommandBuilder.buildOptimizeLadderCommand(source, renditions, outputs, threads);
+
+            log.info("Starting ladder optimization for {}: {} -> {}", username, fileName, renditions);
+            double duration = scheduledVideo.getDurationSeconds() != null
+                    ? scheduledVideo.getDurationSeconds()
+                    : probeDuration(source);
+            int exitCode = runTranscode(command, 0, duration, progressKey);
+            if (exitCode != 0) throw new IOException("FFmpeg exited with " + exitCode);
+
+            Map<FFmpegCommandBuilder.Rendition, Future<ContentBlobService.StoredBlob>> uploads = new LinkedHashMap<>();
+            try (ExecutorService uploaders = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < renditions.size(); i++) {
+                    FFmpegCommandBuilder.Rendition rendition = renditions.get(i);
+                    Path output = Path.of(outputs.get(i));
+                    String targetTitle = targetTitle(fileName, rendition.mode(), rendition.height());
+                    uploads.put(rendition, uploaders.submit(() -> {
+                        try (InputStream in = Files.newInputStream(output)) {
+                            return scheduledVideo.getContentHash() != null
+                                    ? contentBlobService.storeRendition(in, targetTitle, Files.size(output),
+                                            scheduledVideo.getContentHash(), rendition.mode(), rendition.height())
+                                    : contentBlobService.store(in, targetTitle, Files.size(output));
+                        }
+                    }));
+                }
+            }
 
-                    userService.checkStorageQuota(username, fileSize);
-                    userService.updateStorageUsage(username, fileSize);
+            // A rendition that fails to upload or exceeds the quota does not cost the others
+            int saved = 0;
+            for (Map.Entry<FFmpegCommandBuilder.Rendition, Future<ContentBlobService.StoredBlob>> upload : uploads.entrySet()) {
+                FFmpegCommandBuilder.Rendition rendition = upload.getKey();
+                String targetTitle = targetTitle(fileName, rendition.mode(), rendition.height());
+                try {
+                    ContentBlobService.StoredBlob blob = upload.getValue().get();
+                    chargeStorage(username, blob);
+                    saveRendition(scheduledVideo, username, targetTitle, blob.key(), blob.size(), blob.hash());
+                    saved++;
+                } catch (Exception e) {
+                    log.error("Failed to save {} of {}", targetTitle, fileName, e);
+                }
+            }
+            log.info("Ladder optimization of {} saved {} of {} renditions", fileName, saved, renditions.size());
+            publishProgress(progressKey, ConversionProgress.of(saved > 0 ? 100 : -1));
 
-                    // Create NEW DB Entry
-                    ScheduledVideo newVideo = new ScheduledVideo();
-                    newVideo.setUsername(username);
-                    newVideo.setTitle(targetTitle);
-                    newVideo.setS3Key(optimizedKey);
-                    newVideo.setFileSize(fileSize);
-                    newVideo.setStatus(ScheduledVideo.VideoStatus.LIBRARY);
-                    newVideo.setPrivacyStatus(AppConstants.PRIVACY_PRIVATE);
-                    newVideo.setOptimizationStatus(ScheduledVideo.OptimizationStatus.COMPLETED);
-                    newVideo.setCategoryId(scheduledVideo.getCategoryId());
-                    newVideo.setTags(scheduledVideo.getTags());
+        } catch (Exception e) {
+            log.error("Ladder optimization error", e);
+            publishProgress(progressKey, ConversionProgress.of(-1));
+        } finally {
+            if (tempDir != null) cleanupTempDir(tempDir);
+            activeOptimizations.remove(lockKey);
+        }
+    }
 
-                    repository.save(newVideo);
+    // Optimizes on Lambda, only a failed invoke queues the local fallback on the transcode scheduler
+    private void runOptimization(ScheduledVideo scheduledVideo, String username, String fileName, String mode, int height) {
+        String lockKey = username + ":" + fileName;
+        String targetTitle = targetTitle(fileName, mode, height);
 
-                    conversionProgress.put(progressKey, 100);
-                    activeOptimizations.remove(lockKey);
-                    return;
-                } else {
-                    log.warn("Lambda optimization returned error or non-success status: {}", responseString);
-                    // Fallback to local processing
-                }
+        String progressKey = username + ":" + fileName;
 
-            } catch (Exception e) {
-                log.error("Lambda invocation failed, falling back to local optimization", e);
-                // Fallback to local processing
+        try {
+            List<ChunkPlanner.Chunk> chunks = chunkPlan(scheduledVideo, MAX_LAMBDA_CHUNKS);
+            if (!chunks.isEmpty()) {
+                log.info("Optimizing {} for {} in {} chunks on Lambda", fileName, username, chunks.size());
+                ContentBlobService.StoredBlob blob = optimizeInChunksOnLambda(scheduledVideo, mode, height, chunks,
+                        progressKey, renditionUpload(scheduledVideo, targetTitle, mode, height));
+                finishOptimization(scheduledVideo, username, targetTitle, blob, progressKey);
+                activeOptimizations.remove(lockKey);
+                return;
             }
-        } else {
-            log.info("Lambda not configured, using local optimization for {}", fileName);
+
+            log.info("Attempting optimization via Lambda for {}: {}", username, fileName);
+
+            String finalS3Key = UUID.randomUUID() + "_" + targetTitle;
+
+            Map<String, String> payload = new HashMap<>();
+            payload.put("file_name", scheduledVideo.getS3Key());
+            payload.put("mode", mode);
+            payload.put("height", String.valueOf(height));
+            payload.put("username", username);
+            payload.put("output_key", finalS3Key);
+
+            JsonNode responseNode = invokeOptimizer(payload);
+            String optimizedKey = responseNode.get("optimizedKey").asText();
+            long fileSize = responseNode.get("fileSize").asLong();
+
+            log.info("Lambda optimization successful. New key: {}", optimizedKey);
+
+            finishOptimizedKey(scheduledVideo, username, targetTitle, optimizedKey, fileSize, mode, height, progressKey);
+            activeOptimizations.remove(lockKey);
+
+        } catch (Exception e) {
+            log.error("Lambda invocation failed, falling back to local optimization", e);
+            queueLocalOptimization(scheduledVideo, username, fileName, mode, height);
         }
+    }
 
-        Path tempDir = null;
+    private void runLocalOptimization(ScheduledVideo scheduledVideo, String username, String fileName, String mode, int height) {
+        String lockKey = username + ":" + fileName;
+        String targetTitle = targetTitle(fileName, mode, height);
+        String progressKey = username + ":" + fileName;
+        Function<InputStream, ContentBlobService.StoredBlob> upload = renditionUpload(scheduledVideo, targetTitle, mode, height);
+
+        int borrowedSlots = 0;
         try {
-            tempDir = Files.createTempDirectory("optimize_" + username + "_");
             String sourceKey = scheduledVideo.getS3Key();
 
             log.info("Starting local optimization for {}: {} -> {} ({}p)", username, fileName, mode, height);
 
-            Path sourcePath = tempDir.resolve("source.mp4");
-            storageService.downloadFileToPath(sourceKey, sourcePath);
+            // Read in place when the storage allows it, otherwise piped in from a download
+            Optional<String> source = storageService.directLocation(sourceKey);
 
-            Path targetPath = tempDir.resolve("optimized.mp4");
+            // Long videos are split when idle transcode slots can encode the chunks side by side
+            List<ChunkPlanner.Chunk> chunks = source.isPresent() ? chunkPlan(scheduledVideo, MAX_LOCAL_CHUNKS) : List.of();
+            if (!chunks.isEmpty()) borrowedSlots = transcodeScheduler.borrowIdleSlots(chunks.size() - 1);
 
-            List<String> command = FFmpegCommandBuilder.buildOptimizeCommand(sourcePath, targetPath, mode, height);
+            ContentBlobService.StoredBlob blob;
+            if (borrowedSlots > 0) {
+                log.info("Encoding {} in {} chunks on {} slots", fileName, chunks.size(), borrowedSlots + 1);
+                blob = optimizeInChunks(source.get(), scheduledVideo, mode, height, chunks, borrowedSlots + 1,
+                        progressKey, upload);
+            } else {
+                List<String> command = FFmpegCommandBuilder.asBackgroundJob(FFmpegCommandBuilder.buildOptimizeCommand(
+                        source.orElse(FFmpegCommandBuilder.PIPE_INPUT), FFmpegCommandBuilder.PIPE_OUTPUT, mode, height),
+                        transcodeScheduler.getThreadsPerJob());
+
+                double duration = scheduledVideo.getDurationSeconds() != null
+                        ? scheduledVideo.getDurationSeconds()
+                        : source.map(this::probeDuration).orElse(0.0);
+                try (InputStream stdin = source.isPresent() ? null : storageService.downloadFile(sourceKey)) {
+                    blob = streamTranscode(command, stdin, 0, duration, progressKey, upload);
+                }
+            }
+            log.info("Optimization completed for {}", fileName);
 
-            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            finishOptimization(scheduledVideo, username, targetTitle, blob, progressKey);
 
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    log.info("[FFmpeg Optimize] {}", line);
+        } catch (Exception e) {
+            log.error("Optimization error", e);
+            publishProgress(progressKey, ConversionProgress.of(-1));
+        } finally {
+            transcodeScheduler.returnSlots(borrowedSlots);
+            activeOptimizations.remove(lockKey);
+        }
+    }
+
+    private Function<InputStream, ContentBlobService.StoredBlob> renditionUpload(ScheduledVideo source, String targetTitle,
+                                                                                 String mode, int height) {
+        String contentHash = source.getContentHash();
+        return out -> contentHash != null
+                ? contentBlobService.storeRendition(out, targetTitle, -1, contentHash, mode, height)
+                : contentBlobService.store(out, targetTitle);
+    }
+
+    private void finishOptimization(ScheduledVideo source, String username, String targetTitle,
+                                    ContentBlobService.StoredBlob blob, String progressKey) {
+        chargeStorage(username, blob);
+        saveRendition(source, username, targetTitle, blob.key(), blob.size(), blob.hash());
+        publishProgress(progressKey, ConversionProgress.of(100));
+    }
+
+    // For output the optimizer function stored under a key of its own
+    private void finishOptimizedKey(ScheduledVideo source, String username, String targetTitle, String key, long size,
+                                    String mode, int height, String progressKey) {
+        try {
+            userService.checkStorageQuota(username, size);
+        } catch (RuntimeException e) {
+            deleteQuietly(key);
+            throw e;
+        }
+        userService.updateStorageUsage(username, size);
+
+        if (source.getContentHash() != null) {
+            contentBlobService.recordRendition(key, size, source.getContentHash(), mode, height);
+        }
+        saveRendition(source, username, targetTitle, key, size, null);
+        publishProgress(progressKey, ConversionProgress.of(100));
+    }
+
+    // Chunks need the duration and whether there is audio, both known once the video is probed
+    private static List<ChunkPlanner.Chunk> chunkPlan(ScheduledVideo video, int maxChunks) {
+        if (video.getVideoCodec() == null || video.getDurationSeconds() == null) return List.of();
+        return ChunkPlanner.plan(video.getDurationSeconds(), FFmpegCommandBuilder.OPTIMIZE_GOP_SECONDS,
+                MIN_CHUNK_SECONDS, maxChunks);
+    }
+
+    /**
+     * Encodes the video chunks on {@code workers} threads, each running one FFmpeg with the
+     * threads of a transcode slot, and the audio in one piece alongside. The chunks are joined
+     * with {@code -c copy} and streamed to storage. Scratch space holds the encoded chunks only.
+     */
+    private ContentBlobService.StoredBlob optimizeInChunks(String source, ScheduledVideo video, String mode, int height,
+            List<ChunkPlanner.Chunk> chunks, int workers, String progressKey,
+            Function<InputStream, ContentBlobService.StoredBlob> upload) throws IOException, InterruptedException {
+        double duration = video.getDurationSeconds();
+        int threads = transcodeScheduler.getThreadsPerJob();
+        Path tempDir = Files.createTempDirectory("chunks_");
+        try {
+            List<String> outputs = new ArrayList<>();
+            for (ChunkPlanner.Chunk chunk : chunks) outputs.add(tempDir.resolve("chunk_" + chunk.index() + ".mp4").toString());
+            Path audio = video.getAudioCodec() != null ? tempDir.resolve("audio.m4a") : null;
+
+            // Progress is the video encoded over all chunks, speed relative to wall time
+            ProgressPublisher publisher = new ProgressPublisher(progressKey, duration);
+            double[] encoded = new double[chunks.size()];
+            long started = System.currentTimeMillis();
+            AtomicInteger nextChunk = new AtomicInteger();
+            AtomicReference<String> failure = new AtomicReference<>();
+
+            List<Thread> running = new ArrayList<>();
+            if (audio != null) {
+                List<String> command = FFmpegCommandBuilder.asBackgroundJob(
+                        FFmpegCommandBuilder.buildOptimizeAudioCommand(source, audio.toString()), 1);
+                running.add(Thread.ofVirtual().start(() -> runStep(command, progressKey + " audio", metrics -> {}, failure)));
+            }
+            for (int w = 0; w < Math.min(workers, chunks.size()); w++) {
+                running.add(Thread.ofVirtual().start(() -> {
+                    int i;
+                    while (failure.get() == null && (i = nextChunk.getAndIncrement()) < chunks.size()) {
+                        ChunkPlanner.Chunk chunk = chunks.get(i);
+                        int index = i;
+                        List<String> command = FFmpegCommandBuilder.asBackgroundJob(FFmpegCommandBuilder.buildOptimizeChunkCommand(
+                                source, outputs.get(i), mode, height, chunk.start(), chunk.duration()), threads);
+                        runStep(command, progressKey + " chunk " + i, metrics -> {
+                            double done;
+                            synchronized (encoded) {
+                                encoded[index] = Math.min(metrics.outTimeSeconds(), chunk.length(duration));
+                                done = Arrays.stream(encoded).sum();
+                            }
+                            double elapsed = (System.currentTimeMillis() - started) / 1000.0;
+                            publisher.publish(done, elapsed > 0 ? done / elapsed : 0);
+                        }, failure);
+                    }
+                }));
+            }
+            for (Thread thread : running) thread.join();
+            if (failure.get() != null) throw new IOException(failure.get());
+
+            Path list = MergePlanner.writeConcatList(outputs, tempDir.resolve("chunks.txt"));
+            List<String> join = FFmpegCommandBuilder.asBackgroundJob(FFmpegCommandBuilder.buildChunkJoinCommand(
+                    list, audio != null ? audio.toString() : null, FFmpegCommandBuilder.PIPE_OUTPUT), 0);
+            return streamTranscode(join, null, duration, duration, progressKey, upload);
+        } finally {
+            cleanupTempDir(tempDir);
+        }
+    }
+
+    /**
+     * Encodes every chunk, and the audio, in its own optimizer invocation so a long video is not
+     * limited by the time one invocation may run. The outputs are joined from storage with
+     * {@code -c copy} and deleted afterwards.
+     */
+    private ContentBlobService.StoredBlob optimizeInChunksOnLambda(ScheduledVideo video, String mode, int height,
+            List<ChunkPlanner.Chunk> chunks, String progressKey,
+            Function<InputStream, ContentBlobService.StoredBlob> upload) throws Exception {
+        double duration = video.getDurationSeconds();
+        String[] outputs = new String[chunks.size()];
+        String[] audio = new String[1];
+        ProgressPublisher publisher = new ProgressPublisher(progressKey, duration);
+        double[] encoded = {0};
+        try {
+            try (ExecutorService invocations = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<?>> pending = new ArrayList<>();
+                for (ChunkPlanner.Chunk chunk : chunks) {
+                    Map<String, String> payload = optimizerPayload(video, mode, height, "chunk_" + chunk.index() + ".mp4");
+                    payload.put("start_seconds", String.valueOf(chunk.start()));
+                    if (chunk.duration() != null) payload.put("duration_seconds", String.valueOf(chunk.duration()));
+                    pending.add(invocations.submit(() -> {
+                        outputs[chunk.index()] = invokeOptimizer(payload).get("optimizedKey").asText();
+                        synchronized (encoded) {
+                            encoded[0] += chunk.length(duration);
+                            publisher.publish(encoded[0], 0);
+                        }
+                        return null;
+                    }));
+                }
+                if (video.getAudioCodec() != null) {
+                    Map<String, String> payload = optimizerPayload(video, mode, height, "audio.m4a");
+                    payload.put("audio_only", "true");
+                    pending.add(invocations.submit(() -> {
+                        audio[0] = invokeOptimizer(payload).get("optimizedKey").asText();
+                        return null;
+                    }));
                 }
+                for (Future<?> invocation : pending) invocation.get();
             }
+            return joinChunks(Arrays.asList(outputs), audio[0], duration, progressKey, upload);
+        } finally {
+            for (String key : outputs) deleteQuietly(key);
+            deleteQuietly(audio[0]);
+        }
+    }
 
-            int exitCode = process.waitFor();
-            if (exitCode == 0) {
-                log.info("Optimization completed for {}", fileName);
+    // Joins chunks encoded by the optimizer function, read from storage in place
+    private ContentBlobService.StoredBlob joinChunks(List<String> chunkKeys, String audioKey, double duration,
+            String progressKey, Function<InputStream, ContentBlobService.StoredBlob> upload)
+            throws IOException, InterruptedException {
+        Path tempDir = Files.createTempDirectory("chunks_");
+        try {
+            List<String> inputs = new ArrayList<>();
+            for (String key : chunkKeys) inputs.add(readableLocation(key));
+            Path list = MergePlanner.writeConcatList(inputs, tempDir.resolve("chunks.txt"));
+            List<String> join = FFmpegCommandBuilder.asBackgroundJob(FFmpegCommandBuilder.buildChunkJoinCommand(
+                    list, audioKey != null ? readableLocation(audioKey) : null, FFmpegCommandBuilder.PIPE_OUTPUT), 0);
+            return streamTranscode(join, null, duration, duration, progressKey, upload);
+        } finally {
+            cleanupTempDir(tempDir);
+        }
+    }
 
-                long newSize = Files.size(targetPath);
-                userService.checkStorageQuota(username, newSize);
+    /**
+     * Hands the optimization to the optimizer function with Event invokes, which return once the
+     * event is queued instead of holding a connection for the whole encode. The jobs are saved
+     * before invoking so no completion goes unnoticed, and the poller finishes the optimization
+     * when all of them have completed. The optimization stays locked until then.
+     */
+    private void offload(ScheduledVideo video, String username, String fileName, String mode, int height) {
+        String targetTitle = targetTitle(fileName, mode, height);
+        List<ChunkPlanner.Chunk> chunks = chunkPlan(video, MAX_LAMBDA_CHUNKS);
+        String groupId = chunks.isEmpty() ? null : UUID.randomUUID().toString();
+
+        List<OffloadJob> jobs = new ArrayList<>();
+        List<Map<String, String>> payloads = new ArrayList<>();
+        if (chunks.isEmpty()) {
+            payloads.add(optimizerPayload(video, mode, height, targetTitle));
+            jobs.add(offloadJob(video, fileName, mode, height, targetTitle, null, null, false, payloads.getLast()));
+        } else {
+            for (ChunkPlanner.Chunk chunk : chunks) {
+                Map<String, String> payload = optimizerPayload(video, mode, height, "chunk_" + chunk.index() + ".mp4");
+                payload.put("start_seconds", String.valueOf(chunk.start()));
+                if (chunk.duration() != null) payload.put("duration_seconds", String.valueOf(chunk.duration()));
+                payloads.add(payload);
+                jobs.add(offloadJob(video, fileName, mode, height, targetTitle, groupId, chunk.index(), false, payload));
+            }
+            if (video.getAudioCodec() != null) {
+                Map<String, String> payload = optimizerPayload(video, mode, height, "audio.m4a");
+                payload.put("audio_only", "true");
+                payloads.add(payload);
+                jobs.add(offloadJob(video, fileName, mode, height, targetTitle, groupId, null, true, payload));
+            }
+        }
+        offloadJobRepository.saveAll(jobs);
 
-                String newKey = storageService.uploadFile(Files.newInputStream(targetPath), targetTitle, newSize);
+        for (int i = 0; i < jobs.size(); i++) {
+            try {
+                invokeOptimizerAsync(payloads.get(i));
+            } catch (Exception e) {
+                // The poller falls back to a local transcode once the jobs already invoked complete
+                log.error("Failed to offload {} for {}", fileName, username, e);
+                for (OffloadJob job : jobs.subList(i, jobs.size())) {
+                    offloadJobRepository.complete(job.getId(), OffloadJob.Status.FAILED, null,
+                            "Invoke failed: " + e.getMessage(), ZonedDateTime.now());
+                }
+                return;
+            }
+        }
+        log.info("Offloaded optimization of {} for {} as {} job(s)", fileName, username, jobs.size());
+    }
 
-                userService.updateStorageUsage(username, newSize);
+    private static OffloadJob offloadJob(ScheduledVideo video, String fileName, String mode, int height, String targetTitle,
+                                         String groupId, Integer chunkIndex, boolean audioOnly, Map<String, String> payload) {
+        OffloadJob job = new OffloadJob();
+        job.setId(UUID.randomUUID().toString());
+        job.setGroupId(groupId);
+        job.setChunkIndex(chunkIndex);
+        job.setAudioOnly(audioOnly);
+        job.setVideoId(video.getId());
+        job.setUsername(video.getUsername());
+        job.setFileName(fileName);
+        job.setMode(mode);
+        job.setHeight(height);
+        job.setTargetTitle(targetTitle);
+        job.setOutputKey(payload.get("output_key"));
+        job.setStatus(OffloadJob.Status.PENDING);
+        job.setCreatedAt(ZonedDateTime.now());
+        payload.put("job_id", job.getId());
+        return job;
+    }
 
-                // Create NEW DB Entry
-                ScheduledVideo newVideo = new ScheduledVideo();
-                newVideo.setUsername(username);
-                newVideo.setTitle(targetTitle);
-                newVideo.setS3Key(newKey);
-                newVideo.setFileSize(newSize);
-                newVideo.setStatus(ScheduledVideo.VideoStatus.LIBRARY);
-                newVideo.setPrivacyStatus(AppConstants.PRIVACY_PRIVATE);
-                newVideo.setOptimizationStatus(ScheduledVideo.OptimizationStatus.COMPLETED);
-                // Inherit category/tags? Maybe
-                newVideo.setCategoryId(scheduledVideo.getCategoryId());
-                newVideo.setTags(scheduledVideo.getTags());
+    private void pollOffloadJobsSafely() {
+        try {
+            pollOffloadJobs();
+        } catch (Exception e) {
+            log.error("Failed to poll offloaded optimizations", e);
+        }
+    }
 
-                repository.save(newVideo);
+    /**
+     * Records the outcome of offloaded jobs whose completion record appeared or that timed out,
+     * then acts on every optimization whose jobs have all completed.
+     */
+    void pollOffloadJobs() {
+        Map<String, List<OffloadJob>> optimizations = new LinkedHashMap<>();
+        for (OffloadJob job : offloadJobRepository.findByClosedFalse()) {
+            if (job.getStatus() == OffloadJob.Status.PENDING) settleOffloadJob(job);
+            optimizations.computeIfAbsent(job.getGroupId() != null ? job.getGroupId() : job.getId(),
+                    k -> new ArrayList<>()).add(job);
+        }
+
+        for (List<OffloadJob> jobs : optimizations.values()) {
+            OffloadJob first = jobs.getFirst();
+            String progressKey = first.getUsername() + ":" + first.getFileName();
+            if (jobs.stream().anyMatch(job -> job.getStatus() == OffloadJob.Status.PENDING)) {
+                // Chunks are encoded side by side, so this only moves in steps
+                long chunks = jobs.stream().filter(job -> job.getChunkIndex() != null).count();
+                long done = jobs.stream().filter(job -> job.getChunkIndex() != null && job.getStatus() == OffloadJob.Status.SUCCEEDED).count();
+                if (done > 0) publishProgress(progressKey, ConversionProgress.of((int) (done * 99 / chunks)));
+                continue;
+            }
+            // Another instance may be polling the same jobs, only the one closing them acts
+            if (offloadJobRepository.close(jobs.stream().map(OffloadJob::getId).toList()) != jobs.size()) continue;
+            try {
+                completeOffload(jobs);
+            } catch (Exception e) {
+                log.error("Failed to complete offloaded optimization of {}", progressKey, e);
+                publishProgress(progressKey, ConversionProgress.of(-1));
+                activeOptimizations.remove(progressKey);
+            }
+        }
+    }
 
-                conversionProgress.put(progressKey, 100);
+    // Records the outcome if the job completed. A job recorded by another instance stays pending until the next poll.
+    private void settleOffloadJob(OffloadJob job) {
+        String recordKey = OFFLOAD_RECORD_PREFIX + job.getId() + ".json";
+        OffloadJob.Status status;
+        Long size = null;
+        String message = null;
+        boolean recorded = storageService.exists(recordKey);
+        if (recorded) {
+            JsonNode record;
+            try (InputStream in = storageService.downloadFile(recordKey)) {
+                record = objectMapper.readTree(in);
+            } catch (IOException e) {
+                log.warn("Unreadable completion record of offloaded job {}", job.getId(), e);
+                return;
+            }
+            if ("success".equals(record.path("status").asText())) {
+                status = OffloadJob.Status.SUCCEEDED;
+                size = record.path("file_size").asLong();
             } else {
-                log.error("Optimization failed (code {})", exitCode);
-                conversionProgress.put(progressKey, -1);
+                status = OffloadJob.Status.FAILED;
+                message = record.path("message").asText(null);
             }
+        } else if (job.getCreatedAt().isBefore(ZonedDateTime.now().minus(OFFLOAD_TIMEOUT))) {
+            status = OffloadJob.Status.FAILED;
+            message = "No completion record after " + OFFLOAD_TIMEOUT.toMinutes() + " minutes";
+        } else {
+            return;
+        }
+
+        ZonedDateTime now = ZonedDateTime.now();
+        if (offloadJobRepository.complete(job.getId(), status, size, message, now) > 0) {
+            job.setStatus(status);
+            job.setOutputSize(size);
+            job.setMessage(message);
+            job.setCompletedAt(now);
+        }
+        if (recorded) deleteQuietly(recordKey);
+    }
+
+    private void completeOffload(List<OffloadJob> jobs) {
+        OffloadJob first = jobs.getFirst();
+        String username = first.getUsername();
+        String fileName = first.getFileName();
+        String lockKey = username + ":" + fileName;
+        String progressKey = username + ":" + fileName;
+        List<String> outputs = jobs.stream()
+                .filter(job -> job.getStatus() == OffloadJob.Status.SUCCEEDED)
+                .map(OffloadJob::getOutputKey)
+                .toList();
 
+        ScheduledVideo video = repository.findById(first.getVideoId()).orElse(null);
+        if (video == null) {
+            log.warn("Video {} was deleted while being optimized", first.getVideoId());
+            outputs.forEach(this::deleteQuietly);
+            activeOptimizations.remove(lockKey);
+            return;
+        }
+
+        Optional<OffloadJob> failed = jobs.stream().filter(job -> job.getStatus() == OffloadJob.Status.FAILED).findFirst();
+        if (failed.isPresent()) {
+            log.error("Offloaded optimization of {} failed ({}), falling back to local optimization",
+                    fileName, failed.get().getMessage());
+            outputs.forEach(this::deleteQuietly);
+            queueLocalOptimization(video, username, fileName, first.getMode(), first.getHeight());
+            return;
+        }
+
+        if (first.getGroupId() == null) {
+            try {
+                finishOptimizedKey(video, username, first.getTargetTitle(), first.getOutputKey(), first.getOutputSize(),
+                        first.getMode(), first.getHeight(), progressKey);
+                log.info("Offloaded optimization of {} for {} completed", fileName, username);
+            } finally {
+                activeOptimizations.remove(lockKey);
+            }
+            return;
+        }
+
+        try {
+            transcodeScheduler.submit(username, priorityOf(username, TranscodeScheduler.Priority.CONVERSION), progressKey,
+                    () -> joinOffloadedChunks(video, jobs));
+        } catch (IllegalStateException e) {
+            outputs.forEach(this::deleteQuietly);
+            throw e;
+        }
+    }
+
+    private void joinOffloadedChunks(ScheduledVideo video, List<OffloadJob> jobs) {
+        OffloadJob first = jobs.getFirst();
+        String username = first.getUsername();
+        String fileName = first.getFileName();
+        String lockKey = username + ":" + fileName;
+        String progressKey = username + ":" + fileName;
+        List<String> chunkKeys = jobs.stream()
+                .filter(job -> job.getChunkIndex() != null)
+                .sorted(Comparator.comparing(OffloadJob::getChunkIndex))
+                .map(OffloadJob::getOutputKey)
+                .toList();
+        String audioKey = jobs.stream().filter(OffloadJob::isAudioOnly).map(OffloadJob::getOutputKey).findFirst().orElse(null);
+
+        ContentBlobService.StoredBlob blob = null;
+        try {
+            blob = joinChunks(chunkKeys, audioKey, video.getDurationSeconds(), progressKey,
+                    renditionUpload(video, first.getTargetTitle(), first.getMode(), first.getHeight()));
         } catch (Exception e) {
-            log.error("Optimization error", e);
-            conversionProgress.put(progressKey, -1);
+            log.error("Failed to join offloaded chunks of {}, falling back to local optimization", fileName, e);
         } finally {
-            cleanupTempDir(tempDir);
+            chunkKeys.forEach(this::deleteQuietly);
+            deleteQuietly(audioKey);
+        }
+        if (blob == null) {
+            runLocalOptimization(video, username, fileName, first.getMode(), first.getHeight());
+            return;
+        }
+
+        try {
+            finishOptimization(video, username, first.getTargetTitle(), blob, progressKey);
+        } catch (RuntimeException e) {
+            log.error("Failed to save optimized {}", fileName, e);
+            publishProgress(progressKey, ConversionProgress.of(-1));
+        } finally {
+            activeOptimizations.remove(lockKey);
+        }
+    }
+
+    private void queueLocalOptimization(ScheduledVideo video, String username, String fileName, String mode, int height) {
+        String lockKey = username + ":" + fileName;
+        try {
+            transcodeScheduler.submit(username, priorityOf(username, TranscodeScheduler.Priority.CONVERSION), lockKey,
+                    () -> runLocalOptimization(video, username, fileName, mode, height));
+        } catch (IllegalStateException e) {
+            log.error("Cannot queue local optimization of {}", fileName, e);
+            publishProgress(lockKey, ConversionProgress.of(-1));
             activeOptimizations.remove(lockKey);
         }
     }
 
+    private Map<String, String> optimizerPayload(ScheduledVideo video, String mode, int height, String outputName) {
+        Map<String, String> payload = new HashMap<>();
+        payload.put("file_name", video.getS3Key());
+        payload.put("mode", mode);
+        payload.put("height", String.valueOf(height));
+        payload.put("username", video.getUsername());
+        payload.put("output_key", UUID.randomUUID() + "_" + outputName);
+        return payload;
+    }
+
+    // Invokes the optimizer function and returns its response
+    private JsonNode invokeOptimizer(Map<String, String> payload) throws IOException {
+        InvokeRequest request = InvokeRequest.builder()
+                .functionName(lambdaFunctionName)
+                .payload(SdkBytes.fromUtf8String(objectMapper.writeValueAsString(payload)))
+                .build();
+
+        InvokeResponse response = lambdaClient.invoke(request);
+        String responseString = response.payload().asUtf8String();
+        JsonNode responseNode = objectMapper.readTree(responseString);
+        if (!"success".equals(responseNode.path("status").asText())) {
+            throw new IllegalStateException("Optimizer returned error or non-success status: " + responseString);
+        }
+        return responseNode;
+    }
+
+    // Event invokes are queued by Lambda and answered with 202 before the function runs
+    private void invokeOptimizerAsync(Map<String, String> payload) throws IOException {
+        InvokeRequest request = InvokeRequest.builder()
+                .functionName(lambdaFunctionName)
+                .invocationType(InvocationType.EVENT)
+                .payload(SdkBytes.fromUtf8String(objectMapper.writeValueAsString(payload)))
+                .build();
+
+        InvokeResponse response = lambdaClient.invoke(request);
+        if (response.statusCode() != 202) {
+            throw new IllegalStateException("Optimizer did not accept the event, status " + response.statusCode());
+        }
+    }
+
+    private String readableLocation(String key) {
+        return storageService.directLocation(key)
+                .orElseThrow(() -> new IllegalStateException("Storage cannot be read in place: " + key));
+    }
+
+    private void deleteQuietly(String key) {
+        if (key == null) return;
+        try {
+            storageService.deleteFile(key);
+        } catch (Exception e) {
+            log.warn("Failed to delete {}", key, e);
+        }
+    }
+
+    // Runs one step of a job split into several, recording the first failure
+    private void runStep(List<String> command, String label, Consumer<StreamMetrics> onProgress,
+                         AtomicReference<String> failure) {
+        try {
+            int exitCode = runTranscode(command, label, onProgress);
+            if (exitCode != 0) failure.compareAndSet(null, label + " failed (code " + exitCode + ")");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, label + " interrupted");
+        } catch (IOException e) {
+            failure.compareAndSet(null, label + " failed: " + e.getMessage());
+        }
+    }
+
+    // The size of streamed output is only known once it is stored
+    private void chargeStorage(String username, ContentBlobService.StoredBlob blob) {
+        try {
+            userService.checkStorageQuota(username, blob.size());
+        } catch (RuntimeException e) {
+            contentBlobService.release(blob.key());
+            throw e;
+        }
+        userService.updateStorageUsage(username, blob.size());
+    }
+
+    private static String targetTitle(String fileName, String mode, int height) {
+        String targetSuffix = String.format("_%s_%dp", mode, height);
+        // Clean up title if it already has extension
+        String baseTitle = fileName.lastIndexOf('.') > 0 ? fileName.substring(0, fileName.lastIndexOf('.')) : fileName;
+        return baseTitle + targetSuffix + ".mp4";
+    }
+
+    // Creates the library entry of an optimized copy, inheriting category and tags
+    private void saveRendition(ScheduledVideo source, String username, String title, String key, long size, String contentHash) {
+        ScheduledVideo newVideo = new ScheduledVideo();
+        newVideo.setUsername(username);
+        newVideo.setTitle(title);
+        newVideo.setS3Key(key);
+        newVideo.setContentHash(contentHash);
+        newVideo.setFileSize(size);
+        newVideo.setStatus(ScheduledVideo.VideoStatus.LIBRARY);
+        newVideo.setPrivacyStatus(AppConstants.PRIVACY_PRIVATE);
+        newVideo.setOptimizationStatus(ScheduledVideo.OptimizationStatus.COMPLETED);
+        newVideo.setCategoryId(source.getCategoryId());
+        newVideo.setTags(source.getTags());
+        repository.save(newVideo);
+        mediaMetadataService.extract(newVideo.getId());
+    }
+
     public Optional<Integer> getProgress(String username, String fileName) {
         String progressKey = username + ":" + fileName;
         // Also check if optimized version exists? No, just track progress
         return Optional.ofNullable(this.conversionProgress.getIfPresent(progressKey));
     }
 
-    @Async
-    public void checkOptimizationRequirement(Long videoId) {
-        log.info("Checking optimization requirement for video ID: {}", videoId);
-        ScheduledVideo video = repository.findById(videoId).orElse(null);
-        if (video == null) {
-            log.error("Video not found for optimization check: {}", videoId);
-            return;
+    /**
+     * Position of a queued conversion or merge in the transcode queue, empty once it runs.
+     */
+    public OptionalInt getQueuePosition(String username, String fileName) {
+        return transcodeScheduler.getQueuePosition(username, username + ":" + fileName);
+    }
+
+    /**
+     * Pushes progress of a conversion or merge as "progress" events until it finishes.
+     */
+    public SseEmitter subscribeProgress(String username, String fileName) {
+        String progressKey = username + ":" + fileName;
+        SseEmitter emitter = new SseEmitter(PROGRESS_STREAM_TIMEOUT_MS);
+        progressSubscribers.computeIfAbsent(progressKey, k -> ConcurrentHashMap.newKeySet()).add(emitter);
+        emitter.onCompletion(() -> unsubscribe(progressKey, emitter));
+        emitter.onTimeout(() -> unsubscribe(progressKey, emitter));
+        emitter.onError(e -> unsubscribe(progressKey, emitter));
+
+        ConversionProgress current = progressDetails.getIfPresent(progressKey);
+        if (current == null) {
+            current = ConversionProgress.of(Optional.ofNullable(conversionProgress.getIfPresent(progressKey)).orElse(-1));
         }
+        OptionalInt position = getQueuePosition(username, fileName);
+        if (position.isPresent()) {
+            current = new ConversionProgress(current.percent(), current.etaSeconds(), current.speed(), position.getAsInt());
+        }
+        send(progressKey, emitter, current);
+        return emitter;
+    }
 
-        if (video.getS3Key() == null) {
-            log.warn("Video has no S3 key, skipping check: {}", videoId);
-            return;
+    private void publishProgress(String progressKey, ConversionProgress progress) {
+        conversionProgress.put(progressKey, progress.percent());
+        progressDetails.put(progressKey, progress);
+        Set<SseEmitter> emitters = progressSubscribers.get(progressKey);
+        if (emitters != null) {
+            for (SseEmitter emitter : emitters) send(progressKey, emitter, progress);
         }
+    }
 
-        Path tempDir = null;
+    private void send(String progressKey, SseEmitter emitter, ConversionProgress progress) {
         try {
-            tempDir = Files.createTempDirectory("check_" + videoId + "_");
-            Path tempFile = tempDir.resolve("check.mp4");
+            emitter.send(SseEmitter.event().name("progress").data(progress));
+            if (progress.finished()) emitter.complete();
+        } catch (Exception e) {
+            // Browser went away
+            unsubscribe(progressKey, emitter);
+        }
+    }
 
-            // Download from S3
-            storageService.downloadFileToPath(video.getS3Key(), tempFile);
+    private void unsubscribe(String progressKey, SseEmitter emitter) {
+        progressSubscribers.computeIfPresent(progressKey, (k, emitters) -> {
+            emitters.remove(emitter);
+            return emitters.isEmpty() ? null : emitters;
+        });
+    }
 
-            List<String> command = FFmpegCommandBuilder.buildProbeCommand(tempFile);
-            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    // Runs an FFmpeg transcode, publishing its progress instead of logging every output line. For a
+    // job of several steps, offsetSeconds of durationSeconds were done by earlier steps.
+    private int runTranscode(List<String> command, double offsetSeconds, double durationSeconds, String progressKey)
+            throws IOException, InterruptedException {
+        ProgressPublisher publisher = new ProgressPublisher(progressKey, durationSeconds);
+        return runTranscode(command, progressKey, metrics -> publisher.publish(offsetSeconds + metrics.outTimeSeconds(), metrics.speed()));
+    }
 
-            String output = "";
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                output = reader.readLine(); // We expect just the codec name
+    private int runTranscode(List<String> command, String label, Consumer<StreamMetrics> onProgress)
+            throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(FFmpegCommandBuilder.withProgress(command)).redirectErrorStream(true).start();
+        LogRingBuffer output = new LogRingBuffer(FAILURE_LOG_LINES);
+        readProgress(process.getInputStream(), output, onProgress);
+
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            log.warn("FFmpeg exited with {} for {}, last output:\n{}", exitCode, label, String.join("\n", output.snapshot()));
+        }
+        return exitCode;
+    }
+
+    /**
+     * Runs a transcode writing to {@link FFmpegCommandBuilder#PIPE_OUTPUT} and passes its stdout
+     * to {@code upload} while it runs, so the output never touches the disk. A non-null
+     * {@code stdin} is fed to FFmpeg's stdin, otherwise the command reads its input itself. The
+     * pipes carry the backpressure: FFmpeg blocks while the upload is behind, and the feeder while
+     * FFmpeg is. {@code upload} must read to the end, where the stream fails if FFmpeg did, so a
+     * broken output is never stored.
+     */
+    private ContentBlobService.StoredBlob streamTranscode(List<String> command, InputStream stdin, double offsetSeconds,
+            double durationSeconds, String progressKey, Function<InputStream, ContentBlobService.StoredBlob> upload)
+            throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(FFmpegCommandBuilder.withProgress(
+                FFmpegCommandBuilder.streamingOutput(command), "pipe:2")).start();
+        LogRingBuffer output = new LogRingBuffer(FAILURE_LOG_LINES);
+        ProgressPublisher publisher = new ProgressPublisher(progressKey, durationSeconds);
+        Thread progressReader = Thread.ofVirtual().start(() -> {
+            try {
+                readProgress(process.getErrorStream(), output,
+                        metrics -> publisher.publish(offsetSeconds + metrics.outTimeSeconds(), metrics.speed()));
+            } catch (IOException e) {
+                log.debug("Lost FFmpeg output of {}", progressKey, e);
             }
+        });
+        Thread feeder = null;
+        if (stdin != null) {
+            feeder = Thread.ofVirtual().start(() -> {
+                try (OutputStream in = process.getOutputStream()) {
+                    stdin.transferTo(in);
+                } catch (IOException e) {
+                    // FFmpeg stopped reading, its exit code tells why
+                    log.debug("Stopped feeding {}: {}", progressKey, e.getMessage());
+                }
+            });
+        } else {
+            process.getOutputStream().close();
+        }
 
-            int exitCode = process.waitFor();
-            if (exitCode == 0 && output != null) {
-                String codec = output.trim();
-                log.info("Detected codec for video {}: {}", videoId, codec);
+        try (InputStream out = new TranscodeOutput(process, progressReader)) {
+            return upload.apply(out);
+        } catch (RuntimeException | IOException e) {
+            process.destroyForcibly();
+            progressReader.join();
+            log.warn("Streaming transcode failed for {}, last output:\n{}", progressKey, String.join("\n", output.snapshot()));
+            throw e;
+        } finally {
+            if (feeder != null) feeder.join();
+        }
+    }
 
-                if ("h264".equalsIgnoreCase(codec)) {
-                    log.info("Video {} is already H.264. Marking as optimized.", videoId);
-                    video.setOptimizationStatus(ScheduledVideo.OptimizationStatus.COMPLETED);
-                    repository.save(video);
-                } else {
-                    log.info("Video {} is {}, optimization required.", videoId, codec);
-                    // Leave as NOT_OPTIMIZED (default)
+    private static void readProgress(InputStream ffmpegOutput, LogRingBuffer output, Consumer<StreamMetrics> onProgress)
+            throws IOException {
+        FFmpegProgressParser parser = new FFmpegProgressParser();
+        StreamMetrics handled = null;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(ffmpegOutput))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!parser.accept(line)) {
+                    output.add(line);
+                    continue;
                 }
-            } else {
-                log.error("Failed to probe video {}. Exit code: {}", videoId, exitCode);
+                StreamMetrics metrics = parser.latest();
+                if (metrics == null || metrics == handled || metrics.ended()) continue;
+                handled = metrics;
+                onProgress.accept(metrics);
             }
+        }
+    }
 
+    // Publishes progress on every percent, otherwise at most every PROGRESS_PUSH_INTERVAL_MS
+    private final class ProgressPublisher {
+        private final String progressKey;
+        private final double durationSeconds;
+        private int lastPercent = -1;
+        private long lastPush;
+
+        ProgressPublisher(String progressKey, double durationSeconds) {
+            this.progressKey = progressKey;
+            this.durationSeconds = durationSeconds;
+        }
+
+        synchronized void publish(double doneSeconds, double speed) {
+            ConversionProgress progress = progressOf(doneSeconds, speed, durationSeconds);
+            long now = System.currentTimeMillis();
+            if (progress.percent() != lastPercent || now - lastPush >= PROGRESS_PUSH_INTERVAL_MS) {
+                publishProgress(progressKey, progress);
+                lastPercent = progress.percent();
+                lastPush = now;
+            }
+        }
+    }
+
+    // FFmpeg's stdout, failing at its end unless FFmpeg exited cleanly
+    private static final class TranscodeOutput extends FilterInputStream {
+        private final Process process;
+        private final Thread progressReader;
+        private boolean exited;
+
+        TranscodeOutput(Process process, Thread progressReader) {
+            super(process.getInputStream());
+            this.process = process;
+            this.progressReader = progressReader;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) checkExit();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) checkExit();
+            return n;
+        }
+
+        private void checkExit() throws IOException {
+            if (exited) return;
+            try {
+                int exitCode = process.waitFor();
+                progressReader.join();
+                if (exitCode != 0) throw new IOException("FFmpeg exited with " + exitCode);
+                exited = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for FFmpeg");
+            }
+        }
+    }
+
+    static ConversionProgress progressOf(StreamMetrics metrics, double durationSeconds) {
+        return progressOf(metrics, 0, durationSeconds);
+    }
+
+    static ConversionProgress progressOf(StreamMetrics metrics, double offsetSeconds, double durationSeconds) {
+        return progressOf(offsetSeconds + metrics.outTimeSeconds(), metrics.speed(), durationSeconds);
+    }
+
+    static ConversionProgress progressOf(double doneSeconds, double speed, double durationSeconds) {
+        if (durationSeconds <= 0) {
+            return new ConversionProgress(0, -1, speed, 0);
+        }
+        double done = Math.min(doneSeconds, durationSeconds);
+        // 100 is published once the result is uploaded
+        int percent = (int) Math.min(99, done * 100 / durationSeconds);
+        long eta = speed > 0 ? Math.round((durationSeconds - done) / speed) : -1;
+        return new ConversionProgress(percent, eta, speed, 0);
+    }
+
+    // Duration in seconds, 0 if it cannot be probed (progress then reports speed only)
+    private double probeDuration(String input) {
+        try {
+            Process process = new ProcessBuilder(FFmpegCommandBuilder.buildDurationProbeCommand(input)).redirectErrorStream(true).start();
+            String line;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                line = reader.readLine();
+            }
+            if (process.waitFor() != 0 || line == null) return 0;
+            return Double.parseDouble(line.trim());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
         } catch (Exception e) {
-            log.error("Error checking optimization requirement for video {}", videoId, e);
-        } finally {
-            cleanupTempDir(tempDir);
+            log.warn("Failed to probe duration of {}", input, e);
+            return 0;
         }
     }
 
+    // Stream format for planning a merge, null if it cannot be probed (the merge then re-encodes)
+    private MergePlanner.Format probeFormat(String input) {
+        try {
+            Process process = new ProcessBuilder(FFmpegCommandBuilder.buildFormatProbeCommand(input))
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            JsonNode probe = objectMapper.readTree(process.getInputStream());
+            if (process.waitFor() != 0) return null;
+            return MergePlanner.Format.parse(probe);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            log.warn("Failed to probe format of {}", input, e);
+            return null;
+        }
+    }
+
+    // Paid plans go ahead of everyone else's work
+    private TranscodeScheduler.Priority priorityOf(String username, TranscodeScheduler.Priority defaultPriority) {
+        try {
+            if (userService.getOrCreateUser(username).getPlanType() == PlanType.ESSENTIALS) {
+                return TranscodeScheduler.Priority.PAID;
+            }
+        } catch (Exception e) {
+            log.warn("Failed to look up plan of {}", username, e);
+        }
+        return defaultPriority;
+    }
+
     @Async
+    public void checkOptimizationRequirement(Long videoId) {
+        log.info("Checking optimization requirement for video ID: {}", videoId);
+        ScheduledVideo video = repository.findById(videoId).orElse(null);
+        if (video == null) {
+            log.error("Video not found for optimization check: {}", videoId);
+            return;
+        }
+
+        if (video.getS3Key() == null) {
+            log.warn("Video has no S3 key, skipping check: {}", videoId);
+            return;
+        }
+
+        // Probed over a ranged read of the stored object, no download
+        if (!mediaMetadataService.ensureMetadata(video)) {
+            log.error("Failed to probe video {}", videoId);
+            return;
+        }
+
+        String codec = video.getVideoCodec();
+        log.info("Detected codec for video {}: {}", videoId, codec);
+        if ("h264".equalsIgnoreCase(codec)) {
+            log.info("Video {} is already H.264. Marking as optimized.", videoId);
+            video.setOptimizationStatus(ScheduledVideo.OptimizationStatus.COMPLETED);
+            repository.save(video);
+        } else {
+            log.info("Video {} is {}, optimization required.", videoId, codec);
+            // Leave as NOT_OPTIMIZED (default)
+        }
+    }
+
+    /**
+     * Queues a merge on the transcode scheduler and returns immediately.
+     *
+     * @throws IllegalStateException if the transcode queue is full
+     */
     public void mergeVideosAsync(List<ScheduledVideo> sourceVideos, String username, String outputName) {
+        String progressKey = username + ":" + outputName;
+        publishProgress(progressKey, ConversionProgress.of(0));
+        try {
+            transcodeScheduler.submit(username, priorityOf(username, TranscodeScheduler.Priority.MERGE), progressKey,
+                    () -> mergeVideos(sourceVideos, username, outputName));
+        } catch (IllegalStateException e) {
+            conversionProgress.invalidate(progressKey);
+            progressDetails.invalidate(progressKey);
+            throw e;
+        }
+    }
+
+    private void mergeVideos(List<ScheduledVideo> sourceVideos, String username, String outputName) {
         Path tempDir = null;
         String progressKey = username + ":" + outputName;
-        conversionProgress.put(progressKey, 0);
 
         try {
             tempDir = Files.createTempDirectory("merge_");
-            List<Path> inputs = new java.util.ArrayList<>();
+            List<String> inputs = new ArrayList<>();
 
-            // Download
+            // Clips are read in place; only storage without direct access needs a download
             for (ScheduledVideo v : sourceVideos) {
+                Optional<String> location = storageService.directLocation(v.getS3Key());
+                if (location.isPresent()) {
+                    inputs.add(location.get());
+                    continue;
+                }
                 Path tempFile = tempDir.resolve(v.getId() + "_" + v.getTitle().replaceAll("[^a-zA-Z0-9.-]", "_"));
                 try (InputStream is = storageService.downloadFile(v.getS3Key())) {
                     Files.copy(is, tempFile);
                 }
-                inputs.add(tempFile);
+                inputs.add(tempFile.toString());
             }
 
-            Path output = tempDir.resolve("merged.mp4");
-            List<String> command = FFmpegCommandBuilder.buildMergeCommand(inputs, output);
+            String output = FFmpegCommandBuilder.PIPE_OUTPUT;
+            int threads = transcodeScheduler.getThreadsPerJob();
 
-            log.info("Starting merge for {}: {} -> {}", username, inputs.size(), outputName);
-
-            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
-
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    log.info("[FFmpeg Merge] {}", line);
-                }
+            double duration = 0;
+            for (int i = 0; i < inputs.size(); i++) {
+                Double known = sourceVideos.get(i).getDurationSeconds();
+                duration += known != null ? known : probeDuration(inputs.get(i));
             }
 
-            int exitCode = process.waitFor();
-            if (exitCode != 0) {
-                log.error("Merge failed (code {})", exitCode);
-                conversionProgress.put(progressKey, -1);
-                return;
-            }
-
-            // Upload
-            long size = Files.size(output);
-            userService.checkStorageQuota(username, size);
-            String s3Key = storageService.uploadFile(Files.newInputStream(output), outputName, size);
-            userService.updateStorageUsage(username, size);
+            List<MergePlanner.Format> formats = new ArrayList<>();
+            for (String input : inputs) formats.add(probeFormat(input));
+            boolean copy = MergePlanner.copyable(formats);
+            log.info("Starting {} merge for {}: {} -> {}", copy ? "copy" : "re-encoding", username, inputs.size(), outputName);
+            List<String> command = FFmpegCommandBuilder.asBackgroundJob(MergePlanner.command(
+                    inputs, formats, tempDir.resolve("inputs.txt"), output), copy ? 0 : threads);
+            ContentBlobService.StoredBlob blob = streamTranscode(command, null, 0, duration, progressKey,
+                    out -> contentBlobService.store(out, outputName));
+            chargeStorage(username, blob);
 
             // DB
             ScheduledVideo video = new ScheduledVideo();
             video.setUsername(username);
             video.setTitle(outputName);
-            video.setS3Key(s3Key);
+            video.setS3Key(blob.key());
+            video.setContentHash(blob.hash());
             video.setStatus(ScheduledVideo.VideoStatus.LIBRARY);
             video.setPrivacyStatus(AppConstants.PRIVACY_PRIVATE);
-            video.setFileSize(size);
+            video.setFileSize(blob.size());
             repository.save(video);
+            mediaMetadataService.extract(video.getId());
 
             log.info("Merge completed: {}", outputName);
-            conversionProgress.put(progressKey, 100);
+            publishProgress(progressKey, ConversionProgress.of(100));
 
         } catch (Exception e) {
             log.error("Merge failed", e);
-            conversionProgress.put(progressKey, -1);
+            publishProgress(progressKey, ConversionProgress.of(-1));
         } finally {
             cleanupTempDir(tempDir);
         }
@@ -239,6 +239,30 @@ public class YouTubeService {
         }
     }
 
+    /**
+     * Subscriber counts of up to 50 channels in one channels.list call, using the credential of
+     * {@code username}. Channels with hidden counts are missing from the result.
+     */
+    @YoutubeQuota(apiName = "channels.list", cost = 1)
+    public java.util.Map<String, String> getSubscriberCounts(String username, java.util.Collection<String> channelIds) throws Exception {
+        if (channelIds.size() > 50) {
+            throw new IllegalArgumentException("channels.list accepts at most 50 ids");
+        }
+        YouTube youtube = getYouTubeClient(username);
+        ChannelListResponse response = youtube.channels().list(Collections.singletonList("statistics"))
+                .setId(List.copyOf(channelIds))
+                .setMaxResults(50L)
+                .execute();
+        java.util.Map<String, String> counts = new java.util.HashMap<>();
+        if (response.getItems() != null) {
+            for (Channel channel : response.getItems()) {
+                java.math.BigInteger count = channel.getStatistics() != null ? channel.getStatistics().getSubscriberCount() : null;
+                if (count != null) counts.put(channel.getId(), count.toString());
+            }
+        }
+        return counts;
+    }
+
     public String getChannelId(String username) throws Exception {
         YouTube youtube = getYouTubeClient(username);
         ChannelListResponse response = youtube.channels().list(Collections.singletonList("id"))
@@ -77,36 +77,39 @@ document.addEventListener('alpine:init', () => {
             }
         },
 
-        optPollInterval: null,
+        optProgressStreams: {},
 
+        // Progress is pushed by the server, one event stream per video being optimized
         pollOptimizationProgress() {
-            if (this.optPollInterval) clearInterval(this.optPollInterval);
-
-            this.optPollInterval = setInterval(async () => {
-                let activeCount = 0;
-
-                for (let i = 0; i < this.libraryVideos.length; i++) {
-                    const v = this.libraryVideos[i];
-                    if (v.optimizationStatus === 'IN_PROGRESS') {
-                        activeCount++;
-                        try {
-                            const res = await apiFetch(`/api/convert/status?fileName=${encodeURIComponent(v.title)}`);
-                            const progress = await res.json(); // returns integer 0-100
-
-                            // Update reactive array item
-                            this.libraryVideos[i].progress = progress;
-
-                            // If complete, maybe reload to get final status or just wait
-                            if (progress >= 100) {
-                                // Reload library after short delay to sync status
-                                setTimeout(() => this.loadLibrary(), 2000);
-                            }
-                        } catch(e) {}
+            Object.values(this.optProgressStreams).forEach(source => source.close());
+            this.optProgressStreams = {};
+
+            this.libraryVideos.forEach((v, i) => {
+                if (v.optimizationStatus !== 'IN_PROGRESS') return;
+                const source = new EventSource(`/api/convert/status/stream?fileName=${encodeURIComponent(v.title)}`);
+                this.optProgressStreams[v.title] = source;
+
+                source.addEventListener('progress', (event) => {
+                    const progress = JSON.parse(event.data);
+                    const video = this.libraryVideos[i];
+                    if (!video || video.title !== v.title) return source.close();
+
+                    video.progress = Math.max(progress.percent, 0);
+                    video.eta = progress.etaSeconds;
+                    video.queuePosition = progress.queuePosition;
+
+                    if (progress.percent >= 100 || progress.percent < 0) {
+                        source.close();
+                        delete this.optProgressStreams[v.title];
+                        // Reload library after short delay to sync status
+                        if (progress.percent >= 100) setTimeout(() => this.loadLibrary(), 2000);
                     }
-                }
-
-                if (activeCount === 0) clearInterval(this.optPollInterval);
-            }, 2000);
+                });
+                source.onerror = () => {
+                    source.close();
+                    delete this.optProgressStreams[v.title];
+                };
+            });
         },
 
         toggleSelection(video) {
@@ -174,6 +177,20 @@ document.addEventListener('alpine:init', () => {
             return (bytes / 1024 / 1024).toFixed(1);
         },
 
+        // "1080p · 30 fps · 3:25" from the metadata probed on upload, empty until probed
+        mediaSummary(video) {
+            const parts = [];
+            if (video.height) parts.push(`${video.height}p`);
+            if (video.frameRate) parts.push(`${Math.round(video.frameRate)} fps`);
+            if (video.durationSeconds) {
+                const total = Math.round(video.durationSeconds);
+                const h = Math.floor(total / 3600), m = Math.floor((total % 3600) / 60), s = total % 60;
+                const mmss = `${String(m).padStart(h ? 2 : 1, '0')}:${String(s).padStart(2, '0')}`;
+                parts.push(h ? `${h}:${mmss}` : mmss);
+            }
+            return parts.join(' · ');
+        },
+
         previewVideo(video) {
             // Use existing global modal logic or reimplement
             // Reusing global function from app.js for now to save time, or we can make a local modal
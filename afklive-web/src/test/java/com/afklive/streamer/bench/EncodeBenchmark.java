@@ -0,0 +1,260 @@
+package com.afklive.streamer.bench;
+
+import com.afklive.streamer.service.FFmpegCommandBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Encode throughput and quality of the commands from {@link FFmpegCommandBuilder} per x264
+ * preset, resolution and mode. Clips are generated from lavfi sources, so it needs FFmpeg but
+ * no assets or network. Run with {@code mvn -pl afklive-web -P encode-benchmark verify}; the
+ * {@code bench.*} properties of the profile select the matrix.
+ * <p>
+ * Each command is run as built with only the preset replaced, and the output written to a file:
+ * optimize and short conversion as they run offline, the stream command without {@code -re} so
+ * it encodes as fast as it can instead of in real time. Quality is measured against the same
+ * command encoded losslessly, so scaling, padding and blur are not counted as encoder loss.
+ * Reported per encode:
+ * <ul>
+ *     <li>realtime factor: seconds of video encoded per wall-clock second, above 1 keeps up with a live stream</li>
+ *     <li>CPU seconds per output minute: user plus system time of FFmpeg, what an encode costs on a shared box</li>
+ *     <li>output size and average bitrate</li>
+ *     <li>SSIM (all planes) and PSNR (average) against the lossless reference</li>
+ * </ul>
+ */
+public class EncodeBenchmark {
+
+    private static final Pattern BENCH = Pattern.compile("bench: utime=([\\d.]+)s stime=([\\d.]+)s rtime=([\\d.]+)s");
+    private static final Pattern SSIM = Pattern.compile("SSIM .* All:([\\d.]+)");
+    private static final Pattern PSNR = Pattern.compile("PSNR .* average:([\\d.]+|inf)");
+
+    // lavfi sources: moving test pattern with sharp edges, and a zoom into fine detail
+    private static final Map<String, String> SOURCES = Map.of(
+            "testsrc2", "testsrc2=size=1920x1080:rate=30",
+            "mandelbrot", "mandelbrot=size=1920x1080:rate=30");
+
+    private record Encode(String command, String clip, String mode, int height, String preset) {
+        String name() {
+            return String.join("_", command, clip, mode, String.valueOf(height), preset);
+        }
+
+        String reference() {
+            return String.join("_", command, clip, mode, String.valueOf(height), "lossless");
+        }
+    }
+
+    private record Result(Encode encode, double realtime, double cpuPerMinute, long bytes, double kbps,
+                          double ssim, double psnr) {
+    }
+
+    private final Path workDir;
+    private final int seconds;
+    private final int threads;
+    private final Set<Path> references = new HashSet<>();
+
+    EncodeBenchmark(Path workDir, int seconds, int threads) {
+        this.workDir = workDir;
+        this.seconds = seconds;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path workDir = Path.of(System.getProperty("bench.dir", "target/encode-benchmark"));
+        int seconds = Integer.getInteger("bench.seconds", 20);
+        int threads = Integer.getInteger("bench.threads", 0);
+        List<String> clips = list("bench.clips", "testsrc2,mandelbrot");
+        List<String> presets = list("bench.presets", "ultrafast,superfast,veryfast");
+        List<Integer> heights = list("bench.heights", "720,1080").stream().map(Integer::parseInt).toList();
+        List<String> commands = list("bench.commands", "optimize,short,stream");
+
+        Files.createDirectories(workDir);
+        EncodeBenchmark benchmark = new EncodeBenchmark(workDir, seconds, threads);
+
+        List<Encode> matrix = new ArrayList<>();
+        for (String clip : clips) {
+            if (!SOURCES.containsKey(clip)) throw new IllegalArgumentException("Unknown clip " + clip);
+            for (String preset : presets) {
+                for (int height : heights) {
+                    if (commands.contains("optimize")) {
+                        matrix.add(new Encode("optimize", clip, "landscape", height, preset));
+                        matrix.add(new Encode("optimize", clip, "portrait", height, preset));
+                    }
+                    if (commands.contains("stream")) {
+                        matrix.add(new Encode("stream", clip, "original", height, preset));
+                        matrix.add(new Encode("stream", clip, "force_portrait", height, preset));
+                    }
+                }
+                // Shorts are always 1080x1920
+                if (commands.contains("short")) {
+                    matrix.add(new Encode("short", clip, "portrait", 1920, preset));
+                }
+            }
+        }
+
+        System.out.printf("%d encodes of %d s clips%n", matrix.size(), seconds);
+        System.out.printf("%-9s %-10s %-15s %6s %-10s %9s %12s %9s %8s %7s %7s%n", "command", "clip", "mode",
+                "height", "preset", "realtime", "cpu s/min", "size MB", "kbps", "SSIM", "PSNR");
+        List<Result> results = new ArrayList<>();
+        for (Encode encode : matrix) {
+            Result result = benchmark.run(encode);
+            results.add(result);
+            System.out.printf(Locale.ROOT, "%-9s %-10s %-15s %6d %-10s %8.2fx %12.1f %9.2f %8.0f %7.4f %7.2f%n",
+                    encode.command(), encode.clip(), encode.mode(), encode.height(), encode.preset(), result.realtime(),
+                    result.cpuPerMinute(), result.bytes() / 1_000_000.0, result.kbps(), result.ssim(), result.psnr());
+        }
+
+        Path report = workDir.resolve("results.csv");
+        List<String> lines = new ArrayList<>();
+        lines.add("command,clip,mode,height,preset,realtime_factor,cpu_seconds_per_output_minute,bytes,kbps,ssim,psnr");
+        for (Result result : results) {
+            Encode encode = result.encode();
+            lines.add(String.format(Locale.ROOT, "%s,%s,%s,%d,%s,%.3f,%.2f,%d,%.0f,%.5f,%.3f", encode.command(),
+                    encode.clip(), encode.mode(), encode.height(), encode.preset(), result.realtime(),
+                    result.cpuPerMinute(), result.bytes(), result.kbps(), result.ssim(), result.psnr()));
+        }
+        Files.write(report, lines);
+        System.out.println("Results written to " + report.toAbsolutePath());
+    }
+
+    Result run(Encode encode) throws IOException, InterruptedException {
+        Path source = clip(encode.clip());
+        String extension = encode.command().equals("stream") ? ".flv" : ".mp4";
+        Path output = workDir.resolve(encode.name() + extension);
+        List<String> command = withPreset(build(encode, source, output), encode.preset());
+
+        String log = ffmpeg(withThreads(benchmarked(command)));
+        Matcher bench = BENCH.matcher(log);
+        if (!bench.find()) throw new IllegalStateException("No timing in FFmpeg output of " + encode.name());
+        double cpu = Double.parseDouble(bench.group(1)) + Double.parseDouble(bench.group(2));
+        double wall = Double.parseDouble(bench.group(3));
+
+        // Presets share the reference of their command, clip, mode and height
+        Path reference = workDir.resolve(encode.reference() + extension);
+        if (references.add(reference)) {
+            ffmpeg(withThreads(lossless(build(encode, source, reference))));
+        }
+        String quality = ffmpeg(List.of("ffmpeg", "-i", output.toString(), "-i", reference.toString(),
+                "-lavfi", "[0:v]split[a0][a1];[1:v]split[b0][b1];[a0][b0]ssim;[a1][b1]psnr", "-f", "null", "-"));
+
+        long bytes = Files.size(output);
+        return new Result(encode, seconds / wall, cpu / (seconds / 60.0), bytes, bytes * 8 / 1000.0 / seconds,
+                parse(SSIM, quality, "SSIM of " + encode.name()), parse(PSNR, quality, "PSNR of " + encode.name()));
+    }
+
+    private List<String> build(Encode encode, Path source, Path output) {
+        return switch (encode.command()) {
+            case "optimize" -> FFmpegCommandBuilder.buildOptimizeCommand(source, output, encode.mode(), encode.height());
+            case "short" -> FFmpegCommandBuilder.buildConvertToShortCommand(source, output);
+            case "stream" -> {
+                List<String> command = new ArrayList<>(FFmpegCommandBuilder.buildStreamCommand(source, List.of("benchmark"),
+                        null, null, 0, null, false, encode.mode(), encode.height()));
+                // Encode as fast as possible, into a file instead of the ingest server
+                command.remove("-re");
+                command.set(command.size() - 1, output.toString());
+                yield command;
+            }
+            default -> throw new IllegalArgumentException("Unknown command " + encode.command());
+        };
+    }
+
+    // The source, an H.264 upload at high quality, generated once per clip
+    private Path clip(String name) throws IOException, InterruptedException {
+        Path clip = workDir.resolve("source_" + name + "_" + seconds + "s.mp4");
+        if (Files.exists(clip)) return clip;
+        Path partial = workDir.resolve(clip.getFileName() + ".part.mp4");
+        ffmpeg(List.of("ffmpeg", "-f", "lavfi", "-i", SOURCES.get(name),
+                "-f", "lavfi", "-i", "sine=frequency=440:sample_rate=48000",
+                "-t", String.valueOf(seconds), "-ac", "2",
+                "-c:v", "libx264", "-preset", "veryfast", "-crf", "12", "-pix_fmt", "yuv420p",
+                "-c:a", "aac", "-b:a", "192k", "-y", partial.toString()));
+        Files.move(partial, clip);
+        return clip;
+    }
+
+    static List<String> withPreset(List<String> command, String preset) {
+        List<String> replaced = new ArrayList<>(command);
+        int index = replaced.indexOf("-preset");
+        if (index < 0) throw new IllegalArgumentException("Command has no preset");
+        replaced.set(index + 1, preset);
+        return replaced;
+    }
+
+    // FFmpeg prints the CPU and wall time of the run on exit
+    private static List<String> benchmarked(List<String> command) {
+        List<String> benchmarked = new ArrayList<>(command);
+        benchmarked.add(ffmpegIndex(benchmarked) + 1, "-benchmark");
+        return benchmarked;
+    }
+
+    private List<String> withThreads(List<String> command) {
+        if (threads <= 0) return command;
+        List<String> limited = new ArrayList<>(command);
+        limited.addAll(limited.size() - 1, List.of("-threads", String.valueOf(threads)));
+        return limited;
+    }
+
+    /**
+     * The same command with the video encoded losslessly. It keeps the container of the output:
+     * how {@code -r} drops and duplicates frames depends on it, and frames of output and reference
+     * have to line up for the comparison.
+     */
+    static List<String> lossless(List<String> command) {
+        List<String> lossless = new ArrayList<>(command);
+        // The High profile has no lossless mode, x264 picks High 4:4:4 Predictive without it
+        for (String option : List.of("-profile:v", "-b:v", "-maxrate", "-bufsize")) {
+            int index = lossless.indexOf(option);
+            if (index >= 0) lossless.subList(index, index + 2).clear();
+        }
+        lossless = withPreset(lossless, "ultrafast");
+        lossless.addAll(lossless.size() - 1, List.of("-qp", "0"));
+        return lossless;
+    }
+
+    private static int ffmpegIndex(List<String> command) {
+        for (int i = 0; i < command.size(); i++) {
+            if (command.get(i).endsWith("ffmpeg")) return i;
+        }
+        throw new IllegalArgumentException("Not an FFmpeg command");
+    }
+
+    // Runs to completion and returns stderr, where FFmpeg logs
+    private static String ffmpeg(List<String> command) throws IOException, InterruptedException {
+        List<String> quiet = new ArrayList<>(command);
+        quiet.addAll(ffmpegIndex(quiet) + 1, List.of("-hide_banner", "-nostdin"));
+        Process process = new ProcessBuilder(quiet)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        String log = new String(process.getErrorStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (process.waitFor() != 0) {
+            List<String> lines = log.lines().toList();
+            throw new IOException("FFmpeg exited with " + process.exitValue() + ": " + String.join(" ", quiet) + "\n"
+                    + String.join("\n", lines.subList(Math.max(0, lines.size() - 20), lines.size())));
+        }
+        return log;
+    }
+
+    private static double parse(Pattern pattern, String log, String what) {
+        Matcher matcher = pattern.matcher(log);
+        String value = null;
+        while (matcher.find()) value = matcher.group(1);
+        if (value == null) throw new IllegalStateException("No " + what + " in FFmpeg output");
+        return "inf".equals(value) ? Double.POSITIVE_INFINITY : Double.parseDouble(value);
+    }
+
+    private static List<String> list(String property, String defaults) {
+        return Arrays.stream(System.getProperty(property, defaults).split(",")).map(String::trim)
+                .filter(value -> !value.isEmpty()).toList();
+    }
+}
@@ -0,0 +1,30 @@
+package com.afklive.streamer.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+class ChunkPlannerTest {
+
+    @Test
+    void chunksStartOnGopBoundariesAndTheLastRunsToTheEnd() {
+        List<ChunkPlanner.Chunk> chunks = ChunkPlanner.plan(605.3, 2.0, 60, 4);
+
+        assertThat(chunks).hasSize(4);
+        // 303 GOPs in 4 chunks of 76
+        assertThat(chunks).extracting(ChunkPlanner.Chunk::start).containsExactly(0.0, 152.0, 304.0, 456.0);
+        assertThat(chunks.get(0).duration()).isEqualTo(152.0);
+        assertThat(chunks.getLast().duration()).isNull();
+        assertThat(chunks.getLast().length(605.3)).isCloseTo(149.3, offset(1e-9));
+    }
+
+    @Test
+    void shortVideosAreNotSplit() {
+        assertThat(ChunkPlanner.plan(90, 2.0, 60, 8)).isEmpty();
+        assertThat(ChunkPlanner.plan(3600, 2.0, 60, 1)).isEmpty();
+        assertThat(ChunkPlanner.plan(125, 2.0, 60, 8)).hasSize(2);
+    }
+}
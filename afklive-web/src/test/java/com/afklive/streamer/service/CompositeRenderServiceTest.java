@@ -0,0 +1,67 @@
+package com.afklive.streamer.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CompositeRenderServiceTest {
+
+    private final StreamAssetCache assetCache = mock(StreamAssetCache.class);
+    // Renders are queued but never run
+    private final ExecutorService renderer = mock(ExecutorService.class);
+    private final CompositeRenderService renders = new CompositeRenderService(assetCache, true, 60, renderer);
+
+    private CompositeRenderService.CompositeInputs inputs(String volume, String watermarkHash, int maxHeight) {
+        return new CompositeRenderService.CompositeInputs("user/video.mp4", "user/music.mp3", null, volume,
+                null, watermarkHash, false, "original", maxHeight);
+    }
+
+    @Test
+    void keyCoversEveryInput() {
+        String key = inputs("0.5", "abc", 1080).key();
+
+        assertThat(inputs("0.5", "abc", 1080).key()).isEqualTo(key);
+        assertThat(inputs("0.8", "abc", 1080).key()).isNotEqualTo(key);
+        assertThat(inputs("0.5", "def", 1080).key()).isNotEqualTo(key);
+        assertThat(inputs("0.5", "abc", 720).key()).isNotEqualTo(key);
+        assertThat(key).startsWith("composite/").endsWith(".mp4");
+    }
+
+    @Test
+    void cachedCompositeIsStreamedWithoutRendering() {
+        CompositeRenderService.CompositeInputs inputs = inputs("0.5", null, 1080);
+        when(assetCache.acquireIfCached(inputs.key())).thenReturn(Optional.of(Path.of("/cache/composite.mp4")));
+
+        assertThat(renders.acquireOrSchedule(inputs)).contains(Path.of("/cache/composite.mp4"));
+        verify(renderer, never()).execute(any());
+    }
+
+    @Test
+    void missingCompositeIsRenderedOnce() {
+        CompositeRenderService.CompositeInputs inputs = inputs("0.5", null, 1080);
+        when(assetCache.acquireIfCached(inputs.key())).thenReturn(Optional.empty());
+
+        assertThat(renders.acquireOrSchedule(inputs)).isEmpty();
+        assertThat(renders.acquireOrSchedule(inputs)).isEmpty();
+
+        verify(renderer, times(1)).execute(any());
+    }
+
+    @Test
+    void disabledServiceNeverRenders() {
+        CompositeRenderService disabled = new CompositeRenderService(assetCache, false, 60, renderer);
+
+        assertThat(disabled.acquireOrSchedule(inputs("0.5", null, 1080))).isEmpty();
+        verify(renderer, never()).execute(any());
+    }
+}
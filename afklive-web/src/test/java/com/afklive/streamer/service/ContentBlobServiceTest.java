@@ -0,0 +1,144 @@
+package com.afklive.streamer.service;
+
+import com.afklive.streamer.model.ContentBlob;
+import com.afklive.streamer.repository.ContentBlobRepository;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ContentBlobServiceTest {
+
+    private static final byte[] CONTENT = "video bytes".getBytes(StandardCharsets.UTF_8);
+
+    private final FileStorageService storageService = mock(FileStorageService.class);
+    private final ContentBlobRepository blobRepository = mock(ContentBlobRepository.class);
+    private final ContentBlobService blobs = new ContentBlobService(storageService, blobRepository);
+
+    private static String hashOf(byte[] bytes) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+
+    private void uploadsAs(String key) {
+        when(storageService.uploadFile(any(), anyString(), anyLong())).thenAnswer(invocation -> {
+            // Drain the stream like the storage backends do
+            ((InputStream) invocation.getArgument(0)).readAllBytes();
+            return key;
+        });
+    }
+
+    @Test
+    void newContentIsHashedWhileUploading() throws Exception {
+        uploadsAs("new-key");
+        when(blobRepository.findByHash(anyString())).thenReturn(Optional.empty());
+
+        ContentBlobService.StoredBlob stored = blobs.store(new ByteArrayInputStream(CONTENT), "video.mp4", CONTENT.length);
+
+        ArgumentCaptor<ContentBlob> saved = ArgumentCaptor.forClass(ContentBlob.class);
+        verify(blobRepository).saveAndFlush(saved.capture());
+        assertThat(stored).isEqualTo(new ContentBlobService.StoredBlob("new-key", hashOf(CONTENT), CONTENT.length, false));
+        assertThat(saved.getValue().getHash()).isEqualTo(hashOf(CONTENT));
+        assertThat(saved.getValue().getRefCount()).isEqualTo(1);
+    }
+
+    @Test
+    void duplicateContentSharesTheStoredObject() throws Exception {
+        uploadsAs("new-key");
+        ContentBlob existing = new ContentBlob();
+        existing.setStorageKey("old-key");
+        when(blobRepository.findByHash(hashOf(CONTENT))).thenReturn(Optional.of(existing));
+        when(blobRepository.retain("old-key")).thenReturn(1);
+
+        ContentBlobService.StoredBlob stored = blobs.store(new ByteArrayInputStream(CONTENT), "copy.mp4", CONTENT.length);
+
+        assertThat(stored.key()).isEqualTo("old-key");
+        assertThat(stored.duplicate()).isTrue();
+        verify(storageService).deleteFile("new-key");
+        verify(blobRepository, never()).saveAndFlush(any());
+    }
+
+    @Test
+    void unreferencedRowLeftByAnUnfinishedReleaseIsTakenOver() throws Exception {
+        uploadsAs("new-key");
+        ContentBlob stale = new ContentBlob();
+        stale.setStorageKey("old-key");
+        when(blobRepository.findByHash(hashOf(CONTENT))).thenReturn(Optional.of(stale));
+        when(blobRepository.retain("old-key")).thenReturn(0);
+        when(blobRepository.takeOver(hashOf(CONTENT), "new-key")).thenReturn(1);
+
+        ContentBlobService.StoredBlob stored = blobs.store(new ByteArrayInputStream(CONTENT), "video.mp4", CONTENT.length);
+
+        assertThat(stored).isEqualTo(new ContentBlobService.StoredBlob("new-key", hashOf(CONTENT), CONTENT.length, false));
+        verify(blobRepository).takeOver(hashOf(CONTENT), "new-key");
+        verify(storageService).deleteFile("old-key");
+        verify(storageService, never()).deleteFile("new-key");
+    }
+
+    @Test
+    void registrationGivesUpWhenTheRowNeverSettles() throws Exception {
+        uploadsAs("new-key");
+        ContentBlob stale = new ContentBlob();
+        stale.setStorageKey("old-key");
+        when(blobRepository.findByHash(hashOf(CONTENT))).thenReturn(Optional.of(stale));
+        when(blobRepository.retain("old-key")).thenReturn(0);
+        when(blobRepository.takeOver(anyString(), anyString())).thenReturn(0);
+
+        assertThatThrownBy(() -> blobs.store(new ByteArrayInputStream(CONTENT), "video.mp4", CONTENT.length))
+                .isInstanceOf(IllegalStateException.class);
+
+        verify(blobRepository, times(5)).retain("old-key");
+        verify(storageService).deleteFile("new-key");
+        verify(storageService, never()).deleteFile("old-key");
+    }
+
+    @Test
+    void objectIsDeletedWithItsLastReference() {
+        when(blobRepository.release("key")).thenReturn(1);
+        when(blobRepository.deleteUnreferenced("key")).thenReturn(0);
+        blobs.release("key");
+        verify(storageService, never()).deleteFile("key");
+
+        when(blobRepository.deleteUnreferenced("key")).thenReturn(1);
+        blobs.release("key");
+        verify(storageService).deleteFile("key");
+    }
+
+    @Test
+    void untrackedObjectsAreDeletedDirectly() {
+        when(blobRepository.release("legacy")).thenReturn(0);
+        when(blobRepository.existsByStorageKey("legacy")).thenReturn(false);
+
+        blobs.release("legacy");
+
+        verify(storageService).deleteFile("legacy");
+        assertThat(blobs.retain("legacy")).isFalse();
+    }
+
+    @Test
+    void renditionIsFoundBySourceHashModeAndHeight() {
+        ContentBlob rendition = new ContentBlob();
+        rendition.setStorageKey("rendition-key");
+        when(blobRepository.findBySourceHashAndModeAndHeight("abc", "portrait", 1920)).thenReturn(Optional.of(rendition));
+        when(blobRepository.retain("rendition-key")).thenReturn(1);
+
+        assertThat(blobs.retainRendition("abc", "portrait", 1920)).contains(rendition);
+        assertThat(blobs.retainRendition("abc", "landscape", 1080)).isEmpty();
+        assertThat(blobs.retainRendition(null, "portrait", 1920)).isEmpty();
+    }
+}
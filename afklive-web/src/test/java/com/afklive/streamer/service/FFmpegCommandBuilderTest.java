@@ -6,6 +6,7 @@ import java.nio.file.Paths;
 import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 class FFmpegCommandBuilderTest {
 
@@ -92,4 +93,159 @@ class FFmpegCommandBuilderTest {
 
         assertThat(command).contains("-v", "error", "-select_streams", "v:0", "-show_entries", "stream=codec_name", input.toString());
     }
+
+    @Test
+    void testBuildStreamCommandFansOutToMultipleDestinations() {
+        Path videoPath = Paths.get("/tmp/video.mp4");
+        List<String> keys = List.of("key_one", "rtmp://live.twitch.tv/app/key_two");
+
+        List<String> command = FFmpegCommandBuilder.buildStreamCommand(videoPath, keys, null, null, -1, null, false, "original", 1080);
+
+        // A single encode feeds every destination through the tee muxer
+        assertThat(command).containsSubsequence("-f", "tee");
+        assertThat(command).contains("+global_header");
+        assertThat(command.get(command.size() - 1)).isEqualTo(
+                "[f=flv:onfail=ignore]rtmp://a.rtmp.youtube.com:1935/live2/key_one"
+                        + "|[f=flv:onfail=ignore]rtmp://live.twitch.tv/app/key_two");
+        assertThat(command).doesNotContain("flv");
+    }
+
+    @Test
+    void testBuildStreamCommandSingleDestinationUsesFlv() {
+        List<String> command = FFmpegCommandBuilder.buildStreamCommand(Paths.get("/tmp/video.mp4"), List.of("key_one"), null, null, -1, null, false, "original", 1080);
+
+        assertThat(command).containsSubsequence("-f", "flv", "rtmp://a.rtmp.youtube.com:1935/live2/key_one");
+        assertThat(command).doesNotContain("tee");
+    }
+
+    @Test
+    void testBuildStreamCommandFromUrlReconnects() {
+        String url = "https://bucket.example.com/video.mp4?X-Amz-Signature=abc";
+        List<String> command = FFmpegCommandBuilder.buildStreamCommand(url, List.of("key_one"), null, null, -1, null, false, "original", 1080, true, null, 0);
+
+        assertThat(command).containsSubsequence("-reconnect", "1", "-reconnect_streamed", "1", "-i", url);
+    }
+
+    @Test
+    void testBuildStreamCommandFromFileDoesNotReconnect() {
+        List<String> command = FFmpegCommandBuilder.buildStreamCommand(Paths.get("/tmp/video.mp4"), List.of("key_one"), null, null, -1, null, false, "original", 1080);
+
+        assertThat(command).doesNotContain("-reconnect");
+    }
+
+    @Test
+    void testBuildStreamCommandReportsProgress() {
+        List<String> command = FFmpegCommandBuilder.buildStreamCommand(Paths.get("/tmp/video.mp4"), List.of("key_one"), null, null, -1, null, false, "original", 1080);
+
+        assertThat(command).containsSubsequence("-progress", "pipe:1", "-nostats", "-i");
+    }
+
+    @Test
+    void testBuildCompositeRenderCommand() {
+        Path output = Paths.get("/tmp/composite.mp4.part");
+        List<String> command = FFmpegCommandBuilder.buildCompositeRenderCommand(Paths.get("/tmp/video.mp4"), Paths.get("/tmp/music.mp3"),
+                "0.5", Paths.get("/tmp/logo.png"), false, "original", 1080, output);
+
+        assertThat(command.subList(0, 3)).containsExactly("nice", "-n", "15");
+        assertThat(command).containsSubsequence("-i", "/tmp/video.mp4", "-stream_loop", "-1", "-i", "/tmp/music.mp3", "-i", "/tmp/logo.png");
+        assertThat(command.toString()).contains("amix=inputs=2").contains("overlay=main_w-overlay_w-20:20");
+        // Same keyframe interval as a live encode so the file can be streamed with -c copy
+        assertThat(command).containsSubsequence("-g", "60", "-keyint_min", "60");
+        assertThat(command).doesNotContain("-re", "flv");
+        assertThat(command.getLast()).isEqualTo(output.toString());
+    }
+
+    @Test
+    void testAsBackgroundJobLimitsPriorityAndThreads() {
+        Path output = Paths.get("/tmp/merged.mp4");
+        List<String> command = FFmpegCommandBuilder.asBackgroundJob(
+                FFmpegCommandBuilder.buildMergeCommand(List.of(Paths.get("/tmp/a.mp4"), Paths.get("/tmp/b.mp4")), output), 2);
+
+        assertThat(command.subList(0, 3)).containsExactly("nice", "-n", "15");
+        assertThat(command).containsSubsequence("-threads", "2", output.toString());
+        assertThat(command.getLast()).isEqualTo(output.toString());
+        // Already niced commands are not wrapped twice
+        assertThat(FFmpegCommandBuilder.asBackgroundJob(FFmpegCommandBuilder.buildOptimizeCommand(Paths.get("/tmp/in.mp4"), output), 2)
+                .stream().filter("nice"::equals).count()).isEqualTo(1);
+    }
+
+    @Test
+    void testWithProgressReportsOnStdout() {
+        List<String> command = FFmpegCommandBuilder.withProgress(
+                FFmpegCommandBuilder.asBackgroundJob(FFmpegCommandBuilder.buildOptimizeCommand(Paths.get("/tmp/in.mp4"), Paths.get("/tmp/out.mp4")), 2));
+
+        assertThat(command).containsSubsequence("nice", "ffmpeg", "-progress", "pipe:1", "-nostats", "-i", "/tmp/in.mp4");
+    }
+
+    @Test
+    void testBuildDurationProbeCommand() {
+        List<String> command = FFmpegCommandBuilder.buildDurationProbeCommand(Paths.get("/tmp/in.mp4"));
+
+        assertThat(command).containsSubsequence("-show_entries", "format=duration", "/tmp/in.mp4");
+        assertThat(command).doesNotContain("-select_streams");
+    }
+
+    @Test
+    void testUrlProbesTimeOutStalledReads() {
+        String url = "https://bucket.example.com/in.mp4?X-Amz-Signature=abc";
+
+        assertThat(FFmpegCommandBuilder.buildMetadataProbeCommand(url)).containsSubsequence("-rw_timeout", "15000000", url);
+        assertThat(FFmpegCommandBuilder.buildKeyframeProbeCommand(url, 20)).containsSubsequence("-rw_timeout", "15000000", url);
+        // Local files have no connection to stall
+        assertThat(FFmpegCommandBuilder.buildMetadataProbeCommand("/tmp/in.mp4")).doesNotContain("-rw_timeout");
+    }
+
+    @Test
+    void testBuildConcatCopyCommand() {
+        List<String> command = FFmpegCommandBuilder.buildConcatCopyCommand(Paths.get("/tmp/inputs.txt"), Paths.get("/tmp/merged.mp4"));
+
+        assertThat(command).containsSubsequence("-f", "concat", "-safe", "0", "-i", "/tmp/inputs.txt", "-c", "copy", "/tmp/merged.mp4");
+        assertThat(command).doesNotContain("libx264", "-filter_complex");
+    }
+
+    @Test
+    void testStreamingOutputWritesFragmentedMp4ToStdout() {
+        String url = "https://bucket.example.com/in.mp4?X-Amz-Signature=abc";
+        List<String> command = FFmpegCommandBuilder.withProgress(FFmpegCommandBuilder.streamingOutput(
+                FFmpegCommandBuilder.buildOptimizeCommand(url, FFmpegCommandBuilder.PIPE_OUTPUT, "landscape", 1080)), "pipe:2");
+
+        assertThat(command).containsSubsequence("ffmpeg", "-progress", "pipe:2", "-nostdin", "-reconnect", "1", "-i", url);
+        assertThat(command).containsSubsequence("-movflags", "+frag_keyframe+empty_moov+default_base_moof", "-f", "mp4", "pipe:1");
+        assertThat(command).doesNotContain("+faststart");
+        // Piped input keeps stdin for the data
+        assertThat(FFmpegCommandBuilder.streamingOutput(FFmpegCommandBuilder.buildOptimizeCommand(
+                FFmpegCommandBuilder.PIPE_INPUT, FFmpegCommandBuilder.PIPE_OUTPUT, "landscape", 1080)))
+                .doesNotContain("-nostdin", "-reconnect");
+    }
+
+    @Test
+    void testChunkCommandsKeepGopAndLeaveAudioToOnePass() {
+        List<String> chunk = FFmpegCommandBuilder.buildOptimizeChunkCommand("/tmp/in.mp4", "/tmp/chunk_1.mp4", "landscape", 1080, 152.0, 152.0);
+
+        assertThat(chunk).containsSubsequence("-ss", "152.000", "-i", "/tmp/in.mp4", "-t", "152.000");
+        assertThat(chunk).containsSubsequence("-r", "30", "-g", "60", "-keyint_min", "60", "-sc_threshold", "0");
+        assertThat(chunk).contains("-an").doesNotContain("aac");
+
+        List<String> join = FFmpegCommandBuilder.buildChunkJoinCommand(Paths.get("/tmp/chunks.txt"), "/tmp/audio.m4a", "/tmp/out.mp4");
+        assertThat(join).containsSubsequence("-f", "concat", "-i", "/tmp/chunks.txt", "-i", "/tmp/audio.m4a",
+                "-map", "0:v", "-map", "1:a", "-c", "copy", "/tmp/out.mp4");
+        assertThat(join).doesNotContain("0:a?");
+    }
+
+    @Test
+    void testLadderDecodesOnceForEveryRendition() {
+        List<FFmpegCommandBuilder.Rendition> renditions = List.of(
+                FFmpegCommandBuilder.Rendition.parse("landscape:1080"), FFmpegCommandBuilder.Rendition.parse("portrait:1920"));
+        List<String> command = FFmpegCommandBuilder.buildOptimizeLadderCommand("/tmp/in.mp4", renditions,
+                List.of("/tmp/out_0.mp4", "/tmp/out_1.mp4"), 2);
+
+        assertThat(command.stream().filter("-i"::equals)).hasSize(1);
+        String graph = command.get(command.indexOf("-filter_complex") + 1);
+        assertThat(graph).startsWith("[0:v]split=2[in0][in1];[in0]scale=1920:1080")
+                .contains("[in1]split[original1][copy1]", "[blurred1][scaled1]overlay=(W-w)/2:(H-h)/2[v1]");
+        assertThat(command).containsSubsequence("-map", "[v0]", "-map", "0:a?", "-b:v", "4500k", "-threads", "2", "/tmp/out_0.mp4",
+                "-map", "[v1]", "-map", "0:a?", "-threads", "2", "/tmp/out_1.mp4");
+        assertThatThrownBy(() -> FFmpegCommandBuilder.Rendition.parse("square:1080"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
 }
@@ -0,0 +1,78 @@
+package com.afklive.streamer.service;
+
+import com.afklive.streamer.dto.StreamMetrics;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FFmpegProgressParserTest {
+
+    private static final String[] BLOCK = {
+            "frame=1500",
+            "fps=29.97",
+            "stream_0_0_q=23.0",
+            "bitrate=4512.3kbits/s",
+            "total_size=28311552",
+            "out_time_us=50000000",
+            "out_time_ms=50000000",
+            "out_time=00:00:50.000000",
+            "dup_frames=2",
+            "drop_frames=7",
+            "speed=0.93x",
+            "progress=continue"
+    };
+
+    @Test
+    void testPublishesSnapshotPerBlock() {
+        FFmpegProgressParser parser = new FFmpegProgressParser();
+        for (String line : BLOCK) {
+            assertThat(parser.accept(line)).isTrue();
+        }
+
+        StreamMetrics metrics = parser.latest();
+        assertThat(metrics.frame()).isEqualTo(1500);
+        assertThat(metrics.fps()).isEqualTo(29.97);
+        assertThat(metrics.bitrateKbps()).isEqualTo(4512.3);
+        assertThat(metrics.totalSizeBytes()).isEqualTo(28311552L);
+        assertThat(metrics.outTimeSeconds()).isEqualTo(50.0);
+        assertThat(metrics.dupFrames()).isEqualTo(2);
+        assertThat(metrics.dropFrames()).isEqualTo(7);
+        assertThat(metrics.speed()).isEqualTo(0.93);
+        assertThat(metrics.ended()).isFalse();
+        assertThat(metrics.behindRealtime()).isTrue();
+    }
+
+    @Test
+    void testNoSnapshotUntilBlockCompletes() {
+        FFmpegProgressParser parser = new FFmpegProgressParser();
+        parser.accept("frame=10");
+        parser.accept("speed=1.01x");
+
+        assertThat(parser.latest()).isNull();
+    }
+
+    @Test
+    void testHandlesUnavailableValuesAndEnd() {
+        FFmpegProgressParser parser = new FFmpegProgressParser();
+        parser.accept("bitrate=N/A");
+        parser.accept("out_time_us=N/A");
+        parser.accept("speed=N/A");
+        parser.accept("progress=end");
+
+        StreamMetrics metrics = parser.latest();
+        assertThat(metrics.bitrateKbps()).isZero();
+        assertThat(metrics.speed()).isZero();
+        assertThat(metrics.ended()).isTrue();
+        assertThat(metrics.behindRealtime()).isFalse();
+    }
+
+    @Test
+    void testRegularLogLinesAreNotConsumed() {
+        FFmpegProgressParser parser = new FFmpegProgressParser();
+
+        assertThat(parser.accept("Input #0, mov,mp4,m4a,3gp,3g2,mj2, from '/tmp/video.mp4':")).isFalse();
+        assertThat(parser.accept("  Duration: 00:01:40.00, start: 0.000000, bitrate: 2500 kb/s")).isFalse();
+        assertThat(parser.accept("[flv @ 0x55] Failed to update header with correct duration.")).isFalse();
+        assertThat(parser.accept("encoder=Lavf60.3.100")).isFalse();
+    }
+}
@@ -0,0 +1,106 @@
+package com.afklive.streamer.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LogRingBufferTest {
+
+    @Test
+    void testKeepsOnlyNewestLines() {
+        LogRingBuffer buffer = new LogRingBuffer(4);
+        for (int i = 0; i < 10; i++) {
+            buffer.add("line " + i);
+        }
+
+        assertThat(buffer.snapshot()).containsExactly("line 6", "line 7", "line 8", "line 9");
+    }
+
+    @Test
+    void testRedactsIngestUrls() {
+        LogRingBuffer buffer = new LogRingBuffer(8);
+        buffer.add("Output #0, flv, to 'rtmp://a.rtmp.youtube.com/live2/secret_key':");
+        buffer.add("[tee @ 0x1] rtmps://live-api-s.facebook.com:443/rtmp/FB-secret failed");
+
+        List<String> lines = buffer.snapshot();
+        assertThat(lines.get(0)).isEqualTo("Output #0, flv, to 'rtmp://[REDACTED]");
+        assertThat(lines.get(1)).contains("rtmps://[REDACTED]").doesNotContain("FB-secret");
+    }
+
+    @Test
+    void testRedactsPresignedUrlQueries() {
+        LogRingBuffer buffer = new LogRingBuffer(8);
+        buffer.add("Input #0, mov,mp4, from 'https://bucket.example.com/user/video.mp4?X-Amz-Credential=AKIA%2Fsecret&X-Amz-Signature=abc':");
+        buffer.add("[https @ 0x1] Opening 'http://cdn.example.com/a.mp4' for reading");
+
+        List<String> lines = buffer.snapshot();
+        assertThat(lines.get(0)).isEqualTo("Input #0, mov,mp4, from 'https://bucket.example.com/user/video.mp4?[REDACTED]':");
+        assertThat(lines.get(1)).isEqualTo("[https @ 0x1] Opening 'http://cdn.example.com/a.mp4' for reading");
+    }
+
+    @Test
+    void testTruncatesLongLines() {
+        LogRingBuffer buffer = new LogRingBuffer(4, 10);
+        buffer.add("x".repeat(100));
+
+        assertThat(buffer.snapshot().get(0)).isEqualTo("xxxxxxxxxx...");
+    }
+
+    @Test
+    void testTailReturnsOnlyNewLines() {
+        LogRingBuffer buffer = new LogRingBuffer(8);
+        buffer.add("a");
+        buffer.add("b");
+
+        LogRingBuffer.Tail first = buffer.tail(-1);
+        assertThat(first.lines()).containsExactly("a", "b");
+
+        buffer.add("c");
+        LogRingBuffer.Tail second = buffer.tail(first.cursor());
+        assertThat(second.lines()).containsExactly("c");
+        assertThat(buffer.tail(second.cursor()).lines()).isEmpty();
+    }
+
+    @Test
+    void testTailWaitsForLineClaimedButNotStored() {
+        LogRingBuffer buffer = new LogRingBuffer(8);
+        buffer.add("a");
+        long pending = buffer.claim();
+        buffer.add("c");
+
+        LogRingBuffer.Tail first = buffer.tail(-1);
+        assertThat(first.lines()).containsExactly("a");
+
+        buffer.store(pending, "b");
+        assertThat(buffer.tail(first.cursor()).lines()).containsExactly("b", "c");
+    }
+
+    @Test
+    void testConcurrentWritersStayBounded() throws Exception {
+        LogRingBuffer buffer = new LogRingBuffer(64);
+        int writers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        CountDownLatch done = new CountDownLatch(writers);
+        for (int w = 0; w < writers; w++) {
+            final int id = w;
+            executor.submit(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    buffer.add("writer " + id + " line " + i);
+                }
+                done.countDown();
+            });
+        }
+        assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+        executor.shutdown();
+
+        List<String> lines = new ArrayList<>(buffer.snapshot());
+        assertThat(lines).hasSize(64).doesNotContainNull();
+    }
+}
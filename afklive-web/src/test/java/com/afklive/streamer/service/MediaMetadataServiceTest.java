@@ -0,0 +1,123 @@
+package com.afklive.streamer.service;
+
+import com.afklive.streamer.model.ScheduledVideo;
+import com.afklive.streamer.repository.ScheduledVideoRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MediaMetadataServiceTest {
+
+    private static final String PROBE = """
+            {"streams": [
+              {"codec_type": "video", "codec_name": "h264", "width": 1920, "height": 1080, "avg_frame_rate": "30000/1001"},
+              {"codec_type": "audio", "codec_name": "aac", "channels": 2, "channel_layout": "stereo"}
+            ],
+            "format": {"duration": "205.340000", "bit_rate": "4521337"}}
+            """;
+
+    private final FileStorageService storageService = mock(FileStorageService.class);
+    private final ScheduledVideoRepository repository = mock(ScheduledVideoRepository.class);
+    private final MediaMetadataService metadata = new MediaMetadataService(storageService, repository);
+
+    @Test
+    void recordsVideoAndAudioStreams() throws Exception {
+        ScheduledVideo video = new ScheduledVideo();
+
+        MediaMetadataService.applyProbe(video, new ObjectMapper().readTree(PROBE));
+
+        assertThat(video.getVideoCodec()).isEqualTo("h264");
+        assertThat(video.getWidth()).isEqualTo(1920);
+        assertThat(video.getHeight()).isEqualTo(1080);
+        assertThat(video.getFrameRate()).isEqualTo(29.97);
+        assertThat(video.getDurationSeconds()).isEqualTo(205.34);
+        assertThat(video.getBitrate()).isEqualTo(4521337L);
+        assertThat(video.getAudioCodec()).isEqualTo("aac");
+        assertThat(video.getAudioChannels()).isEqualTo(2);
+        assertThat(video.getAudioLayout()).isEqualTo("stereo");
+    }
+
+    @Test
+    void rotatedVideoIsRecordedAsDisplayed() throws Exception {
+        ScheduledVideo video = new ScheduledVideo();
+        String probe = """
+                {"streams": [{"codec_type": "video", "codec_name": "hevc", "width": 1920, "height": 1080,
+                  "avg_frame_rate": "30/1", "side_data_list": [{"rotation": -90}]}],
+                 "format": {"duration": "12.0"}}
+                """;
+
+        MediaMetadataService.applyProbe(video, new ObjectMapper().readTree(probe));
+
+        assertThat(video.getWidth()).isEqualTo(1080);
+        assertThat(video.getHeight()).isEqualTo(1920);
+        assertThat(video.getAudioCodec()).isNull();
+    }
+
+    @Test
+    void keyframeIntervalIsAveragedOverKeyframePackets() {
+        List<String> packets = List.of("0.000000,K__", "0.033367,___", "2.002000,K__", "N/A,K__", "4.004000,K_");
+
+        assertThat(MediaMetadataService.keyframeInterval(packets)).isEqualTo(2.002);
+        assertThat(MediaMetadataService.keyframeInterval(List.of("0.0,K__", "0.5,___"))).isNull();
+    }
+
+    @Test
+    void copyNeedsH264WithinHeightAndKeyframeLimits() {
+        ScheduledVideo video = new ScheduledVideo();
+        video.setVideoCodec("h264");
+        video.setHeight(1080);
+        video.setFrameRate(30.0);
+        video.setKeyframeInterval(2.0);
+
+        assertThat(MediaMetadataService.canStreamCopy(video, 1080)).isTrue();
+        assertThat(MediaMetadataService.canStreamCopy(video, 720)).isFalse();
+        video.setKeyframeInterval(10.0);
+        assertThat(MediaMetadataService.canStreamCopy(video, 1080)).isFalse();
+        video.setKeyframeInterval(2.0);
+        video.setVideoCodec("hevc");
+        assertThat(MediaMetadataService.canStreamCopy(video, 1080)).isFalse();
+    }
+
+    @Test
+    void sameContentReusesEarlierMetadataWithoutProbing() {
+        ScheduledVideo probed = new ScheduledVideo();
+        probed.setVideoCodec("h264");
+        probed.setHeight(720);
+        probed.setKeyframeInterval(2.0);
+        ScheduledVideo video = new ScheduledVideo();
+        video.setS3Key("key");
+        video.setContentHash("abc");
+        when(repository.findFirstByContentHashAndVideoCodecIsNotNull("abc")).thenReturn(Optional.of(probed));
+
+        assertThat(metadata.ensureMetadata(video)).isTrue();
+
+        assertThat(video.getHeight()).isEqualTo(720);
+        assertThat(video.getKeyframeInterval()).isEqualTo(2.0);
+        verify(repository).save(video);
+        verify(storageService, never()).generatePresignedUrl(anyString());
+    }
+
+    @Test
+    void stalledProbeIsKilledAfterTheTimeout() throws Exception {
+        long started = System.nanoTime();
+
+        // Keeps stdout open without writing, like ffprobe waiting on a stalled connection
+        assertThatThrownBy(() -> MediaMetadataService.run(List.of("sleep", "30"), 1))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("timed out");
+        assertThat(System.nanoTime() - started).isLessThan(TimeUnit.SECONDS.toNanos(10));
+        assertThat(MediaMetadataService.run(List.of("echo", "0.0,K__"), 1)).isEqualTo("0.0,K__\n");
+    }
+}
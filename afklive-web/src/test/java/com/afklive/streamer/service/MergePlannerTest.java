@@ -0,0 +1,79 @@
+package com.afklive.streamer.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MergePlannerTest {
+
+    private static final MergePlanner.Format OPTIMIZED = new MergePlanner.Format("h264", "High", 40, 1920, 1080, "yuv420p",
+            "30/1", "1/15360", "MD5:x264", "aac", 44100, 2);
+    private static final MergePlanner.Format PHONE = new MergePlanner.Format("hevc", "Main", 123, 1080, 1920, "yuv420p",
+            "30000/1001", "1/600", "MD5:phone", "aac", 48000, 2);
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void matchingClipsAreCopied() throws Exception {
+        List<String> inputs = List.of("/tmp/a.mp4", "https://bucket.example.com/b.mp4?X-Amz-Signature=abc");
+        Path list = tempDir.resolve("inputs.txt");
+
+        List<String> command = MergePlanner.command(inputs, List.of(OPTIMIZED, OPTIMIZED), list, "pipe:1");
+
+        assertThat(command).containsSubsequence("-f", "concat", "-i", list.toString(), "-c", "copy");
+        assertThat(Files.readString(list)).contains("file '/tmp/a.mp4'", "file 'https://bucket.example.com/b.mp4?X-Amz-Signature=abc'");
+        // Identical clips are copied whatever their codec
+        assertThat(MergePlanner.copyable(List.of(PHONE, PHONE))).isTrue();
+    }
+
+    @Test
+    void mixedClipsFallBackToReEncodingEverything() throws Exception {
+        List<String> inputs = List.of("/tmp/a.mp4", "/tmp/b.mov", "/tmp/c.mp4");
+        Path list = tempDir.resolve("inputs.txt");
+
+        List<String> command = MergePlanner.command(inputs, List.of(OPTIMIZED, PHONE, OPTIMIZED), list, "pipe:1");
+
+        assertThat(command).isEqualTo(FFmpegCommandBuilder.buildMergeCommand(inputs, "pipe:1"));
+        assertThat(command).doesNotContain("copy");
+        assertThat(list).doesNotExist();
+    }
+
+    @Test
+    void clipsThatDifferOnlyInLevelOrParameterSetsAreNotCopiedTogether() {
+        MergePlanner.Format higherLevel = new MergePlanner.Format("h264", "High", 41, 1920, 1080, "yuv420p",
+                "30/1", "1/15360", "MD5:x264", "aac", 44100, 2);
+        MergePlanner.Format otherEncoder = new MergePlanner.Format("h264", "High", 40, 1920, 1080, "yuv420p",
+                "30/1", "1/15360", "MD5:other", "aac", 44100, 2);
+
+        assertThat(MergePlanner.copyable(List.of(OPTIMIZED, higherLevel, OPTIMIZED))).isFalse();
+        assertThat(MergePlanner.copyable(List.of(OPTIMIZED, OPTIMIZED, otherEncoder))).isFalse();
+    }
+
+    @Test
+    void clipsThatCouldNotBeProbedAreReEncoded() {
+        assertThat(MergePlanner.copyable(Arrays.asList(OPTIMIZED, null))).isFalse();
+        assertThat(MergePlanner.copyable(List.of())).isFalse();
+    }
+
+    @Test
+    void parsesProbeOutput() throws Exception {
+        String probe = """
+                {"streams": [
+                  {"codec_type": "video", "codec_name": "h264", "profile": "High", "width": 1920, "height": 1080,
+                   "pix_fmt": "yuv420p", "r_frame_rate": "30/1", "time_base": "1/15360", "level": 40,
+                   "extradata_hash": "MD5:x264"},
+                  {"codec_type": "audio", "codec_name": "aac", "sample_rate": "44100", "channels": 2}
+                ]}
+                """;
+
+        assertThat(MergePlanner.Format.parse(new ObjectMapper().readTree(probe))).isEqualTo(OPTIMIZED);
+    }
+}
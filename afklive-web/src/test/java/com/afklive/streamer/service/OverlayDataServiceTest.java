@@ -0,0 +1,113 @@
+package com.afklive.streamer.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class OverlayDataServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private final YouTubeService youTubeService = mock(YouTubeService.class);
+    // Polls are driven by the tests, the executor never runs anything
+    private final OverlayDataService overlays = new OverlayDataService(youTubeService, 30, mock(ScheduledExecutorService.class));
+
+    @Test
+    void pollsEachChannelOnceForAllItsOverlays() throws Exception {
+        when(youTubeService.getChannelId("a@test.com")).thenReturn("UC-a");
+        when(youTubeService.getSubscriberCounts(anyString(), anyCollection())).thenReturn(Map.of("UC-a", "1200"));
+        Path first = dir.resolve("first.txt");
+        Path second = dir.resolve("second.txt");
+        overlays.register(1L, "a@test.com", first, null);
+        overlays.register(2L, "a@test.com", second, "GOAL");
+
+        overlays.poll();
+
+        verify(youTubeService, times(1)).getSubscriberCounts("a@test.com", List.of("UC-a"));
+        assertThat(Files.readString(first)).isEqualTo("Subscribers: 1200");
+        assertThat(Files.readString(second)).isEqualTo("Goal: 1200/10K");
+    }
+
+    @Test
+    void batchesFiftyChannelsPerCall() throws Exception {
+        for (int i = 0; i < 120; i++) {
+            when(youTubeService.getChannelId("user" + i)).thenReturn("UC-" + i);
+            overlays.register((long) i, "user" + i, dir.resolve(i + ".txt"), null);
+        }
+        when(youTubeService.getSubscriberCounts(anyString(), anyCollection())).thenAnswer(invocation -> {
+            Collection<String> ids = invocation.getArgument(1);
+            return ids.stream().collect(Collectors.toMap(id -> id, id -> "5"));
+        });
+
+        overlays.poll();
+
+        verify(youTubeService, times(3)).getSubscriberCounts(anyString(), anyCollection());
+        assertThat(IntStream.range(0, 120).allMatch(i -> Files.exists(dir.resolve(i + ".txt")))).isTrue();
+    }
+
+    @Test
+    void failedCredentialIsRetriedWithAnotherUserOfTheBatch() throws Exception {
+        when(youTubeService.getChannelId("a@test.com")).thenReturn("UC-a");
+        when(youTubeService.getChannelId("b@test.com")).thenReturn("UC-b");
+        // Whichever credential is tried first has been revoked
+        when(youTubeService.getSubscriberCounts(anyString(), anyCollection()))
+                .thenThrow(new IllegalStateException("Token has been revoked"))
+                .thenReturn(Map.of("UC-a", "10", "UC-b", "20"));
+        overlays.register(1L, "a@test.com", dir.resolve("a.txt"), null);
+        overlays.register(2L, "b@test.com", dir.resolve("b.txt"), null);
+
+        overlays.poll();
+
+        ArgumentCaptor<String> users = ArgumentCaptor.forClass(String.class);
+        verify(youTubeService, times(2)).getSubscriberCounts(users.capture(), anyCollection());
+        assertThat(users.getAllValues()).containsExactlyInAnyOrder("a@test.com", "b@test.com");
+        assertThat(Files.readString(dir.resolve("a.txt"))).isEqualTo("Subscribers: 10");
+        assertThat(Files.readString(dir.resolve("b.txt"))).isEqualTo("Subscribers: 20");
+    }
+
+    @Test
+    void unchangedCountsAreNotRewritten() throws Exception {
+        when(youTubeService.getChannelId("a@test.com")).thenReturn("UC-a");
+        when(youTubeService.getSubscriberCounts(anyString(), any())).thenReturn(Map.of("UC-a", "10"));
+        Path file = dir.resolve("subs.txt");
+        overlays.register(1L, "a@test.com", file, null);
+        overlays.poll();
+
+        // A change made outside the service shows whether the next poll writes again
+        Files.writeString(file, "edited");
+        overlays.poll();
+
+        assertThat(Files.readString(file)).isEqualTo("edited");
+        verify(youTubeService, times(1)).getChannelId("a@test.com");
+    }
+
+    @Test
+    void unregisteredOverlaysAreNoLongerPolled() throws Exception {
+        when(youTubeService.getChannelId("a@test.com")).thenReturn("UC-a");
+        overlays.register(1L, "a@test.com", dir.resolve("subs.txt"), null);
+        overlays.unregister(1L);
+
+        overlays.poll();
+
+        verify(youTubeService, times(0)).getSubscriberCounts(anyString(), anyCollection());
+    }
+}
@@ -0,0 +1,177 @@
+package com.afklive.streamer.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentMatchers;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class S3StorageServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final byte[] object = new byte[1_000_003];
+    private final S3Client s3Client = mock(S3Client.class);
+
+    {
+        new Random(42).nextBytes(object);
+        when(s3Client.headObject(any(HeadObjectRequest.class)))
+                .thenReturn(HeadObjectResponse.builder().contentLength((long) object.length).eTag("\"etag\"").build());
+    }
+
+    private ResponseInputStream<GetObjectResponse> rangeResponse(GetObjectRequest request) {
+        String[] range = request.range().substring("bytes=".length()).split("-");
+        int from = Integer.parseInt(range[0]);
+        int to = Integer.parseInt(range[1]);
+        byte[] slice = Arrays.copyOfRange(object, from, to + 1);
+        return new ResponseInputStream<>(GetObjectResponse.builder().build(),
+                AbortableInputStream.create(new ByteArrayInputStream(slice)));
+    }
+
+    @Test
+    void testLargeObjectDownloadedInParallelRanges() throws Exception {
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(inv -> rangeResponse(inv.getArgument(0)));
+        S3StorageService service = new S3StorageService(s3Client, mock(S3Presigner.class), "bucket", 100_000, 4);
+
+        Path target = tempDir.resolve("video.mp4");
+        service.downloadFileToPath("video.mp4", target);
+
+        assertThat(Files.readAllBytes(target)).isEqualTo(object);
+        // 1,000,003 bytes in 100,000 byte parts
+        verify(s3Client, times(11)).getObject(any(GetObjectRequest.class));
+        assertThat(tempDir.resolve("video.mp4.download")).doesNotExist();
+    }
+
+    @Test
+    void testFailedPartIsRetried() throws Exception {
+        AtomicBoolean failedOnce = new AtomicBoolean();
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(inv -> {
+            GetObjectRequest request = inv.getArgument(0);
+            if (request.range().startsWith("bytes=300000-") && failedOnce.compareAndSet(false, true)) {
+                throw new RuntimeException("connection reset");
+            }
+            assertThat(request.ifMatch()).isEqualTo("\"etag\"");
+            return rangeResponse(request);
+        });
+        S3StorageService service = new S3StorageService(s3Client, mock(S3Presigner.class), "bucket", 100_000, 4);
+
+        Path target = tempDir.resolve("video.mp4");
+        service.downloadFileToPath("video.mp4", target);
+
+        assertThat(failedOnce).isTrue();
+        assertThat(Files.readAllBytes(target)).isEqualTo(object);
+    }
+
+    @Test
+    void testPersistentFailureLeavesNoPartialFile() {
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenThrow(new RuntimeException("bucket gone"));
+        S3StorageService service = new S3StorageService(s3Client, mock(S3Presigner.class), "bucket", 100_000, 4);
+
+        Path target = tempDir.resolve("video.mp4");
+        assertThatThrownBy(() -> service.downloadFileToPath("video.mp4", target)).isInstanceOf(RuntimeException.class);
+        assertThat(target).doesNotExist();
+        assertThat(tempDir.resolve("video.mp4.download")).doesNotExist();
+    }
+
+    @Test
+    void testSmallObjectUsesSingleGet() {
+        S3StorageService service = new S3StorageService(s3Client, mock(S3Presigner.class), "bucket", 1_000_000, 4);
+
+        service.downloadFileToPath("video.mp4", tempDir.resolve("video.mp4"));
+
+        verify(s3Client).getObject(any(GetObjectRequest.class), ArgumentMatchers.<ResponseTransformer<GetObjectResponse, Object>>any());
+        verify(s3Client, never()).getObject(any(GetObjectRequest.class));
+    }
+
+    @Test
+    void testStreamUploadedInParts() throws Exception {
+        Map<Integer, byte[]> uploaded = new ConcurrentSkipListMap<>();
+        when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload").build());
+        when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class))).thenAnswer(inv -> {
+            UploadPartRequest request = inv.getArgument(0);
+            RequestBody body = inv.getArgument(1);
+            try (InputStream in = body.contentStreamProvider().newStream()) {
+                uploaded.put(request.partNumber(), in.readAllBytes());
+            }
+            return UploadPartResponse.builder().eTag("etag-" + request.partNumber()).build();
+        });
+        S3StorageService service = new S3StorageService(s3Client, mock(S3Presigner.class), "bucket", 100_000, 4);
+
+        String key = service.uploadStream(new ByteArrayInputStream(object), "video.mp4");
+
+        assertThat(key).endsWith("_video.mp4");
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (byte[] part : uploaded.values()) joined.write(part);
+        assertThat(joined.toByteArray()).isEqualTo(object);
+        verify(s3Client).completeMultipartUpload(argThat((CompleteMultipartUploadRequest request) ->
+                request.multipartUpload().parts().stream().map(CompletedPart::partNumber).toList()
+                        .equals(IntStream.rangeClosed(1, 11).boxed().toList())));
+        verify(s3Client, never()).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    }
+
+    @Test
+    void testShortStreamUsesSinglePut() {
+        S3StorageService service = new S3StorageService(s3Client, mock(S3Presigner.class), "bucket", 100_000, 4);
+
+        service.uploadStream(new ByteArrayInputStream(new byte[1000]), "video.mp4");
+
+        verify(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+        verify(s3Client, never()).createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    }
+
+    @Test
+    void testFailedStreamAbortsUpload() {
+        when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload").build());
+        when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenReturn(UploadPartResponse.builder().eTag("etag").build());
+        InputStream failing = new SequenceInputStream(new ByteArrayInputStream(object), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("FFmpeg exited with 1");
+            }
+        });
+        S3StorageService service = new S3StorageService(s3Client, mock(S3Presigner.class), "bucket", 100_000, 4);
+
+        assertThatThrownBy(() -> service.uploadStream(failing, "video.mp4")).hasMessageContaining("Failed to upload");
+        verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+}
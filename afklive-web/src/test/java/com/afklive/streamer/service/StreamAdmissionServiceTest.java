@@ -0,0 +1,75 @@
+package com.afklive.streamer.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StreamAdmissionServiceTest {
+
+    private static StreamLaunchSpec spec(boolean optimized, int maxHeight, boolean watermark, boolean music) {
+        return new StreamLaunchSpec(Paths.get("video.mp4"), null, music ? Paths.get("music.mp3") : null, "0.5", -1,
+                watermark ? Paths.get("logo.png") : null, false, "original", maxHeight, optimized, null, 0);
+    }
+
+    @Test
+    void copyStreamsCostAFractionOfEncodes() {
+        double copy = StreamAdmissionService.estimateCost(spec(true, 1080, true, true));
+        double encode720 = StreamAdmissionService.estimateCost(spec(false, 720, false, false));
+        double encode1080 = StreamAdmissionService.estimateCost(spec(false, 1080, false, false));
+        double encode1080Filtered = StreamAdmissionService.estimateCost(spec(false, 1080, true, true));
+
+        assertThat(copy).isLessThan(encode720 / 5);
+        assertThat(encode1080).isGreaterThan(encode720);
+        assertThat(encode1080Filtered).isGreaterThan(encode1080);
+    }
+
+    @Test
+    void rejectsWhenCapacityIsExhausted() {
+        StreamAdmissionService admission = new StreamAdmissionService(2.0, 0.9, 0, 5, () -> 0.1);
+
+        admission.acquire(1.5);
+        admission.acquire(0.1);
+
+        assertThatThrownBy(() -> admission.acquire(1.0))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("capacity");
+        assertThat(admission.getSnapshot().get("committedCores")).isEqualTo(1.6);
+    }
+
+    @Test
+    void alwaysAdmitsOnAnIdleNode() {
+        StreamAdmissionService admission = new StreamAdmissionService(1.0, 0.9, 0, 5, () -> 0.99);
+
+        admission.acquire(6.0);
+
+        assertThat(admission.getSnapshot().get("committedCores")).isEqualTo(6.0);
+    }
+
+    @Test
+    void rejectsWhenMeasuredLoadIsHigh() {
+        StreamAdmissionService admission = new StreamAdmissionService(8.0, 0.9, 0, 5, () -> 0.95);
+        admission.acquire(1.0);
+
+        assertThatThrownBy(() -> admission.acquire(1.0)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void queuedStartIsAdmittedWhenCapacityIsReleased() throws Exception {
+        StreamAdmissionService admission = new StreamAdmissionService(2.0, 0.9, 5000, 5, () -> 0.1);
+        admission.acquire(2.0);
+
+        CompletableFuture<Void> waiting = CompletableFuture.runAsync(() -> admission.acquire(2.0));
+        while (!Integer.valueOf(1).equals(admission.getSnapshot().get("queued"))) {
+            Thread.sleep(10);
+        }
+        admission.release(2.0);
+
+        waiting.get(2, TimeUnit.SECONDS);
+        assertThat(admission.getSnapshot().get("committedCores")).isEqualTo(2.0);
+    }
+}
@@ -0,0 +1,136 @@
+package com.afklive.streamer.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class StreamAssetCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private FileStorageService storageService;
+
+    @BeforeEach
+    void setUp() {
+        storageService = mock(FileStorageService.class);
+        // Every "download" writes a 1 MB file
+        doAnswer(inv -> {
+            Path target = inv.getArgument(1);
+            Files.write(target, new byte[1024 * 1024]);
+            return null;
+        }).when(storageService).downloadFileToPath(any(), any());
+    }
+
+    @Test
+    void testSecondAcquireIsServedFromCache() throws Exception {
+        StreamAssetCache cache = new StreamAssetCache(storageService, tempDir.toString(), 10);
+
+        Path first = cache.acquire("abc_video.mp4");
+        Path second = cache.acquire("abc_video.mp4");
+
+        assertThat(first).isEqualTo(second).exists();
+        assertThat(first.getFileName().toString()).endsWith(".mp4").doesNotContain("abc_video");
+        verify(storageService, times(1)).downloadFileToPath(eq("abc_video.mp4"), any());
+    }
+
+    @Test
+    void testConcurrentAcquiresShareOneDownload() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(inv -> {
+            release.await();
+            Files.write(inv.<Path>getArgument(1), new byte[1024]);
+            return null;
+        }).when(storageService).downloadFileToPath(any(), any());
+        StreamAssetCache cache = new StreamAssetCache(storageService, tempDir.toString(), 10);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Path>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(() -> cache.acquire("popular.mp4")));
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Future<Path> result : results) {
+            assertThat(result.get()).exists();
+        }
+        executor.shutdown();
+
+        verify(storageService, times(1)).downloadFileToPath(eq("popular.mp4"), any());
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsedUnpinnedFiles() throws Exception {
+        StreamAssetCache cache = new StreamAssetCache(storageService, tempDir.toString(), 2);
+
+        Path a = cache.acquire("a.mp4");
+        cache.release("a.mp4");
+        Path b = cache.acquire("b.mp4");
+        // b stays pinned by a live job
+        Path c = cache.acquire("c.mp4");
+        cache.release("c.mp4");
+
+        assertThat(a).doesNotExist();
+        assertThat(b).exists();
+        assertThat(c).exists();
+        assertThat(cache.getTotalBytes()).isEqualTo(2L * 1024 * 1024);
+    }
+
+    @Test
+    void testPinsTakenDuringPrefetchSurviveEviction() throws Exception {
+        StreamAssetCache cache = new StreamAssetCache(storageService, tempDir.toString(), 1);
+
+        assertThat(cache.acquireIfCached("live.mp4")).isEmpty();
+        // A progressive stream pins the key before the file exists
+        cache.pin("live.mp4");
+        Path live = cache.prefetch("live.mp4").get();
+        assertThat(live).isEqualTo(cache.pathFor("live.mp4"));
+
+        cache.acquire("other.mp4");
+        cache.release("other.mp4");
+
+        assertThat(live).exists();
+        assertThat(cache.acquireIfCached("live.mp4")).contains(live);
+    }
+
+    @Test
+    void testIndexRebuiltOnStartup() throws Exception {
+        StreamAssetCache cache = new StreamAssetCache(storageService, tempDir.toString(), 10);
+        cache.acquire("warm.mp4");
+        Files.write(tempDir.resolve("broken.mp4.part"), new byte[10]);
+
+        StreamAssetCache restarted = new StreamAssetCache(storageService, tempDir.toString(), 10);
+        restarted.rebuildIndex();
+        restarted.acquire("warm.mp4");
+
+        verify(storageService, times(1)).downloadFileToPath(eq("warm.mp4"), any());
+        assertThat(tempDir.resolve("broken.mp4.part")).doesNotExist();
+    }
+
+    @Test
+    void testLocallyProducedFilesAreServedFromCache() throws Exception {
+        StreamAssetCache cache = new StreamAssetCache(storageService, tempDir.toString(), 10);
+        Path rendered = Files.write(tempDir.resolve("render.part"), new byte[1024]);
+
+        Path added = cache.add("composite/abc.mp4", rendered);
+
+        assertThat(rendered).doesNotExist();
+        assertThat(cache.acquireIfCached("composite/abc.mp4")).contains(added);
+        assertThat(cache.getTotalBytes()).isEqualTo(1024);
+        verify(storageService, never()).downloadFileToPath(any(), any());
+    }
+}
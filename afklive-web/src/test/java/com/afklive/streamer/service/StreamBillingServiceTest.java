@@ -0,0 +1,93 @@
+package com.afklive.streamer.service;
+
+import com.afklive.streamer.dto.BillableJob;
+import com.afklive.streamer.model.PlanType;
+import com.afklive.streamer.repository.StreamJobRepository;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class StreamBillingServiceTest {
+
+    private final StreamJobRepository repo = mock(StreamJobRepository.class);
+    private final NamedParameterJdbcTemplate jdbc = mock(NamedParameterJdbcTemplate.class);
+    private final StreamBillingService billing = new StreamBillingService(repo, jdbc);
+    private final ZonedDateTime now = ZonedDateTime.now(ZoneId.of("UTC"));
+
+    @Test
+    void usageCostIsHourlyRateRounded() {
+        assertThat(StreamBillingService.usageCost(now.minusMinutes(15), now)).isEqualTo(0.3125);
+        assertThat(StreamBillingService.usageCost(now, now.minusMinutes(1))).isZero();
+        assertThat(StreamBillingService.usageCost(null, now)).isZero();
+    }
+
+    @Test
+    void chargesJobsAndUsersInOneBatchEach() {
+        when(repo.findBillableJobs(any(), eq(PlanType.FREE))).thenReturn(List.of(
+                new BillableJob(1L, "a@test.com", now.minusHours(1), 0, 50),
+                new BillableJob(2L, "a@test.com", now.minusHours(1), 0, 50),
+                new BillableJob(3L, "b@test.com", now.minusHours(2), 0, 50)));
+        when(jdbc.batchUpdate(startsWith("UPDATE stream_job"), any(SqlParameterSource[].class))).thenReturn(new int[]{1, 1, 1});
+
+        StreamBillingService.TickResult result = billing.bill(List.of(1L, 2L, 3L), now);
+
+        assertThat(result.chargedJobs()).isEqualTo(3);
+        assertThat(result.overCreditLimit()).isEmpty();
+        ArgumentCaptor<SqlParameterSource[]> users = ArgumentCaptor.forClass(SqlParameterSource[].class);
+        verify(jdbc).batchUpdate(startsWith("UPDATE users"), users.capture());
+        assertThat(users.getValue()).hasSize(2);
+        for (SqlParameterSource user : users.getValue()) {
+            // Two jobs of one hour for a@, one job of two hours for b@
+            assertThat(user.getValue("amount")).isEqualTo(2.5);
+        }
+    }
+
+    @Test
+    void jobsBilledConcurrentlyAreNotChargedTwice() {
+        when(repo.findBillableJobs(any(), eq(PlanType.FREE))).thenReturn(List.of(
+                new BillableJob(1L, "a@test.com", now.minusHours(1), 0, 50)));
+        // finalizeJob billed the job between the read and the update
+        when(jdbc.batchUpdate(startsWith("UPDATE stream_job"), any(SqlParameterSource[].class))).thenReturn(new int[]{0});
+
+        StreamBillingService.TickResult result = billing.bill(List.of(1L), now);
+
+        assertThat(result.chargedJobs()).isZero();
+        verify(jdbc, never()).batchUpdate(startsWith("UPDATE users"), any(SqlParameterSource[].class));
+    }
+
+    @Test
+    void reportsJobsOfUsersOverTheCreditLimit() {
+        when(repo.findBillableJobs(any(), eq(PlanType.FREE))).thenReturn(List.of(
+                new BillableJob(1L, "a@test.com", now.minusHours(1), 49.0, 50),
+                new BillableJob(2L, "b@test.com", now.minusHours(1), 10.0, 50)));
+        when(jdbc.batchUpdate(anyString(), any(SqlParameterSource[].class))).thenReturn(new int[]{1, 1});
+
+        StreamBillingService.TickResult result = billing.bill(List.of(1L, 2L), now);
+
+        assertThat(result.overCreditLimit()).isEqualTo(Set.of(1L));
+    }
+
+    @Test
+    void emptyTickDoesNotQuery() {
+        billing.bill(List.of(), now);
+
+        verifyNoInteractions(repo, jdbc);
+    }
+}
@@ -0,0 +1,86 @@
+package com.afklive.streamer.service;
+
+import com.afklive.streamer.model.StreamJob;
+import com.afklive.streamer.repository.StreamJobRepository;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StreamLeaseServiceTest {
+
+    private final StreamJobRepository repo = mock(StreamJobRepository.class);
+
+    private StreamLeaseService service(String nodeId) {
+        return new StreamLeaseService(repo, nodeId, 30, 10, 10, true);
+    }
+
+    @Test
+    void assignedJobsAreOwnedByThisNode() {
+        StreamLeaseService leases = service("node-a");
+        StreamJob job = new StreamJob();
+
+        leases.assign(job, "group-1");
+
+        assertThat(job.getOwnerNode()).isEqualTo("node-a");
+        assertThat(job.getLaunchGroup()).isEqualTo("group-1");
+        assertThat(job.getLeaseExpiresAt()).isAfter(ZonedDateTime.now(ZoneId.of("UTC")).plusSeconds(20));
+        assertThat(leases.isLocal(job)).isTrue();
+        assertThat(service("node-b").isLocal(job)).isFalse();
+    }
+
+    @Test
+    void jobsWithoutOwnerAreTreatedAsLocal() {
+        assertThat(service("node-a").isLocal(new StreamJob())).isTrue();
+    }
+
+    @Test
+    void claimSucceedsOnlyWhenTheConditionalUpdateMatches() {
+        StreamLeaseService leases = service("node-a");
+        when(repo.claimLaunchGroup(eq("won"), eq("node-a"), any(), any())).thenReturn(2);
+        when(repo.claimLaunchGroup(eq("lost"), eq("node-a"), any(), any())).thenReturn(0);
+
+        assertThat(leases.claim("won")).isTrue();
+        assertThat(leases.claim("lost")).isFalse();
+    }
+
+    @Test
+    void claimIsRenewedOnlyWhileItsLeaseHasNotLapsed() {
+        StreamLeaseService leases = service("node-a");
+        when(repo.renewLaunchGroup(eq("held"), eq("node-a"), any(), any())).thenReturn(1);
+        when(repo.renewLaunchGroup(eq("lapsed"), eq("node-a"), any(), any())).thenReturn(0);
+
+        assertThat(leases.renewClaim("held")).isTrue();
+        assertThat(leases.renewClaim("lapsed")).isFalse();
+    }
+
+    @Test
+    void longExpiredLeasesAreOrphaned() {
+        StreamLeaseService leases = service("node-a");
+        StreamJob recent = new StreamJob();
+        recent.setLeaseExpiresAt(ZonedDateTime.now(ZoneId.of("UTC")).minusMinutes(1));
+        StreamJob stale = new StreamJob();
+        stale.setLeaseExpiresAt(ZonedDateTime.now(ZoneId.of("UTC")).minusMinutes(30));
+
+        assertThat(leases.isOrphaned(recent)).isFalse();
+        assertThat(leases.isOrphaned(stale)).isTrue();
+    }
+
+    @Test
+    void defaultsToAGeneratedNodeId() {
+        assertThat(service("").getNodeId()).isNotBlank().isNotEqualTo(service("").getNodeId());
+    }
+
+    @Test
+    void leaseMustOutliveTwoHeartbeats() {
+        assertThatThrownBy(() -> new StreamLeaseService(repo, "node-a", 15, 10, 10, true))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -5,13 +5,18 @@ import com.afklive.streamer.model.User;
 import com.afklive.streamer.repository.StreamJobRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Optional;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.*;
 
@@ -34,6 +39,8 @@ class StreamLimitTest {
     @Mock private YouTubeService youTubeService;
     @Mock private com.afklive.streamer.repository.StreamDestinationRepository streamDestinationRepo;
     @Mock private PlanService planService;
+    @Mock private StreamAdmissionService admissionService;
+    @Mock private StreamAssetCache assetCache;
 
     @InjectMocks
     private StreamService streamService;
@@ -105,4 +112,33 @@ class StreamLimitTest {
              }
         }
     }
+
+    @Test
+    void testStartStream_ReservesEveryEncoderUpFrontAndReturnsItOnFailure() throws Exception {
+        String username = "test@essential.com";
+        User user = new User(username);
+        user.setPlanType(PlanType.ESSENTIALS);
+        Path dir = Files.createTempDirectory("stream-limit");
+        Path video = Files.createFile(dir.resolve("video.mp4"));
+
+        when(userService.getOrCreateUser(username)).thenReturn(user);
+        when(userFileService.getUserUploadDir(username)).thenReturn(dir);
+        when(assetCache.acquireIfCached("video")).thenReturn(Optional.of(video));
+        when(planService.getPlanConfig(any())).thenReturn(new com.afklive.streamer.model.PlanConfig(PlanType.ESSENTIALS, "Essentials", "10", "Monthly", 100L, 10, 10, 1, 1080));
+        // One encoder per destination
+        ReflectionTestUtils.setField(streamService, "fanOutEnabled", false);
+
+        // The launch fails here (no FFmpeg or no database), after capacity was reserved
+        assertThrows(Exception.class, () -> streamService.startStream(username, java.util.List.of("key-1"), "video",
+                null, null, 0, null, true, "original", 720, null, null, null, false, null, false));
+        assertThrows(Exception.class, () -> streamService.startStream(username, java.util.List.of("key-1", "key-2"), "video",
+                null, null, 0, null, true, "original", 720, null, null, null, false, null, false));
+
+        // Both encoders are reserved before the first is launched, and everything is returned
+        ArgumentCaptor<Double> acquired = ArgumentCaptor.forClass(Double.class);
+        verify(admissionService, times(2)).acquire(acquired.capture());
+        double encoder = acquired.getAllValues().get(0);
+        assertEquals(2 * encoder, acquired.getAllValues().get(1), 1e-9);
+        verify(admissionService).release(2 * encoder);
+    }
 }
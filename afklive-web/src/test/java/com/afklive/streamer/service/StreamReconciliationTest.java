@@ -0,0 +1,189 @@
+package com.afklive.streamer.service;
+
+import com.afklive.streamer.model.PlanType;
+import com.afklive.streamer.model.StreamJob;
+import com.afklive.streamer.model.User;
+import com.afklive.streamer.repository.StreamJobRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class StreamReconciliationTest {
+
+    @Mock private StreamJobRepository streamJobRepo;
+    @Mock private UserService userService;
+    @Mock private StreamLeaseService leaseService;
+    @Mock private FileStorageService storageService;
+    @Mock private StreamBillingService billingService;
+
+    @InjectMocks
+    private StreamService streamService;
+
+    private final ZonedDateTime now = ZonedDateTime.now(ZoneId.of("UTC"));
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        when(leaseService.isThisHost(any())).thenReturn(true);
+    }
+
+    private StreamJob deadJob(long id, String username) {
+        StreamJob job = new StreamJob();
+        job.setId(id);
+        job.setUsername(username);
+        job.setLive(true);
+        // No process has this PID
+        job.setPid(Long.MAX_VALUE - id);
+        job.setStartTime(now.minusHours(3));
+        job.setLastBillingTime(now.minusHours(2));
+        return job;
+    }
+
+    @Test
+    void deadJobsAreEndedAndBilledUpToTheLastHeartbeat() {
+        StreamJob job = deadJob(1, "free@test.com");
+        job.setLeaseExpiresAt(now.minusMinutes(59));
+        when(leaseService.lastHeartbeat(job)).thenReturn(now.minusHours(1));
+        when(streamJobRepo.findByIsLiveTrueAndIdGreaterThanOrderByIdAsc(eq(0L), any())).thenReturn(List.of(job));
+        User user = new User("free@test.com");
+        user.setPlanType(PlanType.FREE);
+        when(userService.findUsers(any())).thenReturn(Map.of("free@test.com", user));
+
+        streamService.reconcileLiveJobs();
+
+        assertThat(job.isLive()).isFalse();
+        assertThat(job.getEndTime()).isEqualTo(now.minusHours(1));
+        // One hour between the last billing run and the last heartbeat
+        verify(billingService).recordCharges(argThat(charges -> charges.size() == 1
+                && Math.abs(charges.get(0).amount() - 1.25) < 0.001
+                && charges.get(0).billedUntil().equals(now.minusHours(1))));
+        verify(streamJobRepo).saveAll(List.of(job));
+    }
+
+    @Test
+    void resumableJobsAreLeftToLeaseAdoption() {
+        StreamJob job = deadJob(1, "user@test.com");
+        job.setLaunchGroup("group-1");
+        job.setStreamMode("original");
+        when(streamJobRepo.findByIsLiveTrueAndIdGreaterThanOrderByIdAsc(eq(0L), any())).thenReturn(List.of(job));
+
+        streamService.reconcileLiveJobs();
+
+        assertThat(job.isLive()).isTrue();
+        verify(leaseService).release("group-1");
+        verify(streamJobRepo, never()).saveAll(anyList());
+    }
+
+    @Test
+    void jobsOfOtherHostsAreNotTouched() {
+        StreamJob job = deadJob(1, "user@test.com");
+        when(leaseService.isThisHost(job)).thenReturn(false);
+        when(streamJobRepo.findByIsLiveTrueAndIdGreaterThanOrderByIdAsc(eq(0L), any())).thenReturn(List.of(job));
+
+        streamService.reconcileLiveJobs();
+
+        assertThat(job.isLive()).isTrue();
+        verify(streamJobRepo, never()).saveAll(anyList());
+    }
+
+    @Test
+    void stopAllEndsReattachedEncoderWithoutRelaunch() throws Exception {
+        Process encoder = new ProcessBuilder("sleep", "30").start();
+        StreamJob job = deadJob(1, "user@test.com");
+        job.setPid(encoder.pid());
+        job.setLaunchGroup("group-1");
+        job.setStreamMode("original");
+        when(leaseService.isLocal(job)).thenReturn(true);
+        when(streamJobRepo.findAllByUsernameAndIsLiveTrue("user@test.com")).thenReturn(List.of(job));
+        when(streamJobRepo.findById(1L)).thenReturn(Optional.of(job));
+        when(userService.getOrCreateUser("user@test.com")).thenReturn(new User("user@test.com"));
+        ReflectionTestUtils.invokeMethod(streamService, "trackSurvivor", job, encoder.toHandle());
+
+        try {
+            streamService.stopAllStreams("user@test.com");
+
+            assertThat(encoder.onExit().get(5, TimeUnit.SECONDS).isAlive()).isFalse();
+            assertThat(job.isLive()).isFalse();
+            verify(streamJobRepo).save(job);
+            // The exit watcher must not hand the stopped stream to adoption
+            verify(leaseService, after(500).never()).release("group-1");
+        } finally {
+            encoder.destroyForcibly();
+        }
+    }
+
+    @Test
+    void failedAdoptionReleasesTheGroupWhenTheVideoIsStillStored() {
+        StreamJob job = adoptableJob();
+        doThrow(new IllegalStateException("S3 timeout")).when(storageService).downloadFileToPath(eq("watermark.png"), any());
+        when(storageService.exists("video.mp4")).thenReturn(true);
+
+        streamService.adoptLaunchGroup("group-1");
+
+        assertThat(job.isLive()).isTrue();
+        verify(leaseService).release("group-1");
+        verify(streamJobRepo, never()).save(any());
+    }
+
+    @Test
+    void failedAdoptionEndsTheJobsWhenTheVideoIsGone() {
+        StreamJob job = adoptableJob();
+        doThrow(new IllegalStateException("S3 timeout")).when(storageService).downloadFileToPath(eq("watermark.png"), any());
+        when(storageService.exists("video.mp4")).thenReturn(false);
+        when(streamJobRepo.findById(1L)).thenReturn(Optional.of(job));
+
+        streamService.adoptLaunchGroup("group-1");
+
+        assertThat(job.isLive()).isFalse();
+        verify(leaseService, never()).release("group-1");
+    }
+
+    private StreamJob adoptableJob() {
+        StreamJob job = deadJob(1, "user@test.com");
+        job.setLaunchGroup("group-1");
+        job.setStreamMode("original");
+        job.setFileName("video.mp4");
+        job.setWatermarkKey("watermark.png");
+        when(leaseService.claim("group-1")).thenReturn(true);
+        when(streamJobRepo.findAllByLaunchGroupAndIsLiveTrue("group-1")).thenReturn(List.of(job));
+        when(userService.getOrCreateUser("user@test.com")).thenReturn(new User("user@test.com"));
+        return job;
+    }
+
+    @Test
+    void readsLiveJobsInBatches() {
+        StreamJob first = deadJob(7, "a@test.com");
+        StreamJob second = deadJob(42, "b@test.com");
+        when(streamJobRepo.findByIsLiveTrueAndIdGreaterThanOrderByIdAsc(eq(0L), any())).thenReturn(List.of(first));
+        when(streamJobRepo.findByIsLiveTrueAndIdGreaterThanOrderByIdAsc(eq(7L), any())).thenReturn(List.of(second));
+
+        streamService.reconcileLiveJobs();
+
+        verify(streamJobRepo).findByIsLiveTrueAndIdGreaterThanOrderByIdAsc(eq(42L), any());
+        verify(streamJobRepo, times(2)).saveAll(anyList());
+        assertThat(first.isLive()).isFalse();
+        assertThat(second.isLive()).isFalse();
+    }
+}
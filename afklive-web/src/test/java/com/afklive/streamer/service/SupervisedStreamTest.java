@@ -0,0 +1,96 @@
+package com.afklive.streamer.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SupervisedStreamTest {
+
+    private StreamLaunchSpec spec(int loopCount) {
+        return new StreamLaunchSpec(Paths.get("/tmp/video.mp4"), null, null, null, loopCount, null, false,
+                "original", 1080, false, null, 0);
+    }
+
+    @Test
+    void testResumesAtPositionWithinLoop() {
+        SupervisedStream stream = new SupervisedStream(spec(-1), List.of("key"));
+        stream.onLogLine("  Duration: 00:01:40.00, start: 0.000000, bitrate: 2500 kb/s");
+        stream.onLogLine("out_time_us=250000000");
+        stream.recordFailure(Instant.now(), Duration.ofMinutes(2));
+
+        StreamLaunchSpec resume = stream.resumeSpec();
+
+        // 250s played of a 100s video -> 50s into the third loop, still looping forever
+        assertThat(resume.startOffsetSeconds()).isEqualTo(50.0);
+        assertThat(resume.loopCount()).isEqualTo(-1);
+        assertThat(resume.videoPath()).isEqualTo(Paths.get("/tmp/video.mp4"));
+    }
+
+    @Test
+    void testResumeDeductsPlayedLoops() {
+        SupervisedStream stream = new SupervisedStream(spec(3), List.of("key"));
+        stream.onLogLine("  Duration: 00:01:40.00, start: 0.000000, bitrate: 2500 kb/s");
+        stream.onLogLine("out_time_us=150000000");
+
+        StreamLaunchSpec resume = stream.resumeSpec();
+
+        assertThat(resume.startOffsetSeconds()).isEqualTo(50.0);
+        assertThat(resume.loopCount()).isEqualTo(2);
+    }
+
+    @Test
+    void testUnknownDurationRestartsFromBeginning() {
+        SupervisedStream stream = new SupervisedStream(spec(-1), List.of("key"));
+        stream.onLogLine("  Duration: N/A, start: 0.000000, bitrate: N/A");
+        stream.onLogLine("out_time_us=30000000");
+
+        assertThat(stream.resumeSpec().startOffsetSeconds()).isZero();
+    }
+
+    @Test
+    void testResumeSpecSeeksInputInCommand() {
+        List<String> command = spec(-1).resumeAt(42.5, -1).buildCommand(List.of("key"));
+
+        assertThat(command).containsSubsequence("-ss", "42.500", "-i", "/tmp/video.mp4");
+    }
+
+    @Test
+    void testBackoffGrowsAndIsCapped() {
+        StreamRestartPolicy policy = new StreamRestartPolicy(500, 4000, 3, 60, 120);
+
+        assertThat(policy.backoffMillis(1)).isBetween(250L, 500L);
+        assertThat(policy.backoffMillis(3)).isBetween(1000L, 2000L);
+        assertThat(policy.backoffMillis(10)).isBetween(2000L, 4000L);
+    }
+
+    @Test
+    void testRestartBudgetPerWindow() {
+        StreamRestartPolicy policy = new StreamRestartPolicy(500, 4000, 2, 60, 120);
+        Deque<Instant> history = new ArrayDeque<>();
+        Instant now = Instant.now();
+
+        assertThat(policy.tryConsumeRestart(history, now)).isTrue();
+        assertThat(policy.tryConsumeRestart(history, now)).isTrue();
+        assertThat(policy.tryConsumeRestart(history, now)).isFalse();
+        // Old restarts fall out of the window
+        assertThat(policy.tryConsumeRestart(history, now.plus(Duration.ofMinutes(61)))).isTrue();
+    }
+
+    @Test
+    void testStableRunResetsBackoff() {
+        SupervisedStream stream = new SupervisedStream(spec(-1), List.of("key"));
+        stream.attach(null);
+        Instant now = Instant.now();
+
+        assertThat(stream.recordFailure(now, Duration.ofMinutes(2))).isEqualTo(1);
+        assertThat(stream.recordFailure(now, Duration.ofMinutes(2))).isEqualTo(2);
+        assertThat(stream.recordFailure(now.plus(Duration.ofMinutes(5)), Duration.ofMinutes(2))).isEqualTo(1);
+    }
+}
@@ -0,0 +1,124 @@
+package com.afklive.streamer.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.afklive.streamer.service.TranscodeScheduler.Priority.CONVERSION;
+import static com.afklive.streamer.service.TranscodeScheduler.Priority.MERGE;
+import static com.afklive.streamer.service.TranscodeScheduler.Priority.PAID;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TranscodeSchedulerTest {
+
+    private TranscodeScheduler scheduler = new TranscodeScheduler(1, 2, 0.75, 10, 3, () -> 0.1);
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void paidWorkGoesFirstThenConversionsThenMerges() {
+        scheduler.submit("free@test.com", MERGE, "merge", () -> {});
+        scheduler.submit("free@test.com", CONVERSION, "short", () -> {});
+        scheduler.submit("paid@test.com", PAID, "optimize", () -> {});
+
+        assertThat(scheduler.getQueuePosition("paid@test.com", "optimize")).hasValue(1);
+        assertThat(scheduler.getQueuePosition("free@test.com", "short")).hasValue(2);
+        assertThat(scheduler.getQueuePosition("free@test.com", "merge")).hasValue(3);
+    }
+
+    @Test
+    void usersTakeTurnsWithinAClass() {
+        scheduler.submit("a@test.com", CONVERSION, "a1", () -> {});
+        scheduler.submit("a@test.com", CONVERSION, "a2", () -> {});
+        scheduler.submit("a@test.com", CONVERSION, "a3", () -> {});
+        scheduler.submit("b@test.com", CONVERSION, "b1", () -> {});
+
+        assertThat(scheduler.getQueuePosition("a@test.com", "a1")).hasValue(1);
+        assertThat(scheduler.getQueuePosition("b@test.com", "b1")).hasValue(2);
+        assertThat(scheduler.getQueuePosition("a@test.com", "a2")).hasValue(3);
+        assertThat(scheduler.getQueuePosition("a@test.com", "a3")).hasValue(4);
+    }
+
+    @Test
+    void queueIsBoundedPerUser() {
+        for (int i = 0; i < 3; i++) scheduler.submit("a@test.com", CONVERSION, "a" + i, () -> {});
+
+        assertThatThrownBy(() -> scheduler.submit("a@test.com", MERGE, "a3", () -> {}))
+                .isInstanceOf(IllegalStateException.class);
+        scheduler.submit("b@test.com", CONVERSION, "b0", () -> {});
+    }
+
+    @Test
+    void runsQueuedWorkInOrderWithinTheConcurrencyLimit() throws Exception {
+        List<String> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        scheduler.submit("free@test.com", MERGE, "merge", () -> { ran.add("merge"); done.countDown(); });
+        scheduler.submit("free@test.com", CONVERSION, "short", () -> { ran.add("short"); done.countDown(); });
+        scheduler.submit("paid@test.com", PAID, "optimize", () -> { ran.add("optimize"); done.countDown(); });
+
+        scheduler.start();
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(ran).containsExactly("optimize", "short", "merge");
+        assertThat(scheduler.getQueuePosition("free@test.com", "merge")).isEmpty();
+    }
+
+    @Test
+    void busyNodeHoldsBackAllButOneJob() throws Exception {
+        scheduler = new TranscodeScheduler(2, 2, 0.75, 10, 3, () -> 0.95);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit("a@test.com", CONVERSION, "first", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        scheduler.submit("b@test.com", CONVERSION, "second", () -> {});
+
+        scheduler.start();
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        Thread.sleep(200);
+
+        assertThat(scheduler.getQueuePosition("b@test.com", "second")).hasValue(1);
+        release.countDown();
+    }
+
+    @Test
+    void idleSlotsAreLentOnlyWhenNothingIsQueued() {
+        scheduler = new TranscodeScheduler(4, 2, 0.75, 10, 3, () -> 0.1);
+
+        assertThat(scheduler.borrowIdleSlots(8)).isEqualTo(4);
+        assertThat(scheduler.borrowIdleSlots(1)).isZero();
+        scheduler.returnSlots(4);
+
+        scheduler.submit("a@test.com", CONVERSION, "queued", () -> {});
+        assertThat(scheduler.borrowIdleSlots(2)).isZero();
+    }
+
+    @Test
+    void queuedWorkWaitsForLentSlotsToBeReturned() throws Exception {
+        scheduler = new TranscodeScheduler(2, 2, 0.75, 10, 3, () -> 0.1);
+        scheduler.start();
+        assertThat(scheduler.borrowIdleSlots(2)).isEqualTo(2);
+
+        CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit("a@test.com", CONVERSION, "queued", started::countDown);
+
+        assertThat(started.await(300, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(scheduler.getQueuePosition("a@test.com", "queued")).hasValue(1);
+
+        scheduler.returnSlots(2);
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+}
@@ -1,17 +1,33 @@
 package com.afklive.streamer.service;
 
+import com.afklive.streamer.dto.ConversionProgress;
+import com.afklive.streamer.dto.StreamMetrics;
+import com.afklive.streamer.model.ContentBlob;
+import com.afklive.streamer.model.OffloadJob;
+import com.afklive.streamer.model.ScheduledVideo;
+import com.afklive.streamer.model.User;
+import com.afklive.streamer.repository.OffloadJobRepository;
 import com.afklive.streamer.repository.ScheduledVideoRepository;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.services.lambda.LambdaClient;
+import software.amazon.awssdk.services.lambda.model.InvokeRequest;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -25,6 +41,12 @@ class VideoConversionServiceTest {
     private UserService userService;
     @Mock
     private ScheduledVideoRepository repository;
+    @Mock
+    private ContentBlobService contentBlobService;
+    @Mock
+    private MediaMetadataService mediaMetadataService;
+    @Mock
+    private OffloadJobRepository offloadJobRepository;
 
     @InjectMocks
     private VideoConversionService videoConversionService;
@@ -43,6 +65,7 @@ class VideoConversionServiceTest {
         String key = username + ":" + fileName;
 
         // Access the private cache field
+        @SuppressWarnings("unchecked")
         Cache<String, Integer> cache = (Cache<String, Integer>) ReflectionTestUtils.getField(videoConversionService, "conversionProgress");
         assertNotNull(cache);
 
@@ -62,4 +85,182 @@ class VideoConversionServiceTest {
         // but we can verify the object is indeed a Cache)
         assertTrue(cache instanceof com.github.benmanes.caffeine.cache.Cache);
     }
+
+    @Test
+    void testProgressFromEncoderOutput() {
+        // 30 s of a 120 s video encoded at 2x
+        StreamMetrics metrics = new StreamMetrics(900, 60, 4500, 0, 30.0, 0, 0, 2.0, false, Instant.now());
+
+        ConversionProgress progress = VideoConversionService.progressOf(metrics, 120);
+
+        assertEquals(25, progress.percent());
+        assertEquals(45, progress.etaSeconds());
+        assertEquals(2.0, progress.speed());
+    }
+
+    @Test
+    void testProgressOfLaterStepCountsEarlierSteps() {
+        // Second step of a 200 s job, 100 s done before it, 50 s into this one
+        StreamMetrics metrics = new StreamMetrics(1500, 60, 4500, 0, 50.0, 0, 0, 10.0, false, Instant.now());
+
+        ConversionProgress progress = VideoConversionService.progressOf(metrics, 100, 200);
+
+        assertEquals(75, progress.percent());
+        assertEquals(5, progress.etaSeconds());
+    }
+
+    @Test
+    void testProgressStaysBelowHundredUntilUploaded() {
+        StreamMetrics metrics = new StreamMetrics(3600, 60, 4500, 0, 121.0, 0, 0, 2.0, false, Instant.now());
+
+        assertEquals(99, VideoConversionService.progressOf(metrics, 120).percent());
+        // Unknown duration: speed only
+        assertEquals(-1, VideoConversionService.progressOf(metrics, 0).etaSeconds());
+    }
+
+    @Test
+    void testRepeatOptimizationReusesEarlierRendition() {
+        ScheduledVideo source = new ScheduledVideo();
+        source.setContentHash("abc");
+        when(repository.findByUsernameAndTitle("testuser", "video.mp4")).thenReturn(Optional.of(source));
+        ContentBlob rendition = new ContentBlob();
+        rendition.setStorageKey("rendition-key");
+        rendition.setSize(1000);
+        when(contentBlobService.retainRendition("abc", "landscape", 1080)).thenReturn(Optional.of(rendition));
+
+        // The transcode scheduler is not mocked, nothing may be queued
+        videoConversionService.optimizeVideo(null, "testuser", "video.mp4", "landscape", 1080);
+
+        ArgumentCaptor<ScheduledVideo> saved = ArgumentCaptor.forClass(ScheduledVideo.class);
+        verify(repository).save(saved.capture());
+        assertEquals("rendition-key", saved.getValue().getS3Key());
+        assertEquals("video_landscape_1080p.mp4", saved.getValue().getTitle());
+        verify(userService).updateStorageUsage("testuser", 1000L);
+        assertEquals(100, videoConversionService.getProgress("testuser", "video.mp4").get());
+    }
+
+    @Test
+    void testLadderReusesEveryExistingRendition() {
+        ScheduledVideo source = new ScheduledVideo();
+        source.setContentHash("abc");
+        when(repository.findByUsernameAndTitle("testuser", "video.mp4")).thenReturn(Optional.of(source));
+        ContentBlob landscape = new ContentBlob();
+        landscape.setStorageKey("landscape-key");
+        landscape.setSize(1000);
+        ContentBlob portrait = new ContentBlob();
+        portrait.setStorageKey("portrait-key");
+        portrait.setSize(500);
+        when(contentBlobService.retainRendition("abc", "landscape", 1080)).thenReturn(Optional.of(landscape));
+        when(contentBlobService.retainRendition("abc", "portrait", 1920)).thenReturn(Optional.of(portrait));
+
+        // The transcode scheduler is not mocked, nothing may be queued
+        videoConversionService.optimizeLadder("testuser", "video.mp4", List.of(
+                FFmpegCommandBuilder.Rendition.parse("landscape:1080"), FFmpegCommandBuilder.Rendition.parse("portrait:1920")));
+
+        ArgumentCaptor<ScheduledVideo> saved = ArgumentCaptor.forClass(ScheduledVideo.class);
+        verify(repository, times(2)).save(saved.capture());
+        assertEquals(List.of("video_landscape_1080p.mp4", "video_portrait_1920p.mp4"),
+                saved.getAllValues().stream().map(ScheduledVideo::getTitle).toList());
+        verify(userService).updateStorageUsage("testuser", 500L);
+        assertEquals(100, videoConversionService.getProgress("testuser", "video.mp4").get());
+    }
+
+    @Test
+    void testLambdaOptimizationRunsOutsideTheSchedulerAndQueuesOnlyTheFallback() throws Exception {
+        TranscodeScheduler scheduler = mock(TranscodeScheduler.class);
+        LambdaClient lambdaClient = mock(LambdaClient.class);
+        ReflectionTestUtils.setField(videoConversionService, "transcodeScheduler", scheduler);
+        ReflectionTestUtils.setField(videoConversionService, "lambdaClient", lambdaClient);
+        ReflectionTestUtils.setField(videoConversionService, "lambdaFunctionName", "optimizer");
+        when(repository.findByUsernameAndTitle("testuser", "video.mp4")).thenReturn(Optional.of(new ScheduledVideo()));
+        when(contentBlobService.retainRendition(any(), any(), anyInt())).thenReturn(Optional.empty());
+        when(lambdaClient.invoke(any(InvokeRequest.class))).thenThrow(new IllegalStateException("Lambda down"));
+        when(userService.getOrCreateUser("testuser")).thenReturn(new User("testuser"));
+        // submit is synchronized, verifying it with a timeout would hold its monitor against the fallback
+        CountDownLatch queued = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            queued.countDown();
+            return null;
+        }).when(scheduler).submit(any(), any(), any(), any());
+
+        videoConversionService.optimizeVideo(null, "testuser", "video.mp4", "landscape", 1080);
+
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        // The mocked scheduler runs nothing, so the invoke happened without a slot
+        verify(lambdaClient).invoke(any(InvokeRequest.class));
+        verify(scheduler).submit(eq("testuser"), any(), eq("testuser:video.mp4"), any());
+    }
+
+    @Test
+    void testCompletedOffloadJobSavesRendition() {
+        OffloadJob job = offloadJob("job-1", null, null, OffloadJob.Status.PENDING);
+        ScheduledVideo source = new ScheduledVideo();
+        when(offloadJobRepository.findByClosedFalse()).thenReturn(List.of(job));
+        when(storageService.exists("offload-jobs/job-1.json")).thenReturn(true);
+        when(storageService.downloadFile("offload-jobs/job-1.json")).thenReturn(new ByteArrayInputStream(
+                "{\"status\":\"success\",\"optimized_key\":\"out-job-1\",\"file_size\":2000}".getBytes(StandardCharsets.UTF_8)));
+        when(offloadJobRepository.complete(eq("job-1"), eq(OffloadJob.Status.SUCCEEDED), eq(2000L), isNull(), any())).thenReturn(1);
+        when(offloadJobRepository.close(List.of("job-1"))).thenReturn(1);
+        when(repository.findById(7L)).thenReturn(Optional.of(source));
+
+        videoConversionService.pollOffloadJobs();
+
+        ArgumentCaptor<ScheduledVideo> saved = ArgumentCaptor.forClass(ScheduledVideo.class);
+        verify(repository).save(saved.capture());
+        assertEquals("out-job-1", saved.getValue().getS3Key());
+        assertEquals("video_landscape_1080p.mp4", saved.getValue().getTitle());
+        verify(userService).updateStorageUsage("testuser", 2000L);
+        verify(storageService).deleteFile("offload-jobs/job-1.json");
+        assertEquals(100, videoConversionService.getProgress("testuser", "video.mp4").get());
+    }
+
+    @Test
+    void testChunkGroupWaitsForEveryJob() {
+        OffloadJob done = offloadJob("job-1", "group", 0, OffloadJob.Status.SUCCEEDED);
+        OffloadJob running = offloadJob("job-2", "group", 1, OffloadJob.Status.PENDING);
+        when(offloadJobRepository.findByClosedFalse()).thenReturn(List.of(done, running));
+
+        videoConversionService.pollOffloadJobs();
+
+        verify(offloadJobRepository, never()).close(any());
+        assertEquals(49, videoConversionService.getProgress("testuser", "video.mp4").get());
+    }
+
+    @Test
+    void testFailedChunkFallsBackToLocalOptimization() {
+        TranscodeScheduler scheduler = mock(TranscodeScheduler.class);
+        ReflectionTestUtils.setField(videoConversionService, "transcodeScheduler", scheduler);
+        OffloadJob done = offloadJob("job-1", "group", 0, OffloadJob.Status.SUCCEEDED);
+        OffloadJob failed = offloadJob("job-2", "group", 1, OffloadJob.Status.PENDING);
+        // Never completed
+        failed.setCreatedAt(ZonedDateTime.now().minusHours(2));
+        when(offloadJobRepository.findByClosedFalse()).thenReturn(List.of(done, failed));
+        when(offloadJobRepository.complete(eq("job-2"), eq(OffloadJob.Status.FAILED), isNull(), anyString(), any())).thenReturn(1);
+        when(offloadJobRepository.close(List.of("job-1", "job-2"))).thenReturn(2);
+        when(repository.findById(7L)).thenReturn(Optional.of(new ScheduledVideo()));
+
+        videoConversionService.pollOffloadJobs();
+
+        verify(storageService).deleteFile("out-job-1");
+        verify(scheduler).submit(eq("testuser"), any(), eq("testuser:video.mp4"), any());
+        verify(repository, never()).save(any());
+    }
+
+    private static OffloadJob offloadJob(String id, String groupId, Integer chunkIndex, OffloadJob.Status status) {
+        OffloadJob job = new OffloadJob();
+        job.setId(id);
+        job.setGroupId(groupId);
+        job.setChunkIndex(chunkIndex);
+        job.setVideoId(7L);
+        job.setUsername("testuser");
+        job.setFileName("video.mp4");
+        job.setMode("landscape");
+        job.setHeight(1080);
+        job.setTargetTitle("video_landscape_1080p.mp4");
+        job.setOutputKey("out-" + id);
+        job.setOutputSize(status == OffloadJob.Status.SUCCEEDED ? 1000L : null);
+        job.setStatus(status);
+        job.setCreatedAt(ZonedDateTime.now());
+        return job;
+    }
 }